@@ -11,5 +11,6 @@ public class Keywords {
 	public static final Keyword DOC =  Keyword.create("doc");
 	public static final Keyword INLINE = Keyword.create("inline");
 	public static final Keyword TYPE = Keyword.create("type");
+	public static final Keyword NAME = Keyword.create("name");
 	
 }
@@ -63,7 +63,7 @@ public class Maths {
 	}
 	
 	public static Boolean eq(Long a, Long b) {
-		return RT.boolObject(a==b);
+		return RT.boolObject(a.longValue()==b.longValue());
 	}
 	
 	public static Boolean lt(Object a, Object b) {
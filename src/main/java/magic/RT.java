@@ -23,10 +23,10 @@ import magic.data.APersistentMap;
 import magic.data.APersistentSequence;
 import magic.data.APersistentSet;
 import magic.data.APersistentVector;
+import magic.data.ChampHashMap;
 import magic.data.IPersistentObject;
 import magic.data.ISeq;
 import magic.data.Keyword;
-import magic.data.PersistentHashMap;
 import magic.data.PersistentList;
 import magic.data.Sets;
 import magic.data.Symbol;
@@ -231,7 +231,7 @@ public class RT {
 	@SuppressWarnings("unchecked")
 	public static Object concat(Object a, Object b) {
 		if (a instanceof APersistentVector) {
-			return ((APersistentVector<Object>)a).concat((APersistentVector<Object>) vec(b));
+			return Vectors.concat((APersistentVector<Object>)a,(APersistentVector<Object>) vec(b));
 		};
 		throw new IllegalArgumentException("Can't concat objects of type "+a.getClass()+" and "+b.getClass());
 	}
@@ -707,7 +707,7 @@ public class RT {
 
 	@SuppressWarnings("unchecked")
 		public static APersistentMap<Keyword, Object> addMetaDependency(APersistentMap<Keyword, Object> meta, Symbol sym) {
-		if (meta==null) return PersistentHashMap.create(Keywords.DEPS, Sets.of(sym));
+		if (meta==null) return ChampHashMap.create(Keywords.DEPS, Sets.of(sym));
 		APersistentSet<Symbol> deps=(APersistentSet<Symbol>) meta.get(Keywords.DEPS);
 		if (deps==null) {
 			return meta.assoc(Keywords.DEPS, Sets.of(sym));
@@ -1,13 +1,18 @@
 package magic.ast;
 
 import magic.Keywords;
+import magic.RT;
 import magic.compiler.EvalResult;
+import magic.compiler.Generator;
+import magic.compiler.JIT;
+import magic.compiler.Optimiser;
 import magic.compiler.SourceInfo;
 import magic.data.APersistentList;
 import magic.data.APersistentMap;
+import magic.data.APersistentSet;
+import magic.data.APersistentVector;
 import magic.data.Keyword;
 import magic.data.Lists;
-import magic.data.Maps;
 import magic.data.PersistentList;
 import magic.data.Symbol;
 import magic.fn.IFn;
@@ -42,7 +47,7 @@ public class Apply<T> extends BaseForm<T> {
 	}
 	
 	public static <T> Apply<T> create(APersistentList<Node<? extends Object>> form, SourceInfo sourceInfo) {
-		APersistentMap<Keyword, Object> meta=Maps.create(Keywords.SOURCE, sourceInfo);
+		APersistentMap<Keyword, Object> meta=NodeMeta.create(sourceInfo);
 		return create(form,meta);
 	}
 	
@@ -52,7 +57,7 @@ public class Apply<T> extends BaseForm<T> {
 	}
 	
 	public static <T> Apply<T> create(APersistentList<Node<? extends Object>> form, APersistentMap<Keyword, Object> meta) {
-		meta=meta.assoc(Keywords.DEPS, calcDependencies(form));
+		meta=NodeMeta.of(meta).withDeps(calcDependencies(form));
 		return new Apply<T>(form,meta);
 	}
 	
@@ -77,6 +82,13 @@ public class Apply<T> extends BaseForm<T> {
 		}
 		return EvalResult.create(r.getContext(),f.applyToArray(values));
 	}
+
+	@Override
+	public void emit(Context c, APersistentMap<Symbol, Object> bindings, Generator gen) {
+		function.emit(c,bindings,gen);
+		gen.pushArray(args,c,bindings);
+		gen.invokeStatic(JIT.class,"Object apply(Object,Object[])");
+	}
 	
 	@SuppressWarnings("unchecked")
 	@Override
@@ -100,11 +112,22 @@ public class Apply<T> extends BaseForm<T> {
 
 	@SuppressWarnings("unchecked")
 	@Override
-	public Node<T> optimise() {	
+	public Node<? extends T> optimise() {	
+		Apply<T> app=(Apply<T>) mapChildren(NodeFunctions.optimise());
+		return app.optimiseLocal();
+	}
+	
+	@SuppressWarnings("unchecked")
+	private Node<? extends T> optimiseLocal() {
+		// immediately applied lambda expression
+		if (function instanceof Lambda) {
+			return inlineLambda((Lambda<T>)(Node<?>)function);
+		}
+		
 		// optimise constant functions, i.e. function definition is known at compile time
 		if (function.isConstant()) {
 			IFn<? extends T> f=function.getValue();
-			if (arity==0) return Constant.create(f.apply());
+			if ((arity==0)&&isPure()) return Constant.create(f.apply());
 
 			// inlining specified at call site
 			APersistentMap<Keyword,Object> meta=meta();
@@ -117,7 +140,78 @@ public class Apply<T> extends BaseForm<T> {
 
 		}
 		
-		return this;
+		// specialise arithmetic on observed operand types
+		return Arithmetic.tryCreate(this);
+	}
+	
+	/**
+	 * Inlines an immediately applied lambda expression e.g. ((fn [x] ...) y) into an equivalent `let`,
+	 * avoiding allocation of a closure.
+	 */
+	private Node<? extends T> inlineLambda(Lambda<T> lambda) {
+		if (lambda.isVariadic()||(lambda.getArity()!=arity)) return this;
+		Node<T> body=lambda.getBody();
+		if (Optimiser.hasEscapes(body)) return this; // would recur or return to the wrong target
+		APersistentVector<Symbol> params=lambda.getParams();
+		
+		// arguments are evaluated in the enclosing scope, so must not see earlier parameters
+		boolean clash=false;
+		for (int i=1; i<arity; i++) {
+			APersistentSet<Symbol> deps=args[i].getDependencies();
+			for (int j=0; j<i; j++) {
+				if (deps.contains(params.get(j))) clash=true;
+			}
+		}
+		
+		Symbol[] syms;
+		Node<?>[] lets;
+		if (clash) {
+			// bind arguments to temporary symbols first
+			syms=new Symbol[arity*2];
+			lets=new Node<?>[arity*2];
+			for (int i=0; i<arity; i++) {
+				Symbol temp=RT.genSym();
+				syms[i]=temp;
+				lets[i]=args[i];
+				syms[arity+i]=params.get(i);
+				lets[arity+i]=Lookup.create(temp);
+			}
+		} else {
+			syms=params.toArray(new Symbol[arity]);
+			lets=args;
+		}
+		Let<T> let=Let.create(syms, lets, body, getSourceInfo());
+		return let.optimise();
+	}
+
+	/**
+	 * Gets the node that computes the function to be applied
+	 */
+	public Node<?> getFunction() {
+		return function;
+	}
+	
+	/**
+	 * Gets the argument nodes of this application
+	 */
+	public Node<?>[] getArgs() {
+		return args.clone();
+	}
+	
+	/**
+	 * An application is pure if the function is a known lambda with a pure body
+	 * and all arguments are pure
+	 */
+	@Override
+	public boolean isPure() {
+		if (!function.isConstant()) return false;
+		Object f=function.getValue();
+		if (!(f instanceof Lambda.LambdaFn)) return false;
+		if (!((Lambda<?>.LambdaFn)f).getBody().isPure()) return false;
+		for (int i=0; i<arity; i++) {
+			if (!args[i].isPure()) return false;
+		}
+		return true;
 	}
 
 	@Override
@@ -0,0 +1,326 @@
+package magic.ast;
+
+import magic.Maths;
+import magic.Type;
+import magic.compiler.EvalResult;
+import magic.compiler.Generator;
+import magic.data.APersistentMap;
+import magic.data.APersistentSet;
+import magic.data.Keyword;
+import magic.data.Sets;
+import magic.data.Symbol;
+import magic.fn.IFn1;
+import magic.lang.Context;
+
+/**
+ * AST node representing a binary arithmetic operation (add, sub, mul) that specialises itself
+ * according to the operand types observed at runtime.
+ *
+ * Wraps either a direct invocation e.g. (. magic.Maths add a b) or an application of a core
+ * arithmetic function e.g. (+ a b) or (inc a). The first evaluation records whether the
+ * operands are both Long or both Double, and subsequent evaluations use a specialised path
+ * guarded on the operand classes. On a guard miss the node deoptimises permanently to the
+ * generic path.
+ *
+ * Applications are checked to call a known arithmetic function on first use, falling back
+ * to the wrapped node otherwise (e.g. if the function has been redefined).
+ * Where the function is a compile-time constant (e.g. an inlined global definition) it is
+ * verified immediately instead.
+ *
+ * @author Mike
+ *
+ * @param <T>
+ */
+public class Arithmetic<T> extends BaseForm<T> {
+	private static final int ADD=0;
+	private static final int SUB=1;
+	private static final int MUL=2;
+
+	private static final int UNINITIALISED=0;
+	private static final int LONG=1;
+	private static final int DOUBLE=2;
+	private static final int GENERIC=3;
+
+	private static final APersistentSet<String> FUNCTION_NAMES=Sets.of("+","-","*","inc","dec");
+
+	private static final Symbol ADD_SYM=Symbol.create("add");
+	private static final Symbol SUB_SYM=Symbol.create("sub");
+	private static final Symbol MUL_SYM=Symbol.create("mul");
+
+	private final BaseForm<T> fallback;
+	private final Node<?> function; // null if operation is known statically
+	private final Node<?>[] args;
+	private final int op;
+
+	// observed operand specialisation. Races are benign, since every state computes the same result
+	private int state=UNINITIALISED;
+
+	// function value most recently verified as an arithmetic operation
+	private volatile Verified verified=null;
+
+	private Arithmetic(BaseForm<T> fallback, Node<?> function, Node<?>[] args, int op, APersistentMap<Keyword,Object> meta) {
+		super(fallback.nodes,meta);
+		this.fallback=fallback;
+		this.function=function;
+		this.args=args;
+		this.op=op;
+	}
+
+	/**
+	 * Describes how a verified function computes its operands from call arguments
+	 */
+	private static final class Verified {
+		private final Object fn;
+		private final int op;
+		private final int[] argIndex; // argument index for each operand, or -1 if constant
+		private final Object[] constants;
+
+		private Verified(Object fn, int op, int[] argIndex, Object[] constants) {
+			this.fn=fn;
+			this.op=op;
+			this.argIndex=argIndex;
+			this.constants=constants;
+		}
+
+		private Object operand(int i, Object a0, Object a1) {
+			int ix=argIndex[i];
+			if (ix<0) return constants[i];
+			return (ix==0)?a0:a1;
+		}
+	}
+
+	@Override
+	public Node<T> withMeta(APersistentMap<Keyword, Object> meta) {
+		return new Arithmetic<T>(fallback,function,args,op,meta);
+	}
+
+	/**
+	 * Creates a self-specialising arithmetic node if the given node is a recognised
+	 * arithmetic operation.
+	 *
+	 * @return The new node, or the original node if not recognised
+	 */
+	static <T> Node<? extends T> tryCreate(BaseForm<T> node) {
+		if (node instanceof InvokeStaticReflective) {
+			InvokeStaticReflective<T> inv=(InvokeStaticReflective<T>)node;
+			int op=match(inv);
+			if (op<0) return node;
+			return new Arithmetic<T>(node,null,inv.getArgs(),op,node.meta());
+		}
+
+		if (node instanceof Apply) {
+			Apply<T> app=(Apply<T>)node;
+			Node<?> f=app.getFunction();
+			if (f instanceof Lookup) {
+				if (!FUNCTION_NAMES.contains(f.getSymbol().getName())) return node;
+			} else if (!f.isConstant()) {
+				return node;
+			}
+			Node<?>[] args=app.getArgs();
+			if ((args.length<1)||(args.length>2)) return node;
+			Arithmetic<T> result=new Arithmetic<T>(node,f,args,-1,node.meta());
+			if (f.isConstant()) {
+				// function known at compile time, so can verify immediately
+				Verified v=result.verify(f.getValue());
+				if (v.op<0) return node;
+				result.verified=v;
+			}
+			return result;
+		}
+		return node;
+	}
+
+	/**
+	 * Matches a static invocation of a binary arithmetic operation, returning -1 if not matched
+	 */
+	private static int match(InvokeStaticReflective<?> inv) {
+		if (inv.getTargetClass()!=Maths.class) return -1;
+		if (inv.getArgs().length!=2) return -1;
+		Symbol method=inv.getMethod();
+		if (method.equals(ADD_SYM)) return ADD;
+		if (method.equals(SUB_SYM)) return SUB;
+		if (method.equals(MUL_SYM)) return MUL;
+		return -1;
+	}
+
+	/**
+	 * Checks if a function value is a lambda that directly performs a known arithmetic operation
+	 * on its parameters and constants. The resulting op is negative if not.
+	 */
+	private Verified verify(Object f) {
+		Verified v=matchFunction(f);
+		return (v==null)?new Verified(f,-1,null,null):v;
+	}
+
+	private Verified matchFunction(Object f) {
+		if (!(f instanceof Lambda.LambdaFn)) return null;
+		Lambda<?>.LambdaFn fn=(Lambda<?>.LambdaFn)f;
+		if (fn.arity()!=args.length) return null;
+		Node<?> body=fn.getBody();
+		if (body instanceof Arithmetic) body=((Arithmetic<?>)body).fallback;
+		if (!(body instanceof InvokeStaticReflective)) return null;
+		InvokeStaticReflective<?> inv=(InvokeStaticReflective<?>)body;
+		int op=match(inv);
+		if (op<0) return null;
+
+		Node<?>[] operands=inv.getArgs();
+		int[] argIndex=new int[2];
+		Object[] constants=new Object[2];
+		for (int i=0; i<2; i++) {
+			Node<?> operand=operands[i];
+			if (operand.isConstant()) {
+				argIndex[i]=-1;
+				constants[i]=operand.getValue();
+			} else if (operand instanceof Lookup) {
+				int ix=fn.getParams().indexOf(operand.getSymbol());
+				if ((ix<0)||(ix>=args.length)) return null;
+				argIndex[i]=ix;
+			} else {
+				return null;
+			}
+		}
+		return new Verified(f,op,argIndex,constants);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public EvalResult<T> eval(Context context, APersistentMap<Symbol, Object> bindings) {
+		Object x;
+		Object y;
+		int op=this.op;
+		if (function!=null) {
+			EvalResult<?> rf=function.eval(context,bindings);
+			if (rf.isEscaping()) return (EvalResult<T>) rf;
+			Object f=rf.getValue();
+			Verified v=verified;
+			if ((v==null)||(v.fn!=f)) {
+				v=verify(f);
+				verified=v;
+			}
+			op=v.op;
+			if (op<0) return fallback.eval(context, bindings); // not a known operation
+
+			EvalResult<?> r=args[0].eval(context,bindings);
+			if (r.isEscaping()) return (EvalResult<T>) r;
+			Object a0=r.getValue();
+			Object a1=null;
+			if (args.length>1) {
+				r=args[1].eval(context,bindings);
+				if (r.isEscaping()) return (EvalResult<T>) r;
+				a1=r.getValue();
+			}
+			x=v.operand(0,a0,a1);
+			y=v.operand(1,a0,a1);
+		} else {
+			EvalResult<?> r=args[0].eval(context,bindings);
+			if (r.isEscaping()) return (EvalResult<T>) r;
+			x=r.getValue();
+			r=args[1].eval(context,bindings);
+			if (r.isEscaping()) return (EvalResult<T>) r;
+			y=r.getValue();
+		}
+		return new EvalResult<T>(context,(T) compute(op,x,y));
+	}
+
+	@Override
+	public void emit(Context c, APersistentMap<Symbol, Object> bindings, Generator gen) {
+		if (function!=null) {
+			fallback.emit(c,bindings,gen);
+			return;
+		}
+		args[0].emit(c,bindings,gen);
+		args[1].emit(c,bindings,gen);
+		Symbol method=(op==ADD)?ADD_SYM:((op==SUB)?SUB_SYM:MUL_SYM);
+		gen.invokeStatic(Maths.class,"Number "+method.getName()+"(Object,Object)");
+	}
+
+	private Object compute(int op, Object x, Object y) {
+		switch (state) {
+			case LONG:
+				if ((x instanceof Long)&&(y instanceof Long)) return computeLong(op,(Long)x,(Long)y);
+				state=GENERIC;
+				break;
+			case DOUBLE:
+				if ((x instanceof Double)&&(y instanceof Double)) return computeDouble(op,(Double)x,(Double)y);
+				state=GENERIC;
+				break;
+			case UNINITIALISED:
+				if ((x instanceof Long)&&(y instanceof Long)) {
+					state=LONG;
+					return computeLong(op,(Long)x,(Long)y);
+				}
+				if ((x instanceof Double)&&(y instanceof Double)) {
+					state=DOUBLE;
+					return computeDouble(op,(Double)x,(Double)y);
+				}
+				state=GENERIC;
+				break;
+		}
+		return computeGeneric(op,x,y);
+	}
+
+	private static Long computeLong(int op, long x, long y) {
+		switch (op) {
+			case ADD: return x+y;
+			case SUB: return x-y;
+			default: return x*y;
+		}
+	}
+
+	private static Double computeDouble(int op, double x, double y) {
+		switch (op) {
+			case ADD: return x+y;
+			case SUB: return x-y;
+			default: return x*y;
+		}
+	}
+
+	private static Number computeGeneric(int op, Object x, Object y) {
+		switch (op) {
+			case ADD: return Maths.add(x,y);
+			case SUB: return Maths.sub(x,y);
+			default: return Maths.mul(x,y);
+		}
+	}
+
+	@Override
+	public boolean isPure() {
+		return (function==null)&&fallback.isPure();
+	}
+
+	@Override
+	public Type getType() {
+		return fallback.getType();
+	}
+
+	@Override
+	protected APersistentSet<Symbol> includeDependencies(APersistentSet<Symbol> deps) {
+		return fallback.includeDependencies(deps);
+	}
+
+	@Override
+	public Node<? extends T> optimise() {
+		return mapChildren(NodeFunctions.optimise());
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public Node<? extends T> mapChildren(IFn1<Node<?>, Node<?>> fn) {
+		Node<? extends T> newFallback=(Node<? extends T>) fallback.mapChildren(fn);
+		if (newFallback==fallback) return this;
+		if (!(newFallback instanceof BaseForm)) return newFallback;
+		return tryCreate((BaseForm<T>)newFallback);
+	}
+
+	/**
+	 * Gets the general form that this node specialises
+	 */
+	public BaseForm<T> getFallback() {
+		return fallback;
+	}
+
+	@Override
+	public String toString() {
+		return fallback.toString();
+	}
+}
@@ -2,6 +2,7 @@ package magic.ast;
 
 import magic.Type;
 import magic.compiler.EvalResult;
+import magic.compiler.Generator;
 import magic.data.APersistentMap;
 import magic.data.APersistentSet;
 import magic.data.Keyword;
@@ -31,11 +32,21 @@ public abstract class BaseConstant<T> extends Node<T> {
 		return true;
 	}
 	
+	@Override
+	public boolean isPure() {
+		return true;
+	}
+	
 	@Override
 	public EvalResult<T> eval(Context context, APersistentMap<Symbol, Object> bindings) {
 		// no change to context, returns pure value
 		return new EvalResult<>(context,getValue());
 	}
+
+	@Override
+	public void emit(Context c, APersistentMap<Symbol, Object> bindings, Generator gen) {
+		gen.pushObject(getValue());
+	}
 	
 	@Override
 	public Node<T> optimise() {
@@ -57,6 +57,14 @@ public abstract class BaseDataStructure<T> extends Node<T> {
 		return deps;
 	}
 	
+	@Override
+	public boolean isPure() {
+		for (Node<?> n: exps) {
+			if (!n.isPure()) return false;
+		}
+		return true;
+	}
+	
 	@Override
 	public final APersistentVector<Node<?>> getNodes() {
 		return exps;
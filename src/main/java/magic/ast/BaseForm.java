@@ -4,9 +4,9 @@ import magic.compiler.EvalResult;
 import magic.data.APersistentList;
 import magic.data.APersistentMap;
 import magic.data.APersistentSet;
+import magic.data.ChampHashMap;
 import magic.data.Keyword;
 import magic.data.Lists;
-import magic.data.PersistentHashMap;
 import magic.data.PersistentList;
 import magic.data.Symbol;
 import magic.lang.Context;
@@ -33,7 +33,7 @@ public abstract class BaseForm<T> extends Node<T> {
 	}
 	
 	protected BaseForm(APersistentList<Node<? extends Object>> nodes) {
-		this (nodes,PersistentHashMap.empty());
+		this (nodes,ChampHashMap.empty());
 	}
 	
 	@Override
@@ -62,6 +62,11 @@ public class Cast<T> extends BaseForm<T> {
 		}
 	}
 
+	@Override
+	public boolean isPure() {
+		return exp.isPure();
+	}
+
 	@Override
 	public String toString() {
 		return "(CAST "+type+" "+exp+")";
@@ -1,6 +1,5 @@
 package magic.ast;
 
-import magic.Keywords;
 import magic.RT;
 import magic.Type;
 import magic.compiler.EvalResult;
@@ -8,7 +7,6 @@ import magic.compiler.SourceInfo;
 import magic.data.APersistentMap;
 import magic.data.APersistentSet;
 import magic.data.Keyword;
-import magic.data.Maps;
 import magic.data.Symbol;
 import magic.lang.Context;
 
@@ -50,11 +48,11 @@ public class Constant<T> extends BaseConstant<T> {
 	}
 
 	public static <T> Constant<T> create(T o, SourceInfo sourceInfo) {
-		return create(o,Maps.create(Keywords.SOURCE,sourceInfo));
+		return create(o,NodeMeta.create(sourceInfo));
 	}
 	
 	public static <T> Constant<T> create(T v, APersistentSet<Symbol> deps) {
-		return create(v,Maps.create(Keywords.DEPS,deps));
+		return create(v,NodeMeta.create(deps,null));
 	}
 	
 	public static <T> Constant<T> create(T v, APersistentMap<Keyword,Object> meta) {
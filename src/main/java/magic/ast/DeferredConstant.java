@@ -1,9 +1,9 @@
 package magic.ast;
 
-import magic.Keywords;
 import magic.RT;
 import magic.Type;
 import magic.compiler.EvalResult;
+import magic.compiler.Generator;
 import magic.compiler.SourceInfo;
 import magic.data.APersistentMap;
 import magic.data.APersistentSet;
@@ -44,9 +44,16 @@ public class DeferredConstant<T> extends BaseConstant<T> {
 		return new EvalResult<T>(c,getValue());
 	}
 
+	@Override
+	public void emit(Context c, APersistentMap<Symbol, Object> bindings, Generator gen) {
+		// value may not yet be computed, so must be requested at runtime
+		gen.pushObject(this,DeferredConstant.class);
+		gen.invokeVirtual(DeferredConstant.class,"Object getValue()");
+	}
+
 	public static <T> DeferredConstant<T> create(IFn0<T> fn, APersistentSet<Symbol> deps, SourceInfo sourceInfo) {
-		APersistentMap<Keyword, Object> meta=Maps.create(Keywords.SOURCE,sourceInfo);
-		meta=meta.assoc(Keywords.DEPS, deps);
+		APersistentMap<Keyword, Object> meta=NodeMeta.create(sourceInfo);
+		meta=NodeMeta.of(meta).withDeps(deps);
 		return new DeferredConstant<T>(fn,meta);
 	}
 	
@@ -1,6 +1,5 @@
 package magic.ast;
 
-import magic.Keywords;
 import magic.Symbols;
 import magic.compiler.AnalysisContext;
 import magic.compiler.EvalResult;
@@ -9,7 +8,6 @@ import magic.data.APersistentSet;
 import magic.data.Keyword;
 import magic.data.Maps;
 import magic.data.PersistentList;
-import magic.data.Sets;
 import magic.data.Symbol;
 import magic.fn.IFn1;
 import magic.lang.Context;
@@ -44,13 +42,10 @@ public class Define<T> extends BaseForm<T> {
 		return create(sym,exp,Maps.empty());
 	}
 	
-	@SuppressWarnings("unchecked")
 	public static <T> Define<T> create(Symbol sym, Node<T> exp,APersistentMap<Keyword, Object> meta) {
-		APersistentSet<Symbol> deps=(APersistentSet<Symbol>) meta.get(Keywords.DEPS);
-		if (deps==null) deps=Sets.emptySet();
-		deps=deps.includeAll(exp.getDependencies());
-		meta=meta.assoc(Keywords.DEPS, deps);
-		return new Define<T>(sym,exp,meta);
+		NodeMeta nm=NodeMeta.of(meta);
+		APersistentSet<Symbol> deps=nm.getDependencies().includeAll(calcFormDependencies(exp)); // expression is unexpanded, may reference any lexical binding
+		return new Define<T>(sym,exp,nm.withDeps(deps));
 	}
 	
 	@Override
@@ -65,6 +60,13 @@ public class Define<T> extends BaseForm<T> {
 		return new EvalResult<T>(context,null); // TODO: what should def return??
 	}
 	
+	/**
+	 * Gets the unexpanded expression for the definition
+	 */
+	public Node<? extends T> getExpression() {
+		return exp;
+	}
+	
 	@Override
 	public Define<T> analyse(AnalysisContext context) {
 		// TODO: no analysis?
@@ -1,11 +1,13 @@
 package magic.ast;
 
-import magic.Keywords;
+import java.util.ArrayList;
+
 import magic.RT;
 import magic.Symbols;
 import magic.Type;
 import magic.Types;
 import magic.compiler.EvalResult;
+import magic.compiler.Generator;
 import magic.compiler.SourceInfo;
 import magic.data.APersistentList;
 import magic.data.APersistentMap;
@@ -40,15 +42,16 @@ public class Do<T> extends BaseForm<T> {
 	}
 	
 	public static <T> Do<T> create(APersistentList<Node<?>> body,APersistentMap<Keyword,Object> meta) {
+		meta=NodeMeta.of(meta).withDeps(calcDependencies(body.toArray(new Node<?>[body.size()])));
 		return new Do<T>(body,meta);
 	}
 
 	public static <T> Do<T> create(APersistentList<Node<?>> body,SourceInfo source) {
-		return create(body,Maps.create(Keywords.SOURCE, source));
+		return create(body,NodeMeta.create(source));
 	}
 	
 	public static <T> Do<T> create(APersistentList<Node<?>> body) {
-		return new Do<T>(body,Maps.empty());
+		return create(body,Maps.empty());
 	}
 	
 	public static <T> Node<T> create(Node<?>... body) {
@@ -72,13 +75,82 @@ public class Do<T> extends BaseForm<T> {
 		}
 		return r;
 	}
+
+	@Override
+	public void emit(Context c, APersistentMap<Symbol, Object> bindings, Generator gen) {
+		if (nBody==0) {
+			gen.pushObject(null);
+			return;
+		}
+		for (int i=0; i<nBody; i++) {
+			if (i>0) gen.pop(); // discard value of previous expression
+			body.get(i).emit(c,bindings,gen);
+		}
+	}
 		
 	@SuppressWarnings("unchecked")
 	@Override
 	public Node<T> optimise() {
 		if (nBody==0) return (Node<T>) Constant.NULL;
 		if (nBody==1) return (Node<T>) body.get(0).optimise();
-		return (Node<T>) mapChildren(NodeFunctions.optimise());
+		Node<T> newDo=(Node<T>) mapChildren(NodeFunctions.optimise());
+		if (!(newDo instanceof Do)) return newDo;
+		return ((Do<T>)newDo).optimiseLocal();
+	}
+	
+	/**
+	 * Collapses nested `do` blocks and removes pure expressions in non-final position, 
+	 * since their values can never be observed.
+	 * 
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	private Node<T> optimiseLocal() {
+		ArrayList<Node<?>> exps=new ArrayList<>(nBody);
+		boolean changed=flattenInto(exps);
+		
+		int n=exps.size();
+		ArrayList<Node<?>> newExps=new ArrayList<>(n);
+		for (int i=0; i<n; i++) {
+			Node<?> node=exps.get(i);
+			if ((i<(n-1))&&node.isPure()) {
+				changed=true;
+				continue;
+			}
+			newExps.add(node);
+		}
+		if (!changed) return this;
+		
+		int nNew=newExps.size();
+		if (nNew==0) return (Node<T>) Constant.NULL;
+		if (nNew==1) return (Node<T>) newExps.get(0);
+		return create(Lists.create(newExps),meta());
+	}
+	
+	/**
+	 * Adds the body expressions of this `do` block to a list, splicing in the bodies of any
+	 * nested `do` blocks. Returns true if any nested blocks were found.
+	 */
+	private boolean flattenInto(ArrayList<Node<?>> exps) {
+		boolean nested=false;
+		for (int i=0; i<nBody; i++) {
+			Node<?> node=body.get(i);
+			if (node instanceof Do) {
+				((Do<?>)node).flattenInto(exps);
+				nested=true;
+			} else {
+				exps.add(node);
+			}
+		}
+		return nested;
+	}
+	
+	@Override
+	public boolean isPure() {
+		for (int i=0; i<nBody; i++) {
+			if (!body.get(i).isPure()) return false;
+		}
+		return true;
 	}
 	
 	@Override
@@ -94,6 +166,14 @@ public class Do<T> extends BaseForm<T> {
 		return (nodes==newBody)?this:create(newBody,meta());
 	}
 	
+	/**
+	 * Gets the last subexpression of this `do` block, which provides the result. Returns null if empty.
+	 */
+	public Node<?> getLast() {
+		if (nBody==0) return null;
+		return body.get(nBody-1);
+	}
+	
 	/**
 	 * Returns the type of this `do` expression, i.e. the type of the last subexpression
 	 */
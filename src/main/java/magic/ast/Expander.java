@@ -1,6 +1,5 @@
 package magic.ast;
 
-import magic.Keywords;
 import magic.Symbols;
 import magic.Type;
 import magic.Types;
@@ -14,7 +13,6 @@ import magic.data.APersistentMap;
 import magic.data.APersistentVector;
 import magic.data.Keyword;
 import magic.data.Lists;
-import magic.data.Maps;
 import magic.data.Symbol;
 import magic.fn.IFn1;
 import magic.lang.Context;
@@ -49,8 +47,8 @@ public class Expander extends BaseForm<AExpander> {
 	}
 	
 	public static Expander create(Symbol exSym, APersistentVector<Symbol> args, Node<?> body,SourceInfo source) {
-		APersistentMap<Keyword,Object> meta=Maps.create(Keywords.SOURCE, source);
-		meta=meta.assoc(Keywords.DEPS, body.getDependencies().excludeAll(args));
+		APersistentMap<Keyword,Object> meta=NodeMeta.create(source);
+		meta=NodeMeta.of(meta).withDeps(body.getDependencies().excludeAll(args));
 		return new Expander(exSym,args,body,meta);
 	}
 
@@ -2,7 +2,6 @@ package magic.ast;
 
 import java.util.List;
 
-import magic.Keywords;
 import magic.RT;
 import magic.Symbols;
 import magic.Type;
@@ -41,8 +40,8 @@ public class HashMap<K,V> extends BaseDataStructure<APersistentMap<? extends K,?
 	}
 
 	public static <K,V> HashMap<K,V> create(APersistentVector<Node<?>> exps, APersistentSet<Symbol> deps, SourceInfo source) {
-		APersistentMap<Keyword,Object> meta=Maps.create(Keywords.SOURCE, source);
-		meta=meta.assoc(Keywords.DEPS, deps);
+		APersistentMap<Keyword,Object> meta=NodeMeta.create(source);
+		meta=NodeMeta.of(meta).withDeps(deps);
 		return (HashMap<K,V>) new HashMap<K,V>(exps,meta);
 	}
 	
@@ -1,10 +1,12 @@
 package magic.ast;
 
-import magic.Keywords;
+import org.objectweb.asm.Label;
+
 import magic.RT;
 import magic.Symbols;
 import magic.Type;
 import magic.compiler.EvalResult;
+import magic.compiler.Generator;
 import magic.compiler.SourceInfo;
 import magic.data.APersistentMap;
 import magic.data.APersistentSet;
@@ -23,12 +25,12 @@ import magic.lang.Context;
  * @param <T>
  */
 public class If<T> extends BaseForm<T> {
-	private final Node<?> test; 
-	private final Node<? extends T> trueExp; 
-	private final Node<? extends T> falseExp; 
+	protected final Node<?> test; 
+	protected final Node<? extends T> trueExp; 
+	protected final Node<? extends T> falseExp; 
 	
 	@SuppressWarnings("unchecked")
-	private If(Node<?> test, Node<? extends T> trueExp, Node<? extends T> falseExp, APersistentMap<Keyword,Object> meta) {
+	protected If(Node<?> test, Node<? extends T> trueExp, Node<? extends T> falseExp, APersistentMap<Keyword,Object> meta) {
 		super(Lists.of(Lookup.create(Symbols.IF),test,trueExp,falseExp),meta);
 		this.test=test;
 		this.trueExp=trueExp;
@@ -60,12 +62,12 @@ public class If<T> extends BaseForm<T> {
 	}
 	
 	public static <T> If<T> createIf(Node<?> test, Node<? extends T> trueExp, Node<? extends T> falseExp, APersistentMap<Keyword,Object> meta) { 
-		meta=meta.assoc(Keywords.DEPS, calcDependencies(test,trueExp,falseExp));
+		meta=NodeMeta.of(meta).withDeps(calcDependencies(test,trueExp,falseExp).include(Symbols.IF));
 		return new If<T>(test,trueExp,falseExp,meta);
 	}
 	
 	public static <T> If<T> createIf(Node<?> test, Node<? extends T> trueExp, Node<? extends T> falseExp, SourceInfo source) {
-		APersistentMap<Keyword,Object> meta=Maps.create(Keywords.SOURCE,source);
+		APersistentMap<Keyword,Object> meta=NodeMeta.create(source);
 		return createIf(test,trueExp,falseExp,meta);
 	}
 
@@ -83,12 +85,45 @@ public class If<T> extends BaseForm<T> {
 			return (EvalResult<T>) falseExp.eval(context, bindings);
 		}
 	}
+
+	@Override
+	public void emit(Context c, APersistentMap<Symbol, Object> bindings, Generator gen) {
+		test.emit(c,bindings,gen);
+		gen.invokeStatic(RT.class,"boolean bool(Object)");
+		emitBranches(c,bindings,gen);
+	}
+	
+	/**
+	 * Emits code to evaluate one of the branches, given a boolean test result on the stack
+	 */
+	protected void emitBranches(Context c, APersistentMap<Symbol, Object> bindings, Generator gen) {
+		Label falseLabel=gen.newLabel();
+		Label end=gen.newLabel();
+		gen.ifZCmp(Generator.EQ, falseLabel);
+		trueExp.emit(c,bindings,gen);
+		gen.goTo(end);
+		gen.mark(falseLabel);
+		falseExp.emit(c,bindings,gen);
+		gen.mark(end);
+	}
+	
+	/**
+	 * Gets the test expression of this `if`, which is always evaluated
+	 */
+	public Node<?> getTest() {
+		return test;
+	}
 	
 	@Override
 	public Type getType() {
 		return trueExp.getType().union(falseExp.getType());
 	}
 	
+	@Override
+	public boolean isPure() {
+		return test.isPure()&&trueExp.isPure()&&falseExp.isPure();
+	}
+	
 	@Override
 	public Node<? extends T> specialiseValues(APersistentMap<Symbol, Object> bindings) {
 		return mapChildren(NodeFunctions.specialiseValues(bindings));
@@ -106,9 +141,16 @@ public class If<T> extends BaseForm<T> {
 		}
 		
 		Type testType=test.getType();
-		if (testType.cannotBeFalsey()) return trueExp;
-		if (testType.cannotBeTruthy()) return falseExp;
-		return this;
+		if (testType.cannotBeFalsey()) return test.isPure()?trueExp:Do.create(Lists.wrap(new Node<?>[] {test,trueExp}),meta());
+		if (testType.cannotBeTruthy()) return test.isPure()?falseExp:Do.create(Lists.wrap(new Node<?>[] {test,falseExp}),meta());
+		
+		// both branches produce the same constant, so the test is dead code if pure
+		if (trueExp.isConstant()&&falseExp.isConstant()&&test.isPure()) {
+			if (RT.equals(trueExp.getValue(), falseExp.getValue())) return trueExp;
+		}
+		
+		// fuse known predicates in the test with the branch
+		return IfPredicate.tryCreate(test,trueExp,falseExp,meta(),this);
 	}
 	
 	@SuppressWarnings("unchecked")
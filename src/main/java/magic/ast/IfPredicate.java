@@ -0,0 +1,299 @@
+package magic.ast;
+
+import magic.Maths;
+import magic.RT;
+import magic.compiler.EvalResult;
+import magic.compiler.Generator;
+import magic.data.APersistentMap;
+import magic.data.APersistentSet;
+import magic.data.Keyword;
+import magic.data.Sets;
+import magic.data.Symbol;
+import magic.fn.IFn1;
+import magic.lang.Context;
+
+/**
+ * AST node representing an `if` expression where the test is a known predicate, e.g.
+ *   (if (< a b) ...)
+ *   (if (nil? a) ...)
+ *   (if (not a) ...)
+ *
+ * The predicate is computed directly on the operand values and used to select a branch
+ * without boxing an intermediate Boolean.
+ *
+ * Where the predicate is called via a function lookup, the function is checked to be a known
+ * predicate on first use, falling back to a regular `if` otherwise (e.g. if the function has
+ * been redefined).
+ * Where the function is a compile-time constant (e.g. an inlined global definition) it is
+ * verified immediately instead.
+ *
+ * @author Mike
+ *
+ * @param <T>
+ */
+public class IfPredicate<T> extends If<T> {
+	private static final int LT=0;
+	private static final int LE=1;
+	private static final int GT=2;
+	private static final int GE=3;
+	private static final int EQ=4;
+	private static final int NIL=5;
+	private static final int FALSEY=6;
+	private static final int NEGATE=16;
+
+	private static final APersistentSet<String> PREDICATE_NAMES=Sets.of("<","<=",">",">=","==","nil?","not");
+
+	private static final Symbol LT_SYM=Symbol.create("lt");
+	private static final Symbol LE_SYM=Symbol.create("le");
+	private static final Symbol GT_SYM=Symbol.create("gt");
+	private static final Symbol GE_SYM=Symbol.create("ge");
+	private static final Symbol EQ_SYM=Symbol.create("eq");
+	private static final Symbol NOT_SYM=Symbol.create("not");
+	private static final Symbol IDENTICAL_SYM=Symbol.create("identical");
+
+	private final Node<?> function; // null if predicate is known statically
+	private final Node<?>[] operands;
+	private final int kind;
+
+	// function value most recently verified as a predicate, with its predicate kind
+	private volatile Verified verified=null;
+
+	private IfPredicate(Node<?> test, Node<?> function, Node<?>[] operands, int kind, Node<? extends T> trueExp, Node<? extends T> falseExp, APersistentMap<Keyword,Object> meta) {
+		super(test,trueExp,falseExp,meta);
+		this.function=function;
+		this.operands=operands;
+		this.kind=kind;
+	}
+
+	private static final class Verified {
+		private final Object fn;
+		private final int kind;
+
+		private Verified(Object fn, int kind) {
+			this.fn=fn;
+			this.kind=kind;
+		}
+	}
+
+	/**
+	 * Holds the result of matching a predicate invocation
+	 */
+	private static final class Match {
+		private final int kind;
+		private final Node<?>[] operands;
+
+		private Match(int kind, Node<?>... operands) {
+			this.kind=kind;
+			this.operands=operands;
+		}
+	}
+
+	@Override
+	public If<T> withMeta(APersistentMap<Keyword, Object> meta) {
+		return new IfPredicate<T>(test,function,operands,kind,trueExp,falseExp,meta);
+	}
+
+	/**
+	 * Creates a fused predicate `if` node if the test is a recognised predicate.
+	 *
+	 * @return The new node, or the fallback node if the test is not recognised
+	 */
+	static <T> Node<? extends T> tryCreate(Node<?> test, Node<? extends T> trueExp, Node<? extends T> falseExp, APersistentMap<Keyword,Object> meta, Node<? extends T> fallback) {
+		if (fallback instanceof IfPredicate) return fallback;
+
+		if (test instanceof InvokeStaticReflective) {
+			Match m=match((InvokeStaticReflective<?>)test);
+			if (m==null) return fallback;
+			return new IfPredicate<T>(test,null,m.operands,m.kind,trueExp,falseExp,meta);
+		}
+
+		if (test instanceof Apply) {
+			Apply<?> app=(Apply<?>)test;
+			Node<?> f=app.getFunction();
+			if (f instanceof Lookup) {
+				if (!PREDICATE_NAMES.contains(f.getSymbol().getName())) return fallback;
+			} else if (!f.isConstant()) {
+				return fallback;
+			}
+			Node<?>[] args=app.getArgs();
+			if ((args.length<1)||(args.length>2)) return fallback;
+			IfPredicate<T> result=new IfPredicate<T>(test,f,args,-1,trueExp,falseExp,meta);
+			if (f.isConstant()) {
+				// function known at compile time, so can verify immediately
+				Verified v=result.verify(f.getValue());
+				if (v.kind<0) return fallback;
+				result.verified=v;
+			}
+			return result;
+		}
+		return fallback;
+	}
+
+	/**
+	 * Matches a static invocation of a known predicate, returning null if not matched
+	 */
+	private static Match match(InvokeStaticReflective<?> inv) {
+		Class<?> klass=inv.getTargetClass();
+		Symbol method=inv.getMethod();
+		Node<?>[] args=inv.getArgs();
+		if ((klass==Maths.class)&&(args.length==2)) {
+			int op=compareOp(method);
+			if (op<0) return null;
+			return new Match(op,args);
+		} else if (klass==RT.class) {
+			if ((method.equals(NOT_SYM))&&(args.length==1)) {
+				Node<?> a=args[0];
+				if (a instanceof InvokeStaticReflective) {
+					Match m=match((InvokeStaticReflective<?>)a);
+					if ((m!=null)&&(m.kind!=FALSEY)) return new Match(m.kind^NEGATE,m.operands);
+				}
+				return new Match(FALSEY,a);
+			}
+			if ((method.equals(IDENTICAL_SYM))&&(args.length==2)) {
+				if (isNilConstant(args[0])) return new Match(NIL,args[1]);
+				if (isNilConstant(args[1])) return new Match(NIL,args[0]);
+			}
+		}
+		return null;
+	}
+
+	private static int compareOp(Symbol method) {
+		if (method.equals(LT_SYM)) return LT;
+		if (method.equals(LE_SYM)) return LE;
+		if (method.equals(GT_SYM)) return GT;
+		if (method.equals(GE_SYM)) return GE;
+		if (method.equals(EQ_SYM)) return EQ;
+		return -1;
+	}
+
+	private static boolean isNilConstant(Node<?> node) {
+		return node.isConstant()&&(node.getValue()==null);
+	}
+
+	/**
+	 * Checks if a function value is a lambda that directly applies a known predicate to its
+	 * parameters. The resulting kind is negative if not.
+	 */
+	private Verified verify(Object f) {
+		Verified v=matchFunction(f);
+		return (v==null)?new Verified(f,-1):v;
+	}
+	
+	private Verified matchFunction(Object f) {
+		if (!(f instanceof Lambda.LambdaFn)) return null;
+		Lambda<?>.LambdaFn fn=(Lambda<?>.LambdaFn)f;
+		if (fn.arity()!=operands.length) return null;
+		Node<?> body=fn.getBody();
+		if (!(body instanceof InvokeStaticReflective)) return null;
+		Match m=match((InvokeStaticReflective<?>)body);
+		if ((m==null)||(m.operands.length!=operands.length)) return null;
+
+		// operands must be the function parameters, in order
+		for (int i=0; i<operands.length; i++) {
+			Node<?> op=m.operands[i];
+			if (!(op instanceof Lookup)) return null;
+			if (!op.getSymbol().equals(fn.getParams().get(i))) return null;
+		}
+		return new Verified(f,m.kind);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public EvalResult<T> eval(Context context, APersistentMap<Symbol, Object> bindings) {
+		int kind=this.kind;
+		if (function!=null) {
+			EvalResult<?> rf=function.eval(context,bindings);
+			if (rf.isEscaping()) return (EvalResult<T>) rf;
+			Object f=rf.getValue();
+			Verified v=verified;
+			if ((v==null)||(v.fn!=f)) {
+				v=verify(f);
+				verified=v;
+			}
+			kind=v.kind;
+			if (kind<0) return super.eval(context, bindings); // not a known predicate
+		}
+
+		EvalResult<?> r=operands[0].eval(context,bindings);
+		if (r.isEscaping()) return (EvalResult<T>) r;
+		Object a=r.getValue();
+		Object b=null;
+		if (operands.length>1) {
+			r=operands[1].eval(context,bindings);
+			if (r.isEscaping()) return (EvalResult<T>) r;
+			b=r.getValue();
+		}
+
+		if (test(kind,a,b)) {
+			return (EvalResult<T>) trueExp.eval(context, bindings);
+		} else {
+			return (EvalResult<T>) falseExp.eval(context, bindings);
+		}
+	}
+
+	@Override
+	public void emit(Context c, APersistentMap<Symbol, Object> bindings, Generator gen) {
+		if (function!=null) {
+			super.emit(c, bindings, gen);
+			return;
+		}
+		gen.push(kind);
+		operands[0].emit(c,bindings,gen);
+		if (operands.length>1) {
+			operands[1].emit(c,bindings,gen);
+		} else {
+			gen.pushObject(null);
+		}
+		gen.invokeStatic(IfPredicate.class,"boolean test(int,Object,Object)");
+		emitBranches(c,bindings,gen);
+	}
+
+	/**
+	 * Tests a predicate of the given kind. Public for use by compiled code.
+	 */
+	public static boolean test(int kind, Object a, Object b) {
+		boolean negate=(kind&NEGATE)!=0;
+		boolean result;
+		switch (kind&~NEGATE) {
+			case NIL: result=(a==null); break;
+			case FALSEY: result=(a==null)||(a==Boolean.FALSE); break;
+			default: result=compare(kind&~NEGATE,a,b);
+		}
+		return result!=negate;
+	}
+
+	private static boolean compare(int op, Object a, Object b) {
+		if ((a instanceof Long)&&(b instanceof Long)) {
+			long x=(Long)a;
+			long y=(Long)b;
+			switch (op) {
+				case LT: return x<y;
+				case LE: return x<=y;
+				case GT: return x>y;
+				case GE: return x>=y;
+				default: return x==y;
+			}
+		}
+		double x=((Number)a).doubleValue();
+		double y=((Number)b).doubleValue();
+		switch (op) {
+			case LT: return x<y;
+			case LE: return x<=y;
+			case GT: return x>y;
+			case GE: return x>=y;
+			default: return x==y;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public If<T> mapChildren(IFn1<Node<?>, Node<?>> fn) {
+		Node<Object> newTest=(Node<Object>) fn.apply(test);
+		Node<? extends T> newTrue=(Node<? extends T>) fn.apply(trueExp);
+		Node<? extends T> newFalse=(Node<? extends T>) fn.apply(falseExp);
+		if ((newTest==test)&&(newTrue==trueExp)&&(newFalse==falseExp)) return this;
+
+		If<T> newIf=createIf(newTest,newTrue,newFalse,meta());
+		return (If<T>) tryCreate(newTest,newTrue,newFalse,newIf.meta(),newIf);
+	}
+}
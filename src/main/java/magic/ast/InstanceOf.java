@@ -1,6 +1,5 @@
 package magic.ast;
 
-import magic.Keywords;
 import magic.RT;
 import magic.Symbols;
 import magic.Type;
@@ -9,7 +8,6 @@ import magic.compiler.SourceInfo;
 import magic.data.APersistentMap;
 import magic.data.Keyword;
 import magic.data.Lists;
-import magic.data.Maps;
 import magic.data.Symbol;
 import magic.fn.IFn1;
 import magic.lang.Context;
@@ -39,8 +37,8 @@ public class InstanceOf extends BaseForm<Boolean> {
 	}
 
 	public static InstanceOf create(Node<Type> type, Node<?> exp, SourceInfo si) {
-		APersistentMap<Keyword,Object> meta=Maps.create(Keywords.SOURCE, si);
-		meta=meta.assoc(Keywords.DEPS,exp.getDependencies().includeAll(type.getDependencies()));
+		APersistentMap<Keyword,Object> meta=NodeMeta.create(si);
+		meta=NodeMeta.of(meta).withDeps(exp.getDependencies().includeAll(type.getDependencies()));
 		return create(type, exp,meta);
 	}
 	
@@ -64,6 +62,11 @@ public class InstanceOf extends BaseForm<Boolean> {
 		return create(newType,newExp,getSourceInfo());
 	}	
 
+	@Override
+	public boolean isPure() {
+		return typeExpr.isPure()&&exp.isPure();
+	}
+
 	@Override
 	public Node<Boolean> optimise() {
 		InstanceOf opt=mapChildren(NodeFunctions.OPTIMISE);
@@ -2,7 +2,6 @@ package magic.ast;
 
 import java.lang.invoke.MethodHandle;
 
-import magic.Keywords;
 import magic.Reflector;
 import magic.Symbols;
 import magic.compiler.EvalResult;
@@ -50,16 +49,13 @@ public class InvokeReflective<T> extends BaseForm<T> {
 		return new InvokeReflective<T>(instance,method,args,meta);
 	}
 	
-	@SuppressWarnings("unchecked")
 	public static <T> InvokeReflective<T> create(Node<?> instance, Symbol method, Node<?>[] args,APersistentMap<Keyword,Object> meta) {
-		APersistentSet<Symbol> deps=instance.getDependencies();
-		APersistentSet<Symbol> mdeps=(APersistentSet<Symbol>) meta.get(Keywords.DEPS);
-		if (mdeps!=null) deps=deps.includeAll(mdeps);
+		NodeMeta nm=NodeMeta.of(meta);
+		APersistentSet<Symbol> deps=instance.getDependencies().includeAll(nm.getDependencies());
 		for (Node<?> a: args) {
 			deps=deps.includeAll(a.getDependencies());
 		}
-		meta=meta.assoc(Keywords.DEPS,deps);
-		return new InvokeReflective<T>(instance, method,args,meta);
+		return new InvokeReflective<T>(instance, method,args,nm.withDeps(deps));
 	}
 	
 	@SuppressWarnings("unchecked")
@@ -2,7 +2,6 @@ package magic.ast;
 
 import java.lang.invoke.MethodHandle;
 
-import magic.Keywords;
 import magic.RT;
 import magic.Reflector;
 import magic.Symbols;
@@ -12,7 +11,6 @@ import magic.data.APersistentMap;
 import magic.data.APersistentSet;
 import magic.data.Keyword;
 import magic.data.Lists;
-import magic.data.Maps;
 import magic.data.Sets;
 import magic.data.Symbol;
 import magic.fn.IFn1;
@@ -65,8 +63,7 @@ public class InvokeStatic<T> extends BaseForm<T> {
 	}
 	
 	private static <T> InvokeStatic<T> create(APersistentSet<Symbol> deps, MethodHandle m, Node<?>[] args, SourceInfo source) {
-		APersistentMap<Keyword, Object> meta=Maps.create(Keywords.DEPS,deps);
-		meta=meta.assoc(Keywords.SOURCE, source);
+		APersistentMap<Keyword, Object> meta=NodeMeta.create(deps,source);
 		return new InvokeStatic<T>(m,args,meta);
 	}
 
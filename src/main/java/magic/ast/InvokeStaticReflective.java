@@ -2,11 +2,13 @@ package magic.ast;
 
 import java.lang.reflect.Method;
 
-import magic.Keywords;
+import magic.Maths;
 import magic.RT;
 import magic.Reflector;
 import magic.Symbols;
 import magic.compiler.EvalResult;
+import magic.compiler.Generator;
+import magic.compiler.JIT;
 import magic.data.APersistentMap;
 import magic.data.APersistentSet;
 import magic.data.Keyword;
@@ -28,6 +30,17 @@ public class InvokeStaticReflective<T> extends BaseForm<T> {
 
 	// TODO: consider caching reflected methods?
 	
+	private static final APersistentSet<Symbol> PURE_RT_METHODS=Sets.of(
+			Symbol.create("nth"),Symbol.create("first"),Symbol.create("next"),Symbol.create("seq"),
+			Symbol.create("vec"),Symbol.create("list"),Symbol.create("concat"),Symbol.create("boolObject"),
+			Symbol.create("not"),Symbol.create("identical"),Symbol.create("equals"),Symbol.create("equalsObject"),
+			Symbol.create("symbol"),Symbol.create("compare"),Symbol.create("toString"));
+	
+	// pure functions that also cannot throw, for any arguments
+	private static final APersistentSet<Symbol> TOTAL_RT_METHODS=Sets.of(
+			Symbol.create("boolObject"),Symbol.create("not"),Symbol.create("identical"),
+			Symbol.create("equals"),Symbol.create("equalsObject"));
+	
 	private final Class<?> klass;
 	private final Symbol method;
 	private final Node<?>[] args;
@@ -51,15 +64,13 @@ public class InvokeStaticReflective<T> extends BaseForm<T> {
 		return new InvokeStaticReflective<T>(klass,method,args,meta);
 	}
 	
-	@SuppressWarnings("unchecked")
 	public static <T> InvokeStaticReflective<T> create(Class<?> klass, Symbol method, Node<?>[] args,APersistentMap<Keyword, Object> meta) {
-		APersistentSet<Symbol> deps=(APersistentSet<Symbol>) meta.get(Keywords.DEPS);
-		if (deps==null) deps=Sets.emptySet();
+		NodeMeta nm=NodeMeta.of(meta);
+		APersistentSet<Symbol> deps=nm.getDependencies();
 		for (Node<?> a: args) {
 			deps=deps.includeAll(a.getDependencies());
 		}
-		meta=meta.assoc(Keywords.DEPS, deps);
-		return new InvokeStaticReflective<T>(klass, method,args,meta);
+		return new InvokeStaticReflective<T>(klass, method,args,nm.withDeps(deps));
 	}
 	
 	public static <T> InvokeStaticReflective<T> create(Class<?> klass, Symbol method, Node<? super Object>[] args) {
@@ -94,14 +105,26 @@ public class InvokeStaticReflective<T> extends BaseForm<T> {
 		}
 	}
 
+	@Override
+	public void emit(Context c, APersistentMap<Symbol, Object> bindings, Generator gen) {
+		gen.pushObject(new JIT.StaticCall(klass,method.getName()),JIT.StaticCall.class);
+		gen.pushArray(args,c,bindings);
+		gen.invokeVirtual(JIT.StaticCall.class,"Object invoke(Object[])");
+	}
+
 	@Override
 	public Node<? extends T> specialiseValues(APersistentMap<Symbol, Object> bindings) {
 		return mapChildren(NodeFunctions.specialiseValues(bindings));
 	}
 
+	@SuppressWarnings("unchecked")
 	@Override
 	public Node<? extends T> optimise() {
-		return mapChildren(NodeFunctions.optimise());
+		Node<? extends T> newNode=mapChildren(NodeFunctions.optimise());
+		if (!(newNode instanceof InvokeStaticReflective)) return newNode;
+		
+		// specialise arithmetic on observed operand types
+		return Arithmetic.tryCreate((InvokeStaticReflective<T>)newNode);
 	}
 	
 	@Override
@@ -111,6 +134,54 @@ public class InvokeStaticReflective<T> extends BaseForm<T> {
 		return create(klass,method,newNodes,meta());
 	}
 
+	/**
+	 * Gets the class on which the static method is invoked
+	 */
+	public Class<?> getTargetClass() {
+		return klass;
+	}
+	
+	/**
+	 * Gets the name of the invoked method
+	 */
+	public Symbol getMethod() {
+		return method;
+	}
+	
+	/**
+	 * Gets the argument nodes of this invocation
+	 */
+	public Node<?>[] getArgs() {
+		return args.clone();
+	}
+	
+	/**
+	 * Invocations of known side-effect free static methods with pure arguments are pure
+	 */
+	@Override
+	public boolean isPure() {
+		if (klass==Maths.class) {
+			// all magic.Maths functions are pure
+		} else if (klass==RT.class) {
+			if (!PURE_RT_METHODS.contains(method)) return false;
+		} else {
+			return false;
+		}
+		for (Node<?> a: args) {
+			if (!a.isPure()) return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Returns true if the invoked method itself cannot throw an exception, for any arguments.
+	 * Pure methods such as nth may still throw, so evaluating them early can change which
+	 * exception is raised.
+	 */
+	public boolean isTotalMethod() {
+		return (klass==RT.class)&&TOTAL_RT_METHODS.contains(method);
+	}
+	
 	@Override 
 	public String toString() {
 		StringBuilder sb=new StringBuilder ("(INVOKE-STATIC-REFLECTIVE ");
@@ -1,11 +1,18 @@
 package magic.ast;
 
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+
 import magic.Keywords;
 import magic.Symbols;
 import magic.Type;
 import magic.Types;
 import magic.compiler.AnalysisContext;
 import magic.compiler.EvalResult;
+import magic.compiler.JIT;
+import magic.compiler.NodeTable;
+import magic.compiler.Optimiser;
 import magic.data.APersistentList;
 import magic.data.APersistentMap;
 import magic.data.APersistentSet;
@@ -15,6 +22,8 @@ import magic.data.Lists;
 import magic.data.Maps;
 import magic.data.Symbol;
 import magic.data.Tuple;
+import magic.data.Vectors;
+import magic.data.impl.ArrayMap;
 import magic.fn.AFn;
 import magic.fn.ArityException;
 import magic.fn.IFn1;
@@ -32,10 +41,20 @@ import magic.type.FunctionType;
  */
 public class Lambda<T> extends BaseForm<AFn<T>> {
 
+	private static final Symbol[] EMPTY_SYMBOLS=new Symbol[0];
+	private static final Object[] EMPTY_VALUES=new Object[0];
+	
+	// function instances shared by all evaluations of a lambda that capture no lexical variables.
+	// Held weakly, since each function references its lambda
+	private static final NodeTable<WeakReference<Lambda<?>.LambdaFn>> SHARED_FNS=new NodeTable<>();
+
 	private final APersistentVector<Symbol> paramSymbols;
 	private final Node<T> body;
 	private final int arity; // minimum arity (excludes trailing varargs)
 	private final boolean variadic;
+	
+	// loops within the body (excluding nested lambdas), computed on demand
+	private volatile Loop<?>[] loops=null;
   
 	@SuppressWarnings("unchecked")
 	private Lambda(APersistentVector<Symbol> params, Node<T> body,boolean variadic,APersistentMap<Keyword, Object> meta) {
@@ -55,18 +74,15 @@ public class Lambda<T> extends BaseForm<AFn<T>> {
 		return create(params,body,Maps.empty());
 	}
 	
-	@SuppressWarnings("unchecked")
 	public static <T> Lambda<T> create(APersistentVector<Symbol> params, Node<T> body,APersistentMap<Keyword,Object> meta) {
 		int n=params.size();
 		boolean variadic=false;
 		if ((n>=2)&&(params.get(n-2)==Symbols.AMPERSAND)) {
 			variadic=true;
 		}
-		APersistentSet<Symbol> deps=body.getDependencies().excludeAll(params);
-		APersistentSet<Symbol> oldDeps=(APersistentSet<Symbol>) meta.get(Keywords.DEPS);
-		if (oldDeps!=null) deps=deps.includeAll(oldDeps);
-		meta=meta.assoc(Keywords.DEPS,deps);
-		return new Lambda<T>(params,body,variadic,meta);
+		NodeMeta nm=NodeMeta.of(meta);
+		APersistentSet<Symbol> deps=body.getDependencies().excludeAll(params).includeAll(nm.getDependencies());
+		return new Lambda<T>(params,body,variadic,nm.withDeps(deps));
 	}
 
 	@SuppressWarnings("unchecked")
@@ -82,21 +98,37 @@ public class Lambda<T> extends BaseForm<AFn<T>> {
 	 * Specialises the body expression according to the provided context and bindings
 	 * 
 	 */
+	@SuppressWarnings("unchecked")
 	@Override
 	public EvalResult<AFn<T>> eval(Context context,APersistentMap<Symbol, Object> bindings) {
-//		APersistentSet<Symbol> deps=getDependencies(); // free deps
-//		APersistentMap<Symbol, Object> depVals=(APersistentMap<Symbol, Object>) Maps.EMPTY;
-//		for (Symbol dep: deps) {
-//			if (bindings.containsKey(dep)) {
-//				depVals=depVals.assoc(dep, bindings.get(dep));
-//			} else {
-//				depVals=depVals.assoc(dep, context.getValue(dep));
-//			}
-//		}
-//		
-//		final APersistentMap<Symbol, Object> capturedBindings=depVals;
-		// capture variables defined in the current scope
-//		Node<? extends T> body=this.body.specialiseValues(capturedBindings);
+		// capture only the free lexical variables, globals are resolved from the context
+		Symbol[] capturedSymbols=EMPTY_SYMBOLS;
+		Object[] capturedValues=EMPTY_VALUES;
+		if (!bindings.isEmpty()) {
+			APersistentSet<Symbol> deps=getDependencies(); 
+			int n=0;
+			for (Symbol dep: deps) {
+				if (bindings.containsKey(dep)) n++;
+			}
+			if (n>0) {
+				capturedSymbols=new Symbol[n];
+				capturedValues=new Object[n];
+				int i=0;
+				for (Symbol dep: deps) {
+					if (!bindings.containsKey(dep)) continue;
+					capturedSymbols[i]=dep;
+					capturedValues[i]=bindings.get(dep);
+					i++;
+				}
+			}
+		}
+		
+		// a closed lambda can share a single function instance, avoiding allocation
+		if (capturedSymbols.length==0) {
+			WeakReference<Lambda<?>.LambdaFn> ref=SHARED_FNS.get(this);
+			Lambda<?>.LambdaFn shared=(ref==null)?null:ref.get();
+			if ((shared!=null)&&(shared.context==context)) return new EvalResult<AFn<T>>(context,(LambdaFn)shared);
+		}
 		
 		// System.out.println(body);
 		FunctionType type;
@@ -114,23 +146,88 @@ public class Lambda<T> extends BaseForm<AFn<T>> {
 			type=FunctionType.create(body.getType(), paramTypes);
 		}
 		
-		AFn<T> fn=new LambdaFn(body,context,bindings,type);
+		LambdaFn fn=new LambdaFn(body,context,capturedSymbols,capturedValues,type);
+		if (capturedSymbols.length==0) SHARED_FNS.put(this,new WeakReference<Lambda<?>.LambdaFn>(fn));
 		return new EvalResult<AFn<T>>(context,fn);
 	}
 	
 	public final class LambdaFn extends AFn<T> {
 		private static final long serialVersionUID = 4368281324742419123L;
 		
-		private final APersistentMap<Symbol, Object> capturedBindings;
+		// captured lexical environment, stored as parallel arrays
+		private final Symbol[] capturedSymbols;
+		private final Object[] capturedValues;
+		
+		// slot layout for call bindings: captured values, then parameters
+		private final Symbol[] slotSymbols;
+		private final int[] paramSlots;
+		private final int varSlot;
+		
 		private final Node<? extends T> body;
 		private final FunctionType type;
 		private final Context context;
+		
+		// tiered execution state. The profile and compiled class are shared by all functions of this lambda
+		private final JIT.Profile profile;
+		private JIT.Profile[] loopProfiles=null;
+		private volatile JIT.Code code=null;
 
-		private LambdaFn(Node<? extends T> body,Context context, APersistentMap<Symbol, Object> capturedBindings,FunctionType type) {
-			this.capturedBindings = capturedBindings;
+		private LambdaFn(Node<? extends T> body,Context context, Symbol[] capturedSymbols, Object[] capturedValues,FunctionType type) {
+			this.capturedSymbols = capturedSymbols;
+			this.capturedValues = capturedValues;
 			this.body=body;
 			this.type=type;
 			this.context=context;
+			this.profile=JIT.getProfile(Lambda.this);
+			
+			int n=capturedSymbols.length;
+			Symbol[] slots=new Symbol[n+paramSymbols.size()];
+			System.arraycopy(capturedSymbols, 0, slots, 0, n);
+			this.paramSlots=new int[arity];
+			for (int i=0; i<arity; i++) {
+				paramSlots[i]=slotIndex(slots,n,paramSymbols.get(i));
+				if (paramSlots[i]==n) slots[n++]=paramSymbols.get(i);
+			}
+			if (variadic) {
+				int vi=slotIndex(slots,n,paramSymbols.get(arity+1)); // symbol after ampersand
+				if (vi==n) slots[n++]=paramSymbols.get(arity+1);
+				this.varSlot=vi;
+			} else {
+				this.varSlot=-1;
+			}
+			this.slotSymbols=(n==slots.length)?slots:Arrays.copyOf(slots, n);
+		}
+		
+		/**
+		 * Gets the binding slot for a parameter symbol, reusing any existing slot for the same symbol
+		 * so that later bindings shadow earlier ones.
+		 * Returns n if a new slot is needed, or -1 if the parameter is not bound.
+		 */
+		private int slotIndex(Symbol[] slots, int n, Symbol param) {
+			if (param==Symbols.UNDERSCORE) return -1; // ignore bindings on underscore
+			for (int j=0; j<n; j++) {
+				if (param.equals(slots[j])) return j;
+			}
+			return n;
+		}
+		
+		/**
+		 * Creates the lexical bindings for a call from the captured values and the given arguments.
+		 * Each call gets a fresh value array, since bindings may escape the call.
+		 */
+		private APersistentMap<Symbol, Object> bind(Object[] a, int alength) {
+			int n=slotSymbols.length;
+			if (n==0) return Maps.empty();
+			Object[] vals=new Object[n];
+			System.arraycopy(capturedValues, 0, vals, 0, capturedValues.length);
+			for (int i=0; i<arity; i++) {
+				int slot=paramSlots[i];
+				if (slot>=0) vals[slot]=a[i];
+			}
+			if (varSlot>=0) {
+				vals[varSlot]=Tuple.wrap(a, arity, alength-arity); // construct arg tuple
+			}
+			return ArrayMap.wrap(slotSymbols,vals);
 		}
 
 		@SuppressWarnings("unchecked")
@@ -142,24 +239,103 @@ public class Lambda<T> extends BaseForm<AFn<T>> {
 			} else {
 				if (alength!=arity) throw new ArityException(arity,a.length);	
 			}
-			// Context c=context;
-			APersistentMap<Symbol, Object> bnds=capturedBindings;
-			// add function arguments to the lexical bindings
-			for (int i=0; i<arity; i++) {
-				Symbol param=paramSymbols.get(i);
-				if (param==Symbols.UNDERSCORE) continue; // ignore bindings on underscore
-				bnds=bnds.assoc(param, a[i]);
+			JIT.Code compiled=code;
+			if (compiled!=null) return (T) compiled.invoke(a);
+			checkHot();
+			
+			EvalResult<T> r=(EvalResult<T>) body.eval(context,bind(a,alength)); 
+			
+			// recur rebinds the function parameters, including self tail calls
+			long recurs=0;
+			while (r.isRecurring()) {
+				recurs++;
+				Object[] rvs=(Object[]) r.getValue();
+				if (rvs.length!=arity) throw new ArityException("fn expects "+arity+" arguments for recur but got: "+rvs.length);
+				r=(EvalResult<T>) body.eval(context,bind(rvs,arity)); 
 			}
-			if (variadic) {
-				Symbol varParam=paramSymbols.get(arity+1); // symbol after ampersand
-				if (varParam!=Symbols.UNDERSCORE) {
-					Tuple<?> vs=Tuple.wrap(a, arity, alength-arity); // construct arg tuple
-					bnds=bnds.assoc(varParam, vs);
+			profile.count(recurs+1);
+			return r.getValue(); 
+		}
+
+		/**
+		 * Installs code already compiled for this lambda, or requests background compilation if
+		 * the invocation and loop back-edge count has passed the compilation threshold
+		 */
+		private void checkHot() {
+			if (variadic) return;
+			JIT.Compiled compiled=profile.getCompiled();
+			if (compiled!=null) {
+				code=compiled.create(context,capturedSymbols,capturedValues);
+				return;
+			}
+			if (profile.isFailed()) return;
+			int threshold=JIT.getThreshold();
+			if (threshold<=0) return;
+			long count=profile.getCount();
+			for (JIT.Profile lp: getLoopProfiles()) {
+				count+=lp.getCount();
+			}
+			if ((count>=threshold)&&profile.request()) {
+				JIT.submit(this::compileInBackground);
+			}
+		}
+		
+		private JIT.Profile[] getLoopProfiles() {
+			JIT.Profile[] result=loopProfiles;
+			if (result==null) {
+				Loop<?>[] loops=getLoops();
+				result=new JIT.Profile[loops.length];
+				for (int i=0; i<loops.length; i++) {
+					result[i]=JIT.getProfile(loops[i]);
 				}
+				loopProfiles=result;
 			}
-			// EvalResult<T> r=(EvalResult<T>) body.eval(null,bnds); // old approach without context.
-			EvalResult<T> r=(EvalResult<T>) body.eval(context,bnds); 
-			return r.getValue(); 
+			return result;
+		}
+		
+		private void compileInBackground() {
+			try {
+				compile();
+			} catch (Exception e) {
+				// function remains interpreted, the cause is available from the profile
+				profile.setFailed(e);
+			} catch (Error e) {
+				profile.setFailed(e);
+				throw e;
+			}
+		}
+		
+		/**
+		 * Compiles the body of this function to a JVM class and installs the compiled code
+		 * for subsequent calls. The compiled class is also used by other functions of this lambda
+		 * that capture the same symbols.
+		 * 
+		 * @return true if successful, false if the function cannot be compiled
+		 */
+		public boolean compile() {
+			if (variadic) return false;
+			JIT.Compiled compiled=JIT.compile(capturedSymbols,paramSymbols,body);
+			if (compiled==null) {
+				profile.setFailed();
+				return false;
+			}
+			profile.setCompiled(compiled);
+			code=compiled.create(context,capturedSymbols,capturedValues);
+			return true;
+		}
+		
+		/**
+		 * Returns the number of lexical variables captured by this function
+		 */
+		public int getCapturedCount() {
+			return capturedSymbols.length;
+		}
+		
+		/**
+		 * Returns true if compiled code has been installed for this function
+		 */
+		public boolean isCompiled() {
+			return code!=null;
 		}
 
 		@Override
@@ -208,19 +384,133 @@ public class Lambda<T> extends BaseForm<AFn<T>> {
 		}
 		Node<? extends T> newBody=(Node<? extends T>) body.analyse(context);
 		
+		// self tail calls in a named function can be compiled into a recur
+		Symbol name=(Symbol) meta().get(Keywords.NAME);
+		if ((name!=null)&&(!variadic)&&(!paramSymbols.contains(name))) {
+			newBody=(Node<? extends T>) selfTailCalls(newBody,name,context.resolveSym(name));
+		}
+		
 		return (body==newBody)?this:(Lambda<T>) create(paramSymbols,newBody,meta());
 	}
 	
+	/**
+	 * Replaces calls to the named function in tail position with a recur to the start of the function.
+	 * 
+	 * Does not descend into loops, since a recur in a loop body targets the loop.
+	 */
+	private Node<?> selfTailCalls(Node<?> node, Symbol name, Symbol resolvedName) {
+		if (node instanceof Apply) {
+			Apply<?> app=(Apply<?>)node;
+			Node<?> f=app.getFunction();
+			if (!(f instanceof Lookup)) return node;
+			Symbol sym=f.getSymbol();
+			if (!sym.equals(resolvedName)) return node;
+			
+			Node<?>[] args=app.getArgs();
+			if (args.length!=arity) return node;
+			return Recur.create(Vectors.wrap(args),app.meta());
+		}
+		
+		Node<?> tail;
+		if (node instanceof If) {
+			Node<?> test=((If<?>)node).getTest();
+			return node.mapChildren(new NodeFunctions.NodeFunction() {
+				@Override
+				public Node<?> apply(Node<?> child) {
+					return (child==test)?child:selfTailCalls(child,name,resolvedName);
+				}
+			});
+		} else if (node instanceof Do) {
+			tail=((Do<?>)node).getLast();
+			if (tail==null) return node;
+		} else if (node instanceof Let) {
+			Let<?> let=(Let<?>)node;
+			for (Symbol s: let.getSymbols()) {
+				if (s.equals(name)) return node; // name is shadowed
+			}
+			tail=let.getBody();
+		} else {
+			return node;
+		}
+		
+		Node<?> tailNode=tail;
+		Node<?> newTail=selfTailCalls(tail,name,resolvedName);
+		if (newTail==tail) return node;
+		return node.mapChildren(new NodeFunctions.NodeFunction() {
+			@Override
+			public Node<?> apply(Node<?> child) {
+				return (child==tailNode)?newTail:child;
+			}
+		});
+	}
+	
 	@Override
 	public Node<? extends AFn<T>> specialiseValues(APersistentMap<Symbol, Object> bindings) {
 		bindings=bindings.delete(paramSymbols); // hidden by argument bindings
 		return mapChildren(NodeFunctions.specialiseValues(bindings));
 	}
 	
+	public APersistentVector<Symbol> getParams() {
+		return paramSymbols;
+	}
+	
+	/**
+	 * Gets the loops within the body of this lambda, excluding any nested lambdas
+	 */
+	private Loop<?>[] getLoops() {
+		Loop<?>[] result=loops;
+		if (result==null) {
+			ArrayList<Loop<?>> found=new ArrayList<>();
+			collectLoops(body,found);
+			result=found.toArray(new Loop<?>[found.size()]);
+			loops=result;
+		}
+		return result;
+	}
+	
+	private static void collectLoops(Node<?> node, ArrayList<Loop<?>> found) {
+		if ((node instanceof Lambda)||(node instanceof Lambdas)) return;
+		if (node instanceof Loop) found.add((Loop<?>)node);
+		node.mapChildren(new NodeFunctions.NodeFunction() {
+			@Override
+			public Node<?> apply(Node<?> child) {
+				collectLoops(child,found);
+				return child;
+			}
+		});
+	}
+	
+	public Node<T> getBody() {
+		return body;
+	}
+	
+	public boolean isVariadic() {
+		return variadic;
+	}
+	
+	/**
+	 * Gets the minimum arity of this lambda, excluding any variadic parameter
+	 */
+	public int getArity() {
+		return arity;
+	}
+	
+	/**
+	 * Creating a closure has no side effects, so a lambda expression is always pure
+	 */
+	@Override
+	public boolean isPure() {
+		return true;
+	}
+	
+	@SuppressWarnings("unchecked")
 	@Override
 	public Node<? extends AFn<T>> optimise() {
 		Lambda<T> lambda=mapChildren(NodeFunctions.optimise());
-		return lambda;
+		
+		// function body is a separate region for whole-tree optimisations
+		Node<? extends T> newBody=Optimiser.eliminateCommonSubexpressions(lambda.body);
+		return (newBody==lambda.body)?lambda:create(paramSymbols,(Node<T>)newBody,lambda.meta());
 	}
 	
 	@SuppressWarnings("unchecked")
@@ -1,6 +1,5 @@
 package magic.ast;
 
-import magic.Keywords;
 import magic.RT;
 import magic.compiler.EvalResult;
 import magic.data.APersistentList;
@@ -33,7 +32,7 @@ public class Lambdas<T> extends BaseForm<AFn<T>> {
 	}
 	
 	public static <T> Lambdas<T> create(APersistentList<Node<?>> fns, APersistentMap<Keyword,Object> meta) {
-		meta=meta.assoc(Keywords.DEPS, calcDependencies(fns));
+		meta=NodeMeta.of(meta).withDeps(calcDependencies(fns));
 		return new Lambdas<T>(fns,meta);
 	}
 	
@@ -43,6 +42,11 @@ public class Lambdas<T> extends BaseForm<AFn<T>> {
 		return (newNodes==nodes)?this:create(nodes,meta());
 	}
 
+	@Override
+	public boolean isPure() {
+		return true;
+	}
+
 	/**
 	 * Computes the function object represented by this lambda. 
 	 * 
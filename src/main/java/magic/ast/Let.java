@@ -1,18 +1,17 @@
 package magic.ast;
 
-import magic.Keywords;
 import magic.Symbols;
 import magic.Type;
 import magic.compiler.AExpander;
 import magic.compiler.AnalysisContext;
 import magic.compiler.EvalResult;
+import magic.compiler.Generator;
 import magic.compiler.SourceInfo;
 import magic.data.APersistentList;
 import magic.data.APersistentMap;
 import magic.data.APersistentSet;
 import magic.data.Keyword;
 import magic.data.Lists;
-import magic.data.Maps;
 import magic.data.Symbol;
 import magic.fn.IFn1;
 import magic.lang.Context;
@@ -82,7 +81,7 @@ public class Let<T> extends BaseForm<T> {
 	}
 	
 	public static <T> Let<T> create(Symbol[] syms,Node<? extends Object>[] lets,Node<T> body,SourceInfo source) {
-		APersistentMap<Keyword, Object> meta=Maps.create(Keywords.SOURCE,source);
+		APersistentMap<Keyword, Object> meta=NodeMeta.create(source);
 		APersistentSet<Symbol> deps=body.getDependencies();
 		int n=lets.length;
 		if (n!=syms.length) throw new IllegalArgumentException("Incorrect number of bindings forms for let");
@@ -91,7 +90,7 @@ public class Let<T> extends BaseForm<T> {
 			deps=deps.exclude(syms[i]); // let-bound symbol is provided to subsequent lets / body
 			deps=deps.includeAll(lets[i].getDependencies());
 		}
-		meta=meta.assoc(Keywords.DEPS,deps);
+		meta=NodeMeta.of(meta).withDeps(deps);
 				
 		return new Let<T>(syms,lets,body,meta);
 	}
@@ -110,7 +109,7 @@ public class Let<T> extends BaseForm<T> {
 			Node<?> an=n.analyse(context);
 			if (an!=n) {
 				if (newLets==lets) newLets=lets.clone();
-				newLets[i]=n;
+				newLets[i]=an;
 			}
 			context=context.bind(syms[i], an);
 		}
@@ -131,6 +130,17 @@ public class Let<T> extends BaseForm<T> {
 		EvalResult<T> r=body.eval(context,bindings);
 		return r;
 	}
+
+	@Override
+	public void emit(Context c, APersistentMap<Symbol, Object> bindings, Generator gen) {
+		APersistentMap<Symbol,Integer> locals=gen.getLocals();
+		for (int i=0; i<nLets; i++) {
+			lets[i].emit(c,bindings,gen);
+			gen.bindLocal(syms[i]);
+		}
+		body.emit(c,bindings,gen);
+		gen.setLocals(locals);
+	}
 	
 	@SuppressWarnings("unchecked")
 	@Override
@@ -164,9 +174,52 @@ public class Let<T> extends BaseForm<T> {
 		return newLet.optimiseLocal();
 	}
 	
+	/**
+	 * Eliminates bindings that are not referenced by any subsequent binding or the body.
+	 * 
+	 * A binding is only removed if its initialisation expression is pure, since
+	 * otherwise we would lose its side effects.
+	 * 
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
 	private Node<? extends T> optimiseLocal() {
-		if (lets.length==0) return body;
-		return this;
+		if (nLets==0) return body;
+		
+		boolean[] used=new boolean[nLets];
+		int nUsed=0;
+		APersistentSet<Symbol> deps=body.getDependencies();
+		for (int i=nLets-1; i>=0; i--) {
+			Node<?> node=lets[i];
+			Symbol sym=syms[i];
+			if ((!deps.contains(sym))&&node.isPure()) continue; // dead binding
+			
+			used[i]=true;
+			nUsed++;
+			deps=deps.exclude(sym); // let-bound symbol is provided to subsequent lets / body
+			deps=deps.includeAll(node.getDependencies());
+		}
+		if (nUsed==nLets) return this;
+		if (nUsed==0) return body;
+		
+		Symbol[] newSyms=new Symbol[nUsed];
+		Node<? extends Object>[] newLets=new Node[nUsed];
+		int j=0;
+		for (int i=0; i<nLets; i++) {
+			if (!used[i]) continue;
+			newSyms[j]=syms[i];
+			newLets[j]=lets[i];
+			j++;
+		}
+		return create(newSyms,newLets,body,getSourceInfo());
+	}
+	
+	@Override
+	public boolean isPure() {
+		for (int i=0; i<nLets; i++) {
+			if (!lets[i].isPure()) return false;
+		}
+		return body.isPure();
 	}
 
 	@SuppressWarnings("unchecked")
@@ -190,6 +243,20 @@ public class Let<T> extends BaseForm<T> {
 		return ((body==newBody)&&(lets==newLets))?this:(Let<T>) create(syms,newLets,newBody,getSourceInfo());
 	}
 	
+	/**
+	 * Gets the body of this `let`, which is evaluated with all bindings in scope
+	 */
+	public Node<T> getBody() {
+		return body;
+	}
+	
+	/**
+	 * Gets the symbols bound by this node
+	 */
+	public Symbol[] getSymbols() {
+		return syms.clone();
+	}
+	
 	/**
 	 * Returns the type of this `do` expression, i.e. the type of the last subexpression
 	 */
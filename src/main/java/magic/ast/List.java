@@ -1,6 +1,5 @@
 package magic.ast;
 
-import magic.Keywords;
 import magic.RT;
 import magic.Symbols;
 import magic.Type;
@@ -13,7 +12,6 @@ import magic.data.APersistentSet;
 import magic.data.APersistentVector;
 import magic.data.Keyword;
 import magic.data.Lists;
-import magic.data.Maps;
 import magic.data.Symbol;
 import magic.data.Vectors;
 import magic.fn.IFn1;
@@ -38,9 +36,9 @@ public class List<T> extends BaseDataStructure<APersistentList<? extends T>> {
 	}
 	
 	public static <T> List<T> create(APersistentVector<Node<? extends T>> list, SourceInfo source) {
-		APersistentMap<Keyword, Object> meta=Maps.create(Keywords.SOURCE, source);
+		APersistentMap<Keyword, Object> meta=NodeMeta.create(source);
 		APersistentSet<Symbol> deps=calcDependencies(list);
-		meta=meta.assoc(Keywords.DEPS, deps);
+		meta=NodeMeta.of(meta).withDeps(deps);
 		return new List<T>(Vectors.createFromList(list),meta);
 	}	
 
@@ -1,6 +1,5 @@
 package magic.ast;
 
-import magic.Keywords;
 import magic.RT;
 import magic.compiler.AnalysisContext;
 import magic.compiler.EvalResult;
@@ -46,7 +45,7 @@ public class ListForm extends BaseForm<Object> {
 	}
 
 	public static ListForm create(Node<?>[] nodes, SourceInfo sourceInfo) {
-		APersistentMap<Keyword,Object> meta=Maps.create(Keywords.SOURCE, sourceInfo);
+		APersistentMap<Keyword,Object> meta=NodeMeta.create(sourceInfo);
 		return create((APersistentList<Node<?>>)Lists.wrap(nodes),meta);
 	}
 
@@ -60,13 +59,13 @@ public class ListForm extends BaseForm<Object> {
 	
 	public static ListForm create(APersistentList<Node<?>> nodes, SourceInfo source) {
 		APersistentMap<Keyword,Object> meta=Maps.empty();
-		meta=meta.assoc(Keywords.SOURCE, source);
+		meta=NodeMeta.of(meta).withSource(source);
 		return create(nodes,meta);
 	}
 	
 	public static ListForm create(ListForm a,SourceInfo source) {
 		APersistentMap<Keyword,Object> meta=a.meta();
-		meta=meta.assoc(Keywords.SOURCE, source);
+		meta=NodeMeta.of(meta).withSource(source);
 		return create(a.getNodes(),meta);
 	}
 	
@@ -1,13 +1,11 @@
 package magic.ast;
 
-import magic.Keywords;
 import magic.RT;
 import magic.Type;
 import magic.Types;
 import magic.compiler.SourceInfo;
 import magic.data.APersistentMap;
 import magic.data.Keyword;
-import magic.data.Maps;
 
 /**
  * AST node representing a constant long primitive value
@@ -34,8 +32,8 @@ public class LongConstant extends BaseConstant<Long> {
 
 	
 	public static LongConstant create(long value,SourceInfo source) {	
-		APersistentMap<Keyword, Object> meta=Maps.create(Keywords.SOURCE,source);
-		// meta=meta.assoc(Keywords.DEPS, Sets.emptySet());
+		APersistentMap<Keyword, Object> meta=NodeMeta.create(source);
+		// meta=NodeMeta.of(meta).withDeps(Sets.emptySet());
 		return new LongConstant(value,meta);
 	}
 	
@@ -1,9 +1,9 @@
 package magic.ast;
 
-import magic.Keywords;
 import magic.RT;
 import magic.compiler.AnalysisContext;
 import magic.compiler.EvalResult;
+import magic.compiler.Generator;
 import magic.compiler.SourceInfo;
 import magic.data.APersistentMap;
 import magic.data.APersistentSet;
@@ -49,7 +49,7 @@ public class Lookup<T> extends Node<T> {
 	}
 	
 	public static <T> Lookup<T> create(Symbol sym, SourceInfo si) {
-		return create(sym,Maps.create(Keywords.SOURCE, si));
+		return create(sym,NodeMeta.create(si));
 	}
 
 	@SuppressWarnings("unchecked")
@@ -59,6 +59,23 @@ public class Lookup<T> extends Node<T> {
 		return new EvalResult<T>(c,RT.resolve(c,sym));
 	}
 
+	@Override
+	public void emit(Context c, APersistentMap<Symbol, Object> bindings, Generator gen) {
+		Integer local=gen.getLocal(sym);
+		Integer captured;
+		if (local!=null) {
+			gen.loadLocal(local);
+		} else if ((captured=gen.getCaptured(sym))!=null) {
+			gen.loadCaptured(captured);
+		} else if (bindings.containsKey(sym)) {
+			gen.pushObject(bindings.get(sym));
+		} else {
+			gen.pushContext();
+			gen.pushObject(sym,Symbol.class);
+			gen.invokeStatic(RT.class,"Object resolve(magic.lang.Context,magic.data.Symbol)");
+		}
+	}
+
 	public static <T> Lookup<T> create(String sym) {
 		return create(Symbol.create(sym));
 	}
@@ -100,6 +117,11 @@ public class Lookup<T> extends Node<T> {
 		return true;
 	}
 	
+	@Override
+	public boolean isPure() {
+		return true;
+	}
+	
 	@Override
 	public Node<T> optimise() {
 		return this;
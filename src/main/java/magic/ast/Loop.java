@@ -1,11 +1,17 @@
 package magic.ast;
 
-import magic.Keywords;
+import java.util.ArrayList;
+
+import org.objectweb.asm.Label;
+
 import magic.Symbols;
 import magic.Type;
 import magic.compiler.AExpander;
 import magic.compiler.AnalysisContext;
 import magic.compiler.EvalResult;
+import magic.compiler.Generator;
+import magic.compiler.JIT;
+import magic.compiler.Optimiser;
 import magic.data.APersistentList;
 import magic.data.APersistentMap;
 import magic.data.APersistentSet;
@@ -89,7 +95,7 @@ public class Loop<T> extends BaseForm<T> {
 			deps=deps.exclude(syms[i]); // let-bound symbol is provided to subsequent lets / body
 			deps=deps.includeAll(lets[i].getDependencies());
 		}
-		meta=meta.assoc(Keywords.DEPS,deps);
+		meta=NodeMeta.of(meta).withDeps(deps);
 				
 		return new Loop<T>(syms,lets,body,meta);
 	}
@@ -112,7 +118,10 @@ public class Loop<T> extends BaseForm<T> {
 		
 		EvalResult<T> r=body.eval(context,bindings);
 		
+		// count of loop iterations, used to detect hot code
+		long backEdges=0;
 		while (r.isRecurring()) {
+			backEdges++;
 			Object[] rvs=(Object[]) r.getValue();
 			if (rvs.length!=nLets) throw new ArityException("loop expects "+nLets+" arguments for recur but got: "+rvs.length );
 			for (int i=0; i<nLets; i++) {
@@ -120,8 +129,25 @@ public class Loop<T> extends BaseForm<T> {
 			}
 			r=body.eval(context, bindings);
 		}
+		if (backEdges>0) JIT.getProfile(this).count(backEdges);
 		return r;
 	}
+
+	@Override
+	public void emit(Context c, APersistentMap<Symbol, Object> bindings, Generator gen) {
+		APersistentMap<Symbol,Integer> locals=gen.getLocals();
+		Label outerLabel=gen.getRecurLabel();
+		int[] outerLocals=gen.getRecurLocals();
+		int[] loopLocals=new int[nLets];
+		for (int i=0; i<nLets; i++) {
+			lets[i].emit(c,bindings,gen);
+			loopLocals[i]=gen.bindLocal(syms[i]);
+		}
+		gen.setRecurTarget(gen.mark(), loopLocals);
+		body.emit(c,bindings,gen);
+		gen.setRecurTarget(outerLabel, outerLocals);
+		gen.setLocals(locals);
+	}
 	
 	@Override
 	public Node<? extends T> specialiseValues(APersistentMap<Symbol, Object> bindings) {
@@ -190,7 +216,17 @@ public class Loop<T> extends BaseForm<T> {
 	
 	private Node<? extends T> optimiseLocal() {
 		if (lets.length==0) return body;
-		return this;
+		
+		// move loop invariant expressions into a `let` around the loop
+		ArrayList<Symbol> hoistedSyms=new ArrayList<>();
+		ArrayList<Node<?>> hoistedExprs=new ArrayList<>();
+		Node<T> newBody=Optimiser.hoistLoopInvariants(body, syms, lets, hoistedSyms, hoistedExprs);
+		if (hoistedSyms.isEmpty()) return this;
+		
+		Loop<T> newLoop=create(syms,lets,newBody,meta());
+		Symbol[] letSyms=hoistedSyms.toArray(new Symbol[hoistedSyms.size()]);
+		Node<?>[] letExprs=hoistedExprs.toArray(new Node<?>[hoistedExprs.size()]);
+		return Let.create(letSyms,letExprs,newLoop,getSourceInfo());
 	}
 
 	@SuppressWarnings("unchecked")
@@ -214,6 +250,27 @@ public class Loop<T> extends BaseForm<T> {
 		return ((body==newBody)&&(lets==newLets))?this:(Loop<T>) create(syms,newLets,newBody,meta());
 	}
 	
+	/**
+	 * Gets the symbols bound by this node
+	 */
+	public Symbol[] getSymbols() {
+		return syms.clone();
+	}
+	
+	/**
+	 * Gets the number of times this loop has recurred while interpreted
+	 */
+	public long getBackEdges() {
+		return JIT.getProfile(this).getCount();
+	}
+	
+	/**
+	 * Gets the body of this loop, i.e. the target of any `recur` within the loop
+	 */
+	public Node<T> getBody() {
+		return body;
+	}
+	
 	/**
 	 * Returns the type of this `do` expression, i.e. the type of the last subexpression
 	 */
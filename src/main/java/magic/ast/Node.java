@@ -1,27 +1,26 @@
 package magic.ast;
 import java.util.Collection;
 
-import org.objectweb.asm.commons.GeneratorAdapter;
 
 import com.oracle.truffle.api.frame.VirtualFrame;
 import com.oracle.truffle.api.nodes.NodeInfo;
 import com.oracle.truffle.api.nodes.RootNode;
 
-import magic.Keywords;
 import magic.RT;
 import magic.Type;
 import magic.Types;
 import magic.compiler.Analyser;
 import magic.compiler.AnalysisContext;
 import magic.compiler.EvalResult;
+import magic.compiler.Generator;
 import magic.compiler.SourceInfo;
 import magic.data.APersistentList;
 import magic.data.APersistentMap;
 import magic.data.APersistentSequence;
 import magic.data.APersistentSet;
 import magic.data.APersistentVector;
+import magic.data.ChampHashMap;
 import magic.data.Keyword;
-import magic.data.PersistentHashMap;
 import magic.data.Sets;
 import magic.data.Symbol;
 import magic.data.Vectors;
@@ -41,28 +40,28 @@ public abstract class Node<T> extends RootNode {
 
 	public static final Node<?>[] EMPTY_ARRAY = new Node[0];
 	
-	private final APersistentMap<Keyword,Object> meta;
+	// metadata, with dependencies, type and source information held in dedicated fields
+	private final NodeMeta meta;
 		
-	@SuppressWarnings("deprecation")
+	/**
+	 * Creates a node with the given metadata. Dependencies (:deps), type (:type) and source
+	 * information (:source) are extracted into dedicated fields, the remaining entries are
+	 * retained as user metadata. NodeMeta instances are used directly.
+	 * 
+	 * @param meta
+	 */
+	@SuppressWarnings({ "deprecation" })
 	public Node(APersistentMap<Keyword, Object> meta) {
 		super(MagicLanguage.class, null,null);
-		this.meta=meta;
+		this.meta=NodeMeta.of(meta);
 	}
 
 	protected Node<?> updateMeta() {
-		APersistentMap<Keyword, Object> depMeta=includeMetaDependencies(meta);
-		if (depMeta!=meta) return withMeta(depMeta);
-		return this;
-	}
-	
-	@SuppressWarnings("unchecked")
-	protected final APersistentMap<Keyword, Object> includeMetaDependencies(APersistentMap<Keyword, Object> meta) {
-		APersistentSet<Symbol> deps=(APersistentSet<Symbol>) meta.get(Keywords.DEPS);
-		if (deps==null) deps=Sets.emptySet();
-		deps=this.includeDependencies(deps);
-		if (deps==null) throw new Error("Null deps generated in: "+this +" with class "+this.getClass());
-		if (deps.isEmpty()) return meta;
-		return meta.assoc(Keywords.DEPS,deps);
+		APersistentSet<Symbol> deps=getDependencies();
+		APersistentSet<Symbol> newDeps=this.includeDependencies(deps);
+		if (newDeps==null) throw new Error("Null deps generated in: "+this +" with class "+this.getClass());
+		if ((newDeps==deps)||newDeps.isEmpty()) return this;
+		return withMeta(meta.withDeps(newDeps));
 	}
 
 	/**
@@ -84,12 +83,21 @@ public abstract class Node<T> extends RootNode {
 	}
 
 	/**
-	 * Get the metadata associated with this Node
+	 * Get the metadata associated with this Node, including dependencies, type and source 
+	 * information if present. The result is the node's NodeMeta, so needs no copying.
 	 * @return
 	 */
 	public APersistentMap<Keyword,Object> meta() {
 		return meta;
 	}
+	
+	/**
+	 * Get the user-supplied metadata associated with this Node, excluding analysis results
+	 * @return
+	 */
+	public APersistentMap<Keyword,Object> userMeta() {
+		return meta.getUserMeta();
+	}
 
 	/**
 	 * Returns this node with updated metadata
@@ -105,7 +113,7 @@ public abstract class Node<T> extends RootNode {
 	
 	@SuppressWarnings("unchecked")
 	public final T compute(Context c) {
-		return compute(c,(PersistentHashMap<Symbol, Object>) PersistentHashMap.EMPTY);
+		return compute(c,(ChampHashMap<Symbol, Object>) ChampHashMap.EMPTY);
 	}
 
 	/**
@@ -125,11 +133,17 @@ public abstract class Node<T> extends RootNode {
 	}
 	
 	/**
-	 * TODO: docs for emit
-	 * @param c
-	 * @param bindings
+	 * Emits JVM bytecode that evaluates this node, leaving the resulting value on the operand stack.
+	 * 
+	 * Local variables bound within the compiled code and captured closure values are tracked by
+	 * the generator. Other lexical bindings are given as constant values.
+	 * 
+	 * @param c Context in which the compiled code will be evaluated, or null if it is only known at runtime
+	 * @param bindings Constant lexical bindings
+	 * @param gen Generator for the method being compiled
+	 * @throws UnsupportedOperationException if code cannot be emitted for this node
 	 */
-	public void emit(Context c,APersistentMap<Symbol,Object> bindings, GeneratorAdapter gen) {
+	public void emit(Context c,APersistentMap<Symbol,Object> bindings, Generator gen) {
 		throw new UnsupportedOperationException("Can't emit code for node of type: "+this.getClass());
 	}
 
@@ -153,6 +167,17 @@ public abstract class Node<T> extends RootNode {
 		return false;
 	}
 	
+	/**
+	 * Returns true if this node is provably free of side effects, i.e. evaluating it
+	 * cannot change the context or escape normal control flow.
+	 * 
+	 * Pure nodes may be eliminated by the optimiser if their value is never used.
+	 * @return
+	 */
+	public boolean isPure() {
+		return false;
+	}
+	
 	/**
 	 * Returns true if this node is provably a constant Symbol
 	 * @return
@@ -179,11 +204,8 @@ public abstract class Node<T> extends RootNode {
 		return (Symbol)getValue();
 	}
 	
-	@SuppressWarnings("unchecked")
 	public final APersistentSet<Symbol> getDependencies() {
-		APersistentSet<Symbol> deps=(APersistentSet<Symbol>) meta.get(Keywords.DEPS);
-		if (deps==null) return Sets.emptySet();
-		return deps;
+		return meta.getDependencies();
 	}
 	
 	protected static APersistentSet<Symbol> calcDependencies(Node<?> f, Node<?>[] args) {
@@ -227,13 +249,32 @@ public abstract class Node<T> extends RootNode {
 		return calcDependencies(Vectors.coerce(nodes));
 	}
 	
+	/**
+	 * Calculates the dependencies of a raw, unexpanded form.
+	 * 
+	 * Raw list forms do not track the dependencies of their elements, so this walks the complete form
+	 * and conservatively includes every symbol that is referenced.
+	 * 
+	 * @param form
+	 * @return
+	 */
+	protected static APersistentSet<Symbol> calcFormDependencies(Node<?> form) {
+		APersistentSet<Symbol> deps=form.getDependencies();
+		if ((form instanceof ListForm)||(form instanceof BaseDataStructure)) {
+			for (Node<?> n: form.getNodes()) {
+				deps=deps.includeAll(calcFormDependencies(n));
+			}
+		}
+		return deps;
+	}
+	
 	/**
 	 * Gets the Magic Type for this expression node.
 	 * 
 	 * Returns the type as computed in the node metadata, or Types.ANY if not defined.
 	 */
 	public Type getType() {
-		Type t=(Type)meta.get(Keywords.TYPE);
+		Type t=meta.getType();
 		if (t!=null) return t;
 		return Types.ANY;
 	}
@@ -243,12 +284,7 @@ public abstract class Node<T> extends RootNode {
 	 * @return
 	 */
 	public SourceInfo getSourceInfo() {
-		try {
-			return (SourceInfo) meta.get(Keywords.SOURCE);
-		} catch (Throwable t) {
-			System.err.println("Problem getting source info for node: "+this+" with meta " +meta());
-			throw t;
-		}
+		return meta.getSourceInfo();
 	}
 
 	/**
@@ -337,7 +373,7 @@ public abstract class Node<T> extends RootNode {
 	public Node<T> withDependency(Symbol sym) {
 		APersistentSet<Symbol> deps=getDependencies();
 		if (deps.containsKey(sym)) return this;
-		return withMeta(meta.assoc(Keywords.DEPS, deps.include(sym)));
+		return withMeta(meta.withDeps(deps.include(sym)));
 	}
 	
 	/**
@@ -350,7 +386,7 @@ public abstract class Node<T> extends RootNode {
 		APersistentSet<Symbol> deps=getDependencies();
 		APersistentSet<Symbol> newDeps=deps.includeAll(syms);
 		if (deps==newDeps) return this;
-		return withMeta(meta.assoc(Keywords.DEPS, newDeps));
+		return withMeta(meta.withDeps(newDeps));
 	}
 
 	
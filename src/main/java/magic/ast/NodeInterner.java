@@ -0,0 +1,240 @@
+package magic.ast;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+import magic.Type;
+import magic.data.APersistentMap;
+import magic.data.APersistentSet;
+import magic.data.IPersistentCollection;
+import magic.data.Keyword;
+import magic.data.Symbol;
+
+/**
+ * Hash-consing factory for analysed AST nodes.
+ *
+ * Interning a tree returns an equivalent tree in which structurally identical subtrees are
+ * represented by a single shared instance, so that identical subtrees can be compared by
+ * identity. Nodes are considered identical if they have the same class, the same value or
+ * symbol (for constants and lookups), the same form (for quotes) or identical children, and the same dependencies, type
+ * and user metadata. Source information is not compared: a shared node keeps the source
+ * information of the first instance interned.
+ *
+ * Only node classes without state beyond their children are shared. Other nodes (e.g. those
+ * with runtime caches or profiling counters, such as Arithmetic or Loop) are kept distinct,
+ * but their children are still interned. Constants are only shared if their values are
+ * immutable.
+ *
+ * Interned nodes are held weakly, so an interner does not keep otherwise unused nodes alive.
+ *
+ * @author Mike
+ */
+public final class NodeInterner {
+	public static final String INTERN_PROPERTY="magic.intern";
+
+	private static final boolean ENABLED=Boolean.getBoolean(INTERN_PROPERTY);
+
+	private static final NodeInterner SHARED=new NodeInterner();
+
+	private final ConcurrentHashMap<Key,Entry> table=new ConcurrentHashMap<>();
+	private final ReferenceQueue<Node<?>> cleared=new ReferenceQueue<>();
+
+	/**
+	 * Returns true if interning of compiled nodes is enabled via the system property
+	 * "magic.intern"
+	 */
+	public static boolean isEnabled() {
+		return ENABLED;
+	}
+
+	/**
+	 * Gets the interner shared by all compilation
+	 */
+	public static NodeInterner shared() {
+		return SHARED;
+	}
+
+	/**
+	 * Structural key for a node
+	 */
+	private static final class Key {
+		private final Class<?> klass;
+		private final Object value; // constant value or symbol, null for composite nodes
+		private final Node<?>[] children; // canonical children, compared by identity
+		private final APersistentSet<Symbol> deps;
+		private final Type type;
+		private final APersistentMap<Keyword,Object> userMeta;
+		private final int hash;
+
+		private Key(Node<?> node, Object value, Node<?>[] children) {
+			this.klass=node.getClass();
+			this.value=value;
+			this.children=children;
+			this.deps=node.getDependencies();
+			this.type=node.getType();
+			this.userMeta=node.userMeta();
+			int h=klass.hashCode();
+			h=h*31+Objects.hashCode(value);
+			for (Node<?> child: children) {
+				h=h*31+System.identityHashCode(child);
+			}
+			h=h*31+deps.hashCode();
+			h=h*31+type.hashCode();
+			this.hash=h*31+userMeta.hashCode();
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (o==this) return true;
+			if (!(o instanceof Key)) return false;
+			Key k=(Key)o;
+			if ((hash!=k.hash)||(klass!=k.klass)) return false;
+			if (children.length!=k.children.length) return false;
+			for (int i=0; i<children.length; i++) {
+				if (children[i]!=k.children[i]) return false;
+			}
+			if (!Objects.equals(value, k.value)) return false;
+			if ((value!=null)&&(value.getClass()!=k.value.getClass())) return false;
+			return deps.equals(k.deps)&&type.equals(k.type)&&userMeta.equals(k.userMeta);
+		}
+	}
+
+	private static final class Entry extends WeakReference<Node<?>> {
+		private final Key key;
+
+		private Entry(Key key, Node<?> node, ReferenceQueue<Node<?>> queue) {
+			super(node,queue);
+			this.key=key;
+		}
+	}
+
+	/**
+	 * Interns a node tree, returning an equivalent tree with shared identical subtrees
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> Node<T> intern(Node<T> node) {
+		expungeCleared();
+		return (Node<T>) internNode(node);
+	}
+
+	/**
+	 * Gets the number of distinct nodes currently interned
+	 */
+	public int size() {
+		expungeCleared();
+		return table.size();
+	}
+
+	private Node<?> internNode(Node<?> node) {
+		Class<?> klass=node.getClass();
+		if (klass==Constant.class) {
+			Object value=node.getValue();
+			if (!isImmutable(value)) return node;
+			return canonical(new Key(node,value,Node.EMPTY_ARRAY),node);
+		}
+		if (klass==Lookup.class) {
+			return canonical(new Key(node,node.getSymbol(),Node.EMPTY_ARRAY),node);
+		}
+		if (klass==Quote.class) {
+			// quoted forms are identified by their form data, which includes the quote symbol
+			Object form=node.toForm();
+			if (!isImmutable(form)) return node;
+			return canonical(new Key(node,form,Node.EMPTY_ARRAY),node);
+		}
+
+		if (klass==ListForm.class) return node; // raw forms are expanded later, so not shared
+
+		if (isLeaf(node)) return node;
+
+		Node<?> newNode=node.mapChildren(new NodeFunctions.NodeFunction() {
+			@Override
+			public Node<?> apply(Node<?> child) {
+				return internNode(child);
+			}
+		});
+		if (!isShareable(newNode)) return newNode;
+
+		ArrayList<Node<?>> children=new ArrayList<>();
+		newNode.mapChildren(new NodeFunctions.NodeFunction() {
+			@Override
+			public Node<?> apply(Node<?> child) {
+				children.add(child);
+				return child;
+			}
+		});
+		return canonical(new Key(newNode,null,children.toArray(Node.EMPTY_ARRAY)),newNode);
+	}
+
+	private Node<?> canonical(Key key, Node<?> node) {
+		while (true) {
+			Entry e=table.get(key);
+			if (e!=null) {
+				Node<?> existing=e.get();
+				if (existing!=null) return existing;
+				table.remove(key, e);
+			}
+			if (table.putIfAbsent(key, new Entry(key,node,cleared))==null) return node;
+		}
+	}
+
+	private void expungeCleared() {
+		Object ref;
+		while ((ref=cleared.poll())!=null) {
+			Entry e=(Entry)ref;
+			table.remove(e.key, e);
+		}
+	}
+
+	/**
+	 * Checks if a node has no child nodes, so has nothing to intern beneath it
+	 */
+	private static boolean isLeaf(Node<?> node) {
+		return (node instanceof BaseConstant)||(node.getClass()==Unquote.class);
+	}
+
+	/**
+	 * Checks if a node is fully determined by its class, children and metadata
+	 */
+	private static boolean isShareable(Node<?> node) {
+		Class<?> klass=node.getClass();
+		return (klass==Apply.class)||(klass==Do.class)||(klass==If.class)
+				||(klass==Vector.class)||(klass==HashMap.class)||(klass==Set.class)
+				||(klass==List.class);
+	}
+
+	/**
+	 * Checks if a constant value is immutable, so that equal values can safely be shared
+	 */
+	private static boolean isImmutable(Object value) {
+		if (value==null) return true;
+		if ((value instanceof String)||(value instanceof Keyword)||(value instanceof Symbol)
+				||(value instanceof Boolean)||(value instanceof Character)) return true;
+		if ((value instanceof Long)||(value instanceof Double)||(value instanceof Integer)
+				||(value instanceof Short)||(value instanceof Byte)||(value instanceof Float)
+				||(value instanceof BigInteger)||(value instanceof BigDecimal)) return true;
+		if (value instanceof APersistentMap) {
+			for (Map.Entry<?,?> me: ((APersistentMap<?,?>)value).entrySet()) {
+				if (!(isImmutable(me.getKey())&&isImmutable(me.getValue()))) return false;
+			}
+			return true;
+		}
+		if (value instanceof IPersistentCollection) {
+			for (Object o: (IPersistentCollection<?>)value) {
+				if (!isImmutable(o)) return false;
+			}
+			return true;
+		}
+		return false;
+	}
+}
@@ -0,0 +1,223 @@
+package magic.ast;
+
+import java.util.Map;
+
+import magic.Keywords;
+import magic.Type;
+import magic.compiler.SourceInfo;
+import magic.data.APersistentCollection;
+import magic.data.APersistentMap;
+import magic.data.APersistentSet;
+import magic.data.Keyword;
+import magic.data.Maps;
+import magic.data.Sets;
+import magic.data.Symbol;
+
+/**
+ * Metadata for an AST node.
+ *
+ * Dependencies (:deps), type (:type) and source information (:source) are held in dedicated fields,
+ * so that nodes can be created and updated without building a combined map. Other entries are held
+ * as user metadata. Behaves as a persistent map containing all entries, for external callers.
+ *
+ * @author Mike
+ *
+ */
+public final class NodeMeta extends APersistentMap<Keyword,Object> {
+	private static final long serialVersionUID = -2245839526371306419L;
+
+	public static final NodeMeta EMPTY=new NodeMeta(Maps.empty(),Sets.emptySet(),null,null);
+
+	private final APersistentMap<Keyword,Object> user;
+	private final APersistentSet<Symbol> deps;
+	private final Type type; // null if not known
+	private final SourceInfo source; // null if not available
+
+	private NodeMeta(APersistentMap<Keyword,Object> user, APersistentSet<Symbol> deps, Type type, SourceInfo source) {
+		this.user=user;
+		this.deps=deps;
+		this.type=type;
+		this.source=source;
+	}
+
+	/**
+	 * Converts a metadata map to NodeMeta, extracting the dependencies, type and source information
+	 * @param meta
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public static NodeMeta of(APersistentMap<Keyword,Object> meta) {
+		if (meta instanceof NodeMeta) return (NodeMeta)meta;
+		if (meta.isEmpty()) return EMPTY;
+		int known=0;
+		Object d=meta.get(Keywords.DEPS);
+		if ((d!=null)||meta.containsKey(Keywords.DEPS)) known++;
+		Object t=meta.get(Keywords.TYPE);
+		if ((t!=null)||meta.containsKey(Keywords.TYPE)) known++;
+		Object si=meta.get(Keywords.SOURCE);
+		if ((si!=null)||meta.containsKey(Keywords.SOURCE)) known++;
+
+		APersistentMap<Keyword,Object> user;
+		if (known==0) {
+			user=meta;
+		} else if (known==meta.size()) {
+			user=Maps.empty();
+		} else {
+			user=meta.dissoc(Keywords.DEPS).dissoc(Keywords.TYPE).dissoc(Keywords.SOURCE);
+		}
+		return new NodeMeta(user,(d==null)?Sets.emptySet():(APersistentSet<Symbol>)d,(Type)t,(SourceInfo)si);
+	}
+
+	public static NodeMeta create(SourceInfo source) {
+		return EMPTY.withSource(source);
+	}
+
+	public static NodeMeta create(APersistentSet<Symbol> deps, SourceInfo source) {
+		return new NodeMeta(Maps.empty(),(deps==null)?Sets.emptySet():deps,null,source);
+	}
+
+	public NodeMeta withDeps(APersistentSet<Symbol> newDeps) {
+		if (newDeps==null) newDeps=Sets.emptySet();
+		if (newDeps==deps) return this;
+		return new NodeMeta(user,newDeps,type,source);
+	}
+
+	public NodeMeta withType(Type newType) {
+		if (newType==type) return this;
+		return new NodeMeta(user,deps,newType,source);
+	}
+
+	public NodeMeta withSource(SourceInfo newSource) {
+		if (newSource==source) return this;
+		return new NodeMeta(user,deps,type,newSource);
+	}
+
+	public APersistentMap<Keyword,Object> getUserMeta() {
+		return user;
+	}
+
+	public APersistentSet<Symbol> getDependencies() {
+		return deps;
+	}
+
+	/**
+	 * Gets the type, or null if not known
+	 */
+	public Type getType() {
+		return type;
+	}
+
+	/**
+	 * Gets the source information, or null if not available
+	 */
+	public SourceInfo getSourceInfo() {
+		return source;
+	}
+
+	private static final int USER=0, DEPS=1, TYPE=2, SOURCE=3;
+	
+	/**
+	 * Identifies which field holds the entry for a key
+	 */
+	private static int field(Object key) {
+		if (Keywords.DEPS.equals(key)) return DEPS;
+		if (Keywords.TYPE.equals(key)) return TYPE;
+		if (Keywords.SOURCE.equals(key)) return SOURCE;
+		return USER;
+	}
+
+	/**
+	 * Builds a map containing all entries
+	 */
+	private APersistentMap<Keyword,Object> toMap() {
+		APersistentMap<Keyword,Object> m=user;
+		if (source!=null) m=m.assoc(Keywords.SOURCE, source);
+		if (!deps.isEmpty()) m=m.assoc(Keywords.DEPS, deps);
+		if (type!=null) m=m.assoc(Keywords.TYPE, type);
+		return m;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		switch (field(key)) {
+			case DEPS: return !deps.isEmpty();
+			case TYPE: return type!=null;
+			case SOURCE: return source!=null;
+			default: return user.containsKey(key);
+		}
+	}
+
+	@Override
+	public Object get(Object key) {
+		switch (field(key)) {
+			case DEPS: return deps.isEmpty()?null:deps;
+			case TYPE: return type;
+			case SOURCE: return source;
+			default: return user.get(key);
+		}
+	}
+
+	@Override
+	public Object valAt(Keyword key, Object notFound) {
+		return containsKey(key)?get(key):notFound;
+	}
+
+	@Override
+	public Map.Entry<Keyword, Object> getMapEntry(Object key) {
+		if (field(key)!=USER) return toMap().getMapEntry(key);
+		return user.getMapEntry(key);
+	}
+
+	@Override
+	public int size() {
+		int n=user.size();
+		if (!deps.isEmpty()) n++;
+		if (type!=null) n++;
+		if (source!=null) n++;
+		return n;
+	}
+
+	@Override
+	public APersistentSet<Map.Entry<Keyword, Object>> entrySet() {
+		return toMap().entrySet();
+	}
+
+	@Override
+	public APersistentSet<Keyword> keySet() {
+		return toMap().keySet();
+	}
+
+	@Override
+	public APersistentCollection<Object> values() {
+		return toMap().values();
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public NodeMeta assoc(Keyword key, Object value) {
+		switch (field(key)) {
+			case DEPS: return withDeps((APersistentSet<Symbol>)value);
+			case TYPE: return withType((Type)value);
+			case SOURCE: return withSource((SourceInfo)value);
+			default: return new NodeMeta(user.assoc(key, value),deps,type,source);
+		}
+	}
+
+	@Override
+	public NodeMeta dissoc(Keyword key) {
+		switch (field(key)) {
+			case DEPS: return withDeps(null);
+			case TYPE: return withType(null);
+			case SOURCE: return withSource(null);
+			default: break;
+		}
+		APersistentMap<Keyword,Object> newUser=user.dissoc(key);
+		if (newUser==user) return this;
+		return new NodeMeta(newUser,deps,type,source);
+	}
+
+	@Override
+	public boolean allowsNullKey() {
+		return false;
+	}
+}
@@ -1,6 +1,5 @@
 package magic.ast;
 
-import magic.Keywords;
 import magic.RT;
 import magic.Symbols;
 import magic.Type;
@@ -11,7 +10,6 @@ import magic.data.APersistentMap;
 import magic.data.APersistentSet;
 import magic.data.Keyword;
 import magic.data.Lists;
-import magic.data.Maps;
 import magic.data.Sets;
 import magic.data.Symbol;
 import magic.fn.IFn1;
@@ -30,6 +28,7 @@ public class Quote extends BaseForm<Object> {
 
 	private final Node<Object> form;
 	private final boolean syntaxQuote;
+	private final boolean pure;
 	
 	private static final APersistentSet<Symbol> QUOTE_SET=Sets.of(Symbols.QUOTE);
 	private static final APersistentSet<Symbol> SYNTAX_QUOTE_SET=Sets.of(Symbols.SYNTAX_QUOTE);
@@ -43,6 +42,7 @@ public class Quote extends BaseForm<Object> {
 		super (Lists.of(Lookup.create(quoteSymbol(syntaxQuote)),form),meta);
 		this.syntaxQuote=syntaxQuote;
 		this.form=form;
+		this.pure=!containsUnquote(form);
 	}
 	
 	@Override
@@ -59,13 +59,40 @@ public class Quote extends BaseForm<Object> {
 	 */
 	@SuppressWarnings("unchecked")
 	public static Quote create(Node<? extends Object> node, boolean syntaxQuote, SourceInfo sourceInfo) {
-		// TODO fix deps?
 		APersistentSet<Symbol> syms=(syntaxQuote)?SYNTAX_QUOTE_SET:QUOTE_SET;
-		APersistentMap<Keyword, Object> meta=Maps.create(Keywords.DEPS, syms);
-		meta=meta.assoc(Keywords.SOURCE, sourceInfo);
+		syms=syms.includeAll(calcUnquoteDependencies(node));
+		APersistentMap<Keyword, Object> meta=NodeMeta.create(syms,sourceInfo);
 		return new Quote((Node<Object>)node,syntaxQuote,meta);
 	}
 
+	/**
+	 * Gets the dependencies of any unquoted expressions within a quoted form, since these 
+	 * are evaluated and may refer to lexical bindings
+	 */
+	private static APersistentSet<Symbol> calcUnquoteDependencies(Node<?> form) {
+		if (form instanceof Unquote) return calcFormDependencies(((Unquote)form).getForm());
+		APersistentSet<Symbol> deps=Sets.emptySet();
+		if ((form instanceof ListForm)||(form instanceof BaseDataStructure)) {
+			for (Node<?> n: form.getNodes()) {
+				deps=deps.includeAll(calcUnquoteDependencies(n));
+			}
+		}
+		return deps;
+	}
+	
+	/**
+	 * Returns true if a quoted form contains any unquoted expressions, which are evaluated
+	 */
+	private static boolean containsUnquote(Node<?> form) {
+		if (form instanceof Unquote) return true;
+		if ((form instanceof ListForm)||(form instanceof BaseDataStructure)) {
+			for (Node<?> n: form.getNodes()) {
+				if (containsUnquote(n)) return true;
+			}
+		}
+		return false;
+	}
+	
 	@Override
 	public EvalResult<Object> eval(Context context, APersistentMap<Symbol, Object> bindings) {
 		// call evalQuoted on form, return the value
@@ -73,6 +100,11 @@ public class Quote extends BaseForm<Object> {
 	}
 	
 
+	@Override
+	public boolean isPure() {
+		return pure;
+	}
+
 	public boolean isSyntaxQuote() {
 		return syntaxQuote;
 	}
@@ -5,6 +5,7 @@ import magic.Symbols;
 import magic.Type;
 import magic.Types;
 import magic.compiler.EvalResult;
+import magic.compiler.Generator;
 import magic.data.APersistentMap;
 import magic.data.APersistentVector;
 import magic.data.Keyword;
@@ -50,6 +51,13 @@ public class Recur<T> extends BaseForm<T> {
 		return create(newExps,meta());
 	}
 	
+	/**
+	 * Gets the number of values passed by this recur
+	 */
+	public int getArity() {
+		return exps.size();
+	}
+	
 	@Override
 	public String toString() {
 		return "(RECUR "+RT.toString(exps," ")+")";
@@ -67,4 +75,21 @@ public class Recur<T> extends BaseForm<T> {
 		}
 		return EvalResult.recurValues(context,rs);
 	}
+
+	@Override
+	public void emit(Context c, APersistentMap<Symbol, Object> bindings, Generator gen) {
+		int[] targets=gen.getRecurLocals();
+		int n=exps.size();
+		if ((targets==null)||(targets.length!=n)) {
+			throw new UnsupportedOperationException("Can't compile recur with "+n+" values in: "+this);
+		}
+		// evaluate all values before rebinding, then jump back to the recur target
+		for (int i=0; i<n; i++) {
+			exps.get(i).emit(c,bindings,gen);
+		}
+		for (int i=n-1; i>=0; i--) {
+			gen.storeLocal(targets[i]);
+		}
+		gen.goTo(gen.getRecurLabel());
+	}
 }
@@ -2,7 +2,6 @@ package magic.ast;
 
 import java.util.List;
 
-import magic.Keywords;
 import magic.RT;
 import magic.Symbols;
 import magic.Type;
@@ -15,7 +14,6 @@ import magic.data.APersistentSet;
 import magic.data.APersistentVector;
 import magic.data.Keyword;
 import magic.data.Lists;
-import magic.data.Maps;
 import magic.data.Sets;
 import magic.data.Symbol;
 import magic.data.Vectors;
@@ -41,8 +39,8 @@ public class Set<T> extends BaseDataStructure<APersistentSet<? extends T>> {
 	}
 
 	public static <T> Set<T> create(APersistentVector<Node<?>> exps, SourceInfo source) {
-		APersistentMap<Keyword, Object> meta=Maps.create(Keywords.SOURCE,source);
-		meta=meta.assoc(Keywords.DEPS, calcDependencies(exps));
+		APersistentMap<Keyword, Object> meta=NodeMeta.create(source);
+		meta=NodeMeta.of(meta).withDeps(calcDependencies(exps));
 		return (Set<T>) new Set<T>(exps,meta);
 	}
 	
@@ -51,6 +51,13 @@ public class Unquote extends BaseForm<Object> {
 		return new Unquote((Node<Object>)node,meta);
 	}
 
+	/**
+	 * Gets the form to be evaluated by this unquote
+	 */
+	public Node<Object> getForm() {
+		return form;
+	}
+
 	@Override
 	public EvalResult<Object> eval(Context context, APersistentMap<Symbol, Object> bindings) {
 		return form.eval(context,bindings);
@@ -2,7 +2,6 @@ package magic.ast;
 
 import java.util.List;
 
-import magic.Keywords;
 import magic.RT;
 import magic.Type;
 import magic.Types;
@@ -11,7 +10,6 @@ import magic.compiler.SourceInfo;
 import magic.data.APersistentMap;
 import magic.data.APersistentVector;
 import magic.data.Keyword;
-import magic.data.Maps;
 import magic.data.Symbol;
 import magic.data.Tuple;
 import magic.data.Vectors;
@@ -39,8 +37,8 @@ public class Vector<T> extends BaseDataStructure<APersistentVector<? extends T>>
 	}
 
 	public static <T> Vector<T> create(APersistentVector<Node<?>> exps, SourceInfo source) {
-		APersistentMap<Keyword, Object> meta=Maps.create(Keywords.SOURCE,source);
-		meta=meta.assoc(Keywords.DEPS, calcDependencies(exps));
+		APersistentMap<Keyword, Object> meta=NodeMeta.create(source);
+		meta=NodeMeta.of(meta).withDeps(calcDependencies(exps));
 		return (Vector<T>) new Vector<T>(exps,meta);
 	}
 	
@@ -1,9 +1,12 @@
 package magic.compiler;
 
 import magic.Errors;
+import magic.RT;
 import magic.ast.ListForm;
 import magic.ast.Node;
+import magic.ast.NodeInterner;
 import magic.data.APersistentMap;
+import magic.data.APersistentSet;
 import magic.data.Maps;
 import magic.data.Symbol;
 import magic.lang.Context;
@@ -75,8 +78,10 @@ public class Compiler {
 	@SuppressWarnings("unchecked")
 	public static <T> Node<T> compileNode(Context context, APersistentMap<Symbol, Object> bindings, Node<?> node) {
 		node=Compiler.analyse(context,bindings,node);
+		node=Optimiser.inlineGlobals(context,bindings,node);
 		node=node.optimise();
-		// TODO: should specialise to context here?
+		node=Optimiser.eliminateCommonSubexpressions(node);
+		if (NodeInterner.isEnabled()) node=NodeInterner.shared().intern(node);
 		return (Node<T>)node;
 	}
 
@@ -128,6 +133,42 @@ public class Compiler {
 		}
 		return r;
 	}
+	
+	/**
+	 * Evaluates code in the given context, loading top-level (def ...) and (defn ...) forms lazily.
+	 * 
+	 * Definitions are indexed with a cheap textual scan of their name and dependencies. Reading, 
+	 * expansion and analysis of each definition are deferred until its slot is first used. Other
+	 * top-level forms are evaluated in order as usual.
+	 * 
+	 * @param c
+	 * @param string
+	 * @return The result of the last evaluated form, or nil if there is none
+	 */
+	public static EvalResult<?> evalLazy(Context c, String string) {
+		int[] bounds=SourceScanner.scanForms(string);
+		EvalResult<?> r=EvalResult.create(c, null);
+		for (int i=0; i<bounds.length; i+=2) {
+			int start=bounds[i];
+			int end=bounds[i+1];
+			String source=string.substring(start,end);
+			
+			Symbol name=SourceScanner.defName(string,start,end);
+			if (name!=null) {
+				if (!name.isQualified()) name=Symbol.create(c.getNamespace(),name.getName());
+				APersistentSet<Symbol> deps=SourceScanner.scanSymbols(string,start,end);
+				for (Symbol sym: deps) {
+					deps=deps.include(RT.resolveSym(c, sym));
+				}
+				c=c.defineLazy(name,source,deps);
+				r=EvalResult.create(c, null);
+			} else {
+				r=eval(c,Reader.read(source),Maps.empty());
+				c=r.getContext();
+			}
+		}
+		return r;
+	}
 
 
 }
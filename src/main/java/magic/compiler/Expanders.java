@@ -24,6 +24,7 @@ import magic.ast.ListForm;
 import magic.ast.Lookup;
 import magic.ast.Loop;
 import magic.ast.Node;
+import magic.ast.NodeMeta;
 import magic.ast.Quote;
 import magic.ast.Recur;
 import magic.ast.Return;
@@ -286,9 +287,9 @@ public class Expanders {
 			// get the body. Don't expand yet: fn does this
 			APersistentList<Node<?>> body = form.getNodes().subList(3, n);
 
-			// create the (fn [...] ...) form
+			// create the (fn [...] ...) form, named so that self calls can be identified
 			APersistentList<Node<?>> fnList = Lists.cons(Lookup.create(Symbols.FN), argObj, body);
-			ListForm fnDef = ListForm.create(fnList, meta);
+			ListForm fnDef = ListForm.create(fnList, meta.assoc(Keywords.NAME, nameObj.getSymbol()));
 
 			@SuppressWarnings("unchecked")
 			ListForm newForm = ListForm.create(Lists.of(Lookup.create(Symbols.DEF), nameObj, fnDef), meta);
@@ -308,6 +309,8 @@ public class Expanders {
 //			if (form.size() < 2)
 //				throw new ExpansionException("Can't expand fn, requires at least an arg vector", form);
 
+			APersistentMap<Keyword,Object> meta=form.meta();
+
 			// skip initial 'fn' if present 
 			Node<?> first=form.get(0);
 			if (first.isSymbol()) {
@@ -315,7 +318,6 @@ public class Expanders {
 			}
 			
 			Node<?> argForm = form.get(0);
-			APersistentMap<Keyword,Object> meta=form.meta();
 
 			// handle case of multiple function bodies
 			if (argForm instanceof ListForm) {
@@ -452,11 +454,14 @@ public class Expanders {
 				throw new AnalyserException("Can't expand let: requires a vector of bindings but got " + argObj, form);
 			}
 
+			// expand the bindings
+			APersistentSequence<Node<?>> bindings = ex.expandAll(c,argObj.getNodes(),ex);
+
 			// expand the body
 			APersistentList<Node<?>> body = (APersistentList<Node<?>>) ex.expandAll(c, form.getNodes().subList(2, n),
 					ex);
 
-			return Let.create((Vector<Object>) argObj, body, si);
+			return Let.create(Vector.create(Vectors.coerce(bindings),argObj.getSourceInfo()), body, si);
 		}
 	}
 	
@@ -472,9 +477,8 @@ public class Expanders {
 			if (n < 2)
 				throw new ExpansionException("Can't expand loop, requires at least a binding vector", form);
 
-			APersistentMap<Keyword,Object> meta=form.get(0).meta();
 			SourceInfo si = form.getSourceInfo();
-			meta=meta.assoc(Keywords.SOURCE, si);
+			NodeMeta meta=NodeMeta.of(form.get(0).meta()).withSource(si);
 
 			Node<?> argObj = form.get(1);
 			if (!(argObj instanceof Vector)) {
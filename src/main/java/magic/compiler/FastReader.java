@@ -0,0 +1,675 @@
+package magic.compiler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+import magic.Keywords;
+import magic.Symbols;
+import magic.ast.Constant;
+import magic.ast.HashMap;
+import magic.ast.ListForm;
+import magic.ast.Lookup;
+import magic.ast.Node;
+import magic.data.APersistentVector;
+import magic.data.ChampHashMap;
+import magic.data.ChampHashSet;
+import magic.data.Keyword;
+import magic.data.Lists;
+import magic.data.Maps;
+import magic.data.Sets;
+import magic.data.Symbol;
+import magic.data.Tuple;
+import magic.data.Vectors;
+
+/**
+ * Hand-written recursive descent reader for Magic source code.
+ *
+ * Produces the same forms as the parboiled grammar in Reader, including SourceInfo positions
+ * (which refer to the end of each form, as reported by parboiled). Input that this reader
+ * does not accept causes a ReadException, in which case Reader falls back to the parboiled
+ * grammar, which either reads the input or reports a parse error.
+ *
+ * In data mode, literal syntax is read directly into values (persistent vectors, lists, maps
+ * and sets, keywords, symbols, strings, characters and numbers) without creating any Nodes
+ * or SourceInfo. Code-only syntax such as quoting and metadata is rejected.
+ *
+ * @author Mike
+ */
+public class FastReader {
+	private final String source; // interned, or null in data mode
+	private final char[] chars;
+	private int n; // end of input, may be limited when reading a range
+	private final boolean data;
+	private int pos=0;
+
+	// cached line position, advanced incrementally as SourceInfo is created
+	private int infoPos=0;
+	private int infoLine=1;
+	private int infoLineStart=0;
+
+	/**
+	 * Exception thrown when the input cannot be read by the fast reader
+	 */
+	@SuppressWarnings("serial")
+	static final class ReadException extends RuntimeException {
+		private ReadException(String message, int pos) {
+			super(message+" at offset "+pos,null,false,false);
+		}
+	}
+
+	private FastReader(String source, boolean data) {
+		this.source=data?null:SourceInfo.intern(source);
+		this.chars=source.toCharArray();
+		this.n=chars.length;
+		this.data=data;
+	}
+
+	/**
+	 * Creates a form reader sharing the characters of an interned source, starting at a
+	 * known line position
+	 */
+	private FastReader(String internedSource, char[] chars, int pos, int line, int lineStart) {
+		this.source=internedSource;
+		this.chars=chars;
+		this.n=chars.length;
+		this.data=false;
+		this.infoPos=pos;
+		this.infoLine=line;
+		this.infoLineStart=lineStart;
+	}
+
+	/**
+	 * Reads a single expression
+	 * @throws ReadException if the input is not a single valid expression
+	 */
+	public static Node<?> read(String source) {
+		FastReader r=new FastReader(source,false);
+		r.skipWhiteSpace();
+		Node<?> result=r.readExpression();
+		r.skipWhiteSpace();
+		r.expectEnd();
+		return result;
+	}
+
+	/**
+	 * Reads all expressions in the source into a ListForm
+	 * @throws ReadException if the input is not a valid sequence of expressions
+	 */
+	public static ListForm readAll(String source) {
+		FastReader r=new FastReader(source,false);
+		ArrayList<Node<?>> list=r.readExpressionList((char)-1);
+		ListForm result=ListForm.create(Lists.create(list),r.sourceInfo());
+		r.expectEnd();
+		return result;
+	}
+
+	/**
+	 * Reads a single symbol
+	 * @throws ReadException if the input is not a valid symbol
+	 */
+	public static Symbol readSymbol(String source) {
+		FastReader r=new FastReader(source,false);
+		r.skipWhiteSpace();
+		Symbol sym=r.readSymbol();
+		r.skipWhiteSpace();
+		r.expectEnd();
+		return sym;
+	}
+
+	/**
+	 * Reads all expressions in the source into a ListForm, reading top-level forms in
+	 * parallel. Form boundaries are found with SourceScanner, and the forms are divided into
+	 * chunks which are read concurrently on the common fork-join pool.
+	 * @throws ReadException if the input is not a valid sequence of expressions
+	 */
+	public static ListForm readAllParallel(String source) {
+		int[] bounds=SourceScanner.scanForms(source);
+		int n=bounds.length/2;
+		for (int i=1; i<n; i++) {
+			// adjacent forms without separating whitespace are checked by the sequential reader
+			if (bounds[2*i-1]==bounds[2*i]) return readAll(source);
+		}
+
+		String interned=SourceInfo.intern(source);
+		char[] chars=source.toCharArray();
+		int chunks=Math.min(n,ForkJoinPool.getCommonPoolParallelism()*4);
+		if (chunks<=1) return readAll(source);
+
+		// line positions at the start of each chunk, so chunks can be read independently
+		int[] chunkForm=new int[chunks+1];
+		int[] chunkLine=new int[chunks];
+		int[] chunkLineStart=new int[chunks];
+		int line=1;
+		int lineStart=0;
+		int scanned=0;
+		for (int c=0; c<chunks; c++) {
+			int form=(int)(((long)n*c)/chunks);
+			chunkForm[c]=form;
+			int start=bounds[2*form];
+			for (; scanned<start; scanned++) {
+				if (chars[scanned]=='\n') {
+					line++;
+					lineStart=scanned+1;
+				}
+			}
+			chunkLine[c]=line;
+			chunkLineStart[c]=lineStart;
+		}
+		chunkForm[chunks]=n;
+
+		Node<?>[] forms=new Node<?>[n];
+		IntStream.range(0,chunks).parallel().forEach(c-> {
+			int first=chunkForm[c];
+			FastReader r=new FastReader(interned,chars,bounds[2*first],chunkLine[c],chunkLineStart[c]);
+			for (int i=first; i<chunkForm[c+1]; i++) {
+				forms[i]=r.readRange(bounds[2*i],bounds[2*i+1]);
+			}
+		});
+
+		// position at the end of input, as for readAll
+		FastReader end=new FastReader(interned,chars,bounds[2*chunkForm[chunks-1]],chunkLine[chunks-1],chunkLineStart[chunks-1]);
+		end.pos=chars.length;
+		return ListForm.create(Lists.create(Arrays.asList(forms)),end.sourceInfo());
+	}
+
+	/**
+	 * Creates a reader for reading ranges of the given source with readRange
+	 */
+	static FastReader forRanges(String source) {
+		return new FastReader(source,false);
+	}
+
+	/**
+	 * Reads the single expression in the given range of the source. Source positions are
+	 * relative to the whole source. Ranges are most efficiently read in ascending order.
+	 * @throws ReadException if the range does not contain a single valid expression
+	 */
+	Node<?> readRange(int start, int end) {
+		pos=start;
+		n=end;
+		try {
+			skipWhiteSpace();
+			Node<?> result=readExpression();
+			skipWhiteSpace();
+			expectEnd();
+			return result;
+		} finally {
+			n=chars.length;
+		}
+	}
+
+	/**
+	 * Reads a single literal data value
+	 * @throws ReadException if the input is not a single valid data value
+	 */
+	public static Object readData(String source) {
+		FastReader r=new FastReader(source,true);
+		r.skipWhiteSpace();
+		Object result=r.readValue();
+		r.skipWhiteSpace();
+		r.expectEnd();
+		return result;
+	}
+
+	/**
+	 * Reads all literal data values in the source into a persistent vector
+	 * @throws ReadException if the input is not a valid sequence of data values
+	 */
+	public static APersistentVector<Object> readAllData(String source) {
+		FastReader r=new FastReader(source,true);
+		ArrayList<Object> values=r.readValueList((char)-1);
+		r.expectEnd();
+		return Vectors.createFromList(values);
+	}
+
+	/**
+	 * Converts a metadata object according to the following rule:
+	 * - Map -> unchanged
+	 * - Keyword -> {:keyword true}
+	 * - Any other expression -> {:tag expression}
+	 */
+	static Node<? extends Object> interpretMetadata(Node<? extends Object> node) {
+		if (node instanceof HashMap) return node;
+		if (node.isKeyword()) return HashMap.create(Tuple.of(node,Constant.TRUE));
+		return HashMap.create(Tuple.of(Constant.create(Keywords.TAG),node));
+	}
+
+	private ReadException error(String message) {
+		return new ReadException(message,pos);
+	}
+
+	private void expectEnd() {
+		if (pos<n) throw error("Unexpected input");
+	}
+
+	/**
+	 * Creates a SourceInfo for the current position, with 1-based line and column
+	 */
+	private SourceInfo sourceInfo() {
+		if (pos<infoPos) {
+			infoPos=0;
+			infoLine=1;
+			infoLineStart=0;
+		}
+		for (int i=infoPos; i<pos; i++) {
+			if (chars[i]=='\n') {
+				infoLine++;
+				infoLineStart=i+1;
+			}
+		}
+		infoPos=pos;
+		return SourceInfo.create(source,SourceInfo.packPosition(infoLine,pos-infoLineStart+1));
+	}
+
+	// WHITESPACE
+
+	/**
+	 * Skips whitespace, comments and discarded forms
+	 * @return true if any input was skipped
+	 */
+	private boolean skipWhiteSpace() {
+		int start=pos;
+		while (pos<n) {
+			char c=chars[pos];
+			if ((c==' ')||(c=='\t')||(c=='\f')||(c==',')||(c=='\r')||(c=='\n')) {
+				pos++;
+			} else if (c==';') {
+				while ((pos<n)&&(chars[pos]!='\n')) pos++;
+			} else if ((c=='#')&&(pos+1<n)&&(chars[pos+1]=='_')) {
+				pos+=2;
+				skipWhiteSpace();
+				if (data) {
+					readValue();
+				} else {
+					readExpression();
+				}
+			} else {
+				break;
+			}
+		}
+		return pos>start;
+	}
+
+	// EXPRESSIONS
+
+	private Node<?> readExpression() {
+		if (pos>=n) throw error("Expression expected");
+		char c=chars[pos];
+		switch (c) {
+			case '(': {
+				pos++;
+				ArrayList<Node<?>> list=readExpressionList(')');
+				pos++;
+				return ListForm.create(Lists.create(list),sourceInfo());
+			}
+			case '[': {
+				pos++;
+				ArrayList<Node<?>> list=readExpressionList(']');
+				pos++;
+				return magic.ast.Vector.create(ListForm.create(Lists.create(list),(SourceInfo)null),sourceInfo());
+			}
+			case '{': {
+				pos++;
+				ArrayList<Node<?>> list=readExpressionList('}');
+				pos++;
+				return ListForm.createCons(Lookup.create(Symbols.HASHMAP),ListForm.create(Lists.create(list),(SourceInfo)null),sourceInfo());
+			}
+			case '#': {
+				if ((pos+1<n)&&(chars[pos+1]=='{')) {
+					pos+=2;
+					ArrayList<Node<?>> list=readExpressionList('}');
+					pos++;
+					return ListForm.createCons(Lookup.create(Symbols.SET),ListForm.create(Lists.create(list),(SourceInfo)null),sourceInfo());
+				}
+				throw error("Unexpected dispatch character");
+			}
+			case '^': {
+				pos++;
+				Node<?> meta=readExpression();
+				if (!skipWhiteSpace()) throw error("Whitespace expected after metadata");
+				Node<?> exp=readExpression();
+				return exp.assocMeta(Keywords.META, interpretMetadata(meta));
+			}
+			case '\'': pos++; return quoted(Symbols.QUOTE);
+			case '`': pos++; return quoted(Symbols.SYNTAX_QUOTE);
+			case '~':
+				if ((pos+1<n)&&(chars[pos+1]=='@')) {
+					pos+=2;
+					return quoted(Symbols.UNQUOTE_SPLICING);
+				}
+				pos++;
+				return quoted(Symbols.UNQUOTE);
+			case '"': return readString();
+			case '\\': return readChar();
+			case ':': {
+				pos++;
+				Symbol sym=readSymbol();
+				return Constant.create(Keyword.create(sym),sourceInfo());
+			}
+			default:
+				if (isNumberStart(pos)) return readNumber();
+				return readSymbolic();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private Node<?> quoted(Symbol quoteSym) {
+		Node<?> exp=readExpression();
+		return ListForm.create(Lists.of(Lookup.create(quoteSym),exp),sourceInfo());
+	}
+
+	/**
+	 * Reads expressions up to (but not including) the given closing delimiter, or the end of
+	 * input if the delimiter is -1. Undelimited expressions must be separated by whitespace.
+	 */
+	private ArrayList<Node<?>> readExpressionList(char close) {
+		ArrayList<Node<?>> list=new ArrayList<>();
+		skipWhiteSpace();
+		while (true) {
+			if (pos>=n) {
+				if (close==(char)-1) return list;
+				throw error("Missing closing delimiter "+close);
+			}
+			char c=chars[pos];
+			if (c==close) return list;
+			if ((c==')')||(c==']')||(c=='}')) throw error("Unexpected closing delimiter "+c);
+			boolean delimited=isDelimitedStart(pos);
+			list.add(readExpression());
+			checkSeparator(delimited,close);
+		}
+	}
+
+	/**
+	 * Skips whitespace following an element of a list, checking that undelimited elements are
+	 * followed by whitespace, an opening delimiter or the end of the list
+	 */
+	private void checkSeparator(boolean delimited, char close) {
+		if (skipWhiteSpace()||delimited||(pos>=n)) return;
+		char c=chars[pos];
+		if ((c==close)||(c=='(')||(c=='[')||(c=='{')) return;
+		throw error("Whitespace expected");
+	}
+
+	/**
+	 * Checks if the expression at the given position ends with a closing delimiter, ignoring
+	 * any quote prefixes
+	 */
+	private boolean isDelimitedStart(int i) {
+		while (i<n) {
+			char c=chars[i];
+			switch (c) {
+				case '(': case '[': case '{': return true;
+				case '#': return (i+1<n)&&(chars[i+1]=='{');
+				case '\'': case '`': case '~': case '@': i++; break;
+				default: return false;
+			}
+		}
+		return false;
+	}
+
+	// DATA VALUES
+
+	private Object readValue() {
+		if (pos>=n) throw error("Value expected");
+		char c=chars[pos];
+		switch (c) {
+			case '(': {
+				pos++;
+				ArrayList<Object> list=readValueList(')');
+				pos++;
+				return Lists.create(list);
+			}
+			case '[': {
+				pos++;
+				ArrayList<Object> list=readValueList(']');
+				pos++;
+				return Vectors.createFromList(list);
+			}
+			case '{': {
+				pos++;
+				ArrayList<Object> list=readValueList('}');
+				pos++;
+				int size=list.size();
+				if ((size&1)!=0) throw error("Map literal requires an even number of terms");
+				if (size==0) return Maps.empty();
+				ChampHashMap.Transient<Object,Object> m=ChampHashMap.createTransient();
+				for (int i=0; i<size; i+=2) {
+					m.assoc(list.get(i), list.get(i+1));
+				}
+				return m.persistent();
+			}
+			case '#': {
+				if ((pos+1<n)&&(chars[pos+1]=='{')) {
+					pos+=2;
+					ArrayList<Object> list=readValueList('}');
+					pos++;
+					if (list.isEmpty()) return Sets.emptySet();
+					return ChampHashSet.createTransient().includeAll(list).persistent();
+				}
+				throw error("Unexpected dispatch character");
+			}
+			case '"': {
+				String s=readStringValue();
+				pos++; // closing quote
+				return s;
+			}
+			case '\\': return readCharValue();
+			case ':': {
+				pos++;
+				return Keyword.create(readSymbol());
+			}
+			default:
+				if (isNumberStart(pos)) return readNumberValue();
+				if (isInitialSymbolCharacter(c)||(c=='/')) return readSymbolicValue();
+				throw error("Syntax not supported in data: "+c);
+		}
+	}
+
+	/**
+	 * Reads data values up to (but not including) the given closing delimiter, or the end of
+	 * input if the delimiter is -1.
+	 */
+	private ArrayList<Object> readValueList(char close) {
+		ArrayList<Object> list=new ArrayList<>();
+		skipWhiteSpace();
+		while (true) {
+			if (pos>=n) {
+				if (close==(char)-1) return list;
+				throw error("Missing closing delimiter "+close);
+			}
+			char c=chars[pos];
+			if (c==close) return list;
+			if ((c==')')||(c==']')||(c=='}')) throw error("Unexpected closing delimiter "+c);
+			boolean delimited=isDelimitedStart(pos);
+			list.add(readValue());
+			checkSeparator(delimited,close);
+		}
+	}
+
+	// CONSTANT LITERALS
+
+	private Node<?> readString() {
+		String s=readStringValue();
+		Node<?> result=Constant.create(s,sourceInfo());
+		pos++; // closing quote
+		return result;
+	}
+
+	/**
+	 * Reads a string up to (but not including) the closing quote
+	 */
+	private String readStringValue() {
+		pos++; // opening quote
+		int start=pos;
+		while (true) {
+			if (pos>=n) throw error("Unterminated string");
+			char c=chars[pos];
+			if (c=='"') break;
+			if (c=='\\') {
+				// escape sequences are retained verbatim, as in the parboiled grammar
+				if ((pos+1<n)&&((chars[pos+1]=='\\')||(chars[pos+1]=='"'))) {
+					pos+=2;
+					continue;
+				}
+				throw error("Invalid escape sequence");
+			}
+			pos++;
+		}
+		return new String(chars,start,pos-start);
+	}
+
+	private Node<?> readChar() {
+		boolean unicode=(pos+1<n)&&(chars[pos+1]=='u');
+		char c=readCharValue();
+		// only unicode literals carry source information in the parboiled grammar
+		return unicode?Constant.create(c,sourceInfo()):Constant.create(c);
+	}
+
+	private char readCharValue() {
+		pos++;
+		if (matches("newline")) return '\n';
+		if (matches("space")) return ' ';
+		if (matches("tab")) return '\t';
+		if (matches("formfeed")) return '\f';
+		if (matches("backspace")) return '\b';
+		if (matches("return")) return '\r';
+		if ((pos+4<n)&&(chars[pos]=='u')) {
+			int v=0;
+			for (int i=1; i<=4; i++) {
+				int d=Character.digit(chars[pos+i],16);
+				if (d<0) throw error("Invalid unicode character literal");
+				v=v*16+d;
+			}
+			pos+=5;
+			return (char)v;
+		}
+		throw error("Invalid character literal");
+	}
+
+	private boolean matches(String s) {
+		int len=s.length();
+		if (pos+len>n) return false;
+		for (int i=0; i<len; i++) {
+			if (chars[pos+i]!=s.charAt(i)) return false;
+		}
+		pos+=len;
+		return true;
+	}
+
+	private boolean isDigit(int i) {
+		if (i>=n) return false;
+		char c=chars[i];
+		return (c>='0')&&(c<='9');
+	}
+
+	/**
+	 * Checks for the start of a number: [+-]? digits or [+-]? '.' digits
+	 */
+	private boolean isNumberStart(int i) {
+		char c=chars[i];
+		if ((c=='+')||(c=='-')) c=(++i<n)?chars[i]:0;
+		if (c=='.') return isDigit(i+1);
+		return (c>='0')&&(c<='9');
+	}
+
+	private Node<?> readNumber() {
+		Number v=readNumberValue();
+		return Constant.create(v,sourceInfo());
+	}
+
+	private Number readNumberValue() {
+		int start=pos;
+		if ((chars[pos]=='+')||(chars[pos]=='-')) pos++;
+		while (isDigit(pos)) pos++;
+		boolean isDouble=false;
+		if ((pos<n)&&(chars[pos]=='.')&&isDigit(pos+1)) {
+			isDouble=true;
+			pos++;
+			while (isDigit(pos)) pos++;
+			if ((pos<n)&&((chars[pos]=='e')||(chars[pos]=='E'))) {
+				int i=pos+1;
+				if ((i<n)&&((chars[i]=='+')||(chars[i]=='-'))) i++;
+				if (isDigit(i)) {
+					pos=i;
+					while (isDigit(pos)) pos++;
+				}
+			}
+		}
+		if ((pos<n)&&isFollowingSymbolCharacter(chars[pos])) throw error("Invalid number");
+		String s=new String(chars,start,pos-start);
+		try {
+			if (isDouble) return Double.parseDouble(s);
+			return Long.parseLong(s);
+		} catch (NumberFormatException e) {
+			throw error("Invalid number");
+		}
+	}
+
+	// SYMBOLS
+
+	/**
+	 * Reads nil, true, false or a symbol lookup
+	 */
+	private Node<?> readSymbolic() {
+		Object v=readSymbolicValue();
+		if (v instanceof Symbol) return Lookup.create((Symbol)v,sourceInfo());
+		return Constant.create(v);
+	}
+
+	/**
+	 * Reads nil, true, false or a symbol
+	 */
+	private Object readSymbolicValue() {
+		Symbol sym=readSymbol();
+		if (sym.getNamespace()==null) {
+			String name=sym.getName();
+			if (name.equals("nil")) return null;
+			if (name.equals("true")) return Boolean.TRUE;
+			if (name.equals("false")) return Boolean.FALSE;
+		}
+		return sym;
+	}
+
+	/**
+	 * Reads a symbol, optionally qualified with a namespace
+	 */
+	private Symbol readSymbol() {
+		String name=readSymbolName();
+		if ((pos+1<n)&&(chars[pos]=='/')&&!name.equals("/")) {
+			pos++;
+			String qualifiedName=readSymbolName();
+			return Symbol.createWithNamespace(qualifiedName,name);
+		}
+		return Symbol.create(null,name);
+	}
+
+	private String readSymbolName() {
+		int start=pos;
+		if (pos>=n) throw error("Symbol expected");
+		char c=chars[pos];
+		if (isInitialSymbolCharacter(c)) {
+			if (((c=='.')||(c=='+')||(c=='-'))&&isDigit(pos+1)) throw error("Symbol expected");
+			pos++;
+			while ((pos<n)&&isFollowingSymbolCharacter(chars[pos])) pos++;
+		} else if (c=='/') {
+			pos++;
+		} else {
+			throw error("Symbol expected");
+		}
+		return new String(chars,start,pos-start);
+	}
+
+	private static boolean isAlphabet(char c) {
+		return ((c>='a')&&(c<='z'))||((c>='A')&&(c<='Z'));
+	}
+
+	private static boolean isInitialSymbolCharacter(char c) {
+		return isAlphabet(c)||(".*+!-_?$%&=<>".indexOf(c)>=0);
+	}
+
+	private static boolean isFollowingSymbolCharacter(char c) {
+		return isAlphabet(c)||((c>='0')&&(c<='9'))||(".*+!-_?$%&=<>:#".indexOf(c)>=0);
+	}
+}
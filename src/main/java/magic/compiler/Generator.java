@@ -0,0 +1,197 @@
+package magic.compiler;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.GeneratorAdapter;
+import org.objectweb.asm.commons.Method;
+
+import magic.ast.Node;
+import magic.data.APersistentMap;
+import magic.data.Maps;
+import magic.data.Symbol;
+import magic.lang.Context;
+
+/**
+ * Method generator used when emitting JVM bytecode for AST nodes.
+ *
+ * Extends the standard ASM GeneratorAdapter with:
+ * - A pool of constant values, loaded at runtime from the compiled code object
+ * - A lexically scoped mapping from local symbols to JVM local variables
+ * - Captured closure values and the context, loaded at runtime from the compiled code object
+ * - The current target for `recur`
+ *
+ * All emitted expressions leave a single Object value on the operand stack.
+ *
+ * @author Mike
+ */
+public class Generator extends GeneratorAdapter {
+	public static final Type OBJECT_TYPE=Type.getType(Object.class);
+	public static final Type CODE_TYPE=Type.getType(JIT.Code.class);
+	private static final Type OBJECT_ARRAY_TYPE=Type.getType(Object[].class);
+	private static final Type CONTEXT_TYPE=Type.getType(Context.class);
+
+	private static final Type BOOLEAN_TYPE=Type.getType(Boolean.class);
+
+	private final ArrayList<Object> constants=new ArrayList<>();
+	private final IdentityHashMap<Object,Integer> constantIndex=new IdentityHashMap<>();
+
+	private APersistentMap<Symbol,Integer> locals=Maps.empty();
+	private APersistentMap<Symbol,Integer> captured=Maps.empty();
+	private Label recurLabel=null;
+	private int[] recurLocals=null;
+
+	Generator(int access, Method method, ClassVisitor cv) {
+		super(Opcodes.ASM5, cv.visitMethod(access, method.getName(), method.getDescriptor(), null, null), access, method.getName(), method.getDescriptor());
+	}
+
+	/**
+	 * Pushes an arbitrary constant value onto the stack. Strings, booleans and nil are emitted
+	 * directly, other values are loaded from the constant pool so that identity is preserved.
+	 */
+	public void pushObject(Object value) {
+		if (value==null) {
+			visitInsn(Opcodes.ACONST_NULL);
+		} else if (value instanceof String) {
+			push((String)value);
+		} else if (value instanceof Boolean) {
+			getStatic(BOOLEAN_TYPE,((Boolean)value)?"TRUE":"FALSE",BOOLEAN_TYPE);
+		} else {
+			Integer ix=constantIndex.get(value);
+			if (ix==null) {
+				ix=constants.size();
+				constants.add(value);
+				constantIndex.put(value, ix);
+			}
+			loadThis();
+			getField(CODE_TYPE,"constants",OBJECT_ARRAY_TYPE);
+			push(ix);
+			arrayLoad(OBJECT_TYPE);
+		}
+	}
+
+	/**
+	 * Pushes a constant value onto the stack, cast to the given class
+	 */
+	public void pushObject(Object value, Class<?> klass) {
+		pushObject(value);
+		checkCast(Type.getType(klass));
+	}
+
+	/**
+	 * Emits a call to a static method, specified in the form "ReturnType name(ArgTypes...)"
+	 */
+	public void invokeStatic(Class<?> klass, String method) {
+		invokeStatic(Type.getType(klass),Method.getMethod(method));
+	}
+
+	/**
+	 * Emits a call to a virtual method, specified in the form "ReturnType name(ArgTypes...)"
+	 */
+	public void invokeVirtual(Class<?> klass, String method) {
+		invokeVirtual(Type.getType(klass),Method.getMethod(method));
+	}
+
+	/**
+	 * Creates a new Object array containing the values of the given nodes
+	 */
+	public void pushArray(Node<?>[] nodes, Context c, APersistentMap<Symbol,Object> bindings) {
+		push(nodes.length);
+		newArray(OBJECT_TYPE);
+		for (int i=0; i<nodes.length; i++) {
+			dup();
+			push(i);
+			nodes[i].emit(c, bindings, this);
+			arrayStore(OBJECT_TYPE);
+		}
+	}
+
+	/**
+	 * Pushes the context in which the compiled code is running
+	 */
+	public void pushContext() {
+		loadThis();
+		getField(CODE_TYPE,"context",CONTEXT_TYPE);
+	}
+
+	/**
+	 * Sets the captured symbols, in the order of the captured values of the compiled code
+	 */
+	public void setCaptured(Symbol[] syms) {
+		APersistentMap<Symbol,Integer> m=Maps.empty();
+		for (int i=0; i<syms.length; i++) {
+			m=m.assoc(syms[i], i);
+		}
+		captured=m;
+	}
+
+	/**
+	 * Gets the index of a captured symbol, or null if the symbol is not captured
+	 */
+	public Integer getCaptured(Symbol sym) {
+		return captured.get(sym);
+	}
+
+	/**
+	 * Pushes the captured value with the given index
+	 */
+	public void loadCaptured(int index) {
+		loadThis();
+		getField(CODE_TYPE,"captured",OBJECT_ARRAY_TYPE);
+		push(index);
+		arrayLoad(OBJECT_TYPE);
+	}
+
+	/**
+	 * Allocates a new local variable for the given symbol, storing the value on top of the stack
+	 * @return The local variable index
+	 */
+	public int bindLocal(Symbol sym) {
+		int local=newLocal(OBJECT_TYPE);
+		storeLocal(local);
+		locals=locals.assoc(sym, local);
+		return local;
+	}
+
+	/**
+	 * Gets the local variable index for a symbol, or null if the symbol is not a local
+	 */
+	public Integer getLocal(Symbol sym) {
+		return locals.get(sym);
+	}
+
+	/**
+	 * Gets the current local symbol mapping, so that it can be restored at the end of a scope
+	 */
+	public APersistentMap<Symbol,Integer> getLocals() {
+		return locals;
+	}
+
+	public void setLocals(APersistentMap<Symbol,Integer> locals) {
+		this.locals=locals;
+	}
+
+	public Label getRecurLabel() {
+		return recurLabel;
+	}
+
+	/**
+	 * Gets the local variables rebound by `recur`, or null if there is no recur target
+	 */
+	public int[] getRecurLocals() {
+		return recurLocals;
+	}
+
+	public void setRecurTarget(Label label, int[] locals) {
+		this.recurLabel=label;
+		this.recurLocals=locals;
+	}
+
+	Object[] getConstants() {
+		return constants.toArray();
+	}
+}
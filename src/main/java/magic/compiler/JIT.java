@@ -0,0 +1,475 @@
+package magic.compiler;
+
+import static org.objectweb.asm.ClassWriter.COMPUTE_FRAMES;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Constructor;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.commons.Method;
+
+import magic.RT;
+import magic.Reflector;
+import magic.Symbols;
+import magic.ast.Apply;
+import magic.ast.Arithmetic;
+import magic.ast.BaseConstant;
+import magic.ast.Do;
+import magic.ast.If;
+import magic.ast.InvokeStaticReflective;
+import magic.ast.Lambda;
+import magic.ast.Lambdas;
+import magic.ast.Let;
+import magic.ast.Loop;
+import magic.ast.Lookup;
+import magic.ast.Node;
+import magic.ast.NodeFunctions.NodeFunction;
+import magic.ast.Recur;
+import magic.data.APersistentVector;
+import magic.data.Maps;
+import magic.data.Symbol;
+import magic.fn.IFn;
+import magic.lang.Context;
+
+/**
+ * Second execution tier: compiles function bodies to JVM classes via Node.emit.
+ *
+ * Functions are interpreted initially. Once the invocation and loop back-edge count of a
+ * function passes the configured threshold, its body is compiled on a background thread
+ * and the generated code is installed for subsequent calls. Bodies containing nodes that
+ * cannot be emitted simply remain interpreted.
+ *
+ * Compiled code is cached per Lambda node, so all closures created from the same node share
+ * one generated class. Captured values and the context are passed to each instance of the
+ * class as fields rather than being embedded as constants.
+ *
+ * The threshold can be configured with the system property "magic.jit.threshold". A
+ * threshold of zero or less disables compilation.
+ *
+ * @author Mike
+ */
+public class JIT {
+	public static final String THRESHOLD_PROPERTY="magic.jit.threshold";
+
+	private static volatile int threshold=Integer.getInteger(THRESHOLD_PROPERTY, 10000);
+
+	private static final AtomicLong classCount=new AtomicLong(0);
+
+	private static final Method CODE_INIT=Method.getMethod("void <init> (Object[],magic.lang.Context,Object[])");
+	private static final Method INVOKE=Method.getMethod("Object invoke (Object[])");
+
+	private static final ExecutorService EXECUTOR=Executors.newSingleThreadExecutor(r -> {
+		Thread t=new Thread(r,"magic-jit");
+		t.setDaemon(true);
+		return t;
+	});
+
+	// weak references to all generated classes that have not yet been unloaded
+	private static final ReferenceQueue<Class<?>> unloadedClasses=new ReferenceQueue<>();
+	private static final Set<Reference<Class<?>>> liveClasses=ConcurrentHashMap.newKeySet();
+
+	// execution profile for each Lambda and Loop node
+	private static final NodeTable<Profile> profiles=new NodeTable<>();
+
+	/**
+	 * Class loader for a single generated class.
+	 *
+	 * Each generated class has its own loader, so that the class can be unloaded as soon as
+	 * the compiled code is unreachable, e.g. when the function's Slot is invalidated by a
+	 * redefinition and the old Context is no longer referenced.
+	 */
+	private static final class GeneratedClassLoader extends ClassLoader {
+		private GeneratedClassLoader() {
+			super(JIT.class.getClassLoader());
+		}
+
+		private Class<?> define(String name, byte[] bcode) {
+			return defineClass(name, bcode, 0, bcode.length);
+		}
+	}
+
+	/**
+	 * Base class for compiled function bodies
+	 */
+	public static abstract class Code {
+		public final Object[] constants;
+		public final Context context;
+		public final Object[] captured;
+
+		protected Code(Object[] constants, Context context, Object[] captured) {
+			this.constants=constants;
+			this.context=context;
+			this.captured=captured;
+		}
+
+		/**
+		 * Executes the compiled body with the given arguments. Arity is checked by the caller.
+		 */
+		public abstract Object invoke(Object[] args);
+	}
+
+	/**
+	 * Compiled function body, shared by all closures created from the same Lambda node
+	 */
+	public static final class Compiled {
+		private final Symbol[] captured;
+		private final Constructor<?> constructor;
+		private final Object[] constants;
+
+		private Compiled(Symbol[] captured, Constructor<?> constructor, Object[] constants) {
+			this.captured=captured;
+			this.constructor=constructor;
+			this.constants=constants;
+		}
+
+		/**
+		 * Creates an instance of the compiled code for a closure.
+		 *
+		 * @return The code instance, or null if the closure captures different symbols from the
+		 * ones the code was compiled for
+		 */
+		public Code create(Context c, Symbol[] capturedSymbols, Object[] capturedValues) {
+			if (!Arrays.equals(captured, capturedSymbols)) return null;
+			try {
+				return (Code) constructor.newInstance(constants,c,capturedValues);
+			} catch (ReflectiveOperationException e) {
+				throw new Error("Failed to instantiate compiled code",e);
+			}
+		}
+	}
+
+	/**
+	 * Execution profile for a node: the count of interpreted invocations or loop back-edges,
+	 * and the compilation state. Counter races are benign, since the count is only a heuristic
+	 */
+	public static final class Profile {
+		private long count=0;
+		private boolean requested=false;
+		private volatile boolean failed=false;
+		private volatile Throwable failure=null;
+		private volatile Compiled compiled=null;
+
+		public void count(long n) {
+			count+=n;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * Gets the compiled code for the node, or null if none is available
+		 */
+		public Compiled getCompiled() {
+			return compiled;
+		}
+
+		/**
+		 * Returns true if compilation of the node has failed, i.e. it remains interpreted
+		 */
+		public boolean isFailed() {
+			return failed;
+		}
+
+		/**
+		 * Marks compilation as requested. Returns false if it was already requested or has completed.
+		 */
+		public synchronized boolean request() {
+			if (requested||failed||(compiled!=null)) return false;
+			requested=true;
+			return true;
+		}
+
+		public void setCompiled(Compiled compiled) {
+			this.compiled=compiled;
+		}
+
+		/**
+		 * Gets the exception that caused compilation to fail, or null if there was none
+		 */
+		public Throwable getFailure() {
+			return failure;
+		}
+
+		public void setFailed() {
+			failed=true;
+		}
+
+		/**
+		 * Marks compilation as failed due to an exception, which is kept for diagnostics
+		 */
+		public void setFailed(Throwable cause) {
+			failure=cause;
+			failed=true;
+		}
+	}
+
+	/**
+	 * Gets the execution profile for a node
+	 */
+	public static Profile getProfile(Node<?> node) {
+		return profiles.computeIfAbsent(node, n -> new Profile());
+	}
+
+	/**
+	 * Gets the invocation count at which functions are compiled
+	 */
+	public static int getThreshold() {
+		return threshold;
+	}
+
+	public static void setThreshold(int newThreshold) {
+		threshold=newThreshold;
+	}
+
+	/**
+	 * Gets the total number of classes generated since startup
+	 */
+	public static long getGeneratedClassCount() {
+		return classCount.get();
+	}
+
+	/**
+	 * Gets the number of generated classes that have not yet been unloaded. Classes become
+	 * eligible for unloading once the compiled code is unreachable, so the count decreases
+	 * only after garbage collection.
+	 */
+	public static int getLiveClassCount() {
+		Reference<? extends Class<?>> ref;
+		while ((ref=unloadedClasses.poll())!=null) {
+			liveClasses.remove(ref);
+		}
+		return liveClasses.size();
+	}
+
+	/**
+	 * Queues a compilation task to run on the background compiler thread
+	 */
+	public static void submit(Runnable task) {
+		EXECUTOR.execute(task);
+	}
+
+	/**
+	 * Compiles a fixed-arity function body to a new JVM class.
+	 *
+	 * @param captured Symbols captured by the function, in the order of the captured values
+	 * @param params Function parameters
+	 * @param body Function body
+	 * @return Compiled code, or null if the body contains nodes that cannot be compiled
+	 */
+	public static Compiled compile(Symbol[] captured, APersistentVector<Symbol> params, Node<?> body) {
+		if (!canEmit(body,params.size())||!hasValidRecurs(body,true)) return null;
+
+		String className="magic/jit/Fn"+classCount.incrementAndGet();
+		ClassWriter cw=new ClassWriter(COMPUTE_FRAMES) {
+			@Override
+			protected String getCommonSuperClass(String type1, String type2) {
+				// all emitted values are treated as Objects
+				return "java/lang/Object";
+			}
+		};
+		cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC+Opcodes.ACC_FINAL+Opcodes.ACC_SUPER, className, null, Generator.CODE_TYPE.getInternalName(), null);
+
+		Generator init=new Generator(Opcodes.ACC_PUBLIC, CODE_INIT, cw);
+		init.loadThis();
+		init.loadArgs();
+		init.invokeConstructor(Generator.CODE_TYPE, CODE_INIT);
+		init.returnValue();
+		init.endMethod();
+
+		Generator gen=new Generator(Opcodes.ACC_PUBLIC, INVOKE, cw);
+		gen.setCaptured(captured);
+		int n=params.size();
+		int[] paramLocals=new int[n];
+		for (int i=0; i<n; i++) {
+			gen.loadArg(0);
+			gen.push(i);
+			gen.arrayLoad(Generator.OBJECT_TYPE);
+			Symbol param=params.get(i);
+			if (param==Symbols.UNDERSCORE) {
+				paramLocals[i]=gen.newLocal(Generator.OBJECT_TYPE);
+				gen.storeLocal(paramLocals[i]);
+			} else {
+				paramLocals[i]=gen.bindLocal(param);
+			}
+		}
+		Label start=gen.mark();
+		gen.setRecurTarget(start, paramLocals);
+		// the context is only known at runtime, since code is shared between closures
+		body.emit(null, Maps.empty(), gen);
+		gen.returnValue();
+		gen.endMethod();
+		cw.visitEnd();
+
+		try {
+			Class<?> klass=new GeneratedClassLoader().define(className.replace('/', '.'), cw.toByteArray());
+			liveClasses.add(new WeakReference<Class<?>>(klass,unloadedClasses));
+			Constructor<?> constructor=klass.getConstructor(Object[].class,Context.class,Object[].class);
+			return new Compiled(captured.clone(),constructor,gen.getConstants());
+		} catch (ReflectiveOperationException|LinkageError e) {
+			throw new Error("Failed to load compiled code for: "+body,e);
+		}
+	}
+
+	/**
+	 * Checks that every node in an expression supports code emission, and that every `recur`
+	 * passes as many values as its target binds.
+	 *
+	 * @param recurArity Number of values bound by the current recur target
+	 */
+	private static boolean canEmit(Node<?> node, int recurArity) {
+		if (node instanceof Arithmetic) {
+			// emits either the specialised operation or the general form, which share arguments
+			return canEmit(((Arithmetic<?>)node).getFallback(),recurArity);
+		} else if (node instanceof Recur) {
+			if (((Recur<?>)node).getArity()!=recurArity) return false;
+		} else if (node instanceof Loop) {
+			// loop bindings are emitted before the loop, the body recurs to the loop itself
+			Node<?> body=((Loop<?>)node).getBody();
+			int loopArity=((Loop<?>)node).getSymbols().length;
+			boolean[] ok=new boolean[] {true};
+			node.mapChildren(new NodeFunction() {
+				@Override
+				public Node<?> apply(Node<?> child) {
+					ok[0]&=canEmit(child,(child==body)?loopArity:recurArity);
+					return child;
+				}
+			});
+			return ok[0];
+		} else if (!((node instanceof BaseConstant)||(node instanceof Lookup)||(node instanceof Apply)
+				||(node instanceof InvokeStaticReflective)||(node instanceof Do)||(node instanceof If)
+				||(node instanceof Let))) {
+			return false;
+		}
+
+		boolean[] ok=new boolean[] {true};
+		node.mapChildren(new NodeFunction() {
+			@Override
+			public Node<?> apply(Node<?> child) {
+				ok[0]&=canEmit(child,recurArity);
+				return child;
+			}
+		});
+		return ok[0];
+	}
+
+	/**
+	 * Checks that every `recur` is in tail position with respect to its target, so that it
+	 * can be compiled as a jump with an empty operand stack.
+	 */
+	private static boolean hasValidRecurs(Node<?> node, boolean tail) {
+		if (node instanceof Recur) {
+			if (!tail) return false;
+		}
+		if ((node instanceof Lambda)||(node instanceof Lambdas)) return true; // separate functions
+
+		Node<?> tailChild=null;
+		if (node instanceof If) {
+			Node<?> test=((If<?>)node).getTest();
+			boolean[] ok=new boolean[] {true};
+			node.mapChildren(new NodeFunction() {
+				@Override
+				public Node<?> apply(Node<?> child) {
+					ok[0]&=hasValidRecurs(child,tail&&(child!=test));
+					return child;
+				}
+			});
+			return ok[0];
+		} else if (node instanceof Do) {
+			tailChild=((Do<?>)node).getLast();
+		} else if (node instanceof Let) {
+			tailChild=((Let<?>)node).getBody();
+		} else if (node instanceof Loop) {
+			// recur in the loop body targets the loop itself
+			Node<?> body=((Loop<?>)node).getBody();
+			boolean[] ok=new boolean[] {true};
+			node.mapChildren(new NodeFunction() {
+				@Override
+				public Node<?> apply(Node<?> child) {
+					ok[0]&=hasValidRecurs(child,child==body);
+					return child;
+				}
+			});
+			return ok[0];
+		}
+
+		Node<?> tc=tailChild;
+		boolean[] ok=new boolean[] {true};
+		node.mapChildren(new NodeFunction() {
+			@Override
+			public Node<?> apply(Node<?> child) {
+				ok[0]&=hasValidRecurs(child,tail&&(child==tc));
+				return child;
+			}
+		});
+		return ok[0];
+	}
+
+	/**
+	 * Applies a function value in compiled code
+	 */
+	public static Object apply(Object f, Object[] args) {
+		if (!(f instanceof IFn)) {
+			throw new Error("Function expected but got "+((f==null)?"nil":f.getClass()));
+		}
+		return ((IFn<?>)f).applyToArray(args);
+	}
+
+	/**
+	 * Call site for a reflective static method invocation in compiled code. Caches the method
+	 * resolved for the most recent argument classes.
+	 */
+	public static final class StaticCall {
+		private final Class<?> klass;
+		private final String methodName;
+		private volatile Resolved resolved=null;
+
+		private static final class Resolved {
+			private final Class<?>[] argClasses;
+			private final java.lang.reflect.Method method;
+
+			private Resolved(Class<?>[] argClasses, java.lang.reflect.Method method) {
+				this.argClasses=argClasses;
+				this.method=method;
+			}
+		}
+
+		public StaticCall(Class<?> klass, String methodName) {
+			this.klass=klass;
+			this.methodName=methodName;
+		}
+
+		public Object invoke(Object[] args) {
+			int n=args.length;
+			Class<?>[] argClasses=new Class<?>[n];
+			for (int i=0; i<n; i++) {
+				Object arg=args[i];
+				argClasses[i]=(arg==null)?Object.class:arg.getClass();
+			}
+			Resolved r=resolved;
+			if ((r==null)||!Arrays.equals(r.argClasses, argClasses)) {
+				java.lang.reflect.Method m=Reflector.getDeclaredMethod(klass, methodName, argClasses);
+				if (m==null) {
+					throw new Error ("Method "+methodName+" not found on class"+klass+" with argument types "+RT.arrayToString(argClasses," "));
+				}
+				r=new Resolved(argClasses,m);
+				resolved=r;
+			}
+			try {
+				return r.method.invoke(null, args);
+			} catch (Throwable t) {
+				throw new Error("Reflected method invocation failed on "+klass+"/"+methodName+" with arguments "+RT.arrayToString(args," "),t);
+			}
+		}
+	}
+}
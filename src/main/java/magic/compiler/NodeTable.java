@@ -0,0 +1,89 @@
+package magic.compiler;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import magic.ast.Node;
+
+/**
+ * Side table associating runtime state with AST nodes, so that nodes themselves remain immutable.
+ *
+ * Nodes are compared by identity and held weakly: an entry is removed once its node has been
+ * garbage collected. Values must therefore not strongly reference their own node, otherwise the
+ * entry can never be removed.
+ *
+ * @author Mike
+ *
+ * @param <V> Value type
+ */
+public final class NodeTable<V> {
+	private final ConcurrentHashMap<Key,V> map=new ConcurrentHashMap<>();
+	private final ReferenceQueue<Node<?>> queue=new ReferenceQueue<>();
+
+	/**
+	 * Weak reference to a node, with identity equality while the node is reachable
+	 */
+	private static final class Key extends WeakReference<Node<?>> {
+		private final int hash;
+
+		private Key(Node<?> node, ReferenceQueue<Node<?>> queue) {
+			super(node,queue);
+			hash=System.identityHashCode(node);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (o==this) return true;
+			if (!(o instanceof Key)) return false;
+			Node<?> node=get();
+			return (node!=null)&&(node==((Key)o).get());
+		}
+	}
+
+	/**
+	 * Gets the value for a node, or null if there is none
+	 */
+	public V get(Node<?> node) {
+		expunge();
+		return map.get(new Key(node,null));
+	}
+
+	/**
+	 * Sets the value for a node
+	 */
+	public void put(Node<?> node, V value) {
+		expunge();
+		map.put(new Key(node,queue), value);
+	}
+
+	/**
+	 * Gets the value for a node, computing and storing a new value if there is none
+	 */
+	public V computeIfAbsent(Node<?> node, Function<Node<?>,V> f) {
+		V value=get(node);
+		if (value!=null) return value;
+		return map.computeIfAbsent(new Key(node,queue), k -> f.apply(node));
+	}
+
+	/**
+	 * Gets the number of entries, including any for nodes collected since the last access
+	 */
+	public int size() {
+		return map.size();
+	}
+
+	private void expunge() {
+		Reference<? extends Node<?>> ref;
+		while ((ref=queue.poll())!=null) {
+			map.remove(ref);
+		}
+	}
+}
@@ -0,0 +1,530 @@
+package magic.compiler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Objects;
+
+import magic.RT;
+import magic.ast.Apply;
+import magic.ast.Arithmetic;
+import magic.ast.BaseConstant;
+import magic.ast.BaseDataStructure;
+import magic.ast.Cast;
+import magic.ast.Constant;
+import magic.ast.ContextAction;
+import magic.ast.Define;
+import magic.ast.Do;
+import magic.ast.Expander;
+import magic.ast.If;
+import magic.ast.InstanceOf;
+import magic.ast.InvokeStaticReflective;
+import magic.ast.Lambda;
+import magic.ast.Lambdas;
+import magic.ast.Let;
+import magic.ast.ListForm;
+import magic.ast.Lookup;
+import magic.ast.Loop;
+import magic.ast.Node;
+import magic.ast.NodeFunctions.NodeFunction;
+import magic.ast.NodeMeta;
+import magic.ast.Quote;
+import magic.ast.Recur;
+import magic.ast.Return;
+import magic.ast.Unquote;
+import magic.data.APersistentMap;
+import magic.data.APersistentSet;
+import magic.data.Keyword;
+import magic.data.Sets;
+import magic.data.Symbol;
+import magic.lang.Context;
+import magic.lang.Slot;
+
+/**
+ * Whole-tree optimisation passes over analysed AST nodes.
+ *
+ * Unlike Node.optimise(), which performs local rewrites, these passes need to see an
+ * entire region (a function body or top-level expression) at once.
+ *
+ * @author Mike
+ */
+public class Optimiser {
+
+	/**
+	 * Eliminates common subexpressions within a region, hoisting repeated pure
+	 * subexpressions into a synthetic `let` wrapped around the region.
+	 *
+	 * A subexpression is only hoisted if:
+	 * - It is pure
+	 * - It occurs at least twice, with at least one occurrence evaluated unconditionally
+	 * - It does not depend on any symbol bound within the region
+	 *
+	 * Nested lambdas are treated as separate regions and are not traversed. Regions
+	 * that modify the context (e.g. via `def`) are left unchanged.
+	 *
+	 * @param node Region to optimise
+	 * @return Optimised node, or the same node if no common subexpressions were found
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> Node<? extends T> eliminateCommonSubexpressions(Node<T> node) {
+		Node<?> body=node;
+		ArrayList<Symbol> syms=null;
+		ArrayList<Node<?>> exprs=null;
+		KeyTable keys=new KeyTable();
+
+		while (true) {
+			Scan scan=new Scan(keys,true);
+			if (exprs!=null) {
+				// hoisted expressions are evaluated first, so scan them first
+				for (Node<?> e: exprs) {
+					scan.scan(e,true);
+				}
+			}
+			scan.scan(body,true);
+			if (scan.unsafe) return node;
+			if (syms!=null) scan.bound=scan.bound.includeAll(syms);
+
+			Candidate best=scan.best();
+			if (best==null) break;
+
+			if (syms==null) {
+				syms=new ArrayList<>();
+				exprs=new ArrayList<>();
+			}
+			Symbol sym=RT.genSym();
+			Lookup<?> lookup=Lookup.create(sym);
+			body=replace(body,keys,best.key,lookup);
+			for (int i=0; i<exprs.size(); i++) {
+				exprs.set(i, replace(exprs.get(i),keys,best.key,lookup));
+			}
+			// new binding must be evaluated before any earlier hoisted expressions that now use it
+			syms.add(0,sym);
+			exprs.add(0,best.node);
+		}
+		if (syms==null) return node;
+
+		Node<?>[] lets=exprs.toArray(new Node<?>[exprs.size()]);
+		return (Node<? extends T>) Let.create(syms.toArray(new Symbol[syms.size()]),lets,body,node.getSourceInfo());
+	}
+
+	/**
+	 * Hoists loop-invariant subexpressions out of a loop body.
+	 *
+	 * A subexpression is hoisted if it is pure, evaluated unconditionally on each iteration
+	 * and does not depend on any of the given loop symbols or any symbol bound within the body.
+	 * Subexpressions that may throw are only hoisted if the loop initialisers cannot throw and
+	 * nothing that may throw or have side effects is evaluated before them in the body.
+	 * Each hoisted expression is replaced in the body with a lookup of a new symbol, and the
+	 * symbols and expressions are added to the given lists in evaluation order.
+	 *
+	 * @param body Loop body
+	 * @param loopSyms Symbols rebound on each iteration of the loop
+	 * @param loopLets Initial values of the loop symbols
+	 * @param syms List to receive the hoisted symbols
+	 * @param exprs List to receive the hoisted expressions
+	 * @return Updated loop body, or the same body if nothing was hoisted
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> Node<T> hoistLoopInvariants(Node<T> body, Symbol[] loopSyms, Node<?>[] loopLets, ArrayList<Symbol> syms, ArrayList<Node<?>> exprs) {
+		KeyTable keys=new KeyTable();
+		Scan scan=new Scan(keys,false);
+		scan.scan(body, true);
+		if (scan.unsafe) return body;
+		APersistentSet<Symbol> variant=scan.bound.includeAll(Sets.of(loopSyms));
+		
+		// hoisted expressions are evaluated before the loop initialisers
+		boolean[] effects=new boolean[1];
+		for (Node<?> let: loopLets) {
+			if (!(let.isPure()&&keys.keyOf(let).total)) effects[0]=true;
+		}
+		
+		HashMap<Key,Symbol> hoisted=new HashMap<>();
+		return (Node<T>) hoist(body,true,variant,keys,effects,hoisted,syms,exprs);
+	}
+	
+	private static Node<?> hoist(Node<?> node, boolean unconditional, APersistentSet<Symbol> variant, KeyTable keys, boolean[] effects, HashMap<Key,Symbol> hoisted, ArrayList<Symbol> syms, ArrayList<Node<?>> exprs) {
+		if (isOpaque(node)||(node instanceof Lookup)) return node;
+		boolean pure=node.isPure();
+		if (unconditional&&pure&&!node.getDependencies().containsAny(variant)) {
+			Key key=keys.keyOf(node);
+			Symbol sym=hoisted.get(key);
+			if (sym!=null) return Lookup.create(sym);
+			// hoisted expressions keep their relative order, so only earlier effects matter
+			if (key.total||!effects[0]) {
+				sym=RT.genSym();
+				hoisted.put(key, sym);
+				syms.add(sym);
+				exprs.add(node);
+				return Lookup.create(sym);
+			}
+		}
+		
+		Node<?> test=(node instanceof If)?((If<?>)node).getTest():null;
+		Node<?> result=node.mapChildren(new NodeFunction() {
+			@Override
+			public Node<?> apply(Node<?> child) {
+				// only the test of an `if` is unconditionally evaluated
+				boolean childUnconditional=unconditional&&((test==null)||(child==test));
+				return hoist(child,childUnconditional,variant,keys,effects,hoisted,syms,exprs);
+			}
+		});
+		if (!(pure&&keys.keyOf(node).total)) effects[0]=true;
+		return result;
+	}
+
+	/**
+	 * Speculatively inlines the values of global definitions that have already been computed
+	 * in the given context, replacing each Lookup with a Constant.
+	 *
+	 * Only values of immutable types (numbers, strings, keywords, booleans and functions) are
+	 * inlined. Since contexts are immutable the value cannot change within the context, and the
+	 * Constant retains the symbol as a dependency so that any redefinition invalidates the
+	 * compiled node via the dependants graph in Context.define.
+	 *
+	 * Nodes that modify the context (e.g. via `def`) are left unchanged, since later lookups
+	 * may observe the new definition.
+	 *
+	 * @param context Context in which the node will be evaluated
+	 * @param bindings Local bindings, which shadow global definitions
+	 * @param node Node to specialise
+	 * @return Specialised node, or the same node if no lookups were inlined
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> Node<? extends T> inlineGlobals(Context context, APersistentMap<Symbol,Object> bindings, Node<T> node) {
+		if (isContextModifying(node)) return node;
+		return (Node<? extends T>) inlineGlobals(context,bindings.keySet(),node);
+	}
+
+	private static Node<?> inlineGlobals(Context context, APersistentSet<Symbol> bound, Node<?> node) {
+		if (node instanceof Lookup) {
+			Symbol sym=node.getSymbol();
+			if (bound.contains(sym)) return node;
+			Slot<?> slot=RT.resolveSlot(context, sym);
+			if ((slot==null)||(!slot.isComputed())) return node;
+			Object value=slot.getValue();
+			if (!isInlinable(value)) return node;
+			return Constant.create(value,NodeMeta.create(node.getDependencies(),node.getSourceInfo()));
+		}
+		if ((node instanceof BaseConstant)
+				||(node instanceof Expander)
+				||(node instanceof Quote)
+				||(node instanceof Unquote)
+				||(node instanceof ListForm)) return node;
+
+		// local bindings shadow global definitions
+		APersistentSet<Symbol> newBound=bound;
+		if (node instanceof Let) {
+			newBound=bound.includeAll(Sets.of(((Let<?>)node).getSymbols()));
+		} else if (node instanceof Loop) {
+			newBound=bound.includeAll(Sets.of(((Loop<?>)node).getSymbols()));
+		} else if (node instanceof Lambda) {
+			newBound=bound.includeAll(Sets.createFrom(((Lambda<?>)node).getParams()));
+		}
+		APersistentSet<Symbol> childBound=newBound;
+		return node.mapChildren(new NodeFunction() {
+			@Override
+			public Node<?> apply(Node<?> child) {
+				return inlineGlobals(context,childBound,child);
+			}
+		});
+	}
+
+	private static boolean isInlinable(Object value) {
+		return (value instanceof Number)
+			||(value instanceof String)
+			||(value instanceof Keyword)
+			||(value instanceof Boolean)
+			||(value instanceof Character)
+			||(value instanceof Lambda.LambdaFn);
+	}
+
+	/**
+	 * Returns true if the node, including any nested lambdas, contains a node that modifies the context
+	 */
+	private static boolean isContextModifying(Node<?> node) {
+		if (isModifyingContext(node)) return true;
+		if ((node instanceof BaseConstant)||(node instanceof Lookup)) return false;
+		boolean[] found=new boolean[1];
+		node.mapChildren(new NodeFunction() {
+			@Override
+			public Node<?> apply(Node<?> child) {
+				if (!found[0]) found[0]=isContextModifying(child);
+				return child;
+			}
+		});
+		return found[0];
+	}
+
+	/**
+	 * Returns true if evaluation of the node may escape via `recur` or `return` to an enclosing 
+	 * form. Nested lambdas are not considered, since they handle their own escapes.
+	 */
+	public static boolean hasEscapes(Node<?> node) {
+		if ((node instanceof Recur)||(node instanceof Return)) return true;
+		if (isOpaque(node)||(node instanceof Lookup)) return false;
+		boolean[] found=new boolean[1];
+		node.mapChildren(new NodeFunction() {
+			@Override
+			public Node<?> apply(Node<?> child) {
+				if (!found[0]) found[0]=hasEscapes(child);
+				return child;
+			}
+		});
+		return found[0];
+	}
+
+	/**
+	 * Returns true if the given node is the root of a separate region, or otherwise should
+	 * not be traversed by whole-tree passes
+	 */
+	private static boolean isOpaque(Node<?> node) {
+		return (node instanceof BaseConstant)
+			||(node instanceof Lambda)
+			||(node instanceof Lambdas)
+			||(node instanceof Expander)
+			||(node instanceof Quote)
+			||(node instanceof Unquote)
+			||(node instanceof ListForm);
+	}
+
+	private static boolean isModifyingContext(Node<?> node) {
+		return (node instanceof Define)||(node instanceof ContextAction);
+	}
+
+	/**
+	 * Replaces all occurrences of a subexpression with the given replacement node
+	 */
+	private static Node<?> replace(Node<?> node, KeyTable keys, Key key, Node<?> replacement) {
+		if (keys.keyOf(node)==key) return replacement;
+		if (isOpaque(node)||(node instanceof Lookup)) return node;
+		return node.mapChildren(new NodeFunction() {
+			@Override
+			public Node<?> apply(Node<?> child) {
+				return replace(child,keys,key,replacement);
+			}
+		});
+	}
+
+	private static final Key[] NO_KEYS=new Key[0];
+
+	/**
+	 * Structural key for a node. Two pure nodes with the same key compute the same value given
+	 * the same bindings. Keys are canonical within a KeyTable, so child keys are compared by
+	 * identity.
+	 */
+	private static final class Key {
+		private final Class<?> klass;
+		private final Object data; // state other than children, or the node itself if not structural
+		private final Key[] children;
+		private final int hash;
+		private final int size; // number of nodes in the subexpression
+
+		/**
+		 * True if the subexpression cannot throw, so it can be evaluated early without
+		 * changing which exception is raised
+		 */
+		private final boolean total;
+
+		private Key(Class<?> klass, Object data, Key[] children, boolean total) {
+			this.klass=klass;
+			this.data=data;
+			this.children=children;
+			int h=klass.hashCode()*31+Objects.hashCode(data);
+			int n=1;
+			boolean t=total;
+			for (Key c: children) {
+				h=h*31+System.identityHashCode(c);
+				n+=c.size;
+				t&=c.total;
+			}
+			this.hash=h;
+			this.size=n;
+			this.total=t;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (o==this) return true;
+			if (!(o instanceof Key)) return false;
+			Key k=(Key)o;
+			if ((hash!=k.hash)||(klass!=k.klass)||(children.length!=k.children.length)) return false;
+			for (int i=0; i<children.length; i++) {
+				if (children[i]!=k.children[i]) return false;
+			}
+			if (!Objects.equals(data, k.data)) return false;
+			// values that are equal but of different classes, e.g. 1 and 1L, are distinct
+			return (data==null)||(data.getClass()==k.data.getClass());
+		}
+	}
+
+	/**
+	 * Computes and caches canonical keys for nodes. Each node is keyed once, from the keys of
+	 * its children, so keying a whole region takes linear time.
+	 */
+	private static final class KeyTable {
+		private final IdentityHashMap<Node<?>,Key> keys=new IdentityHashMap<>();
+		private final HashMap<Key,Key> canonical=new HashMap<>();
+
+		private Key keyOf(Node<?> node) {
+			Key key=keys.get(node);
+			if (key!=null) return key;
+			if (node instanceof BaseConstant) {
+				key=new Key(node.getClass(),node.getValue(),NO_KEYS,true);
+			} else if (node instanceof Lookup) {
+				key=new Key(Lookup.class,node.getSymbol(),NO_KEYS,true);
+			} else if (isOpaque(node)) {
+				// separate regions are only identical to themselves
+				key=new Key(node.getClass(),node,NO_KEYS,true);
+			} else if (node instanceof Arithmetic) {
+				// the operation is determined by the fallback form
+				Key[] children=new Key[] {keyOf(((Arithmetic<?>)node).getFallback())};
+				key=new Key(Arithmetic.class,null,children,false);
+			} else if ((node instanceof Apply)||(node instanceof Do)||(node instanceof If)
+					||(node instanceof InstanceOf)||(node instanceof BaseDataStructure)) {
+				boolean total=!((node instanceof Apply)||(node instanceof InstanceOf));
+				key=new Key(node.getClass(),null,childKeys(node),total);
+			} else if (node instanceof Let) {
+				key=new Key(Let.class,Arrays.asList(((Let<?>)node).getSymbols()),childKeys(node),true);
+			} else if (node instanceof Cast) {
+				key=new Key(Cast.class,node.getType(),childKeys(node),false);
+			} else if (node instanceof InvokeStaticReflective) {
+				InvokeStaticReflective<?> inv=(InvokeStaticReflective<?>)node;
+				Object data=Arrays.asList(inv.getTargetClass(),inv.getMethod());
+				key=new Key(InvokeStaticReflective.class,data,childKeys(node),inv.isTotalMethod());
+			} else {
+				// other nodes may hold state beyond their children, so are only identical to themselves
+				key=new Key(node.getClass(),node,NO_KEYS,false);
+			}
+			Key existing=canonical.putIfAbsent(key, key);
+			if (existing!=null) key=existing;
+			keys.put(node, key);
+			return key;
+		}
+
+		private Key[] childKeys(Node<?> node) {
+			ArrayList<Key> children=new ArrayList<>();
+			node.mapChildren(new NodeFunction() {
+				@Override
+				public Node<?> apply(Node<?> child) {
+					children.add(keyOf(child));
+					return child;
+				}
+			});
+			return children.toArray(NO_KEYS);
+		}
+	}
+
+	private static final class Candidate {
+		private final Key key;
+		private final Node<?> node;
+		private int count=0;
+		private boolean unconditional=false;
+
+		/**
+		 * True if an unconditional occurrence is evaluated before anything that may throw or
+		 * have side effects, so that evaluating it first cannot change observable behaviour
+		 */
+		private boolean first=false;
+
+		private Candidate(Key key, Node<?> node) {
+			this.key=key;
+			this.node=node;
+		}
+	}
+
+	/**
+	 * Accumulates bound symbols and, optionally, candidate subexpressions for a region.
+	 * Nodes are visited in evaluation order.
+	 */
+	private static final class Scan {
+		private final KeyTable keys;
+		private final HashMap<Key,Candidate> candidates=new HashMap<>();
+		private APersistentSet<Symbol> bound=Sets.emptySet();
+		private boolean unsafe=false;
+		private final boolean collectCandidates;
+
+		/**
+		 * Set once any node that may throw or have side effects has been visited
+		 */
+		private boolean effects=false;
+		
+		private Scan(KeyTable keys, boolean collectCandidates) {
+			this.keys=keys;
+			this.collectCandidates=collectCandidates;
+		}
+
+		private void scan(Node<?> node, boolean unconditional) {
+			if (unsafe) return;
+			if (isModifyingContext(node)) {
+				unsafe=true;
+				return;
+			}
+			if (isOpaque(node)||(node instanceof Lookup)) return;
+
+			if (node instanceof Let) {
+				bound=bound.includeAll(Sets.of(((Let<?>)node).getSymbols()));
+			} else if (node instanceof Loop) {
+				bound=bound.includeAll(Sets.of(((Loop<?>)node).getSymbols()));
+			}
+			boolean first=!effects;
+
+			if (node instanceof If) {
+				// only the test of an `if` is unconditionally evaluated
+				Node<?> test=((If<?>)node).getTest();
+				node.mapChildren(new NodeFunction() {
+					@Override
+					public Node<?> apply(Node<?> child) {
+						scan(child,unconditional&&(child==test));
+						return child;
+					}
+				});
+			} else {
+				node.mapChildren(new NodeFunction() {
+					@Override
+					public Node<?> apply(Node<?> child) {
+						scan(child,unconditional);
+						return child;
+					}
+				});
+			}
+
+			boolean pure=node.isPure();
+			if (!collectCandidates) return;
+			Key key=keys.keyOf(node);
+			if (!(pure&&key.total)) effects=true;
+			if (pure) {
+				Candidate c=candidates.get(key);
+				if (c==null) {
+					c=new Candidate(key,node);
+					candidates.put(key, c);
+				}
+				c.count++;
+				if (unconditional) {
+					c.unconditional=true;
+					c.first|=first;
+				}
+			}
+		}
+
+		/**
+		 * Gets the largest eligible candidate, or null if there is none
+		 */
+		private Candidate best() {
+			Candidate best=null;
+			for (Candidate c: candidates.values()) {
+				if ((c.count<2)||(!c.unconditional)) continue;
+				// hoisting a subexpression that may throw must not reorder it with other effects
+				if (!(c.key.total||c.first)) continue;
+				if (c.node.getDependencies().containsAny(bound)) continue;
+				if ((best==null)||(c.key.size>best.key.size)) best=c;
+			}
+			return best;
+		}
+	}
+}
@@ -20,16 +20,18 @@ import org.parboiled.support.Var;
 import magic.Keywords;
 import magic.Symbols;
 import magic.ast.Constant;
-import magic.ast.HashMap;
 import magic.ast.Lookup;
 import magic.ast.Node;
+import magic.data.APersistentVector;
 import magic.data.Lists;
 import magic.data.Symbol;
-import magic.data.Tuple;
 
 /**
  * Parboiled Parser implementation which reads Magic source code and produces a tree of parsed objects.
  * 
+ * The static read functions use the hand-written FastReader, falling back to this grammar
+ * for any input that FastReader does not accept (e.g. to report parse errors). The parse
+ * functions always use the grammar, and serve as the reference for conformance testing.
  * 
  * @author Mike
  *
@@ -104,9 +106,7 @@ public class Reader extends BaseParser<Node<? extends Object>> {
 	 * @return
 	 */
 	public Node<? extends Object> interpretMetadata(Node<? extends Object> node) {
-		if (node instanceof magic.ast.HashMap) return node;
-		if (node.isKeyword()) return HashMap.create(Tuple.of(node,Constant.TRUE));
-		return HashMap.create(Tuple.of(Constant.create(Keywords.TAG),node));
+		return FastReader.interpretMetadata(node);
 	}
 
 	public Rule Meta() {
@@ -468,7 +468,13 @@ public class Reader extends BaseParser<Node<? extends Object>> {
 		return SourceInfo.create(source,p.line,p.column);
 	}
 	
-	private static Reader parser = Parboiled.createParser(Reader.class);
+	/**
+	 * Holder for the parboiled parser, which is expensive to create and only needed by the
+	 * fallback parse methods. Created on first use.
+	 */
+	private static final class ParserHolder {
+		private static final Reader PARSER = Parboiled.createParser(Reader.class);
+	}
 	
 	private static <T> void checkErrors(ParsingResult<T> result) {
 		if (result.hasErrors()) {
@@ -488,34 +494,106 @@ public class Reader extends BaseParser<Node<? extends Object>> {
 	}
 	
 	/**
-	 * Parses an expression and returns a form
+	 * Source length at which readAll reads top-level forms in parallel
+	 */
+	public static final int PARALLEL_READ_THRESHOLD=1<<16;
+	
+	/**
+	 * Reads an expression and returns a form
 	 * @param string
 	 * @return
 	 */
 	public static Node<?> read(String source) {
-		ParsingResult<Node<?>> result = new ReportingParseRunner<Node<?>>(parser.ExpressionInput()).run(source);
+		try {
+			return FastReader.read(source);
+		} catch (FastReader.ReadException e) {
+			return parse(source);
+		}
+	}
+	
+	/**
+	 * Reads an expression list and returns a collection form
+	 * @param string
+	 * @return
+	 */
+	public static magic.ast.ListForm readAll(String source) {
+		try {
+			if (source.length()>=PARALLEL_READ_THRESHOLD) return FastReader.readAllParallel(source);
+			return FastReader.readAll(source);
+		} catch (FastReader.ReadException e) {
+			return parseAll(source);
+		}
+	}
+	
+	/**
+	 * Reads a symbol
+	 * @param string
+	 * @return
+	 */
+	public static Symbol readSymbol(String source) {
+		try {
+			return FastReader.readSymbol(source);
+		} catch (FastReader.ReadException e) {
+			return parseSymbol(source);
+		}
+	}
+	
+	/**
+	 * Reads a literal data value directly, without creating AST nodes. Collections are read as
+	 * persistent lists, vectors, maps and sets.
+	 * @param string
+	 * @return
+	 */
+	public static Object readData(String source) {
+		try {
+			return FastReader.readData(source);
+		} catch (FastReader.ReadException e) {
+			throw new Error("Parse error: "+e.getMessage());
+		}
+	}
+	
+	/**
+	 * Reads a sequence of literal data values directly, without creating AST nodes
+	 * @param string
+	 * @return
+	 */
+	public static APersistentVector<Object> readAllData(String source) {
+		try {
+			return FastReader.readAllData(source);
+		} catch (FastReader.ReadException e) {
+			throw new Error("Parse error: "+e.getMessage());
+		}
+	}
+	
+	/**
+	 * Parses an expression with the parboiled grammar and returns a form
+	 * @param string
+	 * @return
+	 */
+	public static Node<?> parse(String source) {
+		ParsingResult<Node<?>> result = new ReportingParseRunner<Node<?>>(ParserHolder.PARSER.ExpressionInput()).run(source);
 		checkErrors(result);
 		return result.resultValue;
 	}
 	
 	/**
-	 * Parses an expression list and returns a collection form
+	 * Parses an expression list with the parboiled grammar and returns a collection form
 	 * @param string
 	 * @return
 	 */
-	public static magic.ast.ListForm readAll(String source) {
-		ParsingResult<magic.ast.ListForm> result = new ReportingParseRunner<magic.ast.ListForm>(parser.Input()).run(source);
+	public static magic.ast.ListForm parseAll(String source) {
+		ParsingResult<magic.ast.ListForm> result = new ReportingParseRunner<magic.ast.ListForm>(ParserHolder.PARSER.Input()).run(source);
 		checkErrors(result);
 		return result.resultValue;
 	}
 	
 	/**
-	 * Parses a symbol
+	 * Parses a symbol with the parboiled grammar
 	 * @param string
 	 * @return
 	 */
-	public static Symbol readSymbol(String source) {
-		ParsingResult<Node<?>> result = new ReportingParseRunner<Node<?>>(parser.SymbolInput()).run(source);
+	public static Symbol parseSymbol(String source) {
+		ParsingResult<Node<?>> result = new ReportingParseRunner<Node<?>>(ParserHolder.PARSER.SymbolInput()).run(source);
 		checkErrors(result);
 		return result.resultValue.getSymbol();
 	}
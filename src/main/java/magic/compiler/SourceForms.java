@@ -0,0 +1,158 @@
+package magic.compiler;
+
+import java.util.Arrays;
+
+import magic.ast.ListForm;
+import magic.ast.Node;
+import magic.data.Lists;
+
+/**
+ * The top-level forms read from a source text, supporting incremental re-reading after edits.
+ *
+ * After an edit, form boundaries are found with a cheap scan of the new text. Forms whose text
+ * lies entirely outside the edited region are reused from the previous result, and only the
+ * remaining forms are read. Reused forms are the identical Node objects, so callers can
+ * detect which definitions actually changed (e.g. to re-evaluate only those).
+ *
+ * Note that reused forms retain the SourceInfo from when they were read, so the line numbers of
+ * forms after an edit that adds or removes lines refer to their previous position. Use
+ * getStart and getEnd for current offsets.
+ *
+ * @author Mike
+ */
+public final class SourceForms {
+	private final String source;
+	private final int[] bounds; // start and end offset of each form in turn
+	private final Node<?>[] forms;
+	private final boolean[] reused;
+
+	private SourceForms(String source, int[] bounds, Node<?>[] forms, boolean[] reused) {
+		this.source=source;
+		this.bounds=bounds;
+		this.forms=forms;
+		this.reused=reused;
+	}
+
+	/**
+	 * Reads all top-level forms in the source
+	 */
+	public static SourceForms read(String source) {
+		return build(source,null,0,0,0);
+	}
+
+	/**
+	 * Re-reads the source after an edit, reusing all forms unaffected by the edit.
+	 *
+	 * @param offset Offset of the edit in the current source
+	 * @param removedLength Number of characters removed at the offset
+	 * @param insertedText Text inserted at the offset
+	 * @return Forms for the edited source
+	 */
+	public SourceForms edit(int offset, int removedLength, String insertedText) {
+		if ((offset<0)||(removedLength<0)||(offset+removedLength>source.length())) {
+			throw new IndexOutOfBoundsException("Invalid edit at offset "+offset+" removing "+removedLength+" characters");
+		}
+		String newSource=source.substring(0,offset)+insertedText+source.substring(offset+removedLength);
+		return build(newSource,this,offset,removedLength,insertedText.length());
+	}
+
+	private static SourceForms build(String source, SourceForms previous, int offset, int removedLength, int insertedLength) {
+		int[] bounds=SourceScanner.scanForms(source);
+		int n=bounds.length/2;
+		Node<?>[] forms=new Node<?>[n];
+		boolean[] reused=new boolean[n];
+		int shift=insertedLength-removedLength;
+		FastReader reader=null;
+		for (int i=0; i<n; i++) {
+			int start=bounds[2*i];
+			int end=bounds[2*i+1];
+			if (previous!=null) {
+				Node<?> old=null;
+				if (end<=offset) {
+					// entirely before the edit
+					old=previous.findForm(start,end);
+				} else if (start>=offset+insertedLength) {
+					// entirely after the edit, in shifted position
+					if (start-shift>=offset+removedLength) old=previous.findForm(start-shift,end-shift);
+				}
+				if (old!=null) {
+					forms[i]=old;
+					reused[i]=true;
+					continue;
+				}
+			}
+			if (reader==null) reader=FastReader.forRanges(source);
+			try {
+				forms[i]=reader.readRange(start,end);
+			} catch (FastReader.ReadException e) {
+				// report errors using the parboiled grammar
+				forms[i]=Reader.parse(source.substring(start,end));
+			}
+		}
+		return new SourceForms(source,bounds,forms,reused);
+	}
+
+	/**
+	 * Finds the form with exactly the given boundaries, or null if there is no such form
+	 */
+	private Node<?> findForm(int start, int end) {
+		int n=forms.length;
+		int lo=0;
+		int hi=n-1;
+		while (lo<=hi) {
+			int mid=(lo+hi)>>>1;
+			int s=bounds[2*mid];
+			if (s<start) {
+				lo=mid+1;
+			} else if (s>start) {
+				hi=mid-1;
+			} else {
+				return (bounds[2*mid+1]==end)?forms[mid]:null;
+			}
+		}
+		return null;
+	}
+
+	public String getSource() {
+		return source;
+	}
+
+	/**
+	 * Gets the number of top-level forms
+	 */
+	public int size() {
+		return forms.length;
+	}
+
+	public Node<?> getForm(int i) {
+		return forms[i];
+	}
+
+	/**
+	 * Gets the offset of the start of a form in the current source
+	 */
+	public int getStart(int i) {
+		return bounds[2*i];
+	}
+
+	/**
+	 * Gets the offset of the end (exclusive) of a form in the current source
+	 */
+	public int getEnd(int i) {
+		return bounds[2*i+1];
+	}
+
+	/**
+	 * Returns true if the form was reused unchanged from the previous result
+	 */
+	public boolean isReused(int i) {
+		return reused[i];
+	}
+
+	/**
+	 * Gets all forms as a ListForm, as returned by Reader.readAll
+	 */
+	public ListForm getListForm() {
+		return ListForm.create(Lists.create(Arrays.asList(forms)),(SourceInfo)null);
+	}
+}
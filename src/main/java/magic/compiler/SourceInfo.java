@@ -1,29 +1,93 @@
 package magic.compiler;
 
-public class SourceInfo {
-	private final int column;
+import java.lang.ref.WeakReference;
+import java.util.WeakHashMap;
+
+/**
+ * Source position of a form: the source it was read from, and a line and column packed into
+ * a single long.
+ *
+ * Source strings are interned, so that all SourceInfo objects for the same source share a
+ * single String instance.
+ *
+ * @author Mike
+ */
+public final class SourceInfo {
 	private final String source;
-	private final int line;
+	private final long position;
+
+	private static final WeakHashMap<String,WeakReference<String>> interned=new WeakHashMap<>();
 
-	private SourceInfo(String source, int line, int pos) {
+	private SourceInfo(String source, long position) {
 		this.source=source;
-		this.line=line;
-		this.column=pos;
+		this.position=position;
 	}
-	
+
 	public String getSource() {
 		return source;
 	}
-	
+
 	public int getLine() {
-		return line;
+		return (int)(position>>>32);
 	}
-	
+
 	public int getLinePosition() {
-		return column;
+		return (int)position;
+	}
+
+	/**
+	 * Gets the line (high 32 bits) and column (low 32 bits) packed into a long
+	 */
+	public long getPosition() {
+		return position;
+	}
+
+	public static long packPosition(int line, int column) {
+		return (((long)line)<<32)|(column&0xFFFFFFFFL);
+	}
+
+	/**
+	 * Gets the canonical instance of a source string
+	 */
+	public static String intern(String src) {
+		if (src==null) return null;
+		synchronized (interned) {
+			WeakReference<String> ref=interned.get(src);
+			String result=(ref==null)?null:ref.get();
+			if (result==null) {
+				interned.put(src, new WeakReference<>(src));
+				result=src;
+			}
+			return result;
+		}
 	}
 
 	public static SourceInfo create(java.lang.String src, int line, int column) {
-		return new SourceInfo(src,line,column);
+		return new SourceInfo(intern(src),packPosition(line,column));
+	}
+
+	/**
+	 * Creates a SourceInfo with a packed position. The source should already be interned.
+	 */
+	public static SourceInfo create(java.lang.String internedSrc, long position) {
+		return new SourceInfo(internedSrc,position);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (o==this) return true;
+		if (!(o instanceof SourceInfo)) return false;
+		SourceInfo si=(SourceInfo)o;
+		return (position==si.position)&&((source==si.source)||((source!=null)&&source.equals(si.source)));
+	}
+
+	@Override
+	public int hashCode() {
+		return Long.hashCode(position)^((source==null)?0:source.hashCode());
+	}
+
+	@Override
+	public String toString() {
+		return "line "+getLine()+", column "+getLinePosition();
 	}
 }
@@ -0,0 +1,206 @@
+package magic.compiler;
+
+import java.util.ArrayList;
+
+import magic.data.APersistentSet;
+import magic.data.Sets;
+import magic.data.Symbol;
+
+/**
+ * Cheap textual scanner for Magic source code.
+ *
+ * Finds the boundaries of forms and the symbols they mention without performing a full
+ * read. Strings, comments, character literals and discarded (#_) forms are respected, but no
+ * other validation is performed: malformed source is detected when the form is eventually
+ * read.
+ *
+ * @author Mike
+ */
+public class SourceScanner {
+
+	/**
+	 * Finds the boundaries of all top-level forms in the source.
+	 *
+	 * @param source Source code
+	 * @return Array of offsets, containing the start and end (exclusive) of each form in turn
+	 */
+	public static int[] scanForms(String source) {
+		ArrayList<Integer> bounds=new ArrayList<>();
+		int n=source.length();
+		int i=skipWhiteSpace(source,0);
+		while (i<n) {
+			int end=scanForm(source,i);
+			bounds.add(i);
+			bounds.add(end);
+			i=skipWhiteSpace(source,end);
+		}
+		int[] result=new int[bounds.size()];
+		for (int j=0; j<result.length; j++) {
+			result[j]=bounds.get(j);
+		}
+		return result;
+	}
+
+	/**
+	 * Gets the name defined by a form of the form (def name ...) or (defn name ...)
+	 *
+	 * @return The defined symbol, or null if the form is not a simple definition
+	 */
+	public static Symbol defName(String source, int start, int end) {
+		if (source.charAt(start)!='(') return null;
+		int i=skipWhiteSpace(source,start+1);
+		int tokenEnd=scanToken(source,i);
+		String head=source.substring(i,Math.min(tokenEnd,end));
+		if (!(head.equals("def")||head.equals("defn"))) return null;
+
+		i=skipWhiteSpace(source,tokenEnd);
+		if ((i>=end)||!isSymbolStart(source,i)) return null;
+		return toSymbol(source.substring(i,scanToken(source,i)));
+	}
+
+	/**
+	 * Gets all symbols mentioned in a range of source code, excluding symbols within strings,
+	 * comments, keywords and literals.
+	 */
+	public static APersistentSet<Symbol> scanSymbols(String source, int start, int end) {
+		APersistentSet<Symbol> syms=Sets.emptySet();
+		int i=start;
+		while (i<end) {
+			char c=source.charAt(i);
+			if (c==';') {
+				i=skipComment(source,i);
+			} else if (c=='"') {
+				i=scanString(source,i);
+			} else if (c=='\\') {
+				i=scanToken(source,i+1);
+			} else if (isTokenChar(c)) {
+				int tokenEnd=scanToken(source,i);
+				if (isSymbolStart(source,i)) {
+					String token=source.substring(i,tokenEnd);
+					if (!(token.equals("nil")||token.equals("true")||token.equals("false"))) {
+						syms=syms.include(toSymbol(token));
+					}
+				}
+				i=tokenEnd;
+			} else {
+				i++;
+			}
+		}
+		return syms;
+	}
+
+	/**
+	 * Scans a single form starting at the given position, returning the end position.
+	 * Unterminated forms extend to the end of the source.
+	 */
+	private static int scanForm(String s, int i) {
+		int n=s.length();
+		if (i>=n) return n;
+		char c=s.charAt(i);
+		switch (c) {
+			case '(': return scanDelimited(s,i+1,')');
+			case '[': return scanDelimited(s,i+1,']');
+			case '{': return scanDelimited(s,i+1,'}');
+			case '"': return scanString(s,i);
+			case '\'': case '`':
+				return scanForm(s,skipWhiteSpace(s,i+1));
+			case '~': {
+				int j=((i+1<n)&&(s.charAt(i+1)=='@'))?i+2:i+1;
+				return scanForm(s,skipWhiteSpace(s,j));
+			}
+			case '^': {
+				// metadata applies to the following form
+				int metaEnd=scanForm(s,i+1);
+				return scanForm(s,skipWhiteSpace(s,metaEnd));
+			}
+			case '#':
+				if ((i+1<n)&&(s.charAt(i+1)=='{')) return scanDelimited(s,i+2,'}');
+				return scanToken(s,i);
+			case '\\':
+				return scanToken(s,i+1);
+			case ')': case ']': case '}':
+				return i+1; // unbalanced closing delimiter, reported when read
+			default:
+				return scanToken(s,i);
+		}
+	}
+
+	private static int scanDelimited(String s, int i, char close) {
+		int n=s.length();
+		i=skipWhiteSpace(s,i);
+		while (i<n) {
+			if (s.charAt(i)==close) return i+1;
+			i=skipWhiteSpace(s,scanForm(s,i));
+		}
+		return n;
+	}
+
+	private static int scanString(String s, int i) {
+		int n=s.length();
+		i++; // opening quote
+		while (i<n) {
+			char c=s.charAt(i++);
+			if (c=='"') return i;
+			if (c=='\\') i++;
+		}
+		return n;
+	}
+
+	private static int scanToken(String s, int i) {
+		int n=s.length();
+		while ((i<n)&&isTokenChar(s.charAt(i))) i++;
+		return i;
+	}
+
+	private static int skipComment(String s, int i) {
+		int n=s.length();
+		while ((i<n)&&(s.charAt(i)!='\n')) i++;
+		return i;
+	}
+
+	/**
+	 * Skips whitespace, comments and discarded forms
+	 */
+	private static int skipWhiteSpace(String s, int i) {
+		int n=s.length();
+		while (i<n) {
+			char c=s.charAt(i);
+			if ((c==' ')||(c=='\t')||(c=='\f')||(c==',')||(c=='\r')||(c=='\n')) {
+				i++;
+			} else if (c==';') {
+				i=skipComment(s,i);
+			} else if ((c=='#')&&(i+1<n)&&(s.charAt(i+1)=='_')) {
+				i=scanForm(s,skipWhiteSpace(s,i+2));
+			} else {
+				break;
+			}
+		}
+		return i;
+	}
+
+	private static boolean isTokenChar(char c) {
+		return Character.isLetterOrDigit(c)||(".*+!-_?$%&=<>:#/".indexOf(c)>=0);
+	}
+
+	/**
+	 * Checks if the token at the given position is a symbol, i.e. not a number or keyword
+	 */
+	private static boolean isSymbolStart(String s, int i) {
+		char c=s.charAt(i);
+		if (Character.isDigit(c)||(c==':')||(c=='#')) return false;
+		if (!isTokenChar(c)) return false;
+		if ((c=='+')||(c=='-')) {
+			// signed numbers are not symbols
+			return !((i+1<s.length())&&Character.isDigit(s.charAt(i+1)));
+		}
+		return true;
+	}
+
+	private static Symbol toSymbol(String token) {
+		int slash=token.indexOf('/');
+		if ((slash>0)&&(slash<token.length()-1)) {
+			return Symbol.create(token.substring(0,slash),token.substring(slash+1));
+		}
+		return Symbol.create(null,token);
+	}
+}
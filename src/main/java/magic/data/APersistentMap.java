@@ -161,7 +161,12 @@ public abstract class APersistentMap<K,V> extends APersistentObject implements I
 	
 	@Override
 	public int hashCode() {
-		return RT.hashCode(entrySet().iterator());
+		// order independent, so that equal maps have equal hashes regardless of implementation
+		int h=0;
+		for (Map.Entry<K,V> e: entrySet()) {
+			h+=RT.hashCode(e.getKey())^RT.hashCode(e.getValue());
+		}
+		return h;
 	}
 	
 	@Override
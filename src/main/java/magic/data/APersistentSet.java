@@ -13,9 +13,10 @@ public abstract class APersistentSet<T> extends APersistentCollection<T> impleme
 	@Override
 	public abstract APersistentSet<T> include(final T value);
 	
+	@SuppressWarnings("unchecked")
 	@Override
-	public final APersistentSet<T> includeAll(final Collection<? extends T> values) {
-		if (values instanceof APersistentSet<?>) return includeAll(values);
+	public APersistentSet<T> includeAll(final Collection<? extends T> values) {
+		if (values instanceof APersistentSet<?>) return includeAll((APersistentSet<? extends T>)values);
 		APersistentSet<T> ps=this;
 		for (T t: values) {
 			ps=ps.include(t);
@@ -179,7 +180,12 @@ public abstract class APersistentSet<T> extends APersistentCollection<T> impleme
 	
 	@Override
 	public int hashCode() {
-		return RT.iteratorHashCode(iterator());
+		// order independent, so that equal sets have equal hashes regardless of implementation
+		int h=0;
+		for (T t: this) {
+			h+=RT.hashCode(t);
+		}
+		return h;
 	}
 	
 	@Override
@@ -137,8 +137,9 @@ public abstract class APersistentVector<T> extends APersistentSequence<T> implem
 		return concat(Vectors.coerce(values));
 	}
 
+	@SuppressWarnings("unchecked")
 	public APersistentVector<T> concat(APersistentVector<? extends T> values) {
-		return PersistentVector.coerce(this).concat(values);
+		return Vectors.concat(this,(APersistentVector<T>)values);
 	}
 	
 	@Override
@@ -148,6 +149,12 @@ public abstract class APersistentVector<T> extends APersistentSequence<T> implem
 	public APersistentVector<T> concat(Collection<? extends T> values) {
 		return Vectors.concat(this,Vectors.createFromCollection(values));
 	}
+	
+	@Override
+	public APersistentVector<T> includeAll(Collection<? extends T> values) {
+		// bulk append rather than including one value at a time
+		return concat(values);
+	}
 
 	@Override
 	public T remove(int index) {
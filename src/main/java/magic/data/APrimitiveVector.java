@@ -0,0 +1,264 @@
+package magic.data;
+
+import java.lang.reflect.Array;
+
+/**
+ * Abstract base class for persistent vectors storing unboxed primitive values.
+ *
+ * Uses a radix tree of full 32-element leaves, plus a tail array holding the last values so
+ * that appending usually only copies the tail. Leaves and the tail are primitive arrays of the
+ * type given by the subclass. Values are boxed when accessed via the generic vector methods.
+ * Including or assigning a value that cannot be stored unboxed converts the vector to a
+ * general persistent vector.
+ *
+ * @author Mike
+ *
+ * @param <T> Boxed element type
+ */
+public abstract class APrimitiveVector<T> extends APersistentVector<T> {
+	private static final long serialVersionUID = -4880193358113254616L;
+
+	protected static final int BITS=Vectors.TUPLE_BUILD_BITS;
+	protected static final int WIDTH=1<<BITS;
+	protected static final int MASK=WIDTH-1;
+
+	protected static final Object[] EMPTY_NODE=new Object[WIDTH];
+
+	protected final int size;
+
+	/**
+	 * Bit shift for indexing the children of the root node
+	 */
+	private final int shift;
+
+	/**
+	 * Root node of the tree of full leaves. Nodes are Object[] arrays, leaves are primitive arrays
+	 */
+	private final Object[] root;
+
+	/**
+	 * Primitive array of the values after the last full leaf in the tree, between 1 and 32 values
+	 * unless empty
+	 */
+	private final Object tail;
+
+	protected APrimitiveVector(int size, int shift, Object[] root, Object tail) {
+		this.size=size;
+		this.shift=shift;
+		this.root=root;
+		this.tail=tail;
+	}
+
+	/**
+	 * Creates a vector of the same type from its tree and tail
+	 */
+	protected abstract APrimitiveVector<T> create(int size, int shift, Object[] root, Object tail);
+
+	/**
+	 * Creates a primitive array of the element type
+	 */
+	protected abstract Object newArray(int length);
+
+	/**
+	 * Returns true if a value can be stored unboxed in this vector
+	 */
+	protected abstract boolean canStore(Object value);
+
+	/**
+	 * Stores a boxed value in a primitive array. The value must be storable.
+	 */
+	protected abstract void store(Object array, int i, Object value);
+
+	/**
+	 * Creates a vector of the same type containing a copy of a range of values from a
+	 * primitive array
+	 */
+	protected final APrimitiveVector<T> createFromArray(Object values, int fromIndex, int toIndex) {
+		int n=toIndex-fromIndex;
+		if (n<0) throw new IllegalArgumentException();
+		if (n==0) return create(0,BITS,EMPTY_NODE,newArray(0));
+
+		int tailLength=((n-1)&MASK)+1;
+		Object newTail=newArray(tailLength);
+		System.arraycopy(values, toIndex-tailLength, newTail, 0, tailLength);
+
+		int numLeaves=(n-tailLength)>>BITS;
+		if (numLeaves==0) return create(n,BITS,EMPTY_NODE,newTail);
+		Object[] level=new Object[numLeaves];
+		for (int i=0; i<numLeaves; i++) {
+			Object leaf=newArray(WIDTH);
+			System.arraycopy(values, fromIndex+(i<<BITS), leaf, 0, WIDTH);
+			level[i]=leaf;
+		}
+
+		// group into nodes until there is a single root
+		int sh=BITS;
+		while (true) {
+			int numNodes=1+((level.length-1)>>BITS);
+			Object[] nodes=new Object[numNodes];
+			for (int i=0; i<numNodes; i++) {
+				Object[] node=new Object[WIDTH];
+				int start=i<<BITS;
+				System.arraycopy(level, start, node, 0, Math.min(WIDTH, level.length-start));
+				nodes[i]=node;
+			}
+			if (numNodes==1) return create(n,sh,(Object[])nodes[0],newTail);
+			level=nodes;
+			sh+=BITS;
+		}
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	private int tailOffset() {
+		return size-tailLength();
+	}
+
+	private int tailLength() {
+		return (size==0)?0:((size-1)&MASK)+1;
+	}
+
+	/**
+	 * Gets the primitive leaf array containing the value at the given index. The value is at
+	 * position (i&amp;MASK) in the leaf.
+	 */
+	protected final Object leafFor(int i) {
+		if ((i<0)||(i>=size)) throw new IndexOutOfBoundsException("Index: "+i);
+		if (i>=tailOffset()) return tail;
+		Object[] node=root;
+		for (int level=shift; level>BITS; level-=BITS) {
+			node=(Object[])node[(i>>>level)&MASK];
+		}
+		return node[(i>>>BITS)&MASK];
+	}
+
+	/**
+	 * Copies all values into a primitive array of the element type
+	 */
+	protected final void copyValues(Object dest) {
+		for (int i=0; i<size; i+=WIDTH) {
+			System.arraycopy(leafFor(i), 0, dest, i, Math.min(WIDTH, size-i));
+		}
+	}
+
+	@Override
+	public APersistentVector<T> include(T value) {
+		if (!canStore(value)) return toGenericVector().include(value);
+		Object newTail=growTail();
+		store(newTail,tailLength()&MASK,value);
+		return appendTail(newTail);
+	}
+
+	/**
+	 * Creates the tail array for appending a value: a copy of the tail with space for one more
+	 * value, or a new single value array if the tail is full. The appended value should be stored
+	 * in the last position before calling appendTail.
+	 */
+	protected final Object growTail() {
+		int tl=tailLength();
+		if (tl==WIDTH) return newArray(1);
+		Object newTail=newArray(tl+1);
+		System.arraycopy(tail, 0, newTail, 0, tl);
+		return newTail;
+	}
+
+	/**
+	 * Creates a vector with a value appended, given the array created by growTail containing
+	 * the new value
+	 */
+	protected final APrimitiveVector<T> appendTail(Object newTail) {
+		if (tailLength()<WIDTH) return create(size+1,shift,root,newTail);
+
+		// push full tail into tree
+		Object[] newRoot;
+		int newShift=shift;
+		if ((size>>>BITS)>(1<<shift)) {
+			newRoot=new Object[WIDTH];
+			newRoot[0]=root;
+			newRoot[1]=newPath(shift,tail);
+			newShift+=BITS;
+		} else {
+			newRoot=pushTail(shift,root,tail);
+		}
+		return create(size+1,newShift,newRoot,newTail);
+	}
+
+	private Object[] pushTail(int level, Object[] parent, Object tailNode) {
+		int sub=((size-1)>>>level)&MASK;
+		Object[] result=parent.clone();
+		Object insert;
+		if (level==BITS) {
+			insert=tailNode;
+		} else {
+			Object child=parent[sub];
+			insert=(child!=null)?pushTail(level-BITS,(Object[])child,tailNode):newPath(level-BITS,tailNode);
+		}
+		result[sub]=insert;
+		return result;
+	}
+
+	private static Object newPath(int level, Object node) {
+		if (level==0) return node;
+		Object[] result=new Object[WIDTH];
+		result[0]=newPath(level-BITS,node);
+		return result;
+	}
+
+	@Override
+	public APersistentVector<T> assocAt(int index, T value) {
+		if (!canStore(value)) return toGenericVector().assocAt(index, value);
+		Object leaf=copyLeaf(index);
+		store(leaf,index&MASK,value);
+		return withLeaf(index,leaf);
+	}
+
+	/**
+	 * Creates a copy of the leaf array containing the value at the given index, for use with
+	 * withLeaf
+	 */
+	protected final Object copyLeaf(int i) {
+		Object leaf=leafFor(i);
+		int n=(i>=tailOffset())?tailLength():WIDTH;
+		Object result=newArray(n);
+		System.arraycopy(leaf, 0, result, 0, n);
+		return result;
+	}
+
+	/**
+	 * Creates a vector with the leaf containing the given index replaced
+	 */
+	protected final APrimitiveVector<T> withLeaf(int i, Object newLeaf) {
+		if (i>=tailOffset()) return create(size,shift,root,newLeaf);
+		return create(size,shift,(Object[])replaceLeaf(shift,root,i,newLeaf),tail);
+	}
+
+	private static Object replaceLeaf(int level, Object node, int i, Object newLeaf) {
+		if (level==0) return newLeaf;
+		Object[] result=((Object[])node).clone();
+		int sub=(i>>>level)&MASK;
+		result[sub]=replaceLeaf(level-BITS,result[sub],i,newLeaf);
+		return result;
+	}
+
+	/**
+	 * Converts to a general persistent vector of boxed values
+	 */
+	private APersistentVector<T> toGenericVector() {
+		PersistentVector.Transient<T> t=PersistentVector.createTransient();
+		for (int i=0; i<size; i++) {
+			t.include(get(i));
+		}
+		return t.persistent();
+	}
+
+	@Override
+	public void validate() {
+		super.validate();
+		int tl=Array.getLength(tail);
+		if (tl!=tailLength()) throw new Error("Invalid tail length: "+tl);
+		if ((size-tl)>(WIDTH<<shift)) throw new Error("Insufficient shift: "+shift);
+	}
+}
@@ -0,0 +1,881 @@
+package magic.data;
+
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import magic.RT;
+import magic.data.impl.BasePersistentSet;
+import magic.data.impl.EmptyArrays;
+import magic.data.impl.KeySetWrapper;
+
+/**
+ * Persistent hash map implemented as a compressed hash-array mapped prefix tree (CHAMP),
+ * after Steindorfer and Vinju.
+ *
+ * Keys and values are stored inline in the node arrays rather than as separate entry objects.
+ * Each node has two bitmaps: one for inline entries, which are stored in pairs at the start of
+ * the array, and one for sub-nodes, which are stored in reverse order at the end of the array.
+ *
+ * Nodes are kept in canonical form: a sub-node always holds at least two entries, and deletion
+ * inlines any sub-node that is reduced to a single entry. Maps with the same entries therefore
+ * have the same tree shape, which allows equality to be tested node by node.
+ *
+ * @author Mike
+ *
+ * @param <K> Key type
+ * @param <V> Value type
+ */
+public final class ChampHashMap<K,V> extends APersistentMap<K,V> {
+	private static final long serialVersionUID = 1739215740652413512L;
+
+	private static final int BITS=5;
+	private static final int MASK=(1<<BITS)-1;
+	private static final int HASH_BITS=32;
+
+	/**
+	 * Maximum depth of bitmap nodes, which is also enough to hold the stack for iteration
+	 */
+	private static final int MAX_DEPTH=1+(HASH_BITS+BITS-1)/BITS;
+
+	private static final Object NOT_FOUND=new Object();
+
+	private static final BitmapNode EMPTY_NODE=new BitmapNode(null,0,0,EmptyArrays.EMPTY_OBJECTS);
+
+	@SuppressWarnings("rawtypes")
+	public static final ChampHashMap<?,?> EMPTY=new ChampHashMap(EMPTY_NODE,0,0);
+
+	private final ChampNode root;
+	private final int size;
+
+	/**
+	 * Sum of the hashes of all entries, maintained incrementally
+	 */
+	private final int hash;
+
+	private ChampHashMap(ChampNode root, int size, int hash) {
+		this.root=root;
+		this.size=size;
+		this.hash=hash;
+	}
+
+	@SuppressWarnings("unchecked")
+	public static <K,V> ChampHashMap<K,V> create() {
+		return (ChampHashMap<K, V>) EMPTY;
+	}
+
+	@SuppressWarnings("unchecked")
+	public static <K,V> APersistentMap<K,V> empty() {
+		return (APersistentMap<K, V>) EMPTY;
+	}
+
+	public static <K,V> ChampHashMap<K,V> create(K key, V value) {
+		return ChampHashMap.<K,V>create().assoc(key, value);
+	}
+
+	public static <K,V> ChampHashMap<K,V> create(Map<K,V> values) {
+		if (values instanceof ChampHashMap<?,?>) return (ChampHashMap<K, V>) values;
+		Transient<K,V> t=createTransient();
+		for (Map.Entry<K,V> ent: values.entrySet()) {
+			t.assoc(ent.getKey(),ent.getValue());
+		}
+		return t.persistent();
+	}
+
+	/**
+	 * Creates an empty transient map, for efficient construction of a map with many entries
+	 */
+	public static <K,V> Transient<K,V> createTransient() {
+		return ChampHashMap.<K,V>create().asTransient();
+	}
+
+	/**
+	 * Returns a transient copy of this map. This map is not affected by changes to the transient.
+	 */
+	public Transient<K,V> asTransient() {
+		return new Transient<K,V>(root,size,hash);
+	}
+
+	private static int mask(int hash, int shift) {
+		return (hash>>>shift)&MASK;
+	}
+
+	private static int bitpos(int hash, int shift) {
+		return 1<<mask(hash,shift);
+	}
+
+	private static int index(int bitmap, int bit) {
+		return Integer.bitCount(bitmap&(bit-1));
+	}
+
+	private static int entryHash(Object key, Object value) {
+		return RT.hashCode(key)^RT.hashCode(value);
+	}
+
+	/**
+	 * Records the effect of an update on a node tree
+	 */
+	private static final class Change {
+		private boolean modified=false;
+		private boolean replaced=false;
+		private Object oldValue;
+
+		private void added() {
+			modified=true;
+		}
+
+		private void replaced(Object value) {
+			modified=true;
+			replaced=true;
+			oldValue=value;
+		}
+	}
+
+	private static final int SIZE_ZERO=0;
+	private static final int SIZE_ONE=1;
+	private static final int SIZE_MORE=2;
+
+	private abstract static class ChampNode implements Serializable {
+		private static final long serialVersionUID = -2447917282219151593L;
+
+		/**
+		 * Gets the value for a key, or NOT_FOUND if not present
+		 */
+		protected abstract Object find(Object key, int hash, int shift);
+
+		/**
+		 * Returns a node including the given entry. Nodes owned by the edit token may be updated in
+		 * place, and any new nodes are owned by the token. A null edit performs a persistent update.
+		 */
+		protected abstract ChampNode put(Object edit, Object key, Object value, int hash, int shift, Change change);
+
+		/**
+		 * Returns a node without the given key.
+		 */
+		protected abstract ChampNode remove(Object edit, Object key, int hash, int shift, Change change);
+
+		protected abstract int payloadArity();
+
+		protected abstract Object getKey(int i);
+
+		protected abstract Object getValue(int i);
+
+		protected abstract int nodeArity();
+
+		protected abstract ChampNode getNode(int i);
+
+		/**
+		 * Returns SIZE_ZERO, SIZE_ONE or SIZE_MORE according to the number of entries in this node
+		 */
+		protected abstract int sizePredicate();
+
+		/**
+		 * Tests if this node contains the same entries as another node at the same position
+		 */
+		protected abstract boolean equivalent(ChampNode other);
+
+		protected abstract int validate(int shift);
+	}
+
+	private static final class BitmapNode extends ChampNode {
+		private static final long serialVersionUID = 8617622325457567437L;
+
+		// only changed while owned by a transient edit
+		private int dataMap;
+		private int nodeMap;
+		private Object[] content;
+		private final transient Object edit;
+
+		private BitmapNode(Object edit, int dataMap, int nodeMap, Object[] content) {
+			this.edit=edit;
+			this.dataMap=dataMap;
+			this.nodeMap=nodeMap;
+			this.content=content;
+		}
+
+		private boolean isEditable(Object edit) {
+			return (edit!=null)&&(this.edit==edit);
+		}
+
+		private ChampNode nodeAt(int bit) {
+			return (ChampNode) content[content.length-1-index(nodeMap,bit)];
+		}
+
+		@Override
+		protected Object find(Object key, int hash, int shift) {
+			int bit=bitpos(hash,shift);
+			if ((dataMap&bit)!=0) {
+				int i=2*index(dataMap,bit);
+				if (RT.equals(content[i],key)) return content[i+1];
+				return NOT_FOUND;
+			}
+			if ((nodeMap&bit)!=0) {
+				return nodeAt(bit).find(key, hash, shift+BITS);
+			}
+			return NOT_FOUND;
+		}
+
+		@Override
+		protected ChampNode put(Object edit, Object key, Object value, int hash, int shift, Change change) {
+			int bit=bitpos(hash,shift);
+			if ((dataMap&bit)!=0) {
+				int i=2*index(dataMap,bit);
+				Object k=content[i];
+				if (RT.equals(k,key)) {
+					Object v=content[i+1];
+					if (v==value) return this;
+					change.replaced(v);
+					if (isEditable(edit)) {
+						content[i+1]=value;
+						return this;
+					}
+					Object[] nc=content.clone();
+					nc[i+1]=value;
+					return new BitmapNode(edit,dataMap,nodeMap,nc);
+				}
+				// push both entries down into a new sub-node
+				ChampNode sub=mergeTwo(edit,k,content[i+1],RT.hashCode(k),key,value,hash,shift+BITS);
+				change.added();
+				return migrateInlineToNode(edit,bit,sub);
+			}
+			if ((nodeMap&bit)!=0) {
+				ChampNode sub=nodeAt(bit);
+				ChampNode nsub=sub.put(edit, key, value, hash, shift+BITS, change);
+				if (nsub==sub) return this; // unchanged, or updated in place
+				return setNode(edit,bit,nsub);
+			}
+			change.added();
+			int i=2*index(dataMap,bit);
+			Object[] nc=new Object[content.length+2];
+			System.arraycopy(content, 0, nc, 0, i);
+			nc[i]=key;
+			nc[i+1]=value;
+			System.arraycopy(content, i, nc, i+2, content.length-i);
+			return update(edit,dataMap|bit,nodeMap,nc);
+		}
+
+		@Override
+		protected ChampNode remove(Object edit, Object key, int hash, int shift, Change change) {
+			int bit=bitpos(hash,shift);
+			if ((dataMap&bit)!=0) {
+				int i=2*index(dataMap,bit);
+				if (!RT.equals(content[i],key)) return this;
+				change.replaced(content[i+1]);
+				if ((content.length==4)&&(nodeMap==0)&&(shift>0)) {
+					// single remaining entry will be inlined by the parent, or becomes the root, so
+					// set its bit for the root position
+					int other=2-i;
+					return new BitmapNode(edit,bitpos(hash,0),0,new Object[] {content[other],content[other+1]});
+				}
+				Object[] nc=new Object[content.length-2];
+				System.arraycopy(content, 0, nc, 0, i);
+				System.arraycopy(content, i+2, nc, i, content.length-i-2);
+				return update(edit,dataMap^bit,nodeMap,nc);
+			}
+			if ((nodeMap&bit)!=0) {
+				ChampNode sub=nodeAt(bit);
+				ChampNode nsub=sub.remove(edit, key, hash, shift+BITS, change);
+				if (!change.modified) return this;
+				if (nsub.sizePredicate()==SIZE_ONE) {
+					if ((dataMap==0)&&(Integer.bitCount(nodeMap)==1)) {
+						// this node would only contain a single entry, so pass it up
+						return nsub;
+					}
+					return migrateNodeToInline(edit,bit,nsub);
+				}
+				if (nsub==sub) return this;
+				return setNode(edit,bit,nsub);
+			}
+			return this;
+		}
+
+		private ChampNode update(Object edit, int newDataMap, int newNodeMap, Object[] newContent) {
+			if (isEditable(edit)) {
+				dataMap=newDataMap;
+				nodeMap=newNodeMap;
+				content=newContent;
+				return this;
+			}
+			return new BitmapNode(edit,newDataMap,newNodeMap,newContent);
+		}
+
+		private ChampNode setNode(Object edit, int bit, ChampNode node) {
+			int pos=content.length-1-index(nodeMap,bit);
+			if (isEditable(edit)) {
+				content[pos]=node;
+				return this;
+			}
+			Object[] nc=content.clone();
+			nc[pos]=node;
+			return new BitmapNode(edit,dataMap,nodeMap,nc);
+		}
+
+		private ChampNode migrateInlineToNode(Object edit, int bit, ChampNode node) {
+			int len=content.length;
+			int oldPos=2*index(dataMap,bit);
+			int newPos=len-2-index(nodeMap,bit);
+			Object[] nc=new Object[len-1];
+			System.arraycopy(content, 0, nc, 0, oldPos);
+			System.arraycopy(content, oldPos+2, nc, oldPos, newPos-oldPos);
+			nc[newPos]=node;
+			System.arraycopy(content, newPos+2, nc, newPos+1, len-newPos-2);
+			return update(edit,dataMap^bit,nodeMap|bit,nc);
+		}
+
+		private ChampNode migrateNodeToInline(Object edit, int bit, ChampNode node) {
+			int len=content.length;
+			int oldPos=len-1-index(nodeMap,bit);
+			int newPos=2*index(dataMap,bit);
+			Object[] nc=new Object[len+1];
+			System.arraycopy(content, 0, nc, 0, newPos);
+			nc[newPos]=node.getKey(0);
+			nc[newPos+1]=node.getValue(0);
+			System.arraycopy(content, newPos, nc, newPos+2, oldPos-newPos);
+			System.arraycopy(content, oldPos+1, nc, oldPos+2, len-oldPos-1);
+			return update(edit,dataMap|bit,nodeMap^bit,nc);
+		}
+
+		@Override
+		protected int payloadArity() {
+			return Integer.bitCount(dataMap);
+		}
+
+		@Override
+		protected Object getKey(int i) {
+			return content[2*i];
+		}
+
+		@Override
+		protected Object getValue(int i) {
+			return content[2*i+1];
+		}
+
+		@Override
+		protected int nodeArity() {
+			return Integer.bitCount(nodeMap);
+		}
+
+		@Override
+		protected ChampNode getNode(int i) {
+			return (ChampNode) content[content.length-1-i];
+		}
+
+		@Override
+		protected int sizePredicate() {
+			if (nodeMap!=0) return SIZE_MORE;
+			int n=Integer.bitCount(dataMap);
+			return (n<=1)?n:SIZE_MORE;
+		}
+
+		@Override
+		protected boolean equivalent(ChampNode o) {
+			if (o==this) return true;
+			if (!(o instanceof BitmapNode)) return false;
+			BitmapNode b=(BitmapNode)o;
+			if ((dataMap!=b.dataMap)||(nodeMap!=b.nodeMap)) return false;
+			int n=content.length;
+			int split=2*Integer.bitCount(dataMap);
+			for (int i=0; i<split; i++) {
+				if (!RT.equals(content[i],b.content[i])) return false;
+			}
+			for (int i=split; i<n; i++) {
+				if (!((ChampNode)content[i]).equivalent((ChampNode)b.content[i])) return false;
+			}
+			return true;
+		}
+
+		@Override
+		protected int validate(int shift) {
+			if (content.length!=(2*payloadArity()+nodeArity())) throw new Error("Wrong content length");
+			if ((dataMap&nodeMap)!=0) throw new Error("Overlapping bitmaps");
+			int count=payloadArity();
+			for (int i=0; i<payloadArity(); i++) {
+				if ((bitpos(RT.hashCode(getKey(i)),shift)&dataMap)==0) throw new Error("Entry in wrong position");
+			}
+			for (int i=0; i<nodeArity(); i++) {
+				ChampNode n=getNode(i);
+				if (n.sizePredicate()!=SIZE_MORE) throw new Error("Non-canonical sub-node");
+				count+=n.validate(shift+BITS);
+			}
+			return count;
+		}
+
+		private Object readResolve() throws ObjectStreamException {
+			// needed for deserialisation to the correct static instance
+			if (content.length==0) return EMPTY_NODE;
+			return this;
+		}
+	}
+
+	/**
+	 * Node for keys with identical hashes
+	 */
+	private static final class CollisionNode extends ChampNode {
+		private static final long serialVersionUID = -6546651925773566593L;
+
+		private final int hash;
+		private final Object[] keys;
+		private final Object[] values;
+
+		private CollisionNode(int hash, Object[] keys, Object[] values) {
+			this.hash=hash;
+			this.keys=keys;
+			this.values=values;
+		}
+
+		private int indexOf(Object key) {
+			for (int i=0; i<keys.length; i++) {
+				if (RT.equals(keys[i],key)) return i;
+			}
+			return -1;
+		}
+
+		@Override
+		protected Object find(Object key, int hash, int shift) {
+			if (hash!=this.hash) return NOT_FOUND;
+			int i=indexOf(key);
+			return (i<0)?NOT_FOUND:values[i];
+		}
+
+		@Override
+		protected ChampNode put(Object edit, Object key, Object value, int hash, int shift, Change change) {
+			int i=indexOf(key);
+			if (i>=0) {
+				if (values[i]==value) return this;
+				change.replaced(values[i]);
+				Object[] nv=values.clone();
+				nv[i]=value;
+				return new CollisionNode(hash,keys,nv);
+			}
+			change.added();
+			int n=keys.length;
+			Object[] nk=new Object[n+1];
+			Object[] nv=new Object[n+1];
+			System.arraycopy(keys, 0, nk, 0, n);
+			System.arraycopy(values, 0, nv, 0, n);
+			nk[n]=key;
+			nv[n]=value;
+			return new CollisionNode(hash,nk,nv);
+		}
+
+		@Override
+		protected ChampNode remove(Object edit, Object key, int hash, int shift, Change change) {
+			int i=indexOf(key);
+			if (i<0) return this;
+			change.replaced(values[i]);
+			int n=keys.length;
+			if (n==2) {
+				int other=1-i;
+				return new BitmapNode(edit,bitpos(hash,0),0,new Object[] {keys[other],values[other]});
+			}
+			Object[] nk=new Object[n-1];
+			Object[] nv=new Object[n-1];
+			System.arraycopy(keys, 0, nk, 0, i);
+			System.arraycopy(keys, i+1, nk, i, n-i-1);
+			System.arraycopy(values, 0, nv, 0, i);
+			System.arraycopy(values, i+1, nv, i, n-i-1);
+			return new CollisionNode(hash,nk,nv);
+		}
+
+		@Override
+		protected int payloadArity() {
+			return keys.length;
+		}
+
+		@Override
+		protected Object getKey(int i) {
+			return keys[i];
+		}
+
+		@Override
+		protected Object getValue(int i) {
+			return values[i];
+		}
+
+		@Override
+		protected int nodeArity() {
+			return 0;
+		}
+
+		@Override
+		protected ChampNode getNode(int i) {
+			throw new IndexOutOfBoundsException();
+		}
+
+		@Override
+		protected int sizePredicate() {
+			return SIZE_MORE;
+		}
+
+		@Override
+		protected boolean equivalent(ChampNode o) {
+			if (o==this) return true;
+			if (!(o instanceof CollisionNode)) return false;
+			CollisionNode c=(CollisionNode)o;
+			if ((hash!=c.hash)||(keys.length!=c.keys.length)) return false;
+			// entries may be in any order
+			for (int i=0; i<keys.length; i++) {
+				int j=c.indexOf(keys[i]);
+				if ((j<0)||!RT.equals(values[i],c.values[j])) return false;
+			}
+			return true;
+		}
+
+		@Override
+		protected int validate(int shift) {
+			if (keys.length<2) throw new Error("Collision node with too few entries");
+			for (Object k: keys) {
+				if (RT.hashCode(k)!=hash) throw new Error("Wrong hash in collision node");
+			}
+			return keys.length;
+		}
+	}
+
+	private static ChampNode mergeTwo(Object edit, Object k0, Object v0, int h0, Object k1, Object v1, int h1, int shift) {
+		if (shift>=HASH_BITS) {
+			return new CollisionNode(h0,new Object[] {k0,k1},new Object[] {v0,v1});
+		}
+		int m0=mask(h0,shift);
+		int m1=mask(h1,shift);
+		if (m0!=m1) {
+			int dataMap=(1<<m0)|(1<<m1);
+			Object[] content=(m0<m1)?new Object[] {k0,v0,k1,v1}:new Object[] {k1,v1,k0,v0};
+			return new BitmapNode(edit,dataMap,0,content);
+		}
+		ChampNode sub=mergeTwo(edit,k0,v0,h0,k1,v1,h1,shift+BITS);
+		return new BitmapNode(edit,0,1<<m0,new Object[] {sub});
+	}
+
+	/**
+	 * Depth-first iterator over all entries, visiting the inline entries of each node before
+	 * its sub-nodes.
+	 */
+	private abstract static class ChampIterator<T> implements Iterator<T> {
+		private final ChampNode[] nodes=new ChampNode[MAX_DEPTH];
+		private final int[] nodeIndex=new int[MAX_DEPTH];
+		private int depth=-1;
+
+		protected ChampNode current;
+		protected int index=0;
+		private int limit;
+
+		private ChampIterator(ChampNode root) {
+			if (root.nodeArity()>0) {
+				depth=0;
+				nodes[0]=root;
+			}
+			current=root;
+			limit=root.payloadArity();
+		}
+
+		@Override
+		public boolean hasNext() {
+			return (index<limit)||advance();
+		}
+
+		private boolean advance() {
+			while (depth>=0) {
+				ChampNode n=nodes[depth];
+				int ci=nodeIndex[depth];
+				if (ci>=n.nodeArity()) {
+					depth--;
+					continue;
+				}
+				nodeIndex[depth]=ci+1;
+				ChampNode child=n.getNode(ci);
+				if (child.nodeArity()>0) {
+					depth++;
+					nodes[depth]=child;
+					nodeIndex[depth]=0;
+				}
+				int pa=child.payloadArity();
+				if (pa>0) {
+					current=child;
+					index=0;
+					limit=pa;
+					return true;
+				}
+			}
+			return false;
+		}
+
+		@Override
+		public T next() {
+			if (!hasNext()) throw new NoSuchElementException();
+			return get(index++);
+		}
+
+		protected abstract T get(int i);
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * EntrySet implementation
+	 */
+	protected final class ChampEntrySet extends BasePersistentSet<Map.Entry<K,V>> {
+		private static final long serialVersionUID = -4101442006545862711L;
+
+		@Override
+		public int size() {
+			return size;
+		}
+
+		@Override
+		public boolean contains(Object o) {
+			if (!(o instanceof Map.Entry<?,?>)) return false;
+			Map.Entry<?,?> ent=(Map.Entry<?,?>)o;
+			Object v=root.find(ent.getKey(), RT.hashCode(ent.getKey()), 0);
+			if (v==NOT_FOUND) return false;
+			return RT.equals(v, ent.getValue());
+		}
+
+		@Override
+		public Iterator<Map.Entry<K, V>> iterator() {
+			return new ChampIterator<Map.Entry<K, V>>(root) {
+				@SuppressWarnings("unchecked")
+				@Override
+				protected Map.Entry<K, V> get(int i) {
+					return MapEntry.create((K)current.getKey(i), (V)current.getValue(i));
+				}
+			};
+		}
+
+		@Override
+		public APersistentSet<Map.Entry<K, V>> include(Map.Entry<K, V> value) {
+			return Sets.create(this).include(value);
+		}
+	}
+
+	/*
+	 *  IPersistentMap methods
+	 */
+
+	@Override
+	public boolean containsKey(Object key) {
+		return root.find(key, RT.hashCode(key), 0)!=NOT_FOUND;
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public V get(Object key) {
+		Object v=root.find(key, RT.hashCode(key), 0);
+		return (v==NOT_FOUND)?null:(V)v;
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public V valAt(K key, V notFound) {
+		Object v=root.find(key, RT.hashCode(key), 0);
+		return (v==NOT_FOUND)?notFound:(V)v;
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public Map.Entry<K, V> getMapEntry(Object key) {
+		Object v=root.find(key, RT.hashCode(key), 0);
+		if (v==NOT_FOUND) return null;
+		return MapEntry.create((K)key,(V)v);
+	}
+
+	@Override
+	public APersistentSet<Map.Entry<K, V>> entrySet() {
+		return new ChampEntrySet();
+	}
+
+	@Override
+	public APersistentSet<K> keySet() {
+		return new KeySetWrapper<K, V>(entrySet());
+	}
+
+	@Override
+	public APersistentCollection<V> values() {
+		PersistentVector.Transient<V> t=PersistentVector.createTransient();
+		Iterator<V> it=new ChampIterator<V>(root) {
+			@SuppressWarnings("unchecked")
+			@Override
+			protected V get(int i) {
+				return (V)current.getValue(i);
+			}
+		};
+		while (it.hasNext()) {
+			t.include(it.next());
+		}
+		return Lists.coerce(t.persistent());
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public ChampHashMap<K, V> assoc(K key, V value) {
+		Change change=new Change();
+		ChampNode newRoot=root.put(null, key, value, RT.hashCode(key), 0, change);
+		if (!change.modified) return this;
+		if (change.replaced) {
+			return new ChampHashMap<K, V>(newRoot,size,hash-entryHash(key,change.oldValue)+entryHash(key,value));
+		}
+		return new ChampHashMap<K, V>(newRoot,size+1,hash+entryHash(key,value));
+	}
+
+	@Override
+	public ChampHashMap<K, V> dissoc(K key) {
+		Change change=new Change();
+		ChampNode newRoot=root.remove(null, key, RT.hashCode(key), 0, change);
+		if (!change.modified) return this;
+		if (size==1) return create();
+		return new ChampHashMap<K, V>(newRoot,size-1,hash-entryHash(key,change.oldValue));
+	}
+
+	@Override
+	public APersistentMap<K, V> include(Map<K, V> values) {
+		Transient<K,V> t=asTransient();
+		t.include(values);
+		return t.persistent(this);
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	@Override
+	public boolean hasFastHashCode() {
+		return true;
+	}
+
+	@Override
+	public boolean equals(APersistentMap<K,V> pm) {
+		if (this==pm) return true;
+		if (pm instanceof ChampHashMap<?,?>) {
+			ChampHashMap<K,V> cm=(ChampHashMap<K,V>)pm;
+			// canonical form means equal maps have identical structure
+			return (size==cm.size)&&(hash==cm.hash)&&root.equivalent(cm.root);
+		}
+		return super.equals(pm);
+	}
+
+	@Override
+	public boolean allowsNullKey() {
+		return true;
+	}
+
+	@Override
+	public void validate() {
+		super.validate();
+		if (root.validate(0)!=size) throw new Error("Wrong size");
+		int h=0;
+		for (Map.Entry<K,V> e: entrySet()) {
+			h+=entryHash(e.getKey(),e.getValue());
+		}
+		if (h!=hash) throw new Error("Wrong hash");
+	}
+
+	private Object readResolve() throws ObjectStreamException {
+		// needed for deserialisation to the correct static instance
+		if (size==0) return EMPTY;
+		return this;
+	}
+
+	/**
+	 * Transient edition of a ChampHashMap, for efficient construction of maps with many entries.
+	 *
+	 * Nodes created by a transient are owned by its edit token, and are updated in place by
+	 * subsequent operations rather than copied. persistent() releases the token in O(1) time,
+	 * after which the transient may no longer be used.
+	 *
+	 * Transients are not thread safe and should be confined to a single thread.
+	 *
+	 * @param <K> Key type
+	 * @param <V> Value type
+	 */
+	public static final class Transient<K,V> {
+		private Object edit=new Object();
+		private ChampNode root;
+		private int size;
+		private int hash;
+
+		private Transient(ChampNode root, int size, int hash) {
+			this.root=root;
+			this.size=size;
+			this.hash=hash;
+		}
+
+		private void ensureEditable() {
+			if (edit==null) throw new IllegalStateException("Transient used after call to persistent()");
+		}
+
+		public Transient<K,V> assoc(K key, V value) {
+			ensureEditable();
+			Change change=new Change();
+			root=root.put(edit, key, value, RT.hashCode(key), 0, change);
+			if (change.replaced) {
+				hash+=entryHash(key,value)-entryHash(key,change.oldValue);
+			} else if (change.modified) {
+				size++;
+				hash+=entryHash(key,value);
+			}
+			return this;
+		}
+
+		public Transient<K,V> dissoc(K key) {
+			ensureEditable();
+			Change change=new Change();
+			root=root.remove(edit, key, RT.hashCode(key), 0, change);
+			if (change.modified) {
+				size--;
+				hash-=entryHash(key,change.oldValue);
+			}
+			return this;
+		}
+
+		public Transient<K,V> include(Map<K,V> values) {
+			for (Map.Entry<K, V> entry:values.entrySet()) {
+				assoc(entry.getKey(),entry.getValue());
+			}
+			return this;
+		}
+
+		@SuppressWarnings("unchecked")
+		public V get(K key) {
+			ensureEditable();
+			Object v=root.find(key, RT.hashCode(key), 0);
+			return (v==NOT_FOUND)?null:(V)v;
+		}
+
+		public int size() {
+			ensureEditable();
+			return size;
+		}
+
+		/**
+		 * Returns a persistent map containing the entries of this transient. The transient
+		 * may not be used afterwards.
+		 */
+		public ChampHashMap<K,V> persistent() {
+			ensureEditable();
+			edit=null;
+			if (size==0) return create();
+			return new ChampHashMap<K, V>(root,size,hash);
+		}
+
+		/**
+		 * Returns the original map if this transient made no changes to it
+		 */
+		private ChampHashMap<K,V> persistent(ChampHashMap<K,V> original) {
+			if (root==original.root) {
+				ensureEditable();
+				edit=null;
+				return original;
+			}
+			return persistent();
+		}
+	}
+}
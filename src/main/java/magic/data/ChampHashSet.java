@@ -0,0 +1,720 @@
+package magic.data;
+
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import magic.RT;
+import magic.data.impl.BasePersistentSet;
+import magic.data.impl.EmptyArrays;
+
+/**
+ * Persistent hash set implemented as a compressed hash-array mapped prefix tree (CHAMP).
+ *
+ * Values are stored inline at the start of each node array, and sub-nodes in reverse order at
+ * the end, with separate bitmaps for each. Nodes are kept in canonical form so that sets with
+ * the same values have the same tree shape. See ChampHashMap for details.
+ *
+ * @author Mike
+ *
+ * @param <T> Element type
+ */
+public final class ChampHashSet<T> extends BasePersistentSet<T> {
+	private static final long serialVersionUID = -3163446210736598305L;
+
+	private static final int BITS=5;
+	private static final int MASK=(1<<BITS)-1;
+	private static final int HASH_BITS=32;
+	private static final int MAX_DEPTH=1+(HASH_BITS+BITS-1)/BITS;
+
+	private static final BitmapNode EMPTY_NODE=new BitmapNode(null,0,0,EmptyArrays.EMPTY_OBJECTS);
+
+	@SuppressWarnings("rawtypes")
+	public static final ChampHashSet<?> EMPTY=new ChampHashSet(EMPTY_NODE,0,0);
+
+	private final ChampNode root;
+	private final int size;
+
+	/**
+	 * Sum of the hashes of all values, maintained incrementally
+	 */
+	private final int hash;
+
+	private ChampHashSet(ChampNode root, int size, int hash) {
+		this.root=root;
+		this.size=size;
+		this.hash=hash;
+	}
+
+	@SuppressWarnings("unchecked")
+	public static <T> ChampHashSet<T> create() {
+		return (ChampHashSet<T>) EMPTY;
+	}
+
+	public static <T> ChampHashSet<T> create(T value) {
+		return ChampHashSet.<T>create().include(value);
+	}
+
+	public static <T> ChampHashSet<T> create(T[] values) {
+		Transient<T> t=createTransient();
+		for (int i=0; i<values.length; i++) {
+			t.include(values[i]);
+		}
+		return t.persistent();
+	}
+
+	@SuppressWarnings("unchecked")
+	public static <T> ChampHashSet<T> createFromSet(Set<? extends T> values) {
+		if (values instanceof ChampHashSet<?>) return (ChampHashSet<T>) values;
+		return ChampHashSet.<T>createTransient().includeAll(values).persistent();
+	}
+
+	public static <T> ChampHashSet<T> coerce(Set<? extends T> values) {
+		return createFromSet(values);
+	}
+
+	public static <T> ChampHashSet<T> createFromIterator(Iterator<? extends T> iterator) {
+		Transient<T> t=createTransient();
+		while (iterator.hasNext()) {
+			t.include(iterator.next());
+		}
+		return t.persistent();
+	}
+
+	/**
+	 * Creates an empty transient set, for efficient construction of a set with many values
+	 */
+	public static <T> Transient<T> createTransient() {
+		return ChampHashSet.<T>create().asTransient();
+	}
+
+	/**
+	 * Returns a transient copy of this set. This set is not affected by changes to the transient.
+	 */
+	public Transient<T> asTransient() {
+		return new Transient<T>(root,size,hash);
+	}
+
+	private static int mask(int hash, int shift) {
+		return (hash>>>shift)&MASK;
+	}
+
+	private static int bitpos(int hash, int shift) {
+		return 1<<mask(hash,shift);
+	}
+
+	private static int index(int bitmap, int bit) {
+		return Integer.bitCount(bitmap&(bit-1));
+	}
+
+	private static final int SIZE_ONE=1;
+	private static final int SIZE_MORE=2;
+
+	private abstract static class ChampNode implements Serializable {
+		private static final long serialVersionUID = 4307372346651294082L;
+
+		protected abstract boolean contains(Object key, int hash, int shift);
+
+		/**
+		 * Returns a node including the given value, or this node if already present. Nodes owned
+		 * by the edit token may be updated in place, in which case the returned node may be this
+		 * node even though the value was added. A null edit performs a persistent update.
+		 */
+		protected abstract ChampNode include(Object edit, Object key, int hash, int shift, boolean[] modified);
+
+		protected abstract ChampNode exclude(Object edit, Object key, int hash, int shift, boolean[] modified);
+
+		protected abstract int payloadArity();
+
+		protected abstract Object getKey(int i);
+
+		protected abstract int nodeArity();
+
+		protected abstract ChampNode getNode(int i);
+
+		protected abstract int sizePredicate();
+
+		protected abstract boolean equivalent(ChampNode other);
+
+		protected abstract int validate(int shift);
+	}
+
+	private static final class BitmapNode extends ChampNode {
+		private static final long serialVersionUID = 3934460998339719960L;
+
+		// only changed while owned by a transient edit
+		private int dataMap;
+		private int nodeMap;
+		private Object[] content;
+		private final transient Object edit;
+
+		private BitmapNode(Object edit, int dataMap, int nodeMap, Object[] content) {
+			this.edit=edit;
+			this.dataMap=dataMap;
+			this.nodeMap=nodeMap;
+			this.content=content;
+		}
+
+		private boolean isEditable(Object edit) {
+			return (edit!=null)&&(this.edit==edit);
+		}
+
+		private ChampNode nodeAt(int bit) {
+			return (ChampNode) content[content.length-1-index(nodeMap,bit)];
+		}
+
+		@Override
+		protected boolean contains(Object key, int hash, int shift) {
+			int bit=bitpos(hash,shift);
+			if ((dataMap&bit)!=0) {
+				return RT.equals(content[index(dataMap,bit)],key);
+			}
+			if ((nodeMap&bit)!=0) {
+				return nodeAt(bit).contains(key, hash, shift+BITS);
+			}
+			return false;
+		}
+
+		@Override
+		protected ChampNode include(Object edit, Object key, int hash, int shift, boolean[] modified) {
+			int bit=bitpos(hash,shift);
+			if ((dataMap&bit)!=0) {
+				int i=index(dataMap,bit);
+				Object k=content[i];
+				if (RT.equals(k,key)) return this;
+				// push both values down into a new sub-node
+				ChampNode sub=mergeTwo(edit,k,RT.hashCode(k),key,hash,shift+BITS);
+				modified[0]=true;
+				return migrateInlineToNode(edit,bit,sub);
+			}
+			if ((nodeMap&bit)!=0) {
+				ChampNode sub=nodeAt(bit);
+				ChampNode nsub=sub.include(edit, key, hash, shift+BITS, modified);
+				if (nsub==sub) return this; // unchanged, or updated in place
+				return setNode(edit,bit,nsub);
+			}
+			modified[0]=true;
+			int i=index(dataMap,bit);
+			Object[] nc=new Object[content.length+1];
+			System.arraycopy(content, 0, nc, 0, i);
+			nc[i]=key;
+			System.arraycopy(content, i, nc, i+1, content.length-i);
+			return update(edit,dataMap|bit,nodeMap,nc);
+		}
+
+		@Override
+		protected ChampNode exclude(Object edit, Object key, int hash, int shift, boolean[] modified) {
+			int bit=bitpos(hash,shift);
+			if ((dataMap&bit)!=0) {
+				int i=index(dataMap,bit);
+				if (!RT.equals(content[i],key)) return this;
+				modified[0]=true;
+				if ((content.length==2)&&(nodeMap==0)&&(shift>0)) {
+					// single remaining value will be inlined by the parent, or becomes the root, so
+					// set its bit for the root position
+					return new BitmapNode(edit,bitpos(hash,0),0,new Object[] {content[1-i]});
+				}
+				Object[] nc=new Object[content.length-1];
+				System.arraycopy(content, 0, nc, 0, i);
+				System.arraycopy(content, i+1, nc, i, content.length-i-1);
+				return update(edit,dataMap^bit,nodeMap,nc);
+			}
+			if ((nodeMap&bit)!=0) {
+				ChampNode sub=nodeAt(bit);
+				ChampNode nsub=sub.exclude(edit, key, hash, shift+BITS, modified);
+				if (!modified[0]) return this;
+				if (nsub.sizePredicate()==SIZE_ONE) {
+					if ((dataMap==0)&&(Integer.bitCount(nodeMap)==1)) {
+						// this node would only contain a single value, so pass it up
+						return nsub;
+					}
+					return migrateNodeToInline(edit,bit,nsub);
+				}
+				if (nsub==sub) return this;
+				return setNode(edit,bit,nsub);
+			}
+			return this;
+		}
+
+		private ChampNode update(Object edit, int newDataMap, int newNodeMap, Object[] newContent) {
+			if (isEditable(edit)) {
+				dataMap=newDataMap;
+				nodeMap=newNodeMap;
+				content=newContent;
+				return this;
+			}
+			return new BitmapNode(edit,newDataMap,newNodeMap,newContent);
+		}
+
+		private ChampNode setNode(Object edit, int bit, ChampNode node) {
+			int pos=content.length-1-index(nodeMap,bit);
+			if (isEditable(edit)) {
+				content[pos]=node;
+				return this;
+			}
+			Object[] nc=content.clone();
+			nc[pos]=node;
+			return new BitmapNode(edit,dataMap,nodeMap,nc);
+		}
+
+		private ChampNode migrateInlineToNode(Object edit, int bit, ChampNode node) {
+			int len=content.length;
+			int oldPos=index(dataMap,bit);
+			int newPos=len-1-index(nodeMap,bit);
+			Object[] nc=new Object[len];
+			System.arraycopy(content, 0, nc, 0, oldPos);
+			System.arraycopy(content, oldPos+1, nc, oldPos, newPos-oldPos);
+			nc[newPos]=node;
+			System.arraycopy(content, newPos+1, nc, newPos+1, len-newPos-1);
+			return update(edit,dataMap^bit,nodeMap|bit,nc);
+		}
+
+		private ChampNode migrateNodeToInline(Object edit, int bit, ChampNode node) {
+			int len=content.length;
+			int oldPos=len-1-index(nodeMap,bit);
+			int newPos=index(dataMap,bit);
+			Object[] nc=new Object[len];
+			System.arraycopy(content, 0, nc, 0, newPos);
+			nc[newPos]=node.getKey(0);
+			System.arraycopy(content, newPos, nc, newPos+1, oldPos-newPos);
+			System.arraycopy(content, oldPos+1, nc, oldPos+1, len-oldPos-1);
+			return update(edit,dataMap|bit,nodeMap^bit,nc);
+		}
+
+		@Override
+		protected int payloadArity() {
+			return Integer.bitCount(dataMap);
+		}
+
+		@Override
+		protected Object getKey(int i) {
+			return content[i];
+		}
+
+		@Override
+		protected int nodeArity() {
+			return Integer.bitCount(nodeMap);
+		}
+
+		@Override
+		protected ChampNode getNode(int i) {
+			return (ChampNode) content[content.length-1-i];
+		}
+
+		@Override
+		protected int sizePredicate() {
+			if (nodeMap!=0) return SIZE_MORE;
+			int n=Integer.bitCount(dataMap);
+			return (n<=1)?n:SIZE_MORE;
+		}
+
+		@Override
+		protected boolean equivalent(ChampNode o) {
+			if (o==this) return true;
+			if (!(o instanceof BitmapNode)) return false;
+			BitmapNode b=(BitmapNode)o;
+			if ((dataMap!=b.dataMap)||(nodeMap!=b.nodeMap)) return false;
+			int n=content.length;
+			int split=Integer.bitCount(dataMap);
+			for (int i=0; i<split; i++) {
+				if (!RT.equals(content[i],b.content[i])) return false;
+			}
+			for (int i=split; i<n; i++) {
+				if (!((ChampNode)content[i]).equivalent((ChampNode)b.content[i])) return false;
+			}
+			return true;
+		}
+
+		@Override
+		protected int validate(int shift) {
+			if (content.length!=(payloadArity()+nodeArity())) throw new Error("Wrong content length");
+			if ((dataMap&nodeMap)!=0) throw new Error("Overlapping bitmaps");
+			int count=payloadArity();
+			for (int i=0; i<payloadArity(); i++) {
+				if ((bitpos(RT.hashCode(getKey(i)),shift)&dataMap)==0) throw new Error("Value in wrong position");
+			}
+			for (int i=0; i<nodeArity(); i++) {
+				ChampNode n=getNode(i);
+				if (n.sizePredicate()!=SIZE_MORE) throw new Error("Non-canonical sub-node");
+				count+=n.validate(shift+BITS);
+			}
+			return count;
+		}
+
+		private Object readResolve() throws ObjectStreamException {
+			// needed for deserialisation to the correct static instance
+			if (content.length==0) return EMPTY_NODE;
+			return this;
+		}
+	}
+
+	/**
+	 * Node for values with identical hashes
+	 */
+	private static final class CollisionNode extends ChampNode {
+		private static final long serialVersionUID = 1585329470327787208L;
+
+		private final int hash;
+		private final Object[] keys;
+
+		private CollisionNode(int hash, Object[] keys) {
+			this.hash=hash;
+			this.keys=keys;
+		}
+
+		private int indexOf(Object key) {
+			for (int i=0; i<keys.length; i++) {
+				if (RT.equals(keys[i],key)) return i;
+			}
+			return -1;
+		}
+
+		@Override
+		protected boolean contains(Object key, int hash, int shift) {
+			return (hash==this.hash)&&(indexOf(key)>=0);
+		}
+
+		@Override
+		protected ChampNode include(Object edit, Object key, int hash, int shift, boolean[] modified) {
+			if (indexOf(key)>=0) return this;
+			modified[0]=true;
+			int n=keys.length;
+			Object[] nk=new Object[n+1];
+			System.arraycopy(keys, 0, nk, 0, n);
+			nk[n]=key;
+			return new CollisionNode(hash,nk);
+		}
+
+		@Override
+		protected ChampNode exclude(Object edit, Object key, int hash, int shift, boolean[] modified) {
+			int i=indexOf(key);
+			if (i<0) return this;
+			modified[0]=true;
+			int n=keys.length;
+			if (n==2) {
+				return new BitmapNode(edit,bitpos(hash,0),0,new Object[] {keys[1-i]});
+			}
+			Object[] nk=new Object[n-1];
+			System.arraycopy(keys, 0, nk, 0, i);
+			System.arraycopy(keys, i+1, nk, i, n-i-1);
+			return new CollisionNode(hash,nk);
+		}
+
+		@Override
+		protected int payloadArity() {
+			return keys.length;
+		}
+
+		@Override
+		protected Object getKey(int i) {
+			return keys[i];
+		}
+
+		@Override
+		protected int nodeArity() {
+			return 0;
+		}
+
+		@Override
+		protected ChampNode getNode(int i) {
+			throw new IndexOutOfBoundsException();
+		}
+
+		@Override
+		protected int sizePredicate() {
+			return SIZE_MORE;
+		}
+
+		@Override
+		protected boolean equivalent(ChampNode o) {
+			if (o==this) return true;
+			if (!(o instanceof CollisionNode)) return false;
+			CollisionNode c=(CollisionNode)o;
+			if ((hash!=c.hash)||(keys.length!=c.keys.length)) return false;
+			// values may be in any order
+			for (int i=0; i<keys.length; i++) {
+				if (c.indexOf(keys[i])<0) return false;
+			}
+			return true;
+		}
+
+		@Override
+		protected int validate(int shift) {
+			if (keys.length<2) throw new Error("Collision node with too few values");
+			for (Object k: keys) {
+				if (RT.hashCode(k)!=hash) throw new Error("Wrong hash in collision node");
+			}
+			return keys.length;
+		}
+	}
+
+	private static ChampNode mergeTwo(Object edit, Object k0, int h0, Object k1, int h1, int shift) {
+		if (shift>=HASH_BITS) {
+			return new CollisionNode(h0,new Object[] {k0,k1});
+		}
+		int m0=mask(h0,shift);
+		int m1=mask(h1,shift);
+		if (m0!=m1) {
+			int dataMap=(1<<m0)|(1<<m1);
+			Object[] content=(m0<m1)?new Object[] {k0,k1}:new Object[] {k1,k0};
+			return new BitmapNode(edit,dataMap,0,content);
+		}
+		ChampNode sub=mergeTwo(edit,k0,h0,k1,h1,shift+BITS);
+		return new BitmapNode(edit,0,1<<m0,new Object[] {sub});
+	}
+
+	/**
+	 * Depth-first iterator over all values, visiting the inline values of each node before
+	 * its sub-nodes.
+	 */
+	private static final class ChampIterator<T> implements Iterator<T> {
+		private final ChampNode[] nodes=new ChampNode[MAX_DEPTH];
+		private final int[] nodeIndex=new int[MAX_DEPTH];
+		private int depth=-1;
+
+		private ChampNode current;
+		private int index=0;
+		private int limit;
+
+		private ChampIterator(ChampNode root) {
+			if (root.nodeArity()>0) {
+				depth=0;
+				nodes[0]=root;
+			}
+			current=root;
+			limit=root.payloadArity();
+		}
+
+		@Override
+		public boolean hasNext() {
+			return (index<limit)||advance();
+		}
+
+		private boolean advance() {
+			while (depth>=0) {
+				ChampNode n=nodes[depth];
+				int ci=nodeIndex[depth];
+				if (ci>=n.nodeArity()) {
+					depth--;
+					continue;
+				}
+				nodeIndex[depth]=ci+1;
+				ChampNode child=n.getNode(ci);
+				if (child.nodeArity()>0) {
+					depth++;
+					nodes[depth]=child;
+					nodeIndex[depth]=0;
+				}
+				int pa=child.payloadArity();
+				if (pa>0) {
+					current=child;
+					index=0;
+					limit=pa;
+					return true;
+				}
+			}
+			return false;
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public T next() {
+			if (!hasNext()) throw new NoSuchElementException();
+			return (T) current.getKey(index++);
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/*
+	 *  IPersistentSet methods
+	 */
+
+	@Override
+	public boolean contains(Object key) {
+		return root.contains(key, RT.hashCode(key), 0);
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public Iterator<T> iterator() {
+		return new ChampIterator<T>(root);
+	}
+
+	@Override
+	public ChampHashSet<T> include(T value) {
+		boolean[] modified=new boolean[1];
+		int h=RT.hashCode(value);
+		ChampNode newRoot=root.include(null, value, h, 0, modified);
+		if (!modified[0]) return this;
+		return new ChampHashSet<T>(newRoot,size+1,hash+h);
+	}
+
+	@Override
+	public ChampHashSet<T> exclude(T value) {
+		boolean[] modified=new boolean[1];
+		int h=RT.hashCode(value);
+		ChampNode newRoot=root.exclude(null, value, h, 0, modified);
+		if (!modified[0]) return this;
+		if (size==1) return create();
+		return new ChampHashSet<T>(newRoot,size-1,hash-h);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public ChampHashSet<T> includeAll(Collection<? extends T> values) {
+		if (values instanceof APersistentSet<?>) return includeAll((APersistentSet<? extends T>)values);
+		Transient<T> t=asTransient();
+		t.includeAll(values);
+		return t.persistent(this);
+	}
+
+	@Override
+	public ChampHashSet<T> includeAll(APersistentSet<? extends T> values) {
+		if ((values==this)||(values.size()==0)) return this;
+		Transient<T> t=asTransient();
+		t.includeAll(values);
+		return t.persistent(this);
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	@Override
+	public boolean hasFastHashCode() {
+		return true;
+	}
+
+	@Override
+	public boolean equals(APersistentSet<T> s) {
+		if (this==s) return true;
+		if (s instanceof ChampHashSet<?>) {
+			ChampHashSet<T> cs=(ChampHashSet<T>)s;
+			// canonical form means equal sets have identical structure
+			return (size==cs.size)&&(hash==cs.hash)&&root.equivalent(cs.root);
+		}
+		return super.equals(s);
+	}
+
+	@Override
+	public void validate() {
+		super.validate();
+		if (root.validate(0)!=size) throw new Error("Wrong size");
+		int h=0;
+		for (T t: this) {
+			h+=RT.hashCode(t);
+		}
+		if (h!=hash) throw new Error("Wrong hash");
+	}
+
+	private Object readResolve() throws ObjectStreamException {
+		// needed for deserialisation to the correct static instance
+		if (size==0) return EMPTY;
+		return this;
+	}
+
+	/**
+	 * Transient edition of a ChampHashSet, for efficient construction of sets with many values.
+	 *
+	 * Nodes created by a transient are owned by its edit token, and are updated in place by
+	 * subsequent operations rather than copied. persistent() releases the token in O(1) time,
+	 * after which the transient may no longer be used.
+	 *
+	 * Transients are not thread safe and should be confined to a single thread.
+	 *
+	 * @param <T> Element type
+	 */
+	public static final class Transient<T> {
+		private Object edit=new Object();
+		private final boolean[] modified=new boolean[1];
+		private ChampNode root;
+		private int size;
+		private int hash;
+
+		private Transient(ChampNode root, int size, int hash) {
+			this.root=root;
+			this.size=size;
+			this.hash=hash;
+		}
+
+		private void ensureEditable() {
+			if (edit==null) throw new IllegalStateException("Transient used after call to persistent()");
+		}
+
+		public Transient<T> include(T value) {
+			ensureEditable();
+			int h=RT.hashCode(value);
+			modified[0]=false;
+			root=root.include(edit, value, h, 0, modified);
+			if (modified[0]) {
+				size++;
+				hash+=h;
+			}
+			return this;
+		}
+
+		public Transient<T> exclude(T value) {
+			ensureEditable();
+			int h=RT.hashCode(value);
+			modified[0]=false;
+			root=root.exclude(edit, value, h, 0, modified);
+			if (modified[0]) {
+				size--;
+				hash-=h;
+			}
+			return this;
+		}
+
+		public Transient<T> includeAll(Collection<? extends T> values) {
+			for (T value: values) {
+				include(value);
+			}
+			return this;
+		}
+
+		public boolean contains(T value) {
+			ensureEditable();
+			return root.contains(value, RT.hashCode(value), 0);
+		}
+
+		public int size() {
+			ensureEditable();
+			return size;
+		}
+
+		/**
+		 * Returns a persistent set containing the values of this transient. The transient
+		 * may not be used afterwards.
+		 */
+		public ChampHashSet<T> persistent() {
+			ensureEditable();
+			edit=null;
+			if (size==0) return create();
+			return new ChampHashSet<T>(root,size,hash);
+		}
+
+		/**
+		 * Returns the original set if this transient made no changes to it
+		 */
+		private ChampHashSet<T> persistent(ChampHashSet<T> original) {
+			if (root==original.root) {
+				ensureEditable();
+				edit=null;
+				return original;
+			}
+			return persistent();
+		}
+	}
+}
@@ -0,0 +1,124 @@
+package magic.data;
+
+import java.util.Collection;
+import java.util.function.DoubleBinaryOperator;
+
+/**
+ * Persistent vector of double values, stored unboxed in double[] leaves.
+ *
+ * Values are boxed to Double when accessed via the generic vector methods. Including or assigning
+ * a value that is not a Double converts the vector to a general persistent vector.
+ *
+ * @author Mike
+ */
+public final class DoubleVector extends APrimitiveVector<Double> {
+	private static final long serialVersionUID = -6203748109224937152L;
+
+	public static final DoubleVector EMPTY=new DoubleVector(0,BITS,EMPTY_NODE,new double[0]);
+
+	private DoubleVector(int size, int shift, Object[] root, double[] tail) {
+		super(size,shift,root,tail);
+	}
+
+	@Override
+	protected DoubleVector create(int size, int shift, Object[] root, Object tail) {
+		return new DoubleVector(size,shift,root,(double[])tail);
+	}
+
+	@Override
+	protected Object newArray(int length) {
+		return new double[length];
+	}
+
+	@Override
+	protected boolean canStore(Object value) {
+		return value instanceof Double;
+	}
+
+	@Override
+	protected void store(Object array, int i, Object value) {
+		((double[])array)[i]=(Double)value;
+	}
+
+	public static DoubleVector create(double[] values) {
+		return create(values,0,values.length);
+	}
+
+	/**
+	 * Creates a DoubleVector containing a copy of a range of values from an array
+	 */
+	public static DoubleVector create(double[] values, int fromIndex, int toIndex) {
+		if ((fromIndex<0)||(toIndex>values.length)) throw new IndexOutOfBoundsException();
+		return (DoubleVector) EMPTY.createFromArray(values,fromIndex,toIndex);
+	}
+
+	/**
+	 * Creates a DoubleVector from a collection of Double values
+	 */
+	public static DoubleVector create(Collection<? extends Double> values) {
+		double[] data=new double[values.size()];
+		int i=0;
+		for (Double v: values) {
+			data[i++]=v;
+		}
+		return create(data);
+	}
+
+	/**
+	 * Gets an unboxed value from this vector
+	 */
+	public double getDouble(int i) {
+		return ((double[])leafFor(i))[i&MASK];
+	}
+
+	@Override
+	public Double get(int i) {
+		return getDouble(i);
+	}
+
+	/**
+	 * Reduces over all values in this vector without boxing
+	 */
+	public double reduceDouble(DoubleBinaryOperator f, double init) {
+		double result=init;
+		for (int i=0; i<size; i+=WIDTH) {
+			double[] leaf=(double[])leafFor(i);
+			for (int j=0; j<leaf.length; j++) {
+				result=f.applyAsDouble(result, leaf[j]);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Copies the values of this vector into a new double array
+	 */
+	public double[] toDoubleArray() {
+		double[] result=new double[size];
+		copyValues(result);
+		return result;
+	}
+
+	/**
+	 * Appends an unboxed value to this vector
+	 */
+	public DoubleVector includeDouble(double value) {
+		double[] newTail=(double[])growTail();
+		newTail[newTail.length-1]=value;
+		return (DoubleVector) appendTail(newTail);
+	}
+
+	/**
+	 * Sets an unboxed value at the given index
+	 */
+	public DoubleVector assocDouble(int i, double value) {
+		double[] leaf=(double[])copyLeaf(i);
+		leaf[i&MASK]=value;
+		return (DoubleVector) withLeaf(i,leaf);
+	}
+
+	@Override
+	public DoubleVector empty() {
+		return EMPTY;
+	}
+}
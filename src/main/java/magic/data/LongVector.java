@@ -0,0 +1,124 @@
+package magic.data;
+
+import java.util.Collection;
+import java.util.function.LongBinaryOperator;
+
+/**
+ * Persistent vector of long values, stored unboxed in long[] leaves.
+ *
+ * Values are boxed to Long when accessed via the generic vector methods. Including or assigning
+ * a value that is not a Long converts the vector to a general persistent vector.
+ *
+ * @author Mike
+ */
+public final class LongVector extends APrimitiveVector<Long> {
+	private static final long serialVersionUID = 3466213562402281763L;
+
+	public static final LongVector EMPTY=new LongVector(0,BITS,EMPTY_NODE,new long[0]);
+
+	private LongVector(int size, int shift, Object[] root, long[] tail) {
+		super(size,shift,root,tail);
+	}
+
+	@Override
+	protected LongVector create(int size, int shift, Object[] root, Object tail) {
+		return new LongVector(size,shift,root,(long[])tail);
+	}
+
+	@Override
+	protected Object newArray(int length) {
+		return new long[length];
+	}
+
+	@Override
+	protected boolean canStore(Object value) {
+		return value instanceof Long;
+	}
+
+	@Override
+	protected void store(Object array, int i, Object value) {
+		((long[])array)[i]=(Long)value;
+	}
+
+	public static LongVector create(long[] values) {
+		return create(values,0,values.length);
+	}
+
+	/**
+	 * Creates a LongVector containing a copy of a range of values from an array
+	 */
+	public static LongVector create(long[] values, int fromIndex, int toIndex) {
+		if ((fromIndex<0)||(toIndex>values.length)) throw new IndexOutOfBoundsException();
+		return (LongVector) EMPTY.createFromArray(values,fromIndex,toIndex);
+	}
+
+	/**
+	 * Creates a LongVector from a collection of Long values
+	 */
+	public static LongVector create(Collection<? extends Long> values) {
+		long[] data=new long[values.size()];
+		int i=0;
+		for (Long v: values) {
+			data[i++]=v;
+		}
+		return create(data);
+	}
+
+	/**
+	 * Gets an unboxed value from this vector
+	 */
+	public long getLong(int i) {
+		return ((long[])leafFor(i))[i&MASK];
+	}
+
+	@Override
+	public Long get(int i) {
+		return getLong(i);
+	}
+
+	/**
+	 * Reduces over all values in this vector without boxing
+	 */
+	public long reduceLong(LongBinaryOperator f, long init) {
+		long result=init;
+		for (int i=0; i<size; i+=WIDTH) {
+			long[] leaf=(long[])leafFor(i);
+			for (int j=0; j<leaf.length; j++) {
+				result=f.applyAsLong(result, leaf[j]);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Copies the values of this vector into a new long array
+	 */
+	public long[] toLongArray() {
+		long[] result=new long[size];
+		copyValues(result);
+		return result;
+	}
+
+	/**
+	 * Appends an unboxed value to this vector
+	 */
+	public LongVector includeLong(long value) {
+		long[] newTail=(long[])growTail();
+		newTail[newTail.length-1]=value;
+		return (LongVector) appendTail(newTail);
+	}
+
+	/**
+	 * Sets an unboxed value at the given index
+	 */
+	public LongVector assocLong(int i, long value) {
+		long[] leaf=(long[])copyLeaf(i);
+		leaf[i&MASK]=value;
+		return (LongVector) withLeaf(i,leaf);
+	}
+
+	@Override
+	public LongVector empty() {
+		return EMPTY;
+	}
+}
@@ -20,33 +20,33 @@ public class Maps {
 	}
 	
 	public static <K,V> APersistentMap<K,V> create(K key, V value) {
-		return PersistentHashMap.create(key, value);
+		return ChampHashMap.create(key, value);
 	}
 	
 	public static <K,V> APersistentMap<K,V> create(Map<K,V> values) {
-		return PersistentHashMap.create(values);
+		return ChampHashMap.create(values);
 	}
 	
 	@SuppressWarnings("unchecked")
 	public static <K,V> APersistentMap<? extends K, ? extends V> createFromFlattenedPairs(List<?> values) {
 		int n=values.size();
 		if ((n&1)!=0) throw new Error("Map construction requires an even number of terms");
-		APersistentMap<K,V> m=(APersistentMap<K, V>) PersistentHashMap.EMPTY;
+		ChampHashMap.Transient<K,V> t=ChampHashMap.createTransient();
 		for (int i=0; i<n; i+=2) {
-			m=m.assoc((K)values.get(i), (V)values.get(i+1));
+			t.assoc((K)values.get(i), (V)values.get(i+1));
 		}
-		return m;
+		return t.persistent();
 	}
 
 	@SuppressWarnings("unchecked")
 	public static <K,V> APersistentMap<? extends K, ? extends V> createFromFlattenedArray(Object[] values) {
 		int n=values.length;
 		if ((n&1)!=0) throw new Error("Map construction requires an even number of terms");
-		APersistentMap<K,V> m=(APersistentMap<K, V>) PersistentHashMap.EMPTY;
+		ChampHashMap.Transient<K,V> t=ChampHashMap.createTransient();
 		for (int i=0; i<n; i+=2) {
-			m=m.assoc((K)values[i], (V)values[i+1]);
+			t.assoc((K)values[i], (V)values[i+1]);
 		}
-		return m;
+		return t.persistent();
 	}
 
 	@SuppressWarnings("unchecked")
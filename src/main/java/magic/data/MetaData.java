@@ -34,7 +34,7 @@ public class MetaData {
 	}
 
 	public static MetaData create(Keyword key, Object val) {
-		return new MetaData(PersistentHashMap.create(key, val));
+		return new MetaData(ChampHashMap.create(key, val));
 	}
 	
 	/**
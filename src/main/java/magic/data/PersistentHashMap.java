@@ -64,13 +64,26 @@ public final class PersistentHashMap<K,V> extends APersistentMap<K,V> {
 		return new PersistentHashMap<K, V>(new PHMEntry<K, V>(key,value));
 	}
 	
-	@SuppressWarnings("unchecked")
 	public static<K,V> PersistentHashMap<K,V> create(Map<K,V> values) {
-		PersistentHashMap<K,V> pm=(PersistentHashMap<K, V>) PersistentHashMap.EMPTY;
+		Transient<K,V> t=createTransient();
 		for (Map.Entry<K,V> ent: values.entrySet()) {
-			pm=pm.assoc(ent.getKey(),ent.getValue());
+			t.assoc(ent.getKey(),ent.getValue());
 		}
-		return pm;
+		return t.persistent();
+	}
+	
+	/**
+	 * Creates an empty transient map, for efficient construction of a map with many entries
+	 */
+	public static<K,V> Transient<K,V> createTransient() {
+		return new Transient<K,V>(PersistentHashMap.<K,V>create().root);
+	}
+	
+	/**
+	 * Returns a transient copy of this map. This map is not affected by changes to the transient.
+	 */
+	public Transient<K,V> asTransient() {
+		return new Transient<K,V>(root);
 	}
 
 	public static <K,V> int countEntries(PHMNode<K,V> node) {
@@ -100,6 +113,18 @@ public final class PersistentHashMap<K,V> extends APersistentMap<K,V> {
 		 */
 		protected abstract PHMNode<K,V> include(K key, V value, int hash, int shift);
 		
+		/**
+		 * Includes the (key,value) pair as part of a transient edit. Nodes owned by the
+		 * edit token may be updated in place, and new nodes may be created owned by the token.
+		 * 
+		 * Default implementation is a persistent include.
+		 * 
+		 * @return The updated node, which may be this node
+		 */
+		protected PHMNode<K,V> includeTransient(Object edit, K key, V value, int hash, int shift) {
+			return include(key,value,hash,shift);
+		}
+		
 		/**
 		 * Returns the entry for the given key value, or null if not found
 		 * 
@@ -170,12 +195,26 @@ public final class PersistentHashMap<K,V> extends APersistentMap<K,V> {
 				
 		private final PHMNode<K,V>[] data;
 		private final int shift;
-		private final int count;	
+		private int count; // only changed while owned by a transient edit
+		private final transient Object edit;
 		
 		protected PHMFullNode(PHMNode<K,V>[] newData, int newShift) {
 			data=newData;
 			shift=newShift;
 			count=countEntries();
+			edit=null;
+		}
+		
+		private PHMFullNode(PHMNode<K,V>[] newData, int newShift, int newCount, Object edit) {
+			data=newData;
+			shift=newShift;
+			count=newCount;
+			this.edit=edit;
+		}
+		
+		private PHMFullNode<K,V> editable(Object edit) {
+			if (this.edit==edit) return this;
+			return new PHMFullNode<K, V>(data.clone(),shift,count,edit);
 		}
 		
 		private static final int slotFromHash(int hash, int shift) {
@@ -245,6 +284,19 @@ public final class PersistentHashMap<K,V> extends APersistentMap<K,V> {
 			return replace(i,dn);
 		}
 		
+		@Override
+		protected PHMNode<K, V> includeTransient(Object edit, K key, V value, int hash, int shift) {
+			int i=slotFromHash(hash,shift);
+			PHMNode<K,V> n=data[i];
+			int oldSize=n.size();
+			PHMNode<K, V> dn=n.includeTransient(edit, key, value, hash, shift+SHIFT_AMOUNT);
+			if ((dn==n)&&(dn.size()==oldSize)) return this;
+			PHMFullNode<K,V> en=editable(edit);
+			en.data[i]=dn;
+			en.count+=dn.size()-oldSize;
+			return en;
+		}
+		
 		/*
 		@SuppressWarnings("unchecked")
 		protected static <K,V> PHMFullNode<K,V> concat(PHMNode a, int ha, PHMNode b, int hb, int shift) {
@@ -311,17 +363,32 @@ public final class PersistentHashMap<K,V> extends APersistentMap<K,V> {
 		private static final long serialVersionUID = -4936128089990848344L;
 		
 		
-		private final PHMNode<K,V>[] data;
+		// data, count and bitmap are only changed while owned by a transient edit
+		private PHMNode<K,V>[] data;
 		private final int shift;
-		private final int count;
-		private final int bitmap; // bitmap indicating which slots are present in data array
-		
+		private int count;
+		private int bitmap; // bitmap indicating which slots are present in data array
+		private final transient Object edit;
 		
 		private PHMBitMapNode(PHMNode<K,V>[] newData, int newShift, int newBitmap) {
 			data=newData;
 			shift=newShift;
 			bitmap=newBitmap;
 			count=countEntries();
+			edit=null;
+		}
+		
+		private PHMBitMapNode(PHMNode<K,V>[] newData, int newShift, int newBitmap, int newCount, Object edit) {
+			data=newData;
+			shift=newShift;
+			bitmap=newBitmap;
+			count=newCount;
+			this.edit=edit;
+		}
+		
+		private PHMBitMapNode<K,V> editable(Object edit) {
+			if (this.edit==edit) return this;
+			return new PHMBitMapNode<K, V>(data.clone(),shift,bitmap,count,edit);
 		}
 		
 		public static final int indexFromSlot(int slot, int bm) {
@@ -421,6 +488,35 @@ public final class PersistentHashMap<K,V> extends APersistentMap<K,V> {
 			return replace(i,n.include(key, value, hash, shift+SHIFT_AMOUNT));
 		}
 		
+		@SuppressWarnings("unchecked")
+		@Override
+		protected PHMNode<K, V> includeTransient(Object edit, K key, V value, int hash, int shift) {
+			int s=slotFromHash(hash,shift);
+			int i=indexFromSlot(s,bitmap);
+			if (((1<<s)&bitmap)==0) {
+				PHMNode<K,V>[] newData=new PHMNode[data.length+1];
+				System.arraycopy(data, 0, newData, 0, i);
+				System.arraycopy(data, i, newData, i+1, data.length-i);
+				newData[i]=new PHMEntry<K, V>(key,value);
+				if (data.length==DATA_SIZE-1) {
+					return new PHMFullNode<K, V>(newData,this.shift,count+1,edit);
+				}
+				PHMBitMapNode<K,V> en=editable(edit);
+				en.data=newData;
+				en.bitmap|=(1<<s);
+				en.count++;
+				return en;
+			}
+			PHMNode<K,V> n=data[i];
+			int oldSize=n.size();
+			PHMNode<K, V> dn=n.includeTransient(edit, key, value, hash, shift+SHIFT_AMOUNT);
+			if ((dn==n)&&(dn.size()==oldSize)) return this;
+			PHMBitMapNode<K,V> en=editable(edit);
+			en.data[i]=dn;
+			en.count+=dn.size()-oldSize;
+			return en;
+		}
+		
 		@SuppressWarnings("unchecked")
 		protected PHMNode<K, V> insertSlot(int i, int s, PHMNode<K,V> node) {
 			PHMNode<K,V>[] newData=new PHMNode[data.length+1];
@@ -915,20 +1011,20 @@ public final class PersistentHashMap<K,V> extends APersistentMap<K,V> {
 			return include((PersistentHashMap<K,V>)values);
 		}
 		
-		APersistentMap<K, V> pm=this;
+		Transient<K,V> t=asTransient();
 		for (Map.Entry<K, V> entry:values.entrySet()) {
-			pm=pm.assoc(entry.getKey(),entry.getValue());
+			t.assoc(entry.getKey(),entry.getValue());
 		}
-		return pm;
+		return t.persistent(this);
 	}
 	
 	public APersistentMap<K, V> include(PersistentHashMap<K, V> values) {
 		// TODO: Consider fast node-level merging implementation
-		PersistentHashMap<K, V> pm=this;
+		Transient<K,V> t=asTransient();
 		for (Map.Entry<K, V> entry:values.entrySet()) {
-			pm=pm.assoc(entry.getKey(),entry.getValue());
+			t.assoc(entry.getKey(),entry.getValue());
 		}
-		return pm;
+		return t.persistent(this);
 	}
 
 	@Override
@@ -948,6 +1044,80 @@ public final class PersistentHashMap<K,V> extends APersistentMap<K,V> {
 	public boolean allowsNullKey() {
 		return false;
 	}
+	
+	/**
+	 * Transient edition of a PersistentHashMap, for efficient construction of maps with
+	 * many entries.
+	 * 
+	 * Nodes created by a transient are owned by its edit token, and are updated in place by
+	 * subsequent operations rather than copied. persistent() releases the token in O(1) time, 
+	 * after which the transient may no longer be used. 
+	 * 
+	 * Transients are not thread safe and should be confined to a single thread.
+	 *
+	 * @param <K> Key type
+	 * @param <V> Value type
+	 */
+	public static final class Transient<K,V> {
+		private Object edit=new Object();
+		private PHMNode<K,V> root;
+		
+		private Transient(PHMNode<K,V> root) {
+			this.root=root;
+		}
+		
+		private void ensureEditable() {
+			if (edit==null) throw new IllegalStateException("Transient used after call to persistent()");
+		}
+		
+		public Transient<K,V> assoc(K key, V value) {
+			ensureEditable();
+			root=root.includeTransient(edit, key, value, RT.hashCode(key), 0);
+			return this;
+		}
+		
+		public Transient<K,V> include(Map<K,V> values) {
+			for (Map.Entry<K, V> entry:values.entrySet()) {
+				assoc(entry.getKey(),entry.getValue());
+			}
+			return this;
+		}
+		
+		public V get(K key) {
+			ensureEditable();
+			PHMEntry<K,V> entry=root.getEntry(key);
+			if (entry!=null) return entry.getValue();
+			return null;
+		}
+		
+		public int size() {
+			ensureEditable();
+			return root.size();
+		}
+		
+		/**
+		 * Returns a persistent map containing the entries of this transient. The transient
+		 * may not be used afterwards.
+		 */
+		public PersistentHashMap<K,V> persistent() {
+			ensureEditable();
+			edit=null;
+			if (root==EMPTY_NODE_LIST) return create();
+			return new PersistentHashMap<K, V>(root);
+		}
+		
+		/**
+		 * Returns the original map if this transient made no changes to it
+		 */
+		private PersistentHashMap<K,V> persistent(PersistentHashMap<K,V> original) {
+			if (root==original.root) {
+				ensureEditable();
+				edit=null;
+				return original;
+			}
+			return persistent();
+		}
+	}
 
 
 }
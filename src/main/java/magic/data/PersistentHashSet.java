@@ -51,28 +51,43 @@ public final class PersistentHashSet<T> extends BasePersistentSet<T> {
 
 	@SuppressWarnings("unchecked")
 	public static<T> PersistentHashSet<T> createFromSet(Set<? extends T> values) {
-		PersistentHashSet<T> pm=(PersistentHashSet<T>) EMPTY;
-		if (values==null) return pm;
+		if (values==null) return (PersistentHashSet<T>) EMPTY;
+		Transient<T> t=createTransient();
 		for (T ent: values) {
-			pm=pm.include(ent);
+			t.include(ent);
 		}
-		return pm;
+		return t.persistent();
 	}
 	
 	public static<T> PersistentHashSet<T> createFromIterator(Iterator<T> iterator) {
-		PersistentHashSet<T> pm=new PersistentHashSet<T>();
+		Transient<T> t=createTransient();
 		while(iterator.hasNext()) {
-			pm=pm.include(iterator.next());
+			t.include(iterator.next());
 		}
-		return pm;
+		return t.persistent();
 	}
 	
 	public static <T> PersistentHashSet<T> create(T[] values) {
-		PersistentHashSet<T> pm=new PersistentHashSet<T>();
+		Transient<T> t=createTransient();
 		for (int i=0; i<values.length; i++) {
-			pm=pm.include(values[i]);
+			t.include(values[i]);
 		}
-		return pm;
+		return t.persistent();
+	}
+	
+	/**
+	 * Creates an empty transient set, for efficient construction of a set with many values
+	 */
+	@SuppressWarnings("unchecked")
+	public static<T> Transient<T> createTransient() {
+		return new Transient<T>((PHSNode<T>) EMPTY_NODE_LIST);
+	}
+	
+	/**
+	 * Returns a transient copy of this set. This set is not affected by changes to the transient.
+	 */
+	public Transient<T> asTransient() {
+		return new Transient<T>(root);
 	}
 	
 	public static <T> PersistentHashSet<T> create() {
@@ -116,6 +131,18 @@ public final class PersistentHashSet<T> extends BasePersistentSet<T> {
 		protected abstract PHSNode<T> include(T key, int hash, int shift);
 		
 		protected abstract PHSNode<T> include(PHSEntry<T> entry, int hash, int shift);
+		
+		/**
+		 * Includes the key as part of a transient edit. Nodes owned by the edit token may be 
+		 * updated in place, and new nodes may be created owned by the token.
+		 * 
+		 * Default implementation is a persistent include.
+		 * 
+		 * @return The updated node, which may be this node
+		 */
+		protected PHSNode<T> includeTransient(Object edit, T key, int hash, int shift) {
+			return include(key,hash,shift);
+		}
 
 		
 		/**
@@ -186,13 +213,26 @@ public final class PersistentHashSet<T> extends BasePersistentSet<T> {
 		
 		private final PHSNode<T>[] data;
 		private final int shift;
-		private final int count;
-		
+		private int count; // only changed while owned by a transient edit
+		private final transient Object edit;
 		
 		protected PHSFullNode(PHSNode<T>[] newData, int newShift) {
 			data=newData;
 			shift=newShift;
 			count=countEntries();
+			edit=null;
+		}
+		
+		private PHSFullNode(PHSNode<T>[] newData, int newShift, int newCount, Object edit) {
+			data=newData;
+			shift=newShift;
+			count=newCount;
+			this.edit=edit;
+		}
+		
+		private PHSFullNode<T> editable(Object edit) {
+			if (this.edit==edit) return this;
+			return new PHSFullNode<T>(data.clone(),shift,count,edit);
 		}
 		
 		private static final int slotFromHash(int hash, int shift) {
@@ -262,6 +302,19 @@ public final class PersistentHashSet<T> extends BasePersistentSet<T> {
 			return replace(i,dn);
 		}
 		
+		@Override
+		protected PHSNode<T> includeTransient(Object edit, T key, int hash, int shift) {
+			int i=slotFromHash(hash,shift);
+			PHSNode<T> n=data[i];
+			int oldSize=n.size();
+			PHSNode<T> dn=n.includeTransient(edit, key, hash, shift+SHIFT_AMOUNT);
+			if ((dn==n)&&(dn.size()==oldSize)) return this;
+			PHSFullNode<T> en=editable(edit);
+			en.data[i]=dn;
+			en.count+=dn.size()-oldSize;
+			return en;
+		}
+		
 		@Override
 		protected PHSNode<T> include(PHSEntry<T> entry, int hash, int shift) {
 			int i=slotFromHash(hash,shift);
@@ -318,17 +371,32 @@ public final class PersistentHashSet<T> extends BasePersistentSet<T> {
 		private static final long serialVersionUID = -4936128089990848344L;
 		
 		
-		private final PHSNode<T>[] data;
+		// data, count and bitSet are only changed while owned by a transient edit
+		private PHSNode<T>[] data;
 		private final int shift;
-		private final int count;
-		private final int bitSet; // bitSet indicating which slots are present in data array
-		
+		private int count;
+		private int bitSet; // bitSet indicating which slots are present in data array
+		private final transient Object edit;
 		
 		private PHSBitSetNode(PHSNode<T>[] newData, int newShift, int newBitSet) {
 			data=newData;
 			shift=newShift;
 			bitSet=newBitSet;
 			count=countEntries();
+			edit=null;
+		}
+		
+		private PHSBitSetNode(PHSNode<T>[] newData, int newShift, int newBitSet, int newCount, Object edit) {
+			data=newData;
+			shift=newShift;
+			bitSet=newBitSet;
+			count=newCount;
+			this.edit=edit;
+		}
+		
+		private PHSBitSetNode<T> editable(Object edit) {
+			if (this.edit==edit) return this;
+			return new PHSBitSetNode<T>(data.clone(),shift,bitSet,count,edit);
 		}
 		
 		public static final int indexFromSlot(int slot, int bm) {
@@ -440,6 +508,35 @@ public final class PersistentHashSet<T> extends BasePersistentSet<T> {
 			return replace(i,n.include(entry, hash, shift+SHIFT_AMOUNT));
 		}
 		
+		@SuppressWarnings("unchecked")
+		@Override
+		protected PHSNode<T> includeTransient(Object edit, T key, int hash, int shift) {
+			int s=slotFromHash(hash,shift);
+			int i=indexFromSlot(s,bitSet);
+			if (((1<<s)&bitSet)==0) {
+				PHSNode<T>[] newData=new PHSNode[data.length+1];
+				System.arraycopy(data, 0, newData, 0, i);
+				System.arraycopy(data, i, newData, i+1, data.length-i);
+				newData[i]=new PHSEntry<T>(key);
+				if (data.length==DATA_SIZE-1) {
+					return new PHSFullNode<T>(newData,this.shift,count+1,edit);
+				}
+				PHSBitSetNode<T> en=editable(edit);
+				en.data=newData;
+				en.bitSet|=(1<<s);
+				en.count++;
+				return en;
+			}
+			PHSNode<T> n=data[i];
+			int oldSize=n.size();
+			PHSNode<T> dn=n.includeTransient(edit, key, hash, shift+SHIFT_AMOUNT);
+			if ((dn==n)&&(dn.size()==oldSize)) return this;
+			PHSBitSetNode<T> en=editable(edit);
+			en.data[i]=dn;
+			en.count+=dn.size()-oldSize;
+			return en;
+		}
+		
 		@SuppressWarnings("unchecked")
 		protected PHSNode<T> insertSlot(int i, int s, PHSNode<T> node) {
 			PHSNode<T>[] newData=new PHSNode[data.length+1];
@@ -876,6 +973,15 @@ public final class PersistentHashSet<T> extends BasePersistentSet<T> {
 		return key.hashCode();
 	}
 	
+	@SuppressWarnings("unchecked")
+	@Override
+	public PersistentHashSet<T> includeAll(Collection<? extends T> values) {
+		if (values instanceof APersistentSet<?>) return includeAll((APersistentSet<? extends T>)values);
+		Transient<T> t=asTransient();
+		t.includeAll(values);
+		return t.persistent(this);
+	}
+	
 	@SuppressWarnings("unchecked")
 	@Override
 	public PersistentHashSet<T> includeAll(APersistentSet<? extends T> values) {
@@ -887,12 +993,12 @@ public final class PersistentHashSet<T> extends BasePersistentSet<T> {
 	
 	public PersistentHashSet<T> include(PersistentHashSet<T> values) {
 		// TODO: Consider fast node-level merging implementation
-		PersistentHashSet<T> pm=this;
+		Transient<T> t=asTransient();
 		PHSIterator<T> it=values.iterator();
 		while (it.hasNext()) {
-			pm=pm.include(it.next());
+			t.include(it.next());
 		}
-		return pm;
+		return t.persistent(this);
 	}
 
 
@@ -921,6 +1027,78 @@ public final class PersistentHashSet<T> extends BasePersistentSet<T> {
 		}
 		return createFromSet(values);
 	}
+	
+	/**
+	 * Transient edition of a PersistentHashSet, for efficient construction of sets with
+	 * many values.
+	 * 
+	 * Nodes created by a transient are owned by its edit token, and are updated in place by
+	 * subsequent operations rather than copied. persistent() releases the token in O(1) time, 
+	 * after which the transient may no longer be used. 
+	 * 
+	 * Transients are not thread safe and should be confined to a single thread.
+	 *
+	 * @param <T> Element type
+	 */
+	public static final class Transient<T> {
+		private Object edit=new Object();
+		private PHSNode<T> root;
+		
+		private Transient(PHSNode<T> root) {
+			this.root=root;
+		}
+		
+		private void ensureEditable() {
+			if (edit==null) throw new IllegalStateException("Transient used after call to persistent()");
+		}
+		
+		public Transient<T> include(T key) {
+			ensureEditable();
+			root=root.includeTransient(edit, key, calcHash(key), 0);
+			return this;
+		}
+		
+		public Transient<T> includeAll(Collection<? extends T> values) {
+			for (T value: values) {
+				include(value);
+			}
+			return this;
+		}
+		
+		public boolean contains(T key) {
+			ensureEditable();
+			return root.containsKey(key);
+		}
+		
+		public int size() {
+			ensureEditable();
+			return root.size();
+		}
+		
+		/**
+		 * Returns a persistent set containing the values of this transient. The transient
+		 * may not be used afterwards.
+		 */
+		@SuppressWarnings("unchecked")
+		public PersistentHashSet<T> persistent() {
+			ensureEditable();
+			edit=null;
+			if (root==EMPTY_NODE_LIST) return (PersistentHashSet<T>) EMPTY;
+			return new PersistentHashSet<T>(root);
+		}
+		
+		/**
+		 * Returns the original set if this transient made no changes to it
+		 */
+		private PersistentHashSet<T> persistent(PersistentHashSet<T> original) {
+			if (root==original.root) {
+				ensureEditable();
+				edit=null;
+				return original;
+			}
+			return persistent();
+		}
+	}
 
 
 
@@ -66,17 +66,17 @@ public class PersistentList<T> extends APersistentList<T> {
 
 	@Override
 	public APersistentList<T> insert(int index, T value) {
-		return create(vector.insert(offset+index,value),offset,size+1);
+		return create(RRBVector.coerce(vector).insert(offset+index,value),offset,size+1);
 	}
 
 	@Override
 	public APersistentList<T> insertAll(int index, Collection<? extends T> values) {
-		return create(vector.insertAll(offset+index,values),offset,size+values.size());
+		return create(RRBVector.coerce(vector).insertAll(offset+index,values),offset,size+values.size());
 	}
 
 	@Override
 	public APersistentList<T> insertAll(int index, IPersistentList<? extends T> values) {
-		return create(vector.insertAll(offset+index,values),offset,size+values.size());
+		return create(RRBVector.coerce(vector).insertAll(offset+index,values),offset,size+values.size());
 	}
 
 	@Override
@@ -91,13 +91,13 @@ public class PersistentList<T> extends APersistentList<T> {
 
 	@Override
 	public APersistentList<T> deleteAt(int index) {
-		return create(vector.deleteAt(index+offset),offset,size-1);
+		return create(RRBVector.coerce(vector).deleteAt(index+offset),offset,size-1);
 	}
 
 	@Override
 	public APersistentList<T> deleteRange(int startIndex, int endIndex) {
-		int nDeleted=endIndex=startIndex;
-		return create(vector.deleteRange(startIndex+offset,endIndex+offset),offset,size-nDeleted);
+		int nDeleted=endIndex-startIndex;
+		return create(RRBVector.coerce(vector).deleteRange(startIndex+offset,endIndex+offset),offset,size-nDeleted);
 	}
 
 
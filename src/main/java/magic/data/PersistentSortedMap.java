@@ -0,0 +1,765 @@
+package magic.data;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.SortedMap;
+
+import magic.RT;
+import magic.data.impl.ASeq;
+import magic.data.impl.BasePersistentSet;
+import magic.lang.Tools.DefaultComparator;
+
+/**
+ * Persistent sorted map implemented as a red-black tree.
+ *
+ * Insertion uses Okasaki's balancing scheme and deletion follows Kahrs, so that updates copy
+ * only the O(log n) nodes on the path to the changed key. Keys are ordered by a comparator,
+ * which defaults to the natural ordering of the keys. Null keys are not permitted.
+ *
+ * Nearest-key lookups and range seqs run in O(log n) time to the first result. Sub-maps are
+ * built directly from the ordered range in O(log n + k) time without re-balancing.
+ *
+ * @author Mike
+ *
+ * @param <K> Key type
+ * @param <V> Value type
+ */
+public final class PersistentSortedMap<K,V> extends APersistentMap<K,V> implements SortedMap<K,V> {
+	private static final long serialVersionUID = -2868430212733590823L;
+
+	private static final Comparator<Object> DEFAULT_COMPARATOR=new DefaultComparator<Object>();
+
+	public static final PersistentSortedMap<?,?> EMPTY=new PersistentSortedMap<Object,Object>(DEFAULT_COMPARATOR,null,0);
+
+	private final Comparator<? super K> comparator;
+	private final Node root;
+	private final int size;
+
+	/**
+	 * Cached hash code, or zero if not yet computed
+	 */
+	private transient int hash;
+
+	private PersistentSortedMap(Comparator<? super K> comparator, Node root, int size) {
+		this.comparator=comparator;
+		this.root=root;
+		this.size=size;
+	}
+
+	@SuppressWarnings("unchecked")
+	public static <K,V> PersistentSortedMap<K,V> create() {
+		return (PersistentSortedMap<K, V>) EMPTY;
+	}
+
+	/**
+	 * Creates an empty sorted map ordered by the given comparator
+	 */
+	public static <K,V> PersistentSortedMap<K,V> create(Comparator<? super K> comparator) {
+		return new PersistentSortedMap<K,V>(comparator,null,0);
+	}
+
+	@SuppressWarnings("unchecked")
+	public static <K,V> PersistentSortedMap<K,V> create(Map<K,V> values) {
+		if (values instanceof PersistentSortedMap<?,?>) return (PersistentSortedMap<K, V>) values;
+		PersistentSortedMap<K,V> pm=create();
+		for (Map.Entry<K,V> ent: values.entrySet()) {
+			pm=pm.assoc(ent.getKey(),ent.getValue());
+		}
+		return pm;
+	}
+
+	/**
+	 * Tree node. Empty trees are represented by null.
+	 */
+	private static final class Node implements Serializable {
+		private static final long serialVersionUID = 6372938440578012045L;
+
+		final Object key;
+		final Object value;
+		final Node left;
+		final Node right;
+		final boolean red;
+
+		Node(Object key, Object value, Node left, Node right, boolean red) {
+			this.key=key;
+			this.value=value;
+			this.left=left;
+			this.right=right;
+			this.red=red;
+		}
+
+		Node blacken() {
+			return red?new Node(key,value,left,right,false):this;
+		}
+
+		Node redden() {
+			return red?this:new Node(key,value,left,right,true);
+		}
+	}
+
+	private static boolean isRed(Node n) {
+		return (n!=null)&&n.red;
+	}
+
+	private static boolean isBlack(Node n) {
+		return (n!=null)&&!n.red;
+	}
+
+	private static Node red(Object key, Object value, Node left, Node right) {
+		return new Node(key,value,left,right,true);
+	}
+
+	private static Node black(Object key, Object value, Node left, Node right) {
+		return new Node(key,value,left,right,false);
+	}
+
+	@SuppressWarnings("unchecked")
+	private int compare(Object a, Object b) {
+		return comparator.compare((K)a, (K)b);
+	}
+
+	/**
+	 * Builds a black node, fixing any red-red violation in a child or grandchild
+	 */
+	private static Node balance(Node l, Object key, Object value, Node r) {
+		if (isRed(l)) {
+			if (isRed(r)) return red(key,value,l.blacken(),r.blacken());
+			if (isRed(l.left)) return red(l.key,l.value,l.left.blacken(),black(key,value,l.right,r));
+			if (isRed(l.right)) {
+				Node lr=l.right;
+				return red(lr.key,lr.value,black(l.key,l.value,l.left,lr.left),black(key,value,lr.right,r));
+			}
+		}
+		if (isRed(r)) {
+			if (isRed(r.right)) return red(r.key,r.value,black(key,value,l,r.left),r.right.blacken());
+			if (isRed(r.left)) {
+				Node rl=r.left;
+				return red(rl.key,rl.value,black(key,value,l,rl.left),black(r.key,r.value,rl.right,r.right));
+			}
+		}
+		return black(key,value,l,r);
+	}
+
+	/**
+	 * Rebalances after deletion from a black left subtree has reduced its black height
+	 */
+	private static Node balanceLeft(Node l, Object key, Object value, Node r) {
+		if (isRed(l)) return red(key,value,l.blacken(),r);
+		if (isBlack(r)) return balance(l,key,value,r.redden());
+		if (isRed(r)&&isBlack(r.left)) {
+			Node rl=r.left;
+			return red(rl.key,rl.value,black(key,value,l,rl.left),balance(rl.right,r.key,r.value,r.right.redden()));
+		}
+		throw new Error("Red-black invariant violated");
+	}
+
+	/**
+	 * Rebalances after deletion from a black right subtree has reduced its black height
+	 */
+	private static Node balanceRight(Node l, Object key, Object value, Node r) {
+		if (isRed(r)) return red(key,value,l,r.blacken());
+		if (isBlack(l)) return balance(l.redden(),key,value,r);
+		if (isRed(l)&&isBlack(l.right)) {
+			Node lr=l.right;
+			return red(lr.key,lr.value,balance(l.left.redden(),l.key,l.value,lr.left),black(key,value,lr.right,r));
+		}
+		throw new Error("Red-black invariant violated");
+	}
+
+	/**
+	 * Joins two subtrees of equal black height, where all keys in l precede all keys in r
+	 */
+	private static Node append(Node l, Node r) {
+		if (l==null) return r;
+		if (r==null) return l;
+		if (l.red) {
+			if (r.red) {
+				Node m=append(l.right,r.left);
+				if (isRed(m)) return red(m.key,m.value,red(l.key,l.value,l.left,m.left),red(r.key,r.value,m.right,r.right));
+				return red(l.key,l.value,l.left,red(r.key,r.value,m,r.right));
+			}
+			return red(l.key,l.value,l.left,append(l.right,r));
+		}
+		if (r.red) return red(r.key,r.value,append(l,r.left),r.right);
+		Node m=append(l.right,r.left);
+		if (isRed(m)) return red(m.key,m.value,black(l.key,l.value,l.left,m.left),black(r.key,r.value,m.right,r.right));
+		return balanceLeft(l.left,l.key,l.value,black(r.key,r.value,m,r.right));
+	}
+
+	private Node insert(Node t, Object key, Object value, boolean[] added) {
+		if (t==null) {
+			added[0]=true;
+			return red(key,value,null,null);
+		}
+		int c=compare(key,t.key);
+		if (c<0) {
+			Node l=insert(t.left,key,value,added);
+			if (l==t.left) return t;
+			if (t.red||!added[0]) return new Node(t.key,t.value,l,t.right,t.red);
+			return balance(l,t.key,t.value,t.right);
+		} else if (c>0) {
+			Node r=insert(t.right,key,value,added);
+			if (r==t.right) return t;
+			if (t.red||!added[0]) return new Node(t.key,t.value,t.left,r,t.red);
+			return balance(t.left,t.key,t.value,r);
+		} else {
+			if (t.value==value) return t;
+			return new Node(t.key,value,t.left,t.right,t.red);
+		}
+	}
+
+	private Node remove(Node t, Object key, boolean[] removed) {
+		if (t==null) return null;
+		int c=compare(key,t.key);
+		if (c==0) {
+			removed[0]=true;
+			return append(t.left,t.right);
+		}
+		if (c<0) {
+			Node l=remove(t.left,key,removed);
+			if (!removed[0]) return t;
+			if (isBlack(t.left)) return balanceLeft(l,t.key,t.value,t.right);
+			return red(t.key,t.value,l,t.right);
+		} else {
+			Node r=remove(t.right,key,removed);
+			if (!removed[0]) return t;
+			if (isBlack(t.right)) return balanceRight(t.left,t.key,t.value,r);
+			return red(t.key,t.value,t.left,r);
+		}
+	}
+
+	private Node findNode(Object key) {
+		if (key==null) return null;
+		Node t=root;
+		while (t!=null) {
+			int c=compare(key,t.key);
+			if (c==0) return t;
+			t=(c<0)?t.left:t.right;
+		}
+		return null;
+	}
+
+	/**
+	 * Finds the node with the greatest key less than (or equal to, if inclusive) the given key
+	 */
+	private Node floorNode(Object key, boolean inclusive) {
+		Node t=root;
+		Node best=null;
+		while (t!=null) {
+			int c=compare(key,t.key);
+			if ((c==0)&&inclusive) return t;
+			if (c>0) {
+				best=t;
+				t=t.right;
+			} else {
+				t=t.left;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Finds the node with the least key greater than (or equal to, if inclusive) the given key
+	 */
+	private Node ceilingNode(Object key, boolean inclusive) {
+		Node t=root;
+		Node best=null;
+		while (t!=null) {
+			int c=compare(key,t.key);
+			if ((c==0)&&inclusive) return t;
+			if (c<0) {
+				best=t;
+				t=t.left;
+			} else {
+				t=t.right;
+			}
+		}
+		return best;
+	}
+
+	@SuppressWarnings("unchecked")
+	private Map.Entry<K,V> entry(Node n) {
+		if (n==null) return null;
+		return MapEntry.create((K)n.key,(V)n.value);
+	}
+
+	@SuppressWarnings("unchecked")
+	private K key(Node n) {
+		if (n==null) return null;
+		return (K)n.key;
+	}
+
+	/**
+	 * Builds a balanced tree from ordered keys and values. Nodes on the lowest level are
+	 * coloured red when it is incomplete, so that all paths have the same black height.
+	 */
+	private static Node build(Object[] keys, Object[] values, int start, int end, int depth, int redDepth) {
+		if (start>=end) return null;
+		int mid=(start+end)>>>1;
+		Node l=build(keys,values,start,mid,depth+1,redDepth);
+		Node r=build(keys,values,mid+1,end,depth+1,redDepth);
+		return new Node(keys[mid],values[mid],l,r,depth==redDepth);
+	}
+
+	private PersistentSortedMap<K,V> range(Object from, Object to) {
+		if ((from!=null)&&(to!=null)&&(compare(from,to)>0)) throw new IllegalArgumentException("Range start is after range end");
+		ArrayList<Object> keys=new ArrayList<Object>();
+		ArrayList<Object> values=new ArrayList<Object>();
+		NodeIterator<Node> it=new NodeIterator<Node>(from,to) {
+			@Override
+			protected Node get(Node n) {
+				return n;
+			}
+		};
+		while (it.hasNext()) {
+			Node node=it.next();
+			keys.add(node.key);
+			values.add(node.value);
+		}
+		int n=keys.size();
+		if (n==size) return this;
+		int redDepth=31-Integer.numberOfLeadingZeros(n+1);
+		Node newRoot=build(keys.toArray(),values.toArray(),0,n,0,redDepth);
+		return new PersistentSortedMap<K,V>(comparator,newRoot,n);
+	}
+
+	/*
+	 *  Sorted map methods
+	 */
+
+	@Override
+	public Comparator<? super K> comparator() {
+		return comparator;
+	}
+
+	/**
+	 * Returns a sorted map containing the entries with keys from fromKey (inclusive)
+	 * to toKey (exclusive)
+	 */
+	@Override
+	public PersistentSortedMap<K,V> subMap(K fromKey, K toKey) {
+		return range(fromKey,toKey);
+	}
+
+	@Override
+	public PersistentSortedMap<K,V> headMap(K toKey) {
+		return range(null,toKey);
+	}
+
+	@Override
+	public PersistentSortedMap<K,V> tailMap(K fromKey) {
+		return range(fromKey,null);
+	}
+
+	/**
+	 * Returns a lazy seq of the entries with keys from fromKey (inclusive) to toKey (exclusive),
+	 * in key order. Either bound may be null to leave the range open at that end.
+	 * Returns null if the range is empty.
+	 */
+	public ISeq<Map.Entry<K,V>> rangeSeq(K fromKey, K toKey) {
+		return RangeSeq.create(this,fromKey,toKey,false);
+	}
+
+	/**
+	 * Returns a lazy seq of the keys from fromKey (inclusive) to toKey (exclusive), in order.
+	 * Either bound may be null to leave the range open at that end.
+	 * Returns null if the range is empty.
+	 */
+	public ISeq<K> keySeq(K fromKey, K toKey) {
+		return RangeSeq.create(this,fromKey,toKey,true);
+	}
+
+	@Override
+	public K firstKey() {
+		if (root==null) throw new NoSuchElementException();
+		return key(firstNode());
+	}
+
+	@Override
+	public K lastKey() {
+		if (root==null) throw new NoSuchElementException();
+		return key(lastNode());
+	}
+
+	private Node firstNode() {
+		Node t=root;
+		if (t==null) return null;
+		while (t.left!=null) t=t.left;
+		return t;
+	}
+
+	private Node lastNode() {
+		Node t=root;
+		if (t==null) return null;
+		while (t.right!=null) t=t.right;
+		return t;
+	}
+
+	/**
+	 * Returns the entry with the least key, or null if the map is empty
+	 */
+	public Map.Entry<K,V> firstEntry() {
+		return entry(firstNode());
+	}
+
+	/**
+	 * Returns the entry with the greatest key, or null if the map is empty
+	 */
+	public Map.Entry<K,V> lastEntry() {
+		return entry(lastNode());
+	}
+
+	/**
+	 * Returns the entry with the greatest key less than or equal to the given key, or null if none
+	 */
+	public Map.Entry<K,V> floorEntry(K key) {
+		return entry(floorNode(key,true));
+	}
+
+	/**
+	 * Returns the entry with the least key greater than or equal to the given key, or null if none
+	 */
+	public Map.Entry<K,V> ceilingEntry(K key) {
+		return entry(ceilingNode(key,true));
+	}
+
+	/**
+	 * Returns the entry with the greatest key strictly less than the given key, or null if none
+	 */
+	public Map.Entry<K,V> lowerEntry(K key) {
+		return entry(floorNode(key,false));
+	}
+
+	/**
+	 * Returns the entry with the least key strictly greater than the given key, or null if none
+	 */
+	public Map.Entry<K,V> higherEntry(K key) {
+		return entry(ceilingNode(key,false));
+	}
+
+	public K floorKey(K key) {
+		return key(floorNode(key,true));
+	}
+
+	public K ceilingKey(K key) {
+		return key(ceilingNode(key,true));
+	}
+
+	public K lowerKey(K key) {
+		return key(floorNode(key,false));
+	}
+
+	public K higherKey(K key) {
+		return key(ceilingNode(key,false));
+	}
+
+	/**
+	 * Iterator over the nodes of a key range, in order. Holds the path of nodes still to be
+	 * visited on an explicit stack.
+	 */
+	private abstract class NodeIterator<T> implements Iterator<T> {
+		private final Node[] stack;
+		private int depth=0;
+		private final Object to;
+
+		NodeIterator(Object from, Object to) {
+			// red-black tree height is at most 2*log2(n+1)
+			this.stack=new Node[2*(33-Integer.numberOfLeadingZeros(size))];
+			this.to=to;
+			Node t=root;
+			while (t!=null) {
+				if ((from==null)||(compare(from,t.key)<=0)) {
+					stack[depth++]=t;
+					t=t.left;
+				} else {
+					t=t.right;
+				}
+			}
+			checkEnd();
+		}
+
+		private void checkEnd() {
+			if ((to!=null)&&(depth>0)&&(compare(stack[depth-1].key,to)>=0)) depth=0;
+		}
+
+		protected abstract T get(Node n);
+
+		@Override
+		public boolean hasNext() {
+			return depth>0;
+		}
+
+		@Override
+		public T next() {
+			if (depth==0) throw new NoSuchElementException();
+			Node n=stack[--depth];
+			for (Node t=n.right; t!=null; t=t.left) {
+				stack[depth++]=t;
+			}
+			checkEnd();
+			return get(n);
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * Immutable stack of nodes, used as the state of a RangeSeq
+	 */
+	private static final class Path {
+		final Node node;
+		final Path next;
+
+		Path(Node node, Path next) {
+			this.node=node;
+			this.next=next;
+		}
+
+		static Path pushLeft(Node t, Path p) {
+			for (; t!=null; t=t.left) {
+				p=new Path(t,p);
+			}
+			return p;
+		}
+	}
+
+	/**
+	 * Lazy seq over a key range. Each step only pushes the left spine of the next right subtree.
+	 */
+	private static final class RangeSeq<T> extends ASeq<T> {
+		private final PersistentSortedMap<?,?> map;
+		private final Path path;
+		private final Object to;
+		private final boolean keys;
+
+		private RangeSeq(PersistentSortedMap<?,?> map, Path path, Object to, boolean keys) {
+			this.map=map;
+			this.path=path;
+			this.to=to;
+			this.keys=keys;
+		}
+
+		private static <T> RangeSeq<T> seq(PersistentSortedMap<?,?> map, Path path, Object to, boolean keys) {
+			if (path==null) return null;
+			if ((to!=null)&&(map.compare(path.node.key,to)>=0)) return null;
+			return new RangeSeq<T>(map,path,to,keys);
+		}
+
+		static <T> RangeSeq<T> create(PersistentSortedMap<?,?> map, Object from, Object to, boolean keys) {
+			Path p=null;
+			Node t=map.root;
+			while (t!=null) {
+				if ((from==null)||(map.compare(from,t.key)<=0)) {
+					p=new Path(t,p);
+					t=t.left;
+				} else {
+					t=t.right;
+				}
+			}
+			return seq(map,p,to,keys);
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public T first() {
+			Node n=path.node;
+			if (keys) return (T)n.key;
+			return (T)MapEntry.create(n.key,n.value);
+		}
+
+		@Override
+		public ISeq<T> next() {
+			return seq(map,Path.pushLeft(path.node.right,path.next),to,keys);
+		}
+	}
+
+	/**
+	 * EntrySet implementation
+	 */
+	protected final class SortedEntrySet extends BasePersistentSet<Map.Entry<K,V>> {
+		private static final long serialVersionUID = 4719620316012390311L;
+
+		@Override
+		public int size() {
+			return size;
+		}
+
+		@Override
+		public boolean contains(Object o) {
+			if (!(o instanceof Map.Entry<?,?>)) return false;
+			Map.Entry<?,?> ent=(Map.Entry<?,?>)o;
+			Node n=findNode(ent.getKey());
+			return (n!=null)&&RT.equals(n.value, ent.getValue());
+		}
+
+		@Override
+		public Iterator<Map.Entry<K, V>> iterator() {
+			return new NodeIterator<Map.Entry<K, V>>(null,null) {
+				@Override
+				protected Map.Entry<K, V> get(Node n) {
+					return entry(n);
+				}
+			};
+		}
+
+		@Override
+		public APersistentSet<Map.Entry<K, V>> include(Map.Entry<K, V> value) {
+			return Sets.create(this).include(value);
+		}
+	}
+
+	Iterator<K> keyIterator(K from, K to) {
+		return new NodeIterator<K>(from,to) {
+			@Override
+			protected K get(Node n) {
+				return key(n);
+			}
+		};
+	}
+
+	/*
+	 *  IPersistentMap methods
+	 */
+
+	@Override
+	public boolean containsKey(Object key) {
+		return findNode(key)!=null;
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public V get(Object key) {
+		Node n=findNode(key);
+		return (n==null)?null:(V)n.value;
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public V valAt(K key, V notFound) {
+		Node n=findNode(key);
+		return (n==null)?notFound:(V)n.value;
+	}
+
+	@Override
+	public Map.Entry<K, V> getMapEntry(Object key) {
+		return entry(findNode(key));
+	}
+
+	@Override
+	public APersistentSet<Map.Entry<K, V>> entrySet() {
+		return new SortedEntrySet();
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public PersistentSortedSet<K> keySet() {
+		return PersistentSortedSet.wrap((PersistentSortedMap<K,Object>)this);
+	}
+
+	@Override
+	public APersistentCollection<V> values() {
+		PersistentVector.Transient<V> t=PersistentVector.createTransient();
+		Iterator<V> it=new NodeIterator<V>(null,null) {
+			@SuppressWarnings("unchecked")
+			@Override
+			protected V get(Node n) {
+				return (V)n.value;
+			}
+		};
+		while (it.hasNext()) {
+			t.include(it.next());
+		}
+		return Lists.coerce(t.persistent());
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public PersistentSortedMap<K, V> assoc(K key, V value) {
+		if (key==null) throw new IllegalArgumentException("Null keys not supported in sorted map");
+		boolean[] added=new boolean[1];
+		Node newRoot=insert(root,key,value,added);
+		if (newRoot==root) return this;
+		return new PersistentSortedMap<K, V>(comparator,newRoot.blacken(),added[0]?size+1:size);
+	}
+
+	@Override
+	public PersistentSortedMap<K, V> dissoc(K key) {
+		if (key==null) return this;
+		boolean[] removed=new boolean[1];
+		Node newRoot=remove(root,key,removed);
+		if (!removed[0]) return this;
+		return new PersistentSortedMap<K, V>(comparator,(newRoot==null)?null:newRoot.blacken(),size-1);
+	}
+
+	@Override
+	public int hashCode() {
+		int h=hash;
+		if ((h==0)&&(size>0)) {
+			h=super.hashCode();
+			hash=h;
+		}
+		return h;
+	}
+
+	@Override
+	public boolean equals(APersistentMap<K,V> pm) {
+		if (this==pm) return true;
+		if ((pm instanceof PersistentSortedMap<?,?>)&&(((PersistentSortedMap<K,V>)pm).comparator==comparator)) {
+			// same ordering, so entries can be compared in sequence
+			if (size!=pm.size()) return false;
+			Iterator<Map.Entry<K,V>> a=entrySet().iterator();
+			Iterator<Map.Entry<K,V>> b=pm.entrySet().iterator();
+			while (a.hasNext()) {
+				Map.Entry<K,V> ea=a.next();
+				Map.Entry<K,V> eb=b.next();
+				if (!RT.equals(ea.getKey(),eb.getKey())||!RT.equals(ea.getValue(),eb.getValue())) return false;
+			}
+			return true;
+		}
+		return super.equals(pm);
+	}
+
+	@Override
+	public boolean allowsNullKey() {
+		return false;
+	}
+
+	@Override
+	public void validate() {
+		super.validate();
+		if (isRed(root)) throw new Error("Red root");
+		validate(root);
+		int count=0;
+		Object last=null;
+		for (Iterator<K> it=keyIterator(null,null); it.hasNext(); ) {
+			K k=it.next();
+			if ((count>0)&&(compare(last,k)>=0)) throw new Error("Keys out of order at: "+k);
+			last=k;
+			count++;
+		}
+		if (count!=size) throw new Error("Wrong size");
+	}
+
+	/**
+	 * Checks red-black invariants, returning the black height of the subtree
+	 */
+	private static int validate(Node n) {
+		if (n==null) return 0;
+		if (n.red&&(isRed(n.left)||isRed(n.right))) throw new Error("Red node with red child");
+		int lh=validate(n.left);
+		int rh=validate(n.right);
+		if (lh!=rh) throw new Error("Unequal black height");
+		return lh+(n.red?0:1);
+	}
+}
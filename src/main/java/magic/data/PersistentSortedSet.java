@@ -0,0 +1,212 @@
+package magic.data;
+
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.SortedSet;
+
+import magic.data.impl.BasePersistentSet;
+
+/**
+ * Persistent sorted set, implemented as the key set of a PersistentSortedMap.
+ *
+ * Values are ordered by a comparator, which defaults to the natural ordering of the values.
+ * Null values are not permitted.
+ *
+ * @author Mike
+ *
+ * @param <T> Element type
+ */
+public final class PersistentSortedSet<T> extends BasePersistentSet<T> implements SortedSet<T> {
+	private static final long serialVersionUID = 8234061396521405977L;
+
+	public static final PersistentSortedSet<?> EMPTY=new PersistentSortedSet<Object>(PersistentSortedMap.<Object,Object>create());
+
+	/**
+	 * Map whose keys are the values of this set. Map values are ignored.
+	 */
+	private final PersistentSortedMap<T,Object> map;
+
+	/**
+	 * Cached hash code, or zero if not yet computed
+	 */
+	private transient int hash;
+
+	private PersistentSortedSet(PersistentSortedMap<T,Object> map) {
+		this.map=map;
+	}
+
+	static <T> PersistentSortedSet<T> wrap(PersistentSortedMap<T,Object> map) {
+		return new PersistentSortedSet<T>(map);
+	}
+
+	private PersistentSortedSet<T> withMap(PersistentSortedMap<T,Object> newMap) {
+		if (newMap==map) return this;
+		return new PersistentSortedSet<T>(newMap);
+	}
+
+	@SuppressWarnings("unchecked")
+	public static <T> PersistentSortedSet<T> create() {
+		return (PersistentSortedSet<T>) EMPTY;
+	}
+
+	/**
+	 * Creates an empty sorted set ordered by the given comparator
+	 */
+	public static <T> PersistentSortedSet<T> create(Comparator<? super T> comparator) {
+		return wrap(PersistentSortedMap.<T,Object>create(comparator));
+	}
+
+	@SuppressWarnings("unchecked")
+	public static <T> PersistentSortedSet<T> create(Collection<? extends T> values) {
+		if (values instanceof PersistentSortedSet<?>) return (PersistentSortedSet<T>) values;
+		return PersistentSortedSet.<T>create().includeAll(values);
+	}
+
+	@Override
+	public boolean contains(Object value) {
+		return map.containsKey(value);
+	}
+
+	@Override
+	public int size() {
+		return map.size();
+	}
+
+	@Override
+	public Iterator<T> iterator() {
+		return map.keyIterator(null,null);
+	}
+
+	@Override
+	public PersistentSortedSet<T> include(T value) {
+		if (map.containsKey(value)) return this;
+		return withMap(map.assoc(value,null));
+	}
+
+	@Override
+	public PersistentSortedSet<T> exclude(T value) {
+		return withMap(map.dissoc(value));
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public PersistentSortedSet<T> includeAll(Collection<? extends T> values) {
+		if (values instanceof APersistentSet<?>) return includeAll((APersistentSet<? extends T>)values);
+		PersistentSortedSet<T> ps=this;
+		for (T t: values) {
+			ps=ps.include(t);
+		}
+		return ps;
+	}
+
+	@Override
+	public PersistentSortedSet<T> includeAll(APersistentSet<? extends T> values) {
+		PersistentSortedSet<T> ps=this;
+		for (T t: values) {
+			ps=ps.include(t);
+		}
+		return ps;
+	}
+
+	@Override
+	public PersistentSortedSet<T> empty() {
+		if (size()==0) return this;
+		return create(map.comparator());
+	}
+
+	/*
+	 *  Sorted set methods
+	 */
+
+	@Override
+	public Comparator<? super T> comparator() {
+		return map.comparator();
+	}
+
+	/**
+	 * Returns a sorted set containing the values from fromValue (inclusive) to toValue (exclusive)
+	 */
+	@Override
+	public PersistentSortedSet<T> subSet(T fromValue, T toValue) {
+		return withMap(map.subMap(fromValue,toValue));
+	}
+
+	@Override
+	public PersistentSortedSet<T> headSet(T toValue) {
+		return withMap(map.headMap(toValue));
+	}
+
+	@Override
+	public PersistentSortedSet<T> tailSet(T fromValue) {
+		return withMap(map.tailMap(fromValue));
+	}
+
+	/**
+	 * Returns a lazy seq of the values from fromValue (inclusive) to toValue (exclusive), in order.
+	 * Either bound may be null to leave the range open at that end.
+	 * Returns null if the range is empty.
+	 */
+	public ISeq<T> rangeSeq(T fromValue, T toValue) {
+		return map.keySeq(fromValue,toValue);
+	}
+
+	@Override
+	public T first() {
+		return map.firstKey();
+	}
+
+	@Override
+	public T last() {
+		return map.lastKey();
+	}
+
+	/**
+	 * Returns the greatest value less than or equal to the given value, or null if none
+	 */
+	public T floor(T value) {
+		return map.floorKey(value);
+	}
+
+	/**
+	 * Returns the least value greater than or equal to the given value, or null if none
+	 */
+	public T ceiling(T value) {
+		return map.ceilingKey(value);
+	}
+
+	/**
+	 * Returns the greatest value strictly less than the given value, or null if none
+	 */
+	public T lower(T value) {
+		return map.lowerKey(value);
+	}
+
+	/**
+	 * Returns the least value strictly greater than the given value, or null if none
+	 */
+	public T higher(T value) {
+		return map.higherKey(value);
+	}
+
+	@Override
+	public int hashCode() {
+		int h=hash;
+		if ((h==0)&&(size()>0)) {
+			h=super.hashCode();
+			hash=h;
+		}
+		return h;
+	}
+
+	@Override
+	public boolean allowsNulls() {
+		return false;
+	}
+
+	@Override
+	public void validate() {
+		super.validate();
+		map.validate();
+	}
+}
@@ -1,6 +1,11 @@
 package magic.data;
 
+import java.io.Serializable;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+import magic.RT;
 
 /**
  * Persistent Vector constructed using fixed size blocks represented by other persistent lists
@@ -23,7 +28,7 @@ public final class PersistentVector<T> extends APersistentVector<T> {
 	private final int shift;
 	
 	/**
-	 * The size of the list
+	 * The size of the list stored in blocks, excluding the tail
 	 */
 	private final int size;
 	
@@ -38,6 +43,53 @@ public final class PersistentVector<T> extends APersistentVector<T> {
 	 */
 	private final APersistentVector<T>[] blocks;
 	
+	/**
+	 * Buffer for values following the blocks, or null if there are none. Appended values are
+	 * added to the tail, which is only pushed into the blocks once it is full.
+	 */
+	private final Tail tail;
+	
+	/**
+	 * Number of values in the tail, always less than BASE_BLOCKSIZE
+	 */
+	private final int tailSize;
+	
+	/**
+	 * Tail buffer, which may be shared by many vectors each using a prefix of the values.
+	 * 
+	 * A vector can append to the buffer in place if it is the first to claim the next slot,
+	 * so appending repeatedly to the latest vector never copies the tail. Claimed slots are 
+	 * never modified. Buffers start small and are replaced by a larger copy when full, up to
+	 * BASE_BLOCKSIZE slots.
+	 */
+	private static final class Tail implements Serializable {
+		private static final long serialVersionUID = -1876017624016329520L;
+
+		private static final AtomicIntegerFieldUpdater<Tail> CLAIMED=AtomicIntegerFieldUpdater.newUpdater(Tail.class, "claimed");
+
+		private final Object[] values;
+		private volatile int claimed;
+		
+		private Tail(Object[] values, int claimed) {
+			this.values=values;
+			this.claimed=claimed;
+		}
+		
+		/**
+		 * Attempts to claim the slot at the given position for a new value
+		 */
+		private boolean claim(int pos) {
+			return (pos<values.length)&&CLAIMED.compareAndSet(this, pos, pos+1);
+		}
+		
+		/**
+		 * Gets the buffer capacity to use for a given number of values
+		 */
+		private static int capacity(int n) {
+			return Math.min(BASE_BLOCKSIZE, Integer.highestOneBit(n)<<1);
+		}
+	}
+	
 	@SuppressWarnings({ "unchecked", "rawtypes" })
 	public static final PersistentVector<?> EMPTY_BLOCKLIST=new PersistentVector(Vectors.NULL_PERSISTENT_LIST_ARRAY,DEFAULT_SHIFT,0,0);
 	
@@ -192,30 +244,79 @@ public final class PersistentVector<T> extends APersistentVector<T> {
 		return new PersistentVector<T>(bs,shift,size,0);
 	}
 	
+	/**
+	 * Creates an empty transient vector, for efficient construction of a vector by appending 
+	 * many values
+	 */
+	public static <T> Transient<T> createTransient() {
+		return new Transient<T>();
+	}
+	
 	private static final int numBlocks(int size, int shift) {
 		return 1+((size-1)>>shift);
 	}
 	
-	@SuppressWarnings("unchecked")
 	private PersistentVector(APersistentVector<?>[] blocks, int sh, int sz, int off) {
+		this(blocks,sh,sz,off,null,0);
+	}
+	
+	@SuppressWarnings("unchecked")
+	private PersistentVector(APersistentVector<?>[] blocks, int sh, int sz, int off, Tail tail, int tailSize) {
 		this.blocks=(APersistentVector<T>[]) blocks;
 		shift=sh;
 		size=sz;
 		offset=off;
+		this.tail=tail;
+		this.tailSize=tailSize;
+	}
+	
+	/**
+	 * Appends a value to a Tuple of at most BASE_BLOCKSIZE values, starting a tail buffer so 
+	 * that further appends do not need to copy the values.
+	 */
+	@SuppressWarnings("unchecked")
+	static <T> APersistentVector<T> appendToTuple(Tuple<T> tuple, T value) {
+		int n=tuple.size();
+		if (n==BASE_BLOCKSIZE) {
+			Object[] values=new Object[Tail.capacity(1)];
+			values[0]=value;
+			return new PersistentVector<T>(new APersistentVector<?>[] {tuple},DEFAULT_SHIFT,BASE_BLOCKSIZE,0,new Tail(values,1),1);
+		} 
+		if (n>BASE_BLOCKSIZE) throw new IllegalArgumentException("Tuple too large: "+n);
+		
+		Object[] values=new Object[Tail.capacity(n+1)];
+		for (int i=0; i<n; i++) {
+			values[i]=tuple.get(i);
+		}
+		values[n]=value;
+		if (n+1==BASE_BLOCKSIZE) return Tuple.wrap((T[])values);
+		return new PersistentVector<T>(Vectors.NULL_PERSISTENT_LIST_ARRAY,DEFAULT_SHIFT,0,0,new Tail(values,n+1),n+1);
 	}
 	
 	@Override
 	public T get(int i) {
-		if ((i<0)||(i>=size)) throw new IndexOutOfBoundsException();
+		if (i>=size) return tailGet(i-size);
+		if (i<0) throw new IndexOutOfBoundsException();
 		int pos=i+offset;
 		int bi=blockFor(pos);
 		int bpos=pos&((1<<shift)-1);
 		return blocks[bi].get(bpos);
 	}
 	
+	@SuppressWarnings("unchecked")
+	private T tailGet(int i) {
+		if (i>=tailSize) throw new IndexOutOfBoundsException();
+		return (T) tail.values[i];
+	}
+	
+	@SuppressWarnings("unchecked")
+	private Tuple<T> tailTuple(int fromIndex, int toIndex) {
+		return Tuple.wrap((T[])tail.values, fromIndex, toIndex-fromIndex);
+	}
+	
 	@Override
 	public int size() {
-		return size;
+		return size+tailSize;
 	}
 	
 	/**
@@ -246,15 +347,23 @@ public final class PersistentVector<T> extends APersistentVector<T> {
 	
 	@Override
 	public APersistentVector<T> subList(int fromIndex, int toIndex) {
-		if ((fromIndex<0)||(toIndex>size)) {
-			throw new IndexOutOfBoundsException("from: "+fromIndex+" to: " +toIndex+ " with size: "+size+" offset: "+offset+" shift: "+shift);
+		int tsize=tailSize;
+		if ((fromIndex<0)||(toIndex>size+tsize)) {
+			throw new IndexOutOfBoundsException("from: "+fromIndex+" to: " +toIndex+ " with size: "+size()+" offset: "+offset+" shift: "+shift);
 		}
-		if ((fromIndex==0)&&(toIndex==size)) return this;
+		if ((fromIndex==0)&&(toIndex==size+tsize)) return this;
 		if (toIndex==fromIndex) return Vectors.emptyVector();
 		if ((fromIndex>toIndex)) {
 			throw new IllegalArgumentException("Negative sized subList from: "+fromIndex+" to: " +toIndex);
 		}
 		
+		if (fromIndex>=size) return tailTuple(fromIndex-size, toIndex-size);
+		if (toIndex>size) {
+			// keep blocks from fromIndex onwards with part of the tail
+			return new PersistentVector<T>(blocks,shift,size-fromIndex,fromIndex+offset,tail,toIndex-size);
+		}
+		if ((fromIndex==0)&&(toIndex==size)) return treeVector();
+		
 		// see if we can take a subset of a single block
 		int fromBlock=blockFor(fromIndex+offset);
 		int toBlock=blockFor(toIndex-1+offset);
@@ -268,16 +377,69 @@ public final class PersistentVector<T> extends APersistentVector<T> {
 	
 	@Override
 	public int hashCode() {
-		// TODO: fix this looks broken because ignores offset,size
-		if (blocks.length==0) return 0;
+		int r=blockHashCode();
+		if (tailSize==0) return r;
+		return Integer.rotateRight(r,tailSize)^RT.arrayHashCode(tail.values,0,tailSize);
+	}
+	
+	/**
+	 * Computes the hashcode of values in blocks, combining block hashcodes where the blocks
+	 * are used in full
+	 */
+	private int blockHashCode() {
+		if (size==0) return 0;
+		int numBlocks=blockFor(offset+size-1)+1;
+		if ((offset!=0)||(blocks[numBlocks-1].size()!=(size-blockStart(numBlocks-1)))) {
+			int r=0;
+			for (int i=0; i<size; i++) {
+				r^=RT.hashCode(get(i));
+				r=Integer.rotateRight(r, 1);
+			}
+			return r;
+		}
 		int r=blocks[0].hashCode();
-		for (int i=1; i<blocks.length; i++) {
+		for (int i=1; i<numBlocks; i++) {
 			r=Integer.rotateRight(r,blocks[i].size());
 			r^=blocks[i].hashCode();
 		}
 		return r;
 	}
 	
+	/**
+	 * Gets the bit shift for the blocks of this vector
+	 */
+	int getShift() {
+		return shift;
+	}
+	
+	/**
+	 * Gets the blocks in use, trimmed to the values of this vector, followed by the tail if 
+	 * there is one. Blocks other than the first and last are full.
+	 */
+	@SuppressWarnings("unchecked")
+	APersistentVector<T>[] usedBlocks() {
+		int first=(size==0)?0:blockFor(offset);
+		int n=(size==0)?0:(blockFor(offset+size-1)+1-first);
+		APersistentVector<T>[] result=new APersistentVector[n+((tailSize>0)?1:0)];
+		for (int i=0; i<n; i++) {
+			int bs=blockStart(first+i);
+			int start=Math.max(offset,bs)-bs;
+			int end=Math.min(offset+size,blockStart(first+i+1))-bs;
+			APersistentVector<T> block=blocks[first+i];
+			result[i]=((start==0)&&(end==block.size()))?block:block.subList(start,end);
+		}
+		if (tailSize>0) result[n]=tailTuple(0,tailSize);
+		return result;
+	}
+	
+	/**
+	 * Gets a vector containing only the values stored in blocks, i.e. without the tail
+	 */
+	private PersistentVector<T> treeVector() {
+		if (tailSize==0) return this;
+		return new PersistentVector<T>(blocks,shift,size,offset);
+	}
+	
 	/**
 	 * Gets a subList as a BlockList with the same shift
 	 * @param fromIndex
@@ -291,24 +453,22 @@ public final class PersistentVector<T> extends APersistentVector<T> {
 	@SuppressWarnings("unchecked")
 	@Override
 	public PersistentVector<T> include(T value) {
-		int newIx=offset+size; // raw index of new added value
-		int newBlock=newIx>>shift;
-		int blockLength=blocks.length;
-		if (newBlock<blockLength) {
-			// conj to last block
-			APersistentVector<T>[] newBlocks=blocks.clone();
-			newBlocks[newBlock]=blocks[newBlock].include(value);
-			return new PersistentVector<T>(newBlocks,shift,size+1,offset);
-		} else if ((newIx>>(shift+SHIFT_STEP))==0) {
-			// add a final block
-			APersistentVector<T>[] newBlocks=new APersistentVector[newBlock+1];
-			System.arraycopy(blocks, 0, newBlocks, 0, newBlock);
-			newBlocks[newBlock]=Tuple.of(value);
-			return new PersistentVector<T>(newBlocks,shift,size+1,offset);
-		} else {
-			// need to rise one level
-			return new PersistentVector<T>(new APersistentVector[]{this,Tuple.of(value)},shift+SHIFT_STEP,size+1,offset);
+		Tail t=tail;
+		if ((t==null)||!t.claim(tailSize)) {
+			// tail is full or shared beyond this vector, so copy it
+			Object[] values=new Object[Tail.capacity(tailSize+1)];
+			if (tailSize>0) System.arraycopy(tail.values, 0, values, 0, tailSize);
+			t=new Tail(values,tailSize+1);
+		}
+		t.values[tailSize]=value;
+		if (tailSize+1<BASE_BLOCKSIZE) {
+			return new PersistentVector<T>(blocks,shift,size,offset,t,tailSize+1);
 		}
+		
+		// tail is full, so push it into the blocks as a complete block
+		APersistentVector<T> block=Tuple.wrap((T[])t.values);
+		if (size==0) return new PersistentVector<T>(new APersistentVector<?>[] {block},DEFAULT_SHIFT,BASE_BLOCKSIZE,0);
+		return treeVector().concat(block);
 	}
 	
 	@SuppressWarnings("unchecked")
@@ -317,6 +477,18 @@ public final class PersistentVector<T> extends APersistentVector<T> {
 		APersistentVector<T> a= (APersistentVector<T>) src;
 		int asize=a.size();
 		if (asize==0) return this;
+		int offsetBlock=blockFor(offset);
+		if (offsetBlock>0) {
+			// drop unused leading blocks, so that the offset is within the first block
+			APersistentVector<?>[] usedBlocks=Arrays.copyOfRange(blocks, offsetBlock, blocks.length);
+			return new PersistentVector<T>(usedBlocks,shift,size,offset-blockStart(offsetBlock),tail,tailSize).concat(a);
+		}
+		if (tailSize>0) {
+			// move the tail into blocks first
+			Tuple<T> tt=tailTuple(0,tailSize);
+			PersistentVector<T> tv=(size==0)?PersistentVector.coerce(tt):treeVector().concat(tt);
+			return tv.concat(a);
+		}
 		if (size==0) return PersistentVector.coerce(a);
 		int end=offset+size;
 		int newEnd=end+asize; // end index of new list
@@ -325,32 +497,30 @@ public final class PersistentVector<T> extends APersistentVector<T> {
 		if (newEndBlock<totalBlocks) {
 			// concat to last block
 			APersistentVector<T>[] newBlocks=blocks.clone();
-			APersistentVector<T> tail=blocks[newEndBlock].subList(0,offset+size-blockStart(newEndBlock));
+			APersistentVector<T> lastBlock=blocks[newEndBlock].subList(0,offset+size-blockStart(newEndBlock));
 			if (shift<=DEFAULT_SHIFT) {
 				// build a Tuple
-				newBlocks[newEndBlock]=Tuple.concat(tail, a);
+				newBlocks[newEndBlock]=Tuple.concat(lastBlock, a);
 			} else {
-				newBlocks[newEndBlock]=tail.concat(a);
+				newBlocks[newEndBlock]=lastBlock.concat(a);
 			}
 			return new PersistentVector<T>(newBlocks,shift,size+asize,offset);
 		} else {
 			int maxEnd=1<<(shift+SHIFT_STEP); // largest capacity at this level
 			if (newEnd<=maxEnd) {
 				// add more blocks - will have at least two new
-				// we truncate blocks by removing the blocks before the offset
-				int offsetBlock=blockFor(offset);
-				int numBlocks=totalBlocks-offsetBlock; // number of currently used blocks
-				int newOffset=offset-blockStart(offsetBlock);
-				int newNumBlocks=newEndBlock-offsetBlock+1; // new total number of blocks
+				// the offset is within the first block, which keeps any values before the offset
+				int numBlocks=totalBlocks; // number of currently used blocks
+				int newNumBlocks=newEndBlock+1; // new total number of blocks
 				APersistentVector<T>[] newBlocks=new APersistentVector[newNumBlocks];
-				System.arraycopy(blocks, offsetBlock, newBlocks, 0, numBlocks);
+				System.arraycopy(blocks, 0, newBlocks, 0, numBlocks);
 				int blockSize=blockSize();
 				
 				int endBlockOffset=blockSize*blockFor(end-1);
 				int split=end-endBlockOffset; // split point in last original block where concat occurs
 				
 				// update last block in currently used blocks, filling up to blockSize
-				APersistentVector<T> oldTail=newBlocks[numBlocks-1].subList(0,split-Math.max(0,offset-endBlockOffset));
+				APersistentVector<T> oldTail=newBlocks[numBlocks-1].subList(0,split);
 				newBlocks[numBlocks-1]=oldTail.concat(a.subList(0, blockSize-split));
 				// update inner blocks (if more than 2)
 				int innerBlocks=newNumBlocks-numBlocks-1;
@@ -361,12 +531,14 @@ public final class PersistentVector<T> extends APersistentVector<T> {
 				// update final block using remaining elements
 				int aTailPos=(blockSize-split)+blockSize*innerBlocks;
 				newBlocks[newNumBlocks-1]=a.subList(aTailPos, asize);
-				return new PersistentVector<T>(newBlocks,shift,size+asize,newOffset);
+				return new PersistentVector<T>(newBlocks,shift,size+asize,offset);
 			} else {
 				// need to rise one level
 				int aSplit=maxEnd-end; // elements to cut from front of a to complete block
 				PersistentVector<T> fullHead=this.concat(a.subList(0, aSplit));
-				PersistentVector<T> headList=new PersistentVector<T>(new APersistentVector[]{fullHead},shift+SHIFT_STEP,size+aSplit,offset);
+				// the new first block includes any values before the offset, so that it is full 
+				PersistentVector<T> fullBlock=new PersistentVector<T>(fullHead.blocks,shift,maxEnd,0);
+				PersistentVector<T> headList=new PersistentVector<T>(new APersistentVector[]{fullBlock},shift+SHIFT_STEP,size+aSplit,offset);
 				return headList.concat(a.subList(aSplit, asize));
 			}
 		}
@@ -375,6 +547,9 @@ public final class PersistentVector<T> extends APersistentVector<T> {
 	@Override
 	public void validate() {
 		if (shift<DEFAULT_SHIFT) throw new Error("Incsufficient shift");
+		if (tailSize>=BASE_BLOCKSIZE) throw new Error("Tail too large: "+tailSize);
+		if ((tailSize>0)&&(tail.claimed<tailSize)) throw new Error("Unclaimed tail values");
+		if (size==0) return;
 		int blockSize=blockSize();
 		int numBlocks=blockFor(offset+size-1)+1;
 		for (int i=0; i<numBlocks-1; i++) {
@@ -386,6 +561,126 @@ public final class PersistentVector<T> extends APersistentVector<T> {
 			throw new Error("Insufficient element is last block");
 		}
 	}
+	
+	/**
+	 * Transient vector builder, for efficient construction of vectors by appending values.
+	 * 
+	 * Values are appended in place to an owned leaf array. Each full leaf becomes a block
+	 * without copying, and full blocks are collected into owned arrays at each level of the
+	 * tree. persistent() only needs to close off the partially filled arrays at each level,
+	 * with the partially filled leaf becoming the tail of the vector, after which the 
+	 * transient may no longer be used.
+	 * 
+	 * Transients are not thread safe and should be confined to a single thread.
+	 *
+	 * @param <T> Element type
+	 */
+	public static final class Transient<T> {
+		private static final int LEVEL_SIZE=1<<SHIFT_STEP;
+		private static final int MAX_LEVELS=1+(32-DEFAULT_SHIFT)/SHIFT_STEP;
+		
+		private boolean editable=true;
+		private int size=0;
+		private Object[] leaf=new Object[BASE_BLOCKSIZE];
+		private int leafCount=0;
+		
+		/**
+		 * Full blocks at each level. Blocks at level i have shift DEFAULT_SHIFT+i*SHIFT_STEP
+		 */
+		private final APersistentVector<?>[][] levels=new APersistentVector<?>[MAX_LEVELS][];
+		private final int[] levelCounts=new int[MAX_LEVELS];
+		
+		private Transient() {
+		}
+		
+		private void ensureEditable() {
+			if (!editable) throw new IllegalStateException("Transient used after call to persistent()");
+		}
+		
+		public Transient<T> include(T value) {
+			ensureEditable();
+			leaf[leafCount++]=value;
+			size++;
+			if (leafCount==BASE_BLOCKSIZE) {
+				addBlock(0,Tuple.wrap(leaf));
+				leaf=new Object[BASE_BLOCKSIZE];
+				leafCount=0;
+			}
+			return this;
+		}
+		
+		public Transient<T> includeAll(Iterable<? extends T> values) {
+			for (T value: values) {
+				include(value);
+			}
+			return this;
+		}
+		
+		public int size() {
+			return size;
+		}
+		
+		private void addBlock(int level, APersistentVector<?> block) {
+			APersistentVector<?>[] bs=levels[level];
+			if (bs==null) {
+				bs=new APersistentVector<?>[LEVEL_SIZE];
+				levels[level]=bs;
+			}
+			int n=levelCounts[level];
+			bs[n++]=block;
+			if (n==LEVEL_SIZE) {
+				// level full, so hand over block array to a new node at the next level
+				int shift=DEFAULT_SHIFT+level*SHIFT_STEP;
+				levels[level]=null;
+				levelCounts[level]=0;
+				addBlock(level+1,new PersistentVector<T>(bs,shift,1<<(shift+SHIFT_STEP),0));
+			} else {
+				levelCounts[level]=n;
+			}
+		}
+		
+		/**
+		 * Returns a persistent vector containing the values of this transient. The transient
+		 * may not be used afterwards.
+		 */
+		@SuppressWarnings("unchecked")
+		public APersistentVector<T> persistent() {
+			ensureEditable();
+			editable=false;
+			if (size<BASE_BLOCKSIZE) {
+				return Vectors.createFromArray((T[])leaf,0,leafCount);
+			}
+			
+			int top=MAX_LEVELS-1;
+			while (levelCounts[top]==0) top--;
+			
+			// the partial leaf becomes the tail
+			Tail tail=(leafCount>0)?new Tail(leaf,leafCount):null;
+			
+			// close off partial levels from the bottom up, carrying each into the level above
+			PersistentVector<T> carry=null;
+			for (int level=0; level<=top; level++) {
+				int n=levelCounts[level];
+				int shift=DEFAULT_SHIFT+level*SHIFT_STEP;
+				if ((level==top)&&(n==1)&&(carry==null)) {
+					APersistentVector<T> block=(APersistentVector<T>) levels[level][0];
+					if (level==0) return new PersistentVector<T>(new APersistentVector<?>[] {block},DEFAULT_SHIFT,BASE_BLOCKSIZE,0,tail,leafCount);
+					PersistentVector<T> pv=(PersistentVector<T>)block;
+					return new PersistentVector<T>(pv.blocks,pv.shift,pv.size,pv.offset,tail,leafCount);
+				}
+				if (n==0) continue;
+				int total=n+((carry==null)?0:1);
+				APersistentVector<?>[] bs=Arrays.copyOf(levels[level],total);
+				int blockSize=n<<shift;
+				if (carry!=null) {
+					bs[n]=carry;
+					blockSize+=carry.size();
+				}
+				carry=new PersistentVector<T>(bs,shift,blockSize,0);
+			}
+			return new PersistentVector<T>(carry.blocks,carry.shift,carry.size,0,tail,leafCount);
+		}
+	}
 
 
 
@@ -0,0 +1,679 @@
+package magic.data;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Persistent vector implemented as a relaxed radix balanced (RRB) tree.
+ *
+ * Leaves are arrays of up to 32 values. Internal nodes hold up to 32 children, and are either
+ * strict (all children except the last are full, so children are found by radix indexing) or
+ * relaxed (with a table of cumulative child sizes). Relaxed nodes allow two trees to be
+ * concatenated, and a tree to be split, in O(log n) time by only rebuilding the nodes along
+ * the edges where the trees meet.
+ *
+ * Concatenation rebalances the nodes along the seam so that each level uses at most EXTRAS
+ * more slots than the minimum possible, which keeps the tree depth logarithmic.
+ *
+ * There is no tail buffer as in PersistentVector: include copies the path to the last leaf, 
+ * so each append takes O(log n) time and copies up to one leaf. Vectors built mainly by 
+ * appending are better built as a PersistentVector, which appends in place to its tail.
+ *
+ * @author Mike
+ *
+ * @param <T>
+ */
+public final class RRBVector<T> extends APersistentVector<T> {
+	private static final long serialVersionUID = -4361581324651727387L;
+
+	private static final int BITS=Vectors.TUPLE_BUILD_BITS;
+	private static final int WIDTH=1<<BITS;
+
+	/**
+	 * Number of extra slots allowed at each level above the minimum before a concatenation
+	 * rebalances nodes
+	 */
+	private static final int EXTRAS=2;
+
+	private static final Object[] EMPTY_LEAF=new Object[0];
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	public static final RRBVector<?> EMPTY=new RRBVector(EMPTY_LEAF,0,0);
+
+	/**
+	 * Internal tree node. Leaves are represented directly as Object[] arrays
+	 */
+	private static final class Node implements Serializable {
+		private static final long serialVersionUID = 2871648473620927335L;
+
+		private final Object[] children;
+
+		/**
+		 * Cumulative sizes of children, or null for strict nodes
+		 */
+		private final int[] sizes;
+
+		private Node(Object[] children, int[] sizes) {
+			this.children=children;
+			this.sizes=sizes;
+		}
+	}
+
+	/**
+	 * Root node, a leaf if shift is zero
+	 */
+	private final Object root;
+
+	/**
+	 * The bit shift for indexing the children of the root node. Zero if the root is a leaf.
+	 */
+	private final int shift;
+
+	private final int size;
+
+	private RRBVector(Object root, int shift, int size) {
+		this.root=root;
+		this.shift=shift;
+		this.size=size;
+	}
+
+	/**
+	 * Creates a vector from a root node, removing redundant levels above the root
+	 */
+	@SuppressWarnings("unchecked")
+	private static <T> RRBVector<T> create(Object root, int shift, int size) {
+		if (size==0) return (RRBVector<T>) EMPTY;
+		while ((shift>0)&&(((Node)root).children.length==1)) {
+			root=((Node)root).children[0];
+			shift-=BITS;
+		}
+		return new RRBVector<T>(root,shift,size);
+	}
+
+	public static <T> RRBVector<T> create(List<? extends T> values) {
+		return create(values,0,values.size());
+	}
+
+	/**
+	 * Creates a RRBVector containing a range of values from the given list
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> RRBVector<T> create(List<? extends T> values, int fromIndex, int toIndex) {
+		int n=toIndex-fromIndex;
+		if (n<0) throw new IllegalArgumentException();
+		if (n==0) return (RRBVector<T>) EMPTY;
+
+		// build full leaves, then group into strict nodes level by level
+		int numLeaves=1+((n-1)>>BITS);
+		Object[] level=new Object[numLeaves];
+		for (int i=0; i<numLeaves; i++) {
+			int start=i<<BITS;
+			int len=Math.min(WIDTH, n-start);
+			Object[] leaf=new Object[len];
+			for (int j=0; j<len; j++) {
+				leaf[j]=values.get(fromIndex+start+j);
+			}
+			level[i]=leaf;
+		}
+		int sh=0;
+		while (level.length>1) {
+			sh+=BITS;
+			int numNodes=1+((level.length-1)>>BITS);
+			Object[] nodes=new Object[numNodes];
+			for (int i=0; i<numNodes; i++) {
+				int start=i<<BITS;
+				nodes[i]=new Node(Arrays.copyOfRange(level, start, Math.min(level.length, start+WIDTH)),null);
+			}
+			level=nodes;
+		}
+		return new RRBVector<T>(level[0],sh,n);
+	}
+
+	/**
+	 * Coerces a List to a RRBVector. 
+	 * 
+	 * The tree of a PersistentVector is reused: its blocks become nodes, and full Tuple blocks 
+	 * share their arrays as leaves, so only the internal nodes need to be built.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> RRBVector<T> coerce(List<? extends T> values) {
+		if (values instanceof RRBVector<?>) return (RRBVector<T>) values;
+		if (values instanceof PersistentVector<?>) {
+			PersistentVector<?> pv=(PersistentVector<?>)values;
+			int n=pv.size();
+			if (n==0) return (RRBVector<T>) EMPTY;
+			// one level of the tree for each level of blocks, which always has enough capacity
+			int sh=BITS*(1+(pv.getShift()-PersistentVector.DEFAULT_SHIFT)/PersistentVector.SHIFT_STEP);
+			return create(subTree(pv,sh),sh,n);
+		}
+		return create(values,0,values.size());
+	}
+	
+	/**
+	 * Builds a subtree at the given shift containing the values of a vector, which must fit within
+	 * the capacity of the subtree. Reuses the blocks of PersistentVectors, and the arrays of 
+	 * Tuples as leaves, where possible.
+	 */
+	private static Object subTree(APersistentVector<?> v, int shift) {
+		if (shift==0) {
+			if ((v instanceof Tuple<?>)&&((Tuple<?>)v).isExactObjectArray()) return ((Tuple<?>)v).data;
+			return v.toArray();
+		}
+		APersistentVector<?>[] parts;
+		if ((v instanceof PersistentVector<?>)&&(((PersistentVector<?>)v).getShift()<=shift)) {
+			parts=((PersistentVector<?>)v).usedBlocks();
+		} else {
+			// split into parts that fit the children of this node
+			int n=v.size();
+			parts=new APersistentVector<?>[1+((n-1)>>shift)];
+			for (int i=0; i<parts.length; i++) {
+				parts[i]=v.subList(i<<shift, Math.min(n, (i+1)<<shift));
+			}
+		}
+		Object[] children=new Object[parts.length];
+		for (int i=0; i<parts.length; i++) {
+			children[i]=subTree(parts[i],shift-BITS);
+		}
+		return createNode(children,shift);
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public T get(int i) {
+		if ((i<0)||(i>=size)) throw new IndexOutOfBoundsException();
+		Object node=root;
+		for (int sh=shift; sh>0; sh-=BITS) {
+			Node n=(Node)node;
+			int ci=i>>sh;
+			int[] sizes=n.sizes;
+			if (sizes==null) {
+				i-=ci<<sh;
+			} else {
+				while (sizes[ci]<=i) ci++;
+				if (ci>0) i-=sizes[ci-1];
+			}
+			node=n.children[ci];
+		}
+		return (T) ((Object[])node)[i];
+	}
+
+	/**
+	 * Gets the leaf array containing the given index. Stores the start index of the leaf
+	 * in pos[0]
+	 */
+	private Object[] leafFor(int i, int[] pos) {
+		int start=0;
+		Object node=root;
+		for (int sh=shift; sh>0; sh-=BITS) {
+			Node n=(Node)node;
+			int ci=i>>sh;
+			int[] sizes=n.sizes;
+			if (sizes==null) {
+				i-=ci<<sh;
+				start+=ci<<sh;
+			} else {
+				while (sizes[ci]<=i) ci++;
+				if (ci>0) {
+					i-=sizes[ci-1];
+					start+=sizes[ci-1];
+				}
+			}
+			node=n.children[ci];
+		}
+		pos[0]=start;
+		return (Object[])node;
+	}
+
+	private static int nodeSize(Object node, int shift) {
+		if (shift==0) return ((Object[])node).length;
+		Node n=(Node)node;
+		int last=n.children.length-1;
+		if (n.sizes!=null) return n.sizes[last];
+		return (last<<shift)+nodeSize(n.children[last],shift-BITS);
+	}
+
+	/**
+	 * Gets the number of slots (values or children) used in a node
+	 */
+	private static int slotCount(Object node, int shift) {
+		if (shift==0) return ((Object[])node).length;
+		return ((Node)node).children.length;
+	}
+
+	private static Object[] slots(Object node, int shift) {
+		if (shift==0) return (Object[])node;
+		return ((Node)node).children;
+	}
+
+	/**
+	 * Creates a node with the given children, using a strict node if possible
+	 */
+	private static Node createNode(Object[] children, int shift) {
+		int n=children.length;
+		int[] sizes=new int[n];
+		int total=0;
+		boolean strict=true;
+		for (int i=0; i<n; i++) {
+			int cs=nodeSize(children[i],shift-BITS);
+			if ((i<n-1)&&(cs!=(1<<shift))) strict=false;
+			total+=cs;
+			sizes[i]=total;
+		}
+		return new Node(children,strict?null:sizes);
+	}
+
+	/**
+	 * Creates a path of single child nodes down to a leaf
+	 */
+	private static Object newPath(Object leaf, int shift) {
+		Object node=leaf;
+		for (int sh=BITS; sh<=shift; sh+=BITS) {
+			node=new Node(new Object[] {node},null);
+		}
+		return node;
+	}
+
+	@Override
+	public RRBVector<T> include(T value) {
+		Object[] leaf=new Object[] {value};
+		if (size==0) return new RRBVector<T>(leaf,0,1);
+		Object newRoot=pushLeaf(root,shift,value);
+		if (newRoot!=null) return new RRBVector<T>(newRoot,shift,size+1);
+
+		// no space in tree, so rise one level
+		Object[] children=new Object[] {root,newPath(leaf,shift)};
+		int[] sizes=null;
+		if (size!=(WIDTH<<shift)) {
+			sizes=new int[] {size,size+1};
+		}
+		return new RRBVector<T>(new Node(children,sizes),shift+BITS,size+1);
+	}
+
+	/**
+	 * Appends a value at the end of a subtree, returning null if the subtree is full
+	 */
+	private static Object pushLeaf(Object node, int shift, Object value) {
+		if (shift==0) {
+			Object[] leaf=(Object[])node;
+			int n=leaf.length;
+			if (n>=WIDTH) return null;
+			Object[] newLeaf=Arrays.copyOf(leaf, n+1);
+			newLeaf[n]=value;
+			return newLeaf;
+		}
+
+		Node nd=(Node)node;
+		Object[] children=nd.children;
+		int n=children.length;
+		int[] sizes=nd.sizes;
+		Object newChild=pushLeaf(children[n-1],shift-BITS,value);
+		if (newChild!=null) {
+			Object[] newChildren=children.clone();
+			newChildren[n-1]=newChild;
+			int[] newSizes=null;
+			if (sizes!=null) {
+				newSizes=sizes.clone();
+				newSizes[n-1]++;
+			}
+			return new Node(newChildren,newSizes);
+		}
+
+		if (n>=WIDTH) return null;
+		Object[] newChildren=Arrays.copyOf(children, n+1);
+		newChildren[n]=newPath(new Object[] {value},shift-BITS);
+		int[] newSizes;
+		if (sizes!=null) {
+			newSizes=Arrays.copyOf(sizes, n+1);
+			newSizes[n]=sizes[n-1]+1;
+		} else {
+			int lastSize=nodeSize(children[n-1],shift-BITS);
+			if (lastSize==(1<<shift)) {
+				newSizes=null;
+			} else {
+				newSizes=new int[n+1];
+				for (int i=0; i<n-1; i++) {
+					newSizes[i]=(i+1)<<shift;
+				}
+				newSizes[n-1]=((n-1)<<shift)+lastSize;
+				newSizes[n]=newSizes[n-1]+1;
+			}
+		}
+		return new Node(newChildren,newSizes);
+	}
+
+	@Override
+	public APersistentVector<T> assocAt(int index, T value) {
+		if ((index<0)||(index>=size)) throw new IndexOutOfBoundsException();
+		return new RRBVector<T>(update(root,shift,index,value),shift,size);
+	}
+
+	private static Object update(Object node, int shift, int i, Object value) {
+		if (shift==0) {
+			Object[] newLeaf=((Object[])node).clone();
+			newLeaf[i]=value;
+			return newLeaf;
+		}
+		Node n=(Node)node;
+		int ci=i>>shift;
+		int[] sizes=n.sizes;
+		if (sizes==null) {
+			i-=ci<<shift;
+		} else {
+			while (sizes[ci]<=i) ci++;
+			if (ci>0) i-=sizes[ci-1];
+		}
+		Object[] newChildren=n.children.clone();
+		newChildren[ci]=update(newChildren[ci],shift-BITS,i,value);
+		return new Node(newChildren,sizes);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public APersistentVector<T> concat(APersistentVector<? extends T> values) {
+		int n=values.size();
+		if (n==0) return this;
+		if (size==0) return coerce(values);
+		RRBVector<T> b=coerce(values);
+
+		Object[] top=concatSubTree(root,shift,b.root,b.shift,true);
+		int sh=Math.max(shift,b.shift);
+		if (top.length==1) return create(top[0],sh,size+n);
+		return create(createNode(top,sh+BITS),sh+BITS,size+n);
+	}
+
+	/**
+	 * Concatenates two subtrees. Returns one or two nodes with the shift of the higher subtree,
+	 * which become the children of the concatenated node.
+	 */
+	private static Object[] concatSubTree(Object left, int leftShift, Object right, int rightShift, boolean top) {
+		if (leftShift>rightShift) {
+			Node l=(Node)left;
+			Object[] mid=concatSubTree(l.children[l.children.length-1],leftShift-BITS,right,rightShift,false);
+			return rebalance(l,mid,null,leftShift);
+		} else if (leftShift<rightShift) {
+			Node r=(Node)right;
+			Object[] mid=concatSubTree(left,leftShift,r.children[0],rightShift-BITS,false);
+			return rebalance(null,mid,r,rightShift);
+		} else if (leftShift==0) {
+			Object[] la=(Object[])left;
+			Object[] ra=(Object[])right;
+			if (top&&(la.length+ra.length<=WIDTH)) {
+				Object[] leaf=Arrays.copyOf(la, la.length+ra.length);
+				System.arraycopy(ra, 0, leaf, la.length, ra.length);
+				return new Object[] {leaf};
+			}
+			// leaves get merged if necessary when rebalancing the level above
+			return new Object[] {left,right};
+		} else {
+			Node l=(Node)left;
+			Node r=(Node)right;
+			Object[] mid=concatSubTree(l.children[l.children.length-1],leftShift-BITS,r.children[0],rightShift-BITS,false);
+			return rebalance(l,mid,r,leftShift);
+		}
+	}
+
+	/**
+	 * Joins the children of the left node (except the last), the mid nodes and the children of
+	 * the right node (except the first), redistributing the contents of the children where needed
+	 * to bring the number of slots within EXTRAS of the optimal number.
+	 *
+	 * @return One or two nodes at the given shift
+	 */
+	private static Object[] rebalance(Node left, Object[] mid, Node right, int shift) {
+		int ln=(left==null)?0:left.children.length-1;
+		int rn=(right==null)?0:right.children.length-1;
+		int n=ln+mid.length+rn;
+		Object[] all=new Object[n];
+		if (ln>0) System.arraycopy(left.children, 0, all, 0, ln);
+		System.arraycopy(mid, 0, all, ln, mid.length);
+		if (rn>0) System.arraycopy(right.children, 1, all, ln+mid.length, rn);
+
+		int childShift=shift-BITS;
+		int[] counts=new int[n];
+		int total=0;
+		for (int i=0; i<n; i++) {
+			counts[i]=slotCount(all[i],childShift);
+			total+=counts[i];
+		}
+
+		Object[] children=all;
+		int optimal=1+((total-1)>>BITS);
+		if (n>optimal+EXTRAS) {
+			// compute new slot counts, shuffling contents of small slots into subsequent slots
+			int[] plan=counts.clone();
+			int planLen=n;
+			int i=0;
+			while (planLen>optimal+EXTRAS) {
+				while (plan[i]>WIDTH-EXTRAS/2) i++;
+				int remaining=plan[i];
+				do {
+					int minSize=Math.min(remaining+plan[i+1], WIDTH);
+					plan[i]=minSize;
+					remaining=remaining+plan[i+1]-minSize;
+					i++;
+				} while (remaining>0);
+				System.arraycopy(plan, i+1, plan, i, planLen-i-1);
+				planLen--;
+				i--;
+			}
+			children=executePlan(all,counts,plan,planLen,childShift);
+		}
+
+		int m=children.length;
+		if (m<=WIDTH) return new Object[] {createNode(children,shift)};
+		return new Object[] {
+				createNode(Arrays.copyOf(children, WIDTH),shift),
+				createNode(Arrays.copyOfRange(children, WIDTH, m),shift)};
+	}
+
+	/**
+	 * Builds new nodes with the slot counts given by the plan, reusing existing nodes where
+	 * possible
+	 */
+	private static Object[] executePlan(Object[] all, int[] counts, int[] plan, int planLen, int shift) {
+		Object[] result=new Object[planLen];
+		int si=0; // source node
+		int sp=0; // position in source node
+		for (int k=0; k<planLen; k++) {
+			int want=plan[k];
+			if ((sp==0)&&(counts[si]==want)) {
+				result[k]=all[si++];
+				continue;
+			}
+			Object[] items=new Object[want];
+			int filled=0;
+			while (filled<want) {
+				int take=Math.min(want-filled, counts[si]-sp);
+				System.arraycopy(slots(all[si],shift), sp, items, filled, take);
+				filled+=take;
+				sp+=take;
+				if (sp==counts[si]) {
+					si++;
+					sp=0;
+				}
+			}
+			result[k]=(shift==0)?items:createNode(items,shift);
+		}
+		return result;
+	}
+
+	@Override
+	public APersistentVector<T> subList(int fromIndex, int toIndex) {
+		if ((fromIndex<0)||(toIndex>size)) {
+			throw new IndexOutOfBoundsException("from: "+fromIndex+" to: " +toIndex+ " with size: "+size);
+		}
+		if ((fromIndex>toIndex)) {
+			throw new IllegalArgumentException("Negative sized subList from: "+fromIndex+" to: " +toIndex);
+		}
+		if ((fromIndex==0)&&(toIndex==size)) return this;
+		if (toIndex==fromIndex) return Vectors.emptyVector();
+
+		Object node=root;
+		if (toIndex<size) node=sliceRight(node,shift,toIndex);
+		if (fromIndex>0) node=sliceLeft(node,shift,fromIndex);
+		return create(node,shift,toIndex-fromIndex);
+	}
+
+	/**
+	 * Keeps the first 'to' values of a subtree
+	 */
+	private static Object sliceRight(Object node, int shift, int to) {
+		if (shift==0) {
+			Object[] leaf=(Object[])node;
+			return (to==leaf.length)?leaf:Arrays.copyOf(leaf, to);
+		}
+		Node n=(Node)node;
+		int[] sizes=n.sizes;
+		int ci=(to-1)>>shift;
+		int start;
+		if (sizes==null) {
+			start=ci<<shift;
+		} else {
+			while (sizes[ci]<to) ci++;
+			start=(ci>0)?sizes[ci-1]:0;
+		}
+		Object[] newChildren=Arrays.copyOf(n.children, ci+1);
+		newChildren[ci]=sliceRight(newChildren[ci],shift-BITS,to-start);
+		int[] newSizes=null;
+		if (sizes!=null) {
+			newSizes=Arrays.copyOf(sizes, ci+1);
+			newSizes[ci]=to;
+		}
+		return new Node(newChildren,newSizes);
+	}
+
+	/**
+	 * Drops the first 'from' values of a subtree
+	 */
+	private static Object sliceLeft(Object node, int shift, int from) {
+		if (shift==0) {
+			Object[] leaf=(Object[])node;
+			return (from==0)?leaf:Arrays.copyOfRange(leaf, from, leaf.length);
+		}
+		Node n=(Node)node;
+		int[] sizes=n.sizes;
+		int ci=from>>shift;
+		int start;
+		if (sizes==null) {
+			start=ci<<shift;
+		} else {
+			while (sizes[ci]<=from) ci++;
+			start=(ci>0)?sizes[ci-1]:0;
+		}
+		if (from==start) {
+			if (ci==0) return node;
+			if (sizes==null) {
+				return new Node(Arrays.copyOfRange(n.children, ci, n.children.length),null);
+			}
+		}
+		int len=n.children.length-ci;
+		Object[] newChildren=Arrays.copyOfRange(n.children, ci, n.children.length);
+		newChildren[0]=sliceLeft(newChildren[0],shift-BITS,from-start);
+		int[] newSizes=new int[len];
+		if (sizes==null) {
+			for (int i=0; i<len-1; i++) {
+				newSizes[i]=((ci+i+1)<<shift)-from;
+			}
+			newSizes[len-1]=((ci+len-1)<<shift)+nodeSize(n.children[ci+len-1],shift-BITS)-from;
+		} else {
+			for (int i=0; i<len; i++) {
+				newSizes[i]=sizes[ci+i]-from;
+			}
+		}
+		return new Node(newChildren,newSizes);
+	}
+
+	@Override
+	public APersistentVector<T> insert(int index, T value) {
+		if ((index<0)||(index>size)) throw new IndexOutOfBoundsException();
+		if (index==size) return include(value);
+		return coerce(subList(0,index)).include(value).concat(subList(index,size));
+	}
+
+	@Override
+	public Iterator<T> iterator() {
+		return new RRBIterator();
+	}
+
+	/**
+	 * Iterator that traverses a leaf at a time, rather than looking up each index
+	 */
+	private final class RRBIterator implements Iterator<T> {
+		private int i=0;
+		private Object[] leaf=EMPTY_LEAF;
+		private int leafStart=0;
+		private final int[] pos=new int[1];
+
+		@Override
+		public boolean hasNext() {
+			return i<size;
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public T next() {
+			if (i>=size) throw new NoSuchElementException();
+			int li=i-leafStart;
+			if (li>=leaf.length) {
+				leaf=leafFor(i,pos);
+				leafStart=pos[0];
+				li=i-leafStart;
+			}
+			i++;
+			return (T) leaf[li];
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public RRBVector<T> empty() {
+		return (RRBVector<T>) EMPTY;
+	}
+
+	@Override
+	public void validate() {
+		super.validate();
+		if ((shift%BITS)!=0) throw new Error("Invalid shift: "+shift);
+		if (size!=nodeSize(root,shift)) throw new Error("Wrong size: "+size);
+		if (size==0) return;
+		if ((shift>0)&&(((Node)root).children.length<2)) throw new Error("Redundant root level");
+		validate(root,shift);
+	}
+
+	private static void validate(Object node, int shift) {
+		if (shift==0) {
+			int n=((Object[])node).length;
+			if ((n==0)||(n>WIDTH)) throw new Error("Invalid leaf length: "+n);
+			return;
+		}
+		Node nd=(Node)node;
+		Object[] children=nd.children;
+		int n=children.length;
+		if ((n==0)||(n>WIDTH)) throw new Error("Invalid node length: "+n);
+		int total=0;
+		for (int i=0; i<n; i++) {
+			validate(children[i],shift-BITS);
+			int cs=nodeSize(children[i],shift-BITS);
+			total+=cs;
+			if (nd.sizes==null) {
+				if ((i<n-1)&&(cs!=(1<<shift))) throw new Error("Non-full child in strict node at position "+i);
+			} else {
+				if (nd.sizes.length!=n) throw new Error("Size table length mismatch");
+				if (nd.sizes[i]!=total) throw new Error("Wrong cumulative size at position "+i);
+			}
+		}
+	}
+}
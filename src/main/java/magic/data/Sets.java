@@ -36,7 +36,7 @@ public class Sets {
 		}
 		int size=source.size();
 		if (size==0) return emptySet();
-		return PersistentHashSet.createFromSet(source);
+		return ChampHashSet.createFromSet(source);
 	}
 	
 	@SuppressWarnings("unchecked")
@@ -45,7 +45,7 @@ public class Sets {
 	}
 	
 	public static <T> APersistentSet<T> create(APersistentSet<T> source) {
-		return PersistentHashSet.createFromSet(source);
+		return ChampHashSet.createFromSet(source);
 	}
 	
 	@SuppressWarnings("unchecked")
@@ -64,11 +64,11 @@ public class Sets {
 	public static <T> APersistentSet<T> concat(APersistentSet<? extends T> a, T value) {
 		if (a.contains(value)) return (APersistentSet<T>) a;
 		if (a.size()==0) return SingletonSet.create(value);
-		return PersistentHashSet.createFromSet((APersistentSet<T>)a).include(value);
+		return ChampHashSet.createFromSet((APersistentSet<T>)a).include(value);
 	}
 
 	public static <T> APersistentSet<T> of(T value) {
-		return PersistentHashSet.createSingleValueSet(value);
+		return ChampHashSet.create(value);
 	}
 	
 	@SuppressWarnings("unchecked")
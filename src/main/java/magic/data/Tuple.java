@@ -16,6 +16,11 @@ import magic.data.impl.EmptyArrays;
 public final class Tuple<T> extends APersistentVector<T> {
 	private static final long serialVersionUID = -3717695950215145009L;
 
+	/**
+	 * Largest Tuple that is copied in full when a value is appended
+	 */
+	private static final int MAX_COPY_APPEND_SIZE=8;
+
 	public final T[] data;
 	private final int offset;
 	private final int size;
@@ -194,12 +199,15 @@ public final class Tuple<T> extends APersistentVector<T> {
 	@SuppressWarnings("unchecked")
 	@Override
 	public APersistentVector<T> include(T value) {
-		if (size<PersistentVector.BASE_BLOCKSIZE) {
+		if (size<MAX_COPY_APPEND_SIZE) {
 			int newSize=size+1;
 			T[] ndata=(T[]) new Object[newSize];
 			System.arraycopy(data, offset, ndata, 0, size);
 			ndata[size]=value;
 			return Tuple.wrap(ndata,0,newSize);
+		} else if (size<=PersistentVector.BASE_BLOCKSIZE) {
+			// switch to a vector with a tail buffer, so that further appends avoid copying
+			return PersistentVector.appendToTuple(this,value);
 		} else {
 			return PersistentVector.coerce(this).include(value);
 		}
@@ -209,6 +217,14 @@ public final class Tuple<T> extends APersistentVector<T> {
 	public int hashCode() {
 		return RT.arrayHashCode(data, offset, size);
 	}
+	
+	/**
+	 * Returns true if this Tuple uses the whole of an Object[] data array, so that the array 
+	 * can be shared as the contents of another persistent structure
+	 */
+	boolean isExactObjectArray() {
+		return (offset==0)&&(size==data.length)&&(data.getClass()==Object[].class);
+	}
 
 
 
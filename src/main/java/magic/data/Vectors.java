@@ -90,11 +90,11 @@ public class Vectors<T> {
 	}
 	
 	public static<T> APersistentVector<T> createFromIterator(Iterator<T> source) {
-		ArrayList<T> al=new ArrayList<T>();
+		PersistentVector.Transient<T> t=PersistentVector.createTransient();
 		while(source.hasNext()) {
-			al.add(source.next());
+			t.include(source.next());
 		}
-		return createFromCollection(al);
+		return t.persistent();
 	}
 	
 	public static<T> APersistentVector<T> subList(List<T> list, int fromIndex, int toIndex) {
@@ -139,8 +139,18 @@ public class Vectors<T> {
 		return concat(createFromList(a), createFromList(b));
 	}
 	
+	/**
+	 * Concatenates two vectors. Larger results are RRBVectors, so that repeated concatenation
+	 * takes O(log n) time per operation. RRBVectors have no tail buffer, so subsequent appends 
+	 * each copy a path to the last leaf rather than appending in place.
+	 */
 	public static <T> APersistentVector<T> concat(APersistentVector<T> a, APersistentVector<T> b) {
-		return a.concat(b);
+		int bSize=b.size();
+		if (bSize==0) return a;
+		int aSize=a.size();
+		if (aSize==0) return b;
+		if (aSize+bSize<=MAX_TUPLE_BUILD_SIZE) return Tuple.concat(a, b);
+		return RRBVector.coerce(a).concat(b);
 	}
 
 	/**
@@ -191,6 +201,9 @@ public class Vectors<T> {
 			return create((ISeq<T>)o);
 		}
 		
+		if (o instanceof long[]) return (APersistentVector<T>) LongVector.create((long[])o);
+		if (o instanceof double[]) return (APersistentVector<T>) DoubleVector.create((double[])o);
+		
 		Class<?> klass=o.getClass();
 		if (klass.isArray()) {
 			int n=Array.getLength(o);
@@ -0,0 +1,216 @@
+package magic.data.impl;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import magic.RT;
+import magic.data.APersistentCollection;
+import magic.data.APersistentMap;
+import magic.data.APersistentSet;
+import magic.data.ChampHashMap;
+import magic.data.Lists;
+import magic.data.MapEntry;
+import magic.data.Maps;
+import magic.data.Sets;
+
+/**
+ * Array based immutable map implementation, with keys and values held in parallel arrays.
+ *
+ * Lookup requires a scan of the key array, so should only be used for small maps,
+ * e.g. the bindings of a function call. The key array may be shared between instances.
+ *
+ * @author Mike
+ *
+ * @param <K>
+ * @param <V>
+ */
+public final class ArrayMap<K,V> extends APersistentMap<K,V> {
+	private static final long serialVersionUID = -6101937393325925213L;
+
+	/**
+	 * Maximum size before assoc of a new key converts to a hash map
+	 */
+	public static final int MAX_SIZE=16;
+
+	private final K[] keys;
+	private final Object[] values;
+
+	private ArrayMap(K[] keys, Object[] values) {
+		this.keys=keys;
+		this.values=values;
+	}
+
+	/**
+	 * Creates an ArrayMap directly from arrays of keys and values. Keys must be distinct.
+	 *
+	 * Does not copy the arrays: the caller must not modify them afterwards.
+	 */
+	public static <K,V> ArrayMap<K,V> wrap(K[] keys, Object[] values) {
+		if (keys.length!=values.length) throw new IllegalArgumentException("Key and value arrays must have the same length");
+		return new ArrayMap<K,V>(keys,values);
+	}
+
+	private int indexOf(Object key) {
+		K[] ks=keys;
+		for (int i=0; i<ks.length; i++) {
+			if (ks[i]==key) return i;
+		}
+		for (int i=0; i<ks.length; i++) {
+			if (RT.equals(ks[i],key)) return i;
+		}
+		return -1;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return indexOf(key)>=0;
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public V get(Object key) {
+		int i=indexOf(key);
+		return (i<0)?null:(V)values[i];
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public V valAt(K key, V notFound) {
+		int i=indexOf(key);
+		return (i<0)?notFound:(V)values[i];
+	}
+
+	@Override
+	public Map.Entry<K, V> getMapEntry(Object key) {
+		int i=indexOf(key);
+		return (i<0)?null:entry(i);
+	}
+
+	@SuppressWarnings("unchecked")
+	private MapEntry<K,V> entry(int i) {
+		return MapEntry.create(keys[i],(V)values[i]);
+	}
+
+	@Override
+	public int size() {
+		return keys.length;
+	}
+
+	@Override
+	public APersistentSet<Map.Entry<K, V>> entrySet() {
+		return new ArrayEntrySet();
+	}
+
+	@Override
+	public APersistentSet<K> keySet() {
+		return new KeySetWrapper<K,V>(entrySet());
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public APersistentCollection<V> values() {
+		return Lists.create((V[])values);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public APersistentMap<K, V> assoc(K key, V value) {
+		int n=keys.length;
+		int i=indexOf(key);
+		if (i>=0) {
+			if (values[i]==value) return this;
+			Object[] nvalues=values.clone();
+			nvalues[i]=value;
+			return new ArrayMap<K,V>(keys,nvalues);
+		}
+		if (n>=MAX_SIZE) {
+			ChampHashMap.Transient<K,V> t=ChampHashMap.createTransient();
+			for (int j=0; j<n; j++) {
+				t.assoc(keys[j],(V)values[j]);
+			}
+			t.assoc(key,value);
+			return t.persistent();
+		}
+		K[] nkeys=(K[])new Object[n+1];
+		System.arraycopy(keys, 0, nkeys, 0, n);
+		nkeys[n]=key;
+		Object[] nvalues=new Object[n+1];
+		System.arraycopy(values, 0, nvalues, 0, n);
+		nvalues[n]=value;
+		return new ArrayMap<K,V>(nkeys,nvalues);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public APersistentMap<K, V> dissoc(K key) {
+		int i=indexOf(key);
+		if (i<0) return this;
+		int n=keys.length;
+		if (n==1) return Maps.empty();
+		K[] nkeys=(K[])new Object[n-1];
+		System.arraycopy(keys, 0, nkeys, 0, i);
+		System.arraycopy(keys, i+1, nkeys, i, n-i-1);
+		Object[] nvalues=new Object[n-1];
+		System.arraycopy(values, 0, nvalues, 0, i);
+		System.arraycopy(values, i+1, nvalues, i, n-i-1);
+		return new ArrayMap<K,V>(nkeys,nvalues);
+	}
+
+	@Override
+	public boolean allowsNullKey() {
+		return true;
+	}
+
+	@Override
+	public void validate() {
+		super.validate();
+		if (keys.length!=values.length) throw new Error("Key and value arrays have different lengths");
+		for (int i=0; i<keys.length; i++) {
+			if (indexOf(keys[i])!=i) throw new Error("Duplicate key: "+keys[i]);
+		}
+	}
+
+	/**
+	 * EntrySet implementation
+	 */
+	private final class ArrayEntrySet extends BasePersistentSet<Map.Entry<K,V>> {
+		private static final long serialVersionUID = 2740263815417318447L;
+
+		@Override
+		public int size() {
+			return keys.length;
+		}
+
+		@Override
+		public boolean contains(Object o) {
+			if (!(o instanceof Map.Entry<?,?>)) return false;
+			Map.Entry<?,?> ent=(Map.Entry<?,?>)o;
+			int i=indexOf(ent.getKey());
+			return (i>=0)&&RT.equals(values[i], ent.getValue());
+		}
+
+		@Override
+		public Iterator<Map.Entry<K, V>> iterator() {
+			return new Iterator<Map.Entry<K, V>>() {
+				private int pos=0;
+
+				@Override
+				public boolean hasNext() {
+					return pos<keys.length;
+				}
+
+				@Override
+				public Map.Entry<K, V> next() {
+					if (pos>=keys.length) throw new NoSuchElementException();
+					return entry(pos++);
+				}
+			};
+		}
+
+		@Override
+		public APersistentSet<Map.Entry<K, V>> include(Map.Entry<K, V> value) {
+			return Sets.create(this).include(value);
+		}
+	}
+}
@@ -1,7 +1,7 @@
 package magic.data.impl;
 
 import magic.data.ISeq;
-import magic.data.PersistentHashSet;
+import magic.data.ChampHashSet;
 import magic.data.APersistentSet;
 import magic.data.Tools;
 
@@ -10,7 +10,7 @@ public abstract class BasePersistentSet<T> extends APersistentSet<T> {
 
 	@Override
 	public APersistentSet<T> include(T value) {
-		return PersistentHashSet.coerce(this).include(value);
+		return ChampHashSet.coerce(this).include(value);
 	}
 	
 	@Override
@@ -3,7 +3,7 @@ package magic.data.impl;
 import java.util.Iterator;
 import java.util.Map;
 
-import magic.data.PersistentHashSet;
+import magic.data.ChampHashSet;
 import magic.data.APersistentSet;
 
 /**
@@ -26,7 +26,7 @@ public final class KeySetWrapper<K,V> extends BasePersistentSet<K> {
 	
 	@Override
 	public APersistentSet<K> include(K value) {
-		return PersistentHashSet.coerce(this).include(value);
+		return ChampHashSet.coerce(this).include(value);
 	}
 
 	@Override
@@ -7,7 +7,7 @@ import java.util.Map;
 import magic.data.APersistentCollection;
 import magic.data.APersistentMap;
 import magic.data.APersistentSet;
-import magic.data.PersistentHashMap;
+import magic.data.ChampHashMap;
 
 public final class NullMap<K,V> extends APersistentMap<K, V> {
 	private static final long serialVersionUID = 1717634837542733926L;
@@ -102,7 +102,7 @@ public final class NullMap<K,V> extends APersistentMap<K, V> {
 
 	@Override
 	public APersistentMap<K, V> assoc(K key, V value) {
-		return PersistentHashMap.create(key,value);
+		return ChampHashMap.create(key,value);
 	}
 
 	@Override
@@ -4,7 +4,7 @@ import java.util.Iterator;
 import java.util.NoSuchElementException;
 
 import magic.RT;
-import magic.data.PersistentHashSet;
+import magic.data.ChampHashSet;
 import magic.data.APersistentSet;
 
 /**
@@ -40,7 +40,7 @@ public final class SingletonSet<T> extends BasePersistentSet<T> {
 	@Override
 	public APersistentSet<T> include(T value) {
 		if (value==this.value) return this;
-		return PersistentHashSet.coerce(this).include(value);
+		return ChampHashSet.coerce(this).include(value);
 	}
 	
 	@Override
@@ -7,8 +7,8 @@ import magic.ast.Node;
 import magic.compiler.Reader;
 import magic.data.APersistentMap;
 import magic.data.APersistentSet;
+import magic.data.ChampHashMap;
 import magic.data.Maps;
-import magic.data.PersistentHashMap;
 import magic.data.Sets;
 import magic.data.Symbol;
 
@@ -22,17 +22,17 @@ import magic.data.Symbol;
 public class Context {
 	@SuppressWarnings("unchecked")
 	public static final Context EMPTY=new Context(
-			(PersistentHashMap<Symbol, Slot<?>>) PersistentHashMap.EMPTY,
-			(PersistentHashMap<Symbol,APersistentSet<Symbol>>)PersistentHashMap.EMPTY);
+			(ChampHashMap<Symbol, Slot<?>>) ChampHashMap.EMPTY,
+			(ChampHashMap<Symbol,APersistentSet<Symbol>>)ChampHashMap.EMPTY);
 
-	private PersistentHashMap<Symbol,Slot<?>> mappings;
+	private ChampHashMap<Symbol,Slot<?>> mappings;
 	
 	/**
 	 * The dependencies for each slot
 	 */
-	private final PersistentHashMap<Symbol,APersistentSet<Symbol>> dependants;
+	private final ChampHashMap<Symbol,APersistentSet<Symbol>> dependants;
 	
-	private Context(PersistentHashMap<Symbol, Slot<?>> mappings, PersistentHashMap<Symbol,APersistentSet<Symbol>> deps) {
+	private Context(ChampHashMap<Symbol, Slot<?>> mappings, ChampHashMap<Symbol,APersistentSet<Symbol>> deps) {
 		this.mappings=mappings;
 		this.dependants=deps;
 	}
@@ -99,7 +99,31 @@ public class Context {
 	 * @return
 	 */
 	public <T> Context define(Symbol sym, Node<T> exp, APersistentMap<Symbol, Object> bindings) {
-		PersistentHashMap<Symbol,APersistentSet<Symbol>> newDependants=dependants;
+		// create the new Slot with this as the defining context
+		Slot<T> newSlot;
+		try {
+			newSlot=Slot.create(exp,this,bindings);
+		} catch (Throwable t) {
+			throw new Error("Error while defining "+sym,t);
+		}
+		return define(sym,newSlot);
+	}
+	
+	/**
+	 * Defines a symbol in this context using the source of a (def ...) or (defn ...) form, 
+	 * which is only read when the definition is first used.
+	 * 
+	 * @param sym Symbol to define
+	 * @param source Source of the definition form
+	 * @param deps Approximate dependencies of the definition
+	 * @return
+	 */
+	public Context defineLazy(Symbol sym, String source, APersistentSet<Symbol> deps) {
+		return define(sym,Slot.createLazy(source,deps,this));
+	}
+	
+	private <T> Context define(Symbol sym, Slot<T> newSlot) {
+		ChampHashMap<Symbol,APersistentSet<Symbol>> newDependants=dependants;
 		
 		// remove old dependencies
 		Slot<?> oldSlot=getSlot(sym);
@@ -109,14 +133,6 @@ public class Context {
 				newDependants=newDependants.assoc(rsym, newDependants.get(rsym).exclude(sym));
 			}
 		}
-				
-		// create the new Slot with this as the defining context
-		Slot<T> newSlot;
-		try {
-			newSlot=Slot.create(exp,this,bindings);
-		} catch (Throwable t) {
-			throw new Error("Error while defining "+sym,t);
-		}
 		
 		// include new dependencies
 		APersistentSet<Symbol> dependencies=newSlot.getDependencies();
@@ -134,7 +150,7 @@ public class Context {
 		}
 		
 		// construct new Context with consistent dependencies
-		PersistentHashMap<Symbol, Slot<?>> newMappings=mappings.assoc(sym,newSlot);
+		ChampHashMap<Symbol, Slot<?>> newMappings=mappings.assoc(sym,newSlot);
 		final Context c=new Context(newMappings,newDependants);
 		
 		// invalidate slots for transitive dependants if they exist
@@ -157,11 +173,11 @@ public class Context {
 		return calcTransitiveDependants(sym,dependants);
 	}
 	
-	private static APersistentSet<Symbol> calcTransitiveDependants(Symbol sym, PersistentHashMap<Symbol, APersistentSet<Symbol>> dependants) {
+	private static APersistentSet<Symbol> calcTransitiveDependants(Symbol sym, ChampHashMap<Symbol, APersistentSet<Symbol>> dependants) {
 		return calcTransitiveDependants(sym,dependants,Sets.emptySet());
 	}
 	
-	private static APersistentSet<Symbol> calcTransitiveDependants(Symbol sym, PersistentHashMap<Symbol, APersistentSet<Symbol>> dependants, APersistentSet<Symbol> found) {
+	private static APersistentSet<Symbol> calcTransitiveDependants(Symbol sym, ChampHashMap<Symbol, APersistentSet<Symbol>> dependants, APersistentSet<Symbol> found) {
 		APersistentSet<Symbol> syms=dependants.get(sym);
 		if (syms==null) return found;
 		for (Symbol s :syms) {
@@ -2,6 +2,7 @@ package magic.lang;
 
 import magic.Type;
 import magic.Types;
+import magic.ast.Define;
 import magic.ast.Node;
 import magic.compiler.EvalResult;
 import magic.data.APersistentMap;
@@ -16,6 +17,9 @@ import magic.data.Symbol;
  * - An definition stored as a Node
  * - A lazily computed value
  * 
+ * Slots for lazily loaded definitions store only the source of the definition, which is
+ * read when the slot is first used.
+ * 
  * @author Mike
  *
  * @param T the Java type of the expression
@@ -27,13 +31,23 @@ public class Slot<T> {
 	private T value=null;
 	private volatile boolean computed=false;
 
-	private final Node<T> rawExpression;
+	private Node<T> rawExpression; // null until read for lazily loaded definitions
+	
+	// source of a lazily loaded definition form, with its approximate dependencies, or null
+	private final String lazySource;
+	private final APersistentSet<Symbol> lazyDependencies;
 	private Node<T> expandedExpression=null;
 	private Node<T> compiledExpression=null;
 	private int expansionCount; // for detecting recursive expansion
 	
 	private Slot(Node<T> e, Context context, APersistentMap<Symbol, Object> bindings) {
+		this(e,null,null,context,bindings);
+	}
+	
+	private Slot(Node<T> e, String lazySource, APersistentSet<Symbol> lazyDependencies, Context context, APersistentMap<Symbol, Object> bindings) {
 		this.rawExpression=e;
+		this.lazySource=lazySource;
+		this.lazyDependencies=lazyDependencies;
 		this.context=context;
 		this.bindings=bindings;
 	}
@@ -100,9 +114,9 @@ public class Slot<T> {
 			// analysedExpression=rawExpression;
 			try {
 				expansionCount+=1;
-				expandedExpression=(Node<T>) magic.compiler.Compiler.expand(context,rawExpression);
+				expandedExpression=(Node<T>) magic.compiler.Compiler.expand(context,getRawExpression());
 			} catch (StackOverflowError t) {
-				throw new Error("Infinite expansion while expanding slot definition: " + rawExpression,t); 			
+				throw new Error("Infinite expansion while expanding slot definition: " + getRawExpression(),t); 			
 			} finally {
 				expansionCount-=1;
 			}
@@ -110,6 +124,26 @@ public class Slot<T> {
 		return expandedExpression;
 	}
 
+	/**
+	 * Gets the raw definition of this slot, reading the definition form if it was lazily loaded
+	 */
+	@SuppressWarnings("unchecked")
+	private synchronized Node<T> getRawExpression() {
+		if (rawExpression==null) {
+			Node<?> form=magic.compiler.Compiler.expand(context,magic.compiler.Reader.read(lazySource));
+			if (!(form instanceof Define)) throw new Error("Expected a definition in lazily loaded source: "+lazySource);
+			rawExpression=(Node<T>) ((Define<?>)form).getExpression();
+		}
+		return rawExpression;
+	}
+	
+	/**
+	 * Returns true if the definition of this slot has been read
+	 */
+	public boolean isRead() {
+		return rawExpression!=null;
+	}
+	
 	@SuppressWarnings("unchecked")
 	public static <T> Slot<T> create(Node<T> exp,Context context) {
 		return create(exp,context,(APersistentMap<Symbol, Object>)Maps.EMPTY);
@@ -118,6 +152,20 @@ public class Slot<T> {
 	public static <T> Slot<T> create(Node<T> exp, Context context,APersistentMap<Symbol, Object> bindings) {
 		return new Slot<T>(exp,context,bindings);
 	}
+	
+	/**
+	 * Creates a slot for a lazily loaded definition. The definition is not read, expanded or 
+	 * analysed until the slot is first used.
+	 * 
+	 * @param source Source of the (def ...) or (defn ...) form
+	 * @param deps Approximate dependencies, e.g. from a textual scan of the source
+	 * @param context Defining context
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> Slot<T> createLazy(String source, APersistentSet<Symbol> deps, Context context) {
+		return new Slot<T>(null,source,deps,context,(APersistentMap<Symbol, Object>)Maps.EMPTY);
+	}
 
 	public boolean isExpander() {
 		// TODO: better identification of expanders?
@@ -148,6 +196,9 @@ public class Slot<T> {
 	 * @return
 	 */
 	public APersistentSet<Symbol> getDependencies() {
+		// lazily loaded definitions keep their approximate dependencies, so that the
+		// dependency graph is stable whether or not the definition has been read
+		if (lazySource!=null) return lazyDependencies;
 		APersistentSet<Symbol> deps= getCompiledNode().getDependencies();
 		return deps;
 	}
@@ -161,12 +212,13 @@ public class Slot<T> {
 	 * @return
 	 */
 	public Slot<T> invalidate(Context c) {
+		if (lazySource!=null) return new Slot<T>(rawExpression,lazySource,lazyDependencies,c,bindings);
 		return create(rawExpression,c,bindings);
 	}
 	
 	@Override 
 	public String toString() {
-		return "<Slot raw="+rawExpression+(computed?("\n      val="+value):"")+">";
+		return "<Slot raw="+((rawExpression==null)?lazySource:rawExpression)+(computed?("\n      val="+value):"")+">";
 	}
 
 	/** 
@@ -1,17 +1,27 @@
 package magic.compiler;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import org.junit.Test;
 
 import magic.Core;
+import magic.Keywords;
 import magic.Symbols;
 import magic.ast.Constant;
 import magic.ast.Lambda;
+import magic.ast.ListForm;
 import magic.ast.Lookup;
 import magic.ast.Node;
+import magic.ast.NodeInterner;
+import magic.ast.Quote;
+import magic.ast.Unquote;
+import magic.data.Maps;
 import magic.data.PersistentList;
 import magic.data.Sets;
 import magic.data.Symbol;
@@ -47,6 +57,17 @@ public class TestAnalyse {
 		assertEquals(Symbol.create("x"),c2.getValue("sym"));
 	}
 	
+	@Test public void testQuotePurity() {
+		Node<?> x=Lookup.create(Symbol.create("x"));
+		assertTrue(compile("'(foo 2)").isPure());
+		assertTrue(Quote.create(x,true,null).isPure());
+		
+		// unquoted expressions are evaluated, so may have side effects
+		Node<?> unquote=Unquote.create(x,Maps.empty());
+		assertFalse(Quote.create(unquote,false,null).isPure());
+		assertFalse(Quote.create(ListForm.create(new Node<?>[] {Constant.create(1L),unquote}),true,null).isPure());
+	}
+	
 	@Test public void testZeroArgFn() {
 		EvalResult<?> r=Core.eval("(defn f [] 1) (def x (f))");
 		Context c2=r.getContext();
@@ -143,4 +164,43 @@ public class TestAnalyse {
 
 	}
 
+	@Test 
+	public void testNodeFields() {
+		Node<?> n=Reader.read("^:private foo");
+		Symbol sym=Symbol.create("magic.core","foo");
+		Node<?> d=n.withDependency(sym);
+		assertEquals(Sets.of(sym),d.getDependencies().excludeAll(n.getDependencies()));
+		
+		// analysis results are held in fields, user metadata remains in the map
+		assertNotNull(d.getSourceInfo());
+		assertEquals(n.getSourceInfo(),d.getSourceInfo());
+		assertNotNull(d.userMeta().get(Keywords.META));
+		assertNull(d.userMeta().get(Keywords.DEPS));
+		assertNull(d.userMeta().get(Keywords.SOURCE));
+		assertEquals(d.getDependencies(),d.meta().get(Keywords.DEPS));
+		assertEquals(d.getSourceInfo(),d.meta().get(Keywords.SOURCE));
+		
+		// metadata is not rebuilt on access, and updates keep the user metadata
+		assertSame(d.meta(),d.meta());
+		assertEquals(d.meta(),d.withMeta(d.meta()).meta());
+		assertEquals(n.userMeta(),d.userMeta());
+		assertEquals(3,d.meta().size());
+	}
+
+	@Test 
+	public void testNodeInterning() {
+		Node<?> node=Compiler.analyse(Core.INITIAL_CONTEXT,Reader.read("(fn [x] [[x 1 'a] [x 1 'a] (inc x) (inc x)])"));
+		NodeInterner interner=new NodeInterner();
+		Lambda<?> fn=(Lambda<?>) interner.intern(node);
+		Node<?> body=fn.getBody();
+		assertSame(body.getNodes().get(0),body.getNodes().get(1));
+		assertSame(body.getNodes().get(2),body.getNodes().get(3));
+		
+		// interning is idempotent, and equivalent trees share nodes
+		assertSame(body,((Lambda<?>)(Node<?>)interner.intern(fn)).getBody());
+		Node<?> node2=Compiler.analyse(Core.INITIAL_CONTEXT,Reader.read("(fn [x] [[x 1 'a] [x 1 'a] (inc x) (inc x)])"));
+		assertSame(body,((Lambda<?>)interner.intern(node2)).getBody());
+		assertEquals(Tuple.of(Tuple.of(3L,1L,Symbol.create("a")),Tuple.of(3L,1L,Symbol.create("a")),4L,4L),fn.compute(Core.INITIAL_CONTEXT).applyToArray(3L));
+	}
+
 }
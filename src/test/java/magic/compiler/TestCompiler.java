@@ -351,4 +351,45 @@ public class TestCompiler {
 		assertEquals(Sets.of(Symbol.create("b"),Symbol.create("magic.core","b"),Symbols.FN),c2.getDependencies("f"));
 		assertEquals(Sets.of(),c2.getDependants("f"));
 	}
+	
+	@Test public void testLazyLoading() {
+		String source=
+				"; a lazily loaded library\n"+
+				"(def a 1)\n"+
+				"(defn f [x] (+ x a)) "+
+				"(defn broken [] (let [x] \"never read )\")) "+
+				"#_(def skipped 3) "+
+				"(def b (f 2))";
+		Context c=Compiler.evalLazy(INITIAL, source).getContext();
+		
+		// definitions are not read until used
+		Slot<?> broken=c.getSlot("broken");
+		assertNotNull(broken);
+		assertFalse(broken.isRead());
+		assertFalse(c.getSlot("f").isRead());
+		assertNull(c.getSlot("skipped"));
+		
+		assertEquals((Long)3L,c.getValue("b"));
+		assertTrue(c.getSlot("f").isRead());
+		assertFalse(c.getSlot("broken").isRead());
+		
+		// approximate dependencies support redefinition
+		assertTrue(c.getDependants("a").contains(Symbol.create("magic.core","f")));
+		c=Compiler.eval(c, "(def a 10)").getContext();
+		assertEquals((Long)12L,c.getValue("b"));
+	}
+	
+	@Test public void testSourceScanner() {
+		String s="(a \"b)\" [c]) ; (d\n ^:e f 'g #{h} \\space";
+		int[] bounds=SourceScanner.scanForms(s);
+		assertEquals(10,bounds.length);
+		assertEquals("(a \"b)\" [c])",s.substring(bounds[0],bounds[1]));
+		assertEquals("^:e f",s.substring(bounds[2],bounds[3]));
+		assertEquals("'g",s.substring(bounds[4],bounds[5]));
+		assertEquals("#{h}",s.substring(bounds[6],bounds[7]));
+		
+		assertEquals(Symbol.create("foo"),SourceScanner.defName("(defn foo [x] x)",0,16));
+		assertNull(SourceScanner.defName("(def ~'foo 1)",0,13));
+		assertEquals(Sets.of(Symbol.create("a"),Symbol.create("c")),SourceScanner.scanSymbols(s,bounds[0],bounds[1]));
+	}
 }
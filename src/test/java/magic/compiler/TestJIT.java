@@ -0,0 +1,111 @@
+package magic.compiler;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import magic.Core;
+import magic.ast.Lambda;
+import magic.lang.Context;
+
+public class TestJIT {
+
+	@SuppressWarnings("unchecked")
+	private Lambda<Object>.LambdaFn fn(String code) {
+		return (Lambda<Object>.LambdaFn) Core.eval(code).getValue();
+	}
+
+	@Test public void testCompileLoop() {
+		Lambda<Object>.LambdaFn f=fn("(fn [n] (loop [i 0 acc 0] (if (< i n) (recur (inc i) (+ acc i)) acc)))");
+		assertEquals(45L,f.applyToArray(10L));
+		assertTrue(f.compile());
+		assertTrue(f.isCompiled());
+		assertEquals(45L,f.applyToArray(10L));
+		assertEquals(15L,f.applyToArray(5.5));
+	}
+
+	@Test public void testCompileSelfTailCall() {
+		Lambda<Object>.LambdaFn f=fn("(defn sum-to [n acc] (if (<= n 0) acc (sum-to (dec n) (+ acc n)))) sum-to");
+		assertTrue(f.compile());
+		assertEquals(5050L,f.applyToArray(100L,0L));
+	}
+
+	@Test public void testCompileClosure() {
+		Lambda<Object>.LambdaFn f=fn("(let [k 5] (fn [x] (let [y (+ x k)] (if (nil? x) :none (* x y)))))");
+		assertTrue(f.compile());
+		assertEquals(14L,f.applyToArray(2L));
+	}
+
+	@Test public void testSharedClosureCode() {
+		// closures from the same lambda share one compiled class, with their own captured values
+		Context c=Core.eval("(defn adder [k] (fn [x] (+ x k)))").getContext();
+		Lambda<Object>.LambdaFn f1=(Lambda<Object>.LambdaFn) Core.eval(c,"(adder 1)").getValue();
+		Lambda<Object>.LambdaFn f2=(Lambda<Object>.LambdaFn) Core.eval(c,"(adder 2)").getValue();
+		assertTrue(f1.compile());
+		long generated=JIT.getGeneratedClassCount();
+		assertEquals(12L,f2.applyToArray(10L));
+		assertTrue(f2.isCompiled());
+		assertEquals(12L,f2.applyToArray(10L));
+		assertEquals(11L,f1.applyToArray(10L));
+		assertEquals(generated,JIT.getGeneratedClassCount());
+	}
+
+	@Test public void testUncompilable() {
+		// nested lambdas are not compiled, so the function remains interpreted
+		Lambda<Object>.LambdaFn f=fn("(fn [x] (fn [y] x))");
+		assertFalse(f.compile());
+		assertFalse(f.isCompiled());
+		
+		// the lambda is marked as failed, so it is never queued for compilation
+		int oldThreshold=JIT.getThreshold();
+		try {
+			JIT.setThreshold(1);
+			long generated=JIT.getGeneratedClassCount();
+			for (int i=0; i<10; i++) {
+				f.applyToArray(1L);
+			}
+			assertFalse(f.isCompiled());
+			assertEquals(generated,JIT.getGeneratedClassCount());
+		} finally {
+			JIT.setThreshold(oldThreshold);
+		}
+	}
+
+	@Test public void testThreshold() throws InterruptedException {
+		int oldThreshold=JIT.getThreshold();
+		try {
+			JIT.setThreshold(100);
+			Lambda<Object>.LambdaFn f=fn("(fn [n] (loop [i 0] (if (< i n) (recur (inc i)) i)))");
+
+			// loop back-edges count towards the threshold
+			assertEquals(500L,f.applyToArray(500L));
+			for (int i=0; (i<100)&&!f.isCompiled(); i++) {
+				Thread.sleep(50);
+				f.applyToArray(1L);
+			}
+			assertTrue(f.isCompiled());
+			assertEquals(7L,f.applyToArray(7L));
+		} finally {
+			JIT.setThreshold(oldThreshold);
+		}
+	}
+
+	@Test public void testClassUnloading() throws InterruptedException {
+		long generated=JIT.getGeneratedClassCount();
+		Lambda<Object>.LambdaFn f=fn("(fn [a b] (+ a b))");
+		for (int i=0; i<10; i++) {
+			assertTrue(f.compile()); // each compilation generates a new class
+		}
+		assertEquals(generated+10,JIT.getGeneratedClassCount());
+		int live=JIT.getLiveClassCount();
+		assertTrue(live>=1);
+		
+		// replaced code is unloaded once unreachable
+		for (int i=0; (i<20)&&(JIT.getLiveClassCount()>live-9); i++) {
+			System.gc();
+			Thread.sleep(20);
+		}
+		assertTrue(JIT.getLiveClassCount()<=live-9);
+		assertEquals(3L,f.applyToArray(1L,2L));
+	}
+}
@@ -5,7 +5,13 @@ import static org.junit.Assert.*;
 import org.junit.Test;
 
 import magic.Core;
+import magic.ast.Arithmetic;
+import magic.ast.IfPredicate;
+import magic.ast.Let;
+import magic.ast.Loop;
 import magic.ast.Node;
+import magic.data.Symbol;
+import magic.data.Tuple;
 import magic.lang.Context;
 
 public class TestOptimise {
@@ -43,4 +49,142 @@ public class TestOptimise {
 		assertEquals(1L,compile("(if true 1 2)").getValue());
 		assertEquals(2L,compile("(if nil 1 2)").getValue());
 	}
+	
+	@Test public void TestDeadCodeElimination() {
+		// unused pure let bindings
+		assertEquals(2L,compile("(let [a 1] 2)").getValue());
+		assertEquals(3L,compile("(let [a 1 b [a 2]] 3)").getValue());
+		assertTrue(compile("(let [a 1 b 2] b)") instanceof Let);
+		
+		// pure non-final statements in do blocks, including nested do blocks
+		assertEquals(3L,compile("(do 1 2 3)").getValue());
+		assertEquals(3L,compile("(do (do 1 [2]) (do 3))").getValue());
+		
+		// identical constant branches
+		assertEquals(1L,compile("(if a 1 1)").getValue());
+		
+		// side effects must be preserved
+		assertFalse(compile("(do (println 1) 2)").isConstant());
+		assertFalse(compile("(let [a (println 1)] 2)").isConstant());
+		
+		// computed bindings still evaluate correctly
+		assertEquals(2L,Core.eval("(let [a (inc 1) b 5 c [b]] a)").getValue());
+	}
+	
+	@Test public void TestCommonSubexpressions() {
+		// repeated pure subexpressions are hoisted
+		assertTrue(compile("[(. magic.RT nth x 0) (. magic.RT nth x 0)]") instanceof Let);
+		assertTrue(compile("(do (println (. magic.RT first x)) (. magic.RT first x))") instanceof Let);
+		
+		// no hoisting of single, impure, conditional or locally bound expressions
+		assertFalse(compile("[(. magic.RT nth x 0) (. magic.RT nth x 1)]") instanceof Let);
+		assertFalse(compile("[(println x) (println x)]") instanceof Let);
+		assertFalse(compile("(if c (. magic.RT first x) (. magic.RT first x))") instanceof Let);
+		assertTrue(compile("(let [y x] [(. magic.RT first y) (. magic.RT first y)])").toString().contains("(LET [y"));
+		
+		// subexpressions that may throw are not evaluated ahead of earlier effects
+		assertFalse(compile("(do (println 1) [(. magic.RT first x) (. magic.RT first x)])") instanceof Let);
+		assertTrue(compile("(do (println 1) [(. magic.RT not x) (. magic.RT not x)])") instanceof Let);
+		assertTrue(compile("[(. magic.RT first x) (println 1) (. magic.RT first x)]") instanceof Let);
+		
+		// keys distinguish operations and constant types
+		assertFalse(compile("[(+ a b) (- a b)]") instanceof Let);
+		assertFalse(compile("[(. magic.RT nth x 1) (. magic.RT nth x 1.0)]") instanceof Let);
+		
+		// results unchanged
+		assertEquals(6L,Core.eval("(let [f (fn [v] (+ (. magic.RT nth v 0) (. magic.RT nth v 0)))] (f [3 4]))").getValue());
+		assertEquals(7L,Core.eval("(let [f (fn [v] (+ (+ (. magic.RT nth v 0) (. magic.RT nth v 1)) (. magic.RT nth v 0)))] (f [3 1]))").getValue());
+		assertEquals(3L,Core.eval("(let [f (fn [v] (loop [i 0] (if (< i (. magic.RT first v)) (recur (inc i)) (. magic.RT first v))))] (f [3]))").getValue());
+	}
+	
+	@Test public void TestInlineLambda() {
+		// immediately applied lambdas become lets
+		assertTrue(compile("((fn [x] [x x]) y)") instanceof Let);
+		assertEquals(1L,compile("((fn [x] 1) 2)").getValue());
+		
+		// lambdas that recur or have mismatched arity are not inlined
+		assertFalse(compile("((fn [n] (if (<= n 0) n (recur (dec n)))) 5)") instanceof Let);
+		assertFalse(compile("((fn [x] x) 1 2)") instanceof Let);
+		
+		// results unchanged, including where arguments refer to parameter names
+		assertEquals(Tuple.of(2L,1L),Core.eval("(let [x 1 y 2] ((fn [x y] [x y]) y x))").getValue());
+		assertEquals(0L,Core.eval("((fn [n] (if (<= n 0) n (recur (dec n)))) 5)").getValue());
+		
+		// closed lambdas share a single function instance, closures do not
+		assertEquals(Boolean.TRUE,Core.eval("(let [f (fn [] (fn [x] x))] (identical? (f) (f)))").getValue());
+		assertEquals(Boolean.FALSE,Core.eval("(let [f (fn [a] (fn [x] a))] (identical? (f 1) (f 1)))").getValue());
+	}
+	
+	@Test public void TestFusedPredicates() {
+		// predicates in test position are fused with the branch
+		assertTrue(compile("(if (< a b) 1 2)") instanceof IfPredicate);
+		assertTrue(compile("(if (nil? a) 1 2)") instanceof IfPredicate);
+		assertTrue(compile("(if (not a) 1 2)") instanceof IfPredicate);
+		assertTrue(compile("(if (. magic.Maths ge a b) 1 2)") instanceof IfPredicate);
+		assertFalse(compile("(if (foo a b) 1 2)") instanceof IfPredicate);
+		
+		// results unchanged
+		assertEquals(1L,Core.eval("(let [a 1 b 2] (if (< a b) 1 2))").getValue());
+		assertEquals(2L,Core.eval("(let [a 1 b 2.0] (if (>= a b) 1 2))").getValue());
+		assertEquals(1L,Core.eval("(let [a 1 b 1.0] (if (== a b) 1 2))").getValue());
+		assertEquals(1L,Core.eval("(let [a 1000 b 1000] (if (== a b) 1 2))").getValue());
+		assertEquals(1L,Core.eval("(let [a nil] (if (nil? a) 1 2))").getValue());
+		assertEquals(2L,Core.eval("(let [a false] (if (nil? a) 1 2))").getValue());
+		assertEquals(1L,Core.eval("(let [a false] (if (not a) 1 2))").getValue());
+		assertEquals(2L,Core.eval("(let [a 0] (if (not a) 1 2))").getValue());
+		
+		// redefined predicate functions are respected
+		assertEquals(1L,Core.eval("(def < (fn [a b] true)) (if (< 2 1) 1 2)").getValue());
+	}
+	
+	@Test public void TestArithmeticSpecialisation() {
+		assertTrue(compile("(+ a b)") instanceof Arithmetic);
+		assertTrue(compile("(inc a)") instanceof Arithmetic);
+		assertTrue(compile("(. magic.Maths mul a b)") instanceof Arithmetic);
+		assertFalse(compile("(. magic.Maths lt a b)") instanceof Arithmetic);
+		
+		// specialised paths, including deoptimisation on a change of operand types
+		assertEquals(Tuple.of(3L,4.0,3.5,2L),Core.eval("(let [f (fn [x y] (+ x y))] [(f 1 2) (f 1.5 2.5) (f 1 2.5) (f 1 1)])").getValue());
+		assertEquals(Tuple.of(6.0,6L),Core.eval("(let [f (fn [x y] (* x y))] [(f 2.0 3.0) (f 2 3)])").getValue());
+		assertEquals(Tuple.of(2L,2.0,-1.5),Core.eval("(let [f (fn [x] (- (inc x) (dec x)))] [(f 1) (f 1.5) (- 1 2.5)])").getValue());
+		
+		// redefined arithmetic functions are respected
+		assertEquals(42L,Core.eval("(def + (fn [a b] 42)) (+ 1 2)").getValue());
+	}
+	
+	@Test public void TestLoopInvariants() {
+		// invariant test subexpression is hoisted out of the loop
+		Node<?> n=compile("(loop [i 0] (if (< i (. magic.RT first x)) (recur (inc i)) i))");
+		assertTrue(n instanceof Let);
+		
+		// expressions depending on loop bindings or evaluated conditionally stay in the loop
+		assertTrue(compile("(loop [i 0] (if (< i (. magic.RT first i)) (recur (inc i)) i))") instanceof Loop);
+		assertTrue(compile("(loop [i 0] (if (< i 3) (recur (+ i (. magic.RT first x))) i))") instanceof Loop);
+		
+		// expressions that may throw are not moved ahead of earlier effects
+		assertTrue(compile("(loop [i 0] (do (println i) (if (< i (. magic.RT first x)) (recur (inc i)) i)))") instanceof Loop);
+		assertTrue(compile("(loop [i (println 0)] (if (< i (. magic.RT first x)) (recur (inc i)) i))") instanceof Loop);
+		assertTrue(compile("(loop [i 0] (do (println i) (if (. magic.RT not x) (recur (inc i)) i)))") instanceof Let);
+		
+		// results unchanged
+		assertEquals(3L,Core.eval("(let [v [3]] (loop [i 0] (if (< i (. magic.RT first v)) (recur (inc i)) i)))").getValue());
+		assertEquals(6L,Core.eval("(let [v [2 3]] (loop [i 0 acc 0] (if (< i (. magic.RT first v)) (recur (inc i) (+ acc (. magic.RT nth v 1))) acc)))").getValue());
+	}
+	
+	@Test public void TestInlineGlobals() {
+		Context c=Core.eval("(def k 10) (defn g [x] (+ x k)) [k (g 1)]").getContext();
+		Node<?> n=Compiler.compileNode(c, Reader.read("k"));
+		assertTrue(n.isConstant());
+		assertEquals(10L,n.getValue());
+		assertTrue(n.getDependencies().contains(Symbol.create("magic.core/k")));
+		
+		// local bindings shadow computed globals
+		assertEquals(1L,Compiler.eval(c, Reader.read("(let [k 1] k)")).getValue());
+		assertEquals(2L,Compiler.eval(c, Reader.read("(let [f (fn [k] k)] (f 2))")).getValue());
+		
+		// redefinition invalidates dependants that inlined the old value
+		c=Compiler.eval(c, "(def j (g 1)) (def k 20)").getContext();
+		assertEquals(21L,(Object)c.getValue("j"));
+		assertEquals(21L,Compiler.eval(c, "(g 1)").getValue());
+	}
 }
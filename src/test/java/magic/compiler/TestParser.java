@@ -12,6 +12,7 @@ import magic.ast.Node;
 import magic.ast.Vector;
 import magic.data.IPersistentVector;
 import magic.data.Keyword;
+import magic.data.Lists;
 import magic.data.Maps;
 import magic.data.Sets;
 import magic.data.Symbol;
@@ -171,4 +172,155 @@ public class TestParser {
 			// OK
 		}
 	}
+	
+	private void assertSameForm(Node<?> expected, Node<?> actual) {
+		assertEquals(expected.getClass(),actual.getClass());
+		assertEquals(expected.toString(),actual.toString());
+		SourceInfo esi=expected.getSourceInfo();
+		SourceInfo asi=actual.getSourceInfo();
+		assertEquals(esi==null,asi==null);
+		if (esi!=null) {
+			assertEquals(expected+" line",esi.getLine(),asi.getLine());
+			assertEquals(expected+" column",esi.getLinePosition(),asi.getLinePosition());
+		}
+		assertEquals(expected.meta().containsKey(Keywords.META),actual.meta().containsKey(Keywords.META));
+		if ((expected instanceof ListForm)||(expected instanceof Vector)) {
+			assertEquals(expected.getNodes().size(),actual.getNodes().size());
+			for (int i=0; i<expected.getNodes().size(); i++) {
+				assertSameForm(expected.getNodes().get(i),actual.getNodes().get(i));
+			}
+		}
+	}
+	
+	@Test public void testFastReaderConformance() {
+		String[] sources=new String[] {
+			"",
+			"  foo  ",
+			"(defn f [x]\n  ;; comment\n  (+ x 1.5e3 -2 +7 .5))",
+			"[1 #_ (ignored) 2, 3 :foo :a/b foo/bar foo// / . - -> nil? true false nil]",
+			"{:a \"str\\\" ing\" \\newline \\u0041} #{1 2}",
+			"'foo `(a ~b ~@c) '[x] ~'y",
+			"[^:private x]\n(a ^{:a 1} y) (b ^String z)",
+			"(let [a 1\n      b (inc a)]\n  [a b])"
+		};
+		for (String src: sources) {
+			assertSameForm(Reader.parseAll(src),FastReader.readAll(src));
+		}
+		assertSameForm(Reader.parse("(foo (bar) [baz])"),FastReader.read("(foo (bar) [baz])"));
+		assertEquals(Reader.parseSymbol("foo/bar"),FastReader.readSymbol("foo/bar"));
+	}
+	
+	@Test public void testFastReaderFallback() {
+		// input rejected by the fast reader is still reported as a parse error
+		try {
+			Reader.readAll("(foo");
+			fail("Unterminated list should not parse");
+		} catch (Error e) {
+			assertTrue(e.getMessage().startsWith("Parse error"));
+		}
+		try {
+			FastReader.read("1a");
+			fail();
+		} catch (FastReader.ReadException e) {
+			// OK
+		}
+	}
+	
+	@Test public void testReadData() {
+		assertEquals(Tuple.of(1L,2.5,"foo"),Reader.readData("[1 2.5 \"foo\"]"));
+		assertEquals(Maps.create(Keyword.create("a"),Tuple.of(Symbol.create("b"),null)),Reader.readData("{:a [b nil]}"));
+		assertEquals(Sets.of(1L,2L),Reader.readData("#{1 2 #_3}"));
+		assertEquals(Lists.of(Symbol.create("foo","bar"),true,'A'),Reader.readData("(foo/bar true \\u0041)"));
+		assertEquals(Maps.empty(),Reader.readData(" {} "));
+		assertTrue(Reader.readData("[]") instanceof IPersistentVector);
+		assertEquals(Tuple.of(1L,Keyword.create("b")),Reader.readAllData("1 ; comment\n:b"));
+		
+		// large collections are read directly into persistent collections
+		StringBuilder sb=new StringBuilder("[");
+		for (int i=0; i<1000; i++) sb.append(i).append(' ');
+		IPersistentVector<?> v=(IPersistentVector<?>) Reader.readData(sb.append(']').toString());
+		assertEquals(1000,v.size());
+		assertEquals(999L,v.get(999));
+	}
+	
+	@Test public void testReadDataFail() {
+		try {
+			Reader.readData("'foo");
+			fail("Quoting is not valid in data");
+		} catch (Error e) {
+			assertTrue(e.getMessage().startsWith("Parse error"));
+		}
+		try {
+			Reader.readData("{1 2 3}");
+			fail("Map with odd number of terms");
+		} catch (Error e) {
+			// OK
+		}
+	}
+	
+	@Test public void testSourceInfo() {
+		String src="(foo\n  bar)";
+		ListForm a=(ListForm) Reader.read(src);
+		ListForm b=(ListForm) Reader.read(new String(src));
+		SourceInfo si=a.get(1).getSourceInfo();
+		assertEquals(2,si.getLine());
+		assertEquals(6,si.getLinePosition());
+		assertEquals(si,b.get(1).getSourceInfo());
+		
+		// sources are interned, so equal sources share a single instance
+		assertSame(si.getSource(),b.get(1).getSourceInfo().getSource());
+		assertSame(si.getSource(),SourceInfo.create(new String(src),1,1).getSource());
+		
+		long p=SourceInfo.packPosition(100000,70000);
+		assertEquals(100000,SourceInfo.create("x",p).getLine());
+		assertEquals(70000,SourceInfo.create("x",p).getLinePosition());
+	}
+	
+	@Test public void testIncrementalRead() {
+		String src="(def a 1)\n(def b [2 3])\n; comment\n(def c \"x\")";
+		SourceForms f1=SourceForms.read(src);
+		assertEquals(3,f1.size());
+		assertEquals(Reader.readAll(src).toString(),f1.getListForm().toString());
+		
+		// edit within the middle form
+		int offset=src.indexOf('3');
+		SourceForms f2=f1.edit(offset,1,"30 40");
+		assertEquals(3,f2.size());
+		assertSame(f1.getForm(0),f2.getForm(0));
+		assertNotSame(f1.getForm(1),f2.getForm(1));
+		assertSame(f1.getForm(2),f2.getForm(2));
+		assertTrue(f2.isReused(0)&&!f2.isReused(1)&&f2.isReused(2));
+		assertEquals(Reader.readAll(f2.getSource()).toString(),f2.getListForm().toString());
+		assertEquals(f2.getSource().length(),f2.getEnd(2));
+		
+		// re-read forms have positions relative to the whole source
+		SourceInfo si=((ListForm)f2.getForm(1)).get(1).getSourceInfo();
+		assertEquals(2,si.getLine());
+		
+		// edit which splits a form and joins tokens
+		SourceForms f3=f2.edit(f2.getEnd(0)-1,1,") (def d 4)");
+		assertEquals(4,f3.size());
+		assertSame(f2.getForm(1),f3.getForm(2));
+		assertEquals(Reader.readAll(f3.getSource()).toString(),f3.getListForm().toString());
+		SourceForms f4=f3.edit(0,f3.getStart(1),"");
+		assertEquals(3,f4.size());
+		assertSame(f3.getForm(1),f4.getForm(0));
+	}
+	
+	@Test public void testParallelRead() {
+		StringBuilder sb=new StringBuilder();
+		for (int i=0; i<5000; i++) {
+			sb.append("(def f"+i+" [x]\n  ;; comment "+i+"\n  [x \"s\" :k "+i+"])\n");
+		}
+		String src=sb.toString();
+		assertTrue(src.length()>=Reader.PARALLEL_READ_THRESHOLD);
+		ListForm expected=FastReader.readAll(src);
+		ListForm actual=FastReader.readAllParallel(src);
+		assertSameForm(expected,actual);
+		assertEquals(5000,actual.size());
+		assertEquals(expected.toString(),Reader.readAll(src).toString());
+		
+		// forms without separating whitespace are read sequentially
+		assertSameForm(FastReader.readAll("(a)(b) [c]"),FastReader.readAllParallel("(a)(b) [c]"));
+	}
 }
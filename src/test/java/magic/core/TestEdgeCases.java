@@ -5,9 +5,13 @@ import static org.junit.Assert.*;
 import org.junit.Test;
 
 import magic.Core;
+import magic.ast.Lambda;
+import magic.ast.Lookup;
 import magic.compiler.EvalResult;
+import magic.data.Maps;
 import magic.data.Symbol;
 import magic.data.Tuple;
+import magic.data.Vectors;
 import magic.lang.Context;
 import magic.lang.Slot;
 
@@ -62,6 +66,26 @@ public class TestEdgeCases {
 		assertEquals(10L,Core.eval(c,"(add3 7)").getValue());
 	}
 	
+	@Test public void testClosureCapture() {
+		// closures capture free lexical variables from enclosing scopes, but not unused locals
+		assertEquals((Long)11L,exec("(let [a 1 b [2 3]] ((fn [x] (+ x a)) 10))"));
+		assertEquals((Long)6L,exec("(let [a 1] (let [f (fn [x] (fn [y] (+ (+ x y) a)))] ((f 2) 3)))"));
+		assertEquals((Long)3L,exec("(let [a 1 a 3] ((fn [] a)))"));
+		
+		Lambda<?>.LambdaFn fn=exec("((fn [y] (let [a y b [y 3]] (fn [x] (+ x a)))) 1)");
+		assertEquals(1,fn.getCapturedCount());
+		assertEquals(11L,fn.applyToArray(10L));
+	}
+	
+	@Test public void testSharedFn() {
+		// closed lambdas share a function instance per node, separate nodes do not share state
+		Lambda<Object> a=Lambda.create(Vectors.of(Symbol.create("x")),Lookup.create("x"));
+		Lambda<Object> b=Lambda.create(Vectors.of(Symbol.create("x")),Lookup.create("x"));
+		Object fa=a.eval(Context.EMPTY,Maps.empty()).getValue();
+		assertSame(fa,a.eval(Context.EMPTY,Maps.empty()).getValue());
+		assertNotSame(fa,b.eval(Context.EMPTY,Maps.empty()).getValue());
+	}
+	
 	@Test public void testRecursiveFunction() {
 		Context c=Core.eval("(defn fact [a] "
 				+ "  (if (<= a 1) 1 (* a (fact (dec a)))))").getContext();
@@ -70,6 +94,24 @@ public class TestEdgeCases {
 		assertEquals(Tuple.of(24L),Core.eval(c,"[(fact 4)]").getValue());
 	}
 	
+	@Test public void testSelfTailCall() {
+		// deep self recursion in tail position must not grow the stack
+		assertEquals((Long)5000050000L,exec(
+				  "(defn sum-to [n acc] (if (<= n 0) acc (sum-to (dec n) (+ acc n)))) "
+				+ "(sum-to 100000 0)"));
+		assertEquals((Long)0L,exec(
+				  "(defn count-down [n] (do (if (<= n 0) n (let [m (dec n)] (count-down m))))) "
+				+ "(count-down 100000)"));
+		
+		// non-tail self calls are unaffected
+		assertEquals((Long)24L,exec(
+				  "(defn fact [a] (if (<= a 1) 1 (* a (fact (dec a))))) "
+				+ "(fact 4)"));
+		
+		// recur to an unnamed fn
+		assertEquals((Long)0L,exec("((fn [n] (if (<= n 0) n (recur (dec n)))) 5)"));
+	}
+	
 	@Test public void testNS() {
 		assertEquals("foo.bar",exec(
 				  "(ns foo.bar) "
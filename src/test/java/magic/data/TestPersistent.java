@@ -32,6 +32,77 @@ public class TestPersistent {
 		testPersistentVector(PersistentVector.create(pl));
 		testPersistentVector(PersistentVector.create(RepeatVector.create("MM", 40)));
 		testPersistentVector(SubVector.create(pl,2,3));
+		testPersistentVector(RRBVector.create(pl));
+		testPersistentVector(RRBVector.create(RepeatVector.create("MM", 1000)));
+		testPersistentVector(LongVector.create(new long[] {1,2,3,4,5}));
+		testPersistentVector(DoubleVector.create(new double[] {1.0,-2.5,3.0}));
+	}
+	
+	@Test public void testPrimitiveVectors() {
+		int[] sizes={0,1,31,32,33,1024,1056,1057,5000};
+		for (int n: sizes) {
+			long[] ls=new long[n];
+			double[] ds=new double[n];
+			ArrayList<Long> al=new ArrayList<Long>();
+			ArrayList<Double> dl=new ArrayList<Double>();
+			LongVector lv=LongVector.EMPTY;
+			for (int i=0; i<n; i++) {
+				ls[i]=i*3L;
+				ds[i]=i*0.5;
+				al.add(ls[i]);
+				dl.add(ds[i]);
+				lv=lv.includeLong(ls[i]);
+			}
+			LongVector lc=LongVector.create(ls);
+			DoubleVector dc=DoubleVector.create(ds);
+			lv.validate();
+			lc.validate();
+			dc.validate();
+			assertEquals(al,lv);
+			assertEquals(al,lc);
+			assertEquals(dl,dc);
+			assertEquals(Tuple.createFrom(al).hashCode(),lc.hashCode());
+			assertEquals(Tuple.createFrom(dl).hashCode(),dc.hashCode());
+			assertEquals(3L*n*(n-1)/2,lc.reduceLong((a,b)->a+b, 0L));
+			assertEquals(0.25*n*(n-1),dc.reduceDouble((a,b)->a+b, 0.0),0.0);
+			assertTrue(java.util.Arrays.equals(ls,lv.toLongArray()));
+			assertTrue(java.util.Arrays.equals(ds,dc.toDoubleArray()));
+			
+			if (n>0) {
+				int r=Rand.r(n);
+				assertEquals(ls[r],lc.getLong(r));
+				assertEquals(ds[r],dc.getDouble(r),0.0);
+				LongVector la=lc.assocLong(r, -1L);
+				la.validate();
+				assertEquals(-1L,la.getLong(r));
+				assertEquals(ls[r],lc.getLong(r));
+				
+				// non-matching values convert to a general vector
+				APersistentVector<Object> ga=generic(lc).assocAt(r, "foo");
+				assertEquals("foo",ga.get(r));
+				assertEquals(n,ga.size());
+			}
+			APersistentVector<Object> gi=generic(lc).include("bar");
+			assertEquals("bar",gi.get(n));
+			assertEquals(al,gi.subList(0, n));
+			assertTrue(lc.include(7L) instanceof LongVector);
+		}
+		
+		// only primitive arrays coerce to primitive vectors, collections are not scanned
+		ArrayList<Long> ol=new ArrayList<Long>();
+		for (int i=0; i<100; i++) ol.add((long)i);
+		assertFalse(Vectors.coerce(ol) instanceof LongVector);
+		assertEquals(ol,LongVector.create(ol));
+		assertTrue(Vectors.<Double>coerce((Object)new double[] {1.0,2.0}) instanceof DoubleVector);
+		assertTrue(Vectors.<Long>coerce((Object)new long[] {1,2}) instanceof LongVector);
+	}
+	
+	/**
+	 * Views a vector as a vector of arbitrary objects, as used by dynamically typed code
+	 */
+	@SuppressWarnings("unchecked")
+	private static APersistentVector<Object> generic(APersistentVector<?> v) {
+		return (APersistentVector<Object>) v;
 	}
 	
 	@Test public void testCollectionTypes() {
@@ -65,6 +136,167 @@ public class TestPersistent {
 		assertEquals(ts,bs4.subList(10, 20));
 		assertEquals(ts,bs4.subList(20, 30));
 		assertEquals(ts,bs4.subList(30, 40));
+		
+		// concatenating sublists at an offset, including when rising a level
+		ArrayList<Integer> al=new ArrayList<Integer>();
+		for (int i=0; i<8000; i++) al.add(i);
+		PersistentVector<Integer> big=PersistentVector.create(al);
+		for (int i=0; i<200; i++) {
+			int b=Rand.r(al.size());
+			int c=Rand.range(b, al.size());
+			APersistentVector<Integer> sub=big.subList(b, c);
+			if (!(sub instanceof PersistentVector)) continue;
+			int m=Rand.r(1000);
+			PersistentVector<Integer> cv=((PersistentVector<Integer>)sub).concat(big.subList(0, m));
+			cv.validate();
+			ArrayList<Integer> expected=new ArrayList<Integer>(al.subList(b, c));
+			expected.addAll(al.subList(0, m));
+			assertEquals(expected,cv);
+			assertEquals((Integer)(-1),cv.include(-1).get(expected.size()));
+		}
+	}
+	
+	@Test public void testRRBVector() {
+		ArrayList<Integer> al=new ArrayList<Integer>();
+		APersistentVector<Integer> v=RRBVector.create(new ArrayList<Integer>());
+		for (int i=0; i<2000; i++) {
+			int op=Rand.r(5);
+			int n=al.size();
+			if (op==0) {
+				// concat a vector of random size
+				int m=Rand.r(100);
+				ArrayList<Integer> add=new ArrayList<Integer>();
+				for (int j=0; j<m; j++) add.add(i*1000+j);
+				v=v.concat(Vectors.createFromList(add));
+				al.addAll(add);
+			} else if ((op==1)&&(n>0)) {
+				// random slice
+				int b=Rand.r(n);
+				int c=Rand.range(b, n);
+				v=v.subList(b, c);
+				al=new ArrayList<Integer>(al.subList(b, c));
+			} else if (op==2) {
+				int pos=Rand.r(n+1);
+				v=v.insert(pos, i);
+				al.add(pos,i);
+			} else if ((op==3)&&(n>0)) {
+				int b=Rand.r(n);
+				int c=Rand.range(b, n);
+				v=v.deleteRange(b, c);
+				al.subList(b, c).clear();
+			} else {
+				v=v.include(i);
+				al.add(i);
+			}
+			v.validate();
+			assertEquals(al.size(),v.size());
+			if (al.size()>0) {
+				int r=Rand.r(al.size());
+				assertEquals(al.get(r),v.get(r));
+			}
+		}
+		assertEquals(al,v);
+		assertEquals(Vectors.createFromList(al).hashCode(),v.hashCode());
+		
+		// repeated concatenation stays balanced
+		APersistentVector<Integer> acc=Vectors.emptyVector();
+		for (int i=0; i<5000; i++) {
+			acc=Vectors.concat(acc, Tuple.of(i,i+1,i+2));
+		}
+		assertTrue(acc instanceof RRBVector);
+		acc.validate();
+		assertEquals(15000,acc.size());
+		assertEquals((Integer)4999,acc.get(14997));
+		
+		// coercion reuses PersistentVector blocks, including sublists and tails
+		for (int n: new int[] {1,31,32,33,500,512,513,5000,20000}) {
+			ArrayList<Integer> src=new ArrayList<Integer>();
+			PersistentVector.Transient<Integer> tv=PersistentVector.createTransient();
+			for (int i=0; i<n; i++) {
+				src.add(i);
+				tv.include(i);
+			}
+			APersistentVector<Integer> pv=tv.persistent().include(-1);
+			src.add(-1);
+			RRBVector<Integer> rv=RRBVector.coerce(pv);
+			rv.validate();
+			assertEquals(src,rv);
+			int b=n/3;
+			int c=n+1-n/5;
+			RRBVector<Integer> sv=RRBVector.coerce(pv.subList(b, c));
+			sv.validate();
+			assertEquals(src.subList(b, c),sv);
+			assertEquals(src.subList(b, c),sv.concat(pv).subList(0, c-b));
+		}
+		
+		// list insertion and deletion
+		APersistentList<Integer> list=Lists.create(Tuple.of(1,2,3,4,5));
+		assertEquals(Lists.create(Tuple.of(1,2,5)),list.deleteRange(2, 4));
+		assertEquals(Lists.create(Tuple.of(1,2,9,3,4,5)),list.insert(2, 9));
+	}
+	
+	@Test public void testIncludeTail() {
+		APersistentVector<Integer> v=Vectors.emptyVector();
+		ArrayList<Integer> al=new ArrayList<Integer>();
+		for (int i=0; i<3000; i++) {
+			v=v.include(i);
+			al.add(i);
+			if ((i%97)==0) {
+				v.validate();
+				assertEquals(al,v);
+				assertEquals(Tuple.createFrom(al).hashCode(),v.hashCode());
+			}
+		}
+		assertTrue(v instanceof PersistentVector);
+		assertEquals(al,v);
+		
+		// appending to sublists that end within the tail and within blocks
+		APersistentVector<Integer> a=v.subList(10, 2990).include(-1);
+		a.validate();
+		assertEquals((Integer)2989,a.get(2979));
+		assertEquals((Integer)(-1),a.get(2980));
+		APersistentVector<Integer> b=v.subList(5, 1000).include(-2);
+		b.validate();
+		assertEquals(996,b.size());
+		assertEquals((Integer)999,b.get(994));
+		assertEquals((Integer)(-2),b.get(995));
+		
+		// appending to a shared vector leaves the original unchanged
+		APersistentVector<Integer> c=v.include(-3);
+		APersistentVector<Integer> d=v.include(-4);
+		assertEquals((Integer)(-3),c.get(3000));
+		assertEquals((Integer)(-4),d.get(3000));
+		assertEquals(3000,v.size());
+		
+		testPersistentVector(v.subList(0, 1000));
+	}
+	
+	@Test public void testTransientVector() {
+		int[] sizes={0,1,2,31,32,33,511,512,513,8191,8192,8193,20000};
+		for (int n: sizes) {
+			PersistentVector.Transient<Integer> t=PersistentVector.createTransient();
+			ArrayList<Integer> al=new ArrayList<Integer>();
+			for (int i=0; i<n; i++) {
+				t.include(i);
+				al.add(i);
+			}
+			assertEquals(n,t.size());
+			APersistentVector<Integer> v=t.persistent();
+			v.validate();
+			assertEquals(al,v);
+			assertEquals(Vectors.createFromList(al).hashCode(),v.hashCode());
+			if (n>0) assertEquals((Integer)(n-1),v.get(n-1));
+			if (n==513) testPersistentVector(v);
+			
+			try {
+				t.include(1);
+				fail("Transient should not be usable after persistent()");
+			} catch (IllegalStateException e) {
+				// OK
+			}
+		}
+		
+		assertEquals(Tuple.of(1,2,3,4),Tuple.of(1,2).includeAll(Tuple.of(3,4)));
 	}
 	
 	@Test public void testSetTypes() {
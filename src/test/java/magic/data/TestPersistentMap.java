@@ -2,15 +2,20 @@ package magic.data;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.TreeMap;
 
 import mikera.util.Rand;
 
 import org.junit.Test;
 
 import magic.RT;
+import magic.data.impl.ArrayMap;
 import magic.data.impl.NullMap;
 
 public class TestPersistentMap {
@@ -31,6 +36,198 @@ public class TestPersistentMap {
 		APersistentMap<Integer,String> nm=(APersistentMap<Integer,String>)NullMap.INSTANCE;
 		testMap(nm);
 		testMap(addRandomMaps(nm));
+		
+		APersistentMap<Integer,String> cm=ChampHashMap.create();
+		testMap(cm);
+		testMap(addRandomMaps(cm));
+		
+		APersistentMap<Integer,String> sm=PersistentSortedMap.create();
+		testMap(sm);
+		testMap(addRandomMaps(sm));
+		
+		APersistentMap<Integer,String> am=ArrayMap.wrap(new Integer[] {1,2},new Object[] {"a","b"});
+		testMap(am);
+		testMap(addRandomMaps(am));
+	}
+	
+	@Test public void testHashConsistency() {
+		// equal maps have equal hashes, regardless of implementation
+		HashMap<Integer,String> hm=new HashMap<>();
+		for (int i=0; i<10; i++) {
+			hm.put(i*7, "v"+i);
+		}
+		APersistentMap<Integer,String> cm=ChampHashMap.create(hm);
+		APersistentMap<Integer,String> pm=PersistentHashMap.create();
+		APersistentMap<Integer,String> sm=PersistentSortedMap.create();
+		Integer[] keys=new Integer[hm.size()];
+		Object[] values=new Object[hm.size()];
+		int i=0;
+		for (Map.Entry<Integer,String> e: hm.entrySet()) {
+			pm=pm.assoc(e.getKey(), e.getValue());
+			sm=sm.assoc(e.getKey(), e.getValue());
+			keys[i]=e.getKey();
+			values[i++]=e.getValue();
+		}
+		APersistentMap<Integer,String> am=ArrayMap.wrap(keys,values);
+		for (APersistentMap<Integer,String> m: Arrays.asList(pm,sm,am)) {
+			assertEquals(cm,m);
+			assertEquals(cm.hashCode(),m.hashCode());
+		}
+		
+		// cached hashes are not carried over to updated maps
+		assertEquals(cm.assoc(7, "x").hashCode(),sm.assoc(7, "x").hashCode());
+		assertEquals(cm.dissoc(14).hashCode(),sm.dissoc(14).hashCode());
+		assertEquals(ChampHashMap.create().hashCode(),NullMap.INSTANCE.hashCode());
+	}
+	
+	/**
+	 * Key with a controllable hash, for testing hash collisions
+	 */
+	private static final class CollidingKey {
+		private final int id;
+		private final int hash;
+		
+		private CollidingKey(int id, int hash) {
+			this.id=id;
+			this.hash=hash;
+		}
+		
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+		
+		@Override
+		public boolean equals(Object o) {
+			return (o instanceof CollidingKey)&&(((CollidingKey)o).id==id);
+		}
+	}
+	
+	@Test public void testChampMap() {
+		HashMap<Object,Integer> hm=new HashMap<Object,Integer>();
+		ChampHashMap<Object,Integer> cm=ChampHashMap.create();
+		for (int i=0; i<5000; i++) {
+			int r=Rand.r(400);
+			// mix of ordinary keys, keys sharing long hash prefixes, and full hash collisions
+			Object key=(r<200)?Integer.valueOf(r):new CollidingKey(r,(r%3==0)?12345:((r&15)<<25));
+			if (Rand.r(3)==0) {
+				hm.remove(key);
+				cm=cm.dissoc(key);
+			} else {
+				hm.put(key, i);
+				cm=cm.assoc(key, i);
+			}
+			assertEquals(hm.size(),cm.size());
+		}
+		cm.validate();
+		for (Map.Entry<Object,Integer> e: hm.entrySet()) {
+			assertEquals(e.getValue(),cm.get(e.getKey()));
+		}
+		assertEquals(hm,cm.toHashMap());
+		
+		// canonical form: the same entries built in a different order give an equivalent map
+		ChampHashMap<Object,Integer> cm2=ChampHashMap.create(hm);
+		cm2.validate();
+		assertEquals(cm,cm2);
+		assertEquals(cm.hashCode(),cm2.hashCode());
+		assertEquals(cm2,PersistentHashMap.create(hm));
+		
+		for (Object key: hm.keySet()) {
+			cm2=cm2.dissoc(key);
+		}
+		cm2.validate();
+		assertTrue(cm2==ChampHashMap.EMPTY);
+		
+		// transient edits must not affect the original
+		ChampHashMap.Transient<Object,Integer> t=cm.asTransient();
+		for (int i=0; i<100; i++) {
+			t.assoc(i,-i);
+			t.dissoc(new CollidingKey(300+i,12345));
+		}
+		ChampHashMap<Object,Integer> cm3=t.persistent();
+		cm3.validate();
+		assertEquals(hm,cm.toHashMap());
+		assertEquals((Integer)(-50),cm3.get(50));
+	}
+	
+	@Test public void testSortedMap() {
+		TreeMap<Integer,Integer> tm=new TreeMap<Integer,Integer>();
+		PersistentSortedMap<Integer,Integer> sm=PersistentSortedMap.create();
+		for (int i=0; i<5000; i++) {
+			int k=Rand.r(1000);
+			if (Rand.r(3)==0) {
+				tm.remove(k);
+				sm=sm.dissoc(k);
+			} else {
+				tm.put(k, i);
+				sm=sm.assoc(k, i);
+			}
+			assertEquals(tm.size(),sm.size());
+		}
+		sm.validate();
+		assertEquals(tm,sm);
+		assertEquals(sm,ChampHashMap.create(tm));
+		assertEquals(ChampHashMap.create(tm).hashCode(),sm.hashCode());
+		assertEquals(Vectors.createFromCollection(tm.keySet()),Vectors.createFromCollection(sm.keySet()));
+		assertEquals(tm.firstKey(),sm.firstKey());
+		assertEquals(tm.lastKey(),sm.lastKey());
+		
+		for (int k=-1; k<=1001; k+=7) {
+			assertEquals(tm.floorKey(k),sm.floorKey(k));
+			assertEquals(tm.ceilingKey(k),sm.ceilingKey(k));
+			assertEquals(tm.lowerKey(k),sm.lowerKey(k));
+			assertEquals(tm.higherKey(k),sm.higherKey(k));
+			
+			PersistentSortedMap<Integer,Integer> sub=sm.subMap(k,k+100);
+			sub.validate();
+			assertEquals(tm.subMap(k,k+100),sub);
+			assertEquals(tm.headMap(k),sm.headMap(k));
+			assertEquals(tm.tailMap(k),sm.tailMap(k));
+			
+			int n=0;
+			for (ISeq<Map.Entry<Integer,Integer>> s=sm.rangeSeq(k,k+100); s!=null; s=s.next()) {
+				Map.Entry<Integer,Integer> e=s.first();
+				assertEquals(tm.get(e.getKey()),e.getValue());
+				n++;
+			}
+			assertEquals(sub.size(),n);
+		}
+		assertTrue(sm==sm.subMap(-1,1000));
+		assertEquals(null,sm.rangeSeq(500,500));
+		
+		// removing every key must leave a valid empty tree
+		for (Integer k: tm.keySet()) {
+			sm=sm.dissoc(k);
+		}
+		sm.validate();
+		assertEquals(0,sm.size());
+		
+		// ascending insertion must stay balanced
+		PersistentSortedMap<Integer,Integer> asc=PersistentSortedMap.create();
+		for (int i=0; i<1000; i++) {
+			asc=asc.assoc(i,i);
+		}
+		asc.validate();
+		assertEquals((Integer)999,asc.lastKey());
+	}
+	
+	@Test public void testSortedMapComparator() {
+		PersistentSortedMap<String,Integer> sm=PersistentSortedMap.create(Collections.<String>reverseOrder());
+		sm=sm.assoc("a",1).assoc("c",3).assoc("b",2);
+		sm.validate();
+		assertEquals("c",sm.firstKey());
+		assertEquals("c",sm.floorKey("bb"));
+		assertEquals("b",sm.ceilingKey("bb"));
+		assertEquals(Tuple.of("b","a"),Vectors.createFromCollection(sm.tailMap("b").keySet()));
+		assertEquals(Collections.<String>reverseOrder(),sm.subMap("c","a").comparator());
+		assertEquals((Integer)2,sm.subMap("c","a").lastEntry().getValue());
+		
+		try {
+			sm.assoc(null,0);
+			fail("Null keys should not be allowed");
+		} catch (IllegalArgumentException e) {
+			// OK
+		}
 	}
 	
 	private APersistentMap<Integer, String> addRandomMaps(APersistentMap<Integer,String> im) {
@@ -183,5 +380,49 @@ public class TestPersistentMap {
 		assertEquals(40,pm.size());
 		testMap(pm);
 	}
+	
+	@Test public void testTransient() {
+		APersistentMap<Integer,String> pm=PersistentHashMap.create();
+		PersistentHashMap.Transient<Integer,String> t=PersistentHashMap.createTransient();
+		for (int i=0; i<5000; i++) {
+			int k=Rand.r(2000);
+			String v=Rand.nextString();
+			pm=pm.assoc(k,v);
+			t.assoc(k,v);
+		}
+		assertEquals(pm.size(),t.size());
+		PersistentHashMap<Integer,String> tm=t.persistent();
+		tm.validate();
+		assertEquals(pm,tm);
+		testMap(tm);
+		
+		try {
+			t.assoc(1,"Foo");
+			fail("Transient should not be usable after persistent()");
+		} catch (IllegalStateException e) {
+			// OK
+		}
+		
+		// changes to a transient copy must not affect the original
+		PersistentHashMap.Transient<Integer,String> t2=tm.asTransient();
+		for (int i=0; i<3000; i++) {
+			t2.assoc(i,"Bar");
+		}
+		PersistentHashMap<Integer,String> tm2=t2.persistent();
+		tm2.validate();
+		assertEquals(pm,tm);
+		assertEquals(3000,tm2.size());
+		assertEquals("Bar",tm2.get(1999));
+		
+		assertTrue(tm==tm.include(tm));
+		assertEquals(tm2,tm.include(tm2));
+	}
+	
+	@Test public void testCreateFromFlattened() {
+		APersistentMap<?,?> m=Maps.createFromFlattenedArray(new Object[] {1,"a",2,"b",1,"c"});
+		assertEquals(2,m.size());
+		assertEquals("c",m.get(1));
+		assertEquals(m,Maps.createFromFlattenedPairs(Tuple.of(1,"a",2,"b",1,"c")));
+	}
 
 }
\ No newline at end of file
@@ -2,8 +2,16 @@ package magic.data;
 
 import static org.junit.Assert.*;
 
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeSet;
+
 import org.junit.Test;
 
+import magic.data.impl.ArraySet;
+import magic.data.impl.SingletonSet;
+
 public class TestSets {
 	@Test public void testExclude() {
 		assertEquals(Sets.of(1,2),Sets.of(1,2,3).exclude((Integer)3));
@@ -28,6 +36,146 @@ public class TestSets {
 
 	}
 	
+	@Test public void testTransient() {
+		PersistentHashSet.Transient<Integer> t=PersistentHashSet.createTransient();
+		APersistentSet<Integer> ps=Sets.emptySet();
+		for (int i=0; i<3000; i++) {
+			Integer v=(i*7919)%2000;
+			t.include(v);
+			ps=ps.include(v);
+		}
+		assertEquals(2000,t.size());
+		assertTrue(t.contains(1999));
+		PersistentHashSet<Integer> s=t.persistent();
+		s.validate();
+		assertEquals(ps,s);
+		
+		try {
+			t.include(1);
+			fail("Transient should not be usable after persistent()");
+		} catch (IllegalStateException e) {
+			// OK
+		}
+
+		PersistentHashSet<Integer> s2=s.asTransient().includeAll(Tuple.of(5000,5001)).persistent();
+		assertEquals(2000,s.size());
+		assertEquals(2002,s2.size());
+		assertTrue(s==s.includeAll(Tuple.of(1,2,3)));
+		assertEquals(s2,s.includeAll(Tuple.of(5000,5001)));
+	}
+	
+	@Test public void testChampSet() {
+		java.util.HashSet<Object> hs=new java.util.HashSet<Object>();
+		ChampHashSet<Object> cs=ChampHashSet.create();
+		for (int i=0; i<5000; i++) {
+			int r=(i*7919)%600;
+			// strings sharing hash codes: "Aa" and "BB" collide
+			Object v=(r<300)?Integer.valueOf(r):((r%2==0)?"Aa":"BB")+r/2;
+			if ((i%3)==0) {
+				hs.remove(v);
+				cs=cs.exclude(v);
+			} else {
+				hs.add(v);
+				cs=cs.include(v);
+			}
+			assertEquals(hs.size(),cs.size());
+		}
+		cs.validate();
+		for (Object o: hs) {
+			assertTrue(cs.contains(o));
+		}
+		
+		ChampHashSet<Object> cs2=ChampHashSet.createFromSet(hs);
+		cs2.validate();
+		assertEquals(cs,cs2);
+		assertEquals(cs.hashCode(),cs2.hashCode());
+		assertEquals(PersistentHashSet.createFromSet(hs),cs2);
+		assertTrue(cs==cs.includeAll(cs2));
+		
+		for (Object o: hs) {
+			cs2=cs2.exclude(o);
+		}
+		assertTrue(cs2==ChampHashSet.EMPTY);
+	}
+	
+	@Test public void testSortedSet() {
+		java.util.TreeSet<Integer> ts=new java.util.TreeSet<Integer>();
+		PersistentSortedSet<Integer> ss=PersistentSortedSet.create();
+		for (int i=0; i<5000; i++) {
+			Integer v=(i*7919)%700;
+			if ((i%3)==0) {
+				ts.remove(v);
+				ss=ss.exclude(v);
+			} else {
+				ts.add(v);
+				ss=ss.include(v);
+			}
+			assertEquals(ts.size(),ss.size());
+		}
+		ss.validate();
+		assertEquals(ts,ss);
+		assertEquals(ChampHashSet.createFromSet(ts),ss);
+		assertEquals(ChampHashSet.createFromSet(ts).hashCode(),ss.hashCode());
+		assertEquals(Vectors.createFromCollection(ts),Vectors.createFromCollection(ss));
+		assertTrue(ss==ss.include(ts.first()));
+		assertTrue(ss==ss.exclude(-1));
+		
+		assertEquals(ts.first(),ss.first());
+		assertEquals(ts.last(),ss.last());
+		for (int v=-1; v<=701; v+=11) {
+			assertEquals(ts.floor(v),ss.floor(v));
+			assertEquals(ts.ceiling(v),ss.ceiling(v));
+			assertEquals(ts.lower(v),ss.lower(v));
+			assertEquals(ts.higher(v),ss.higher(v));
+			assertEquals(ts.subSet(v,v+50),ss.subSet(v,v+50));
+			assertEquals(ts.headSet(v),ss.headSet(v));
+			assertEquals(ts.tailSet(v),ss.tailSet(v));
+			
+			java.util.Iterator<Integer> it=ts.subSet(v,v+50).iterator();
+			for (ISeq<Integer> s=ss.rangeSeq(v,v+50); s!=null; s=s.next()) {
+				assertEquals(it.next(),s.first());
+			}
+			assertTrue(!it.hasNext());
+		}
+		
+		PersistentSortedSet<String> rs=PersistentSortedSet.create(java.util.Collections.<String>reverseOrder());
+		rs=rs.include("a").include("c").include("b");
+		assertEquals(Tuple.of("c","b","a"),Vectors.createFromCollection(rs));
+		assertEquals(rs.comparator(),rs.empty().comparator());
+		assertEquals(0,rs.empty().size());
+	}
+	
+	@Test public void testHashConsistency() {
+		// equal sets have equal hashes, regardless of implementation
+		TreeSet<Integer> ts=new TreeSet<>();
+		HashMap<Integer,String> hm=new HashMap<>();
+		for (int i=0; i<100; i++) {
+			ts.add(i*7);
+			hm.put(i*7, "v");
+		}
+		APersistentSet<Integer> cs=ChampHashSet.createFromSet(ts);
+		List<APersistentSet<Integer>> sets=Arrays.asList(
+				PersistentHashSet.create(ts),
+				PersistentSortedSet.create(ts),
+				ArraySet.createFromSet(ts),
+				ChampHashMap.create(hm).keySet());
+		for (APersistentSet<Integer> s: sets) {
+			assertEquals(cs,s);
+			assertEquals(cs.hashCode(),s.hashCode());
+		}
+		
+		// cached hashes are not carried over to updated sets
+		PersistentSortedSet<Integer> ss=PersistentSortedSet.create(ts);
+		assertEquals(cs.hashCode(),ss.hashCode());
+		assertEquals(cs.include(1).hashCode(),ss.include(1).hashCode());
+		assertEquals(cs.exclude(7).hashCode(),ss.exclude(7).hashCode());
+		
+		APersistentSet<Integer> one=ChampHashSet.create(7);
+		assertEquals(one.hashCode(),SingletonSet.create(7).hashCode());
+		assertEquals(one.hashCode(),PersistentHashSet.createSingleValueSet(7).hashCode());
+		assertEquals(ChampHashSet.create().hashCode(),Sets.emptySet().hashCode());
+	}
+	
 	@Test public void testIncludeIdentity() {
 		String a="a";
 		String b="b";